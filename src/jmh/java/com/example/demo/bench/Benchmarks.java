@@ -0,0 +1,24 @@
+package com.example.demo.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * @author mark
+ * @date 2022/9/7 11:00
+ * @describe 微基准测试入口：参数和JMH命令行一致，始终附加GC分析器，每个基准都输出分配速率（gc.alloc.rate.norm）
+ * mvn -Pjmh package 后运行 java -jar target/benchmarks.jar [正则] [JMH参数]
+ */
+public class Benchmarks {
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
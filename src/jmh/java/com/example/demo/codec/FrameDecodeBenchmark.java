@@ -0,0 +1,104 @@
+package com.example.demo.codec;
+
+import com.example.demo.buffer.BufferPool;
+import com.example.demo.buffer.PooledBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author mark
+ * @date 2022/9/7 11:00
+ * @describe 帧解码基准：和Worker/ClientLoop一样每读到一段数据就交给连接的解码器，回调里解码成字符串
+ * whole每次读取正好一个帧，split每个帧被拆成三次读取（半包），sticky一次读取包含全部帧（粘包）；结果按单帧计
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDecodeBenchmark {
+
+    private static final int FRAMES = 64;
+
+    @Param({"whole", "split", "sticky"})
+    private String mode;
+
+    @Param({"32", "512", "4096"})
+    private int length;
+
+    private FrameDecoder decoder;
+
+    /**
+     * 每次读取到的数据，读模式
+     */
+    private ByteBuffer[] reads;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        StringBuilder msg = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            msg.append((char) ('a' + i % 26));
+        }
+        PooledBuffer frame = FrameCodec.encode(msg, BufferPool.DEFAULT);
+        int frameLength = frame.buffer().remaining();
+        // 所有帧连续放在一个直接缓冲区里，和socket读到的数据一样
+        ByteBuffer stream = ByteBuffer.allocateDirect(frameLength * FRAMES);
+        for (int i = 0; i < FRAMES; i++) {
+            stream.put(frame.buffer().duplicate());
+        }
+        frame.release();
+        stream.flip();
+        int readSize;
+        switch (mode) {
+            case "whole":
+                readSize = frameLength;
+                break;
+            case "split":
+                readSize = Math.max(1, frameLength / 3 + 1);
+                break;
+            default:
+                readSize = stream.remaining();
+                break;
+        }
+        int count = (stream.remaining() + readSize - 1) / readSize;
+        reads = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            ByteBuffer read = stream.duplicate();
+            read.position(i * readSize);
+            read.limit(Math.min(stream.limit(), (i + 1) * readSize));
+            reads[i] = read.slice();
+        }
+        decoder = new FrameDecoder();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        decoder.release();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void decode(Blackhole blackhole) throws FrameException {
+        for (ByteBuffer read : reads) {
+            ByteBuffer in = read.duplicate();
+            decoder.decode(in, frame -> blackhole.consume(FrameCodec.decodeToString(frame)));
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.demo.codec;
+
+import com.example.demo.buffer.BufferPool;
+import com.example.demo.buffer.PooledBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author mark
+ * @date 2022/9/7 11:00
+ * @describe 帧编码基准：pooled是现在的FrameCodec.encode直接编码到池化直接缓冲区；
+ * heap是原来addPacketLength的做法，getBytes得到byte[]后再拷贝到新分配的堆缓冲区，作为对照
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameEncodeBenchmark {
+
+    @Param({"32", "512", "4096"})
+    private int length;
+
+    /**
+     * ascii为纯英文，cjk为中文（UTF-8每个字符3字节）
+     */
+    @Param({"ascii", "cjk"})
+    private String charset;
+
+    private String msg;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            builder.append("ascii".equals(charset) ? (char) ('a' + i % 26) : (char) ('一' + i % 1000));
+        }
+        msg = builder.toString();
+    }
+
+    @Benchmark
+    public int pooled() {
+        PooledBuffer frame = FrameCodec.encode(msg, BufferPool.DEFAULT);
+        int size = frame.buffer().remaining();
+        frame.release();
+        return size;
+    }
+
+    @Benchmark
+    public ByteBuffer heap() {
+        byte[] bytes = msg.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(FrameCodec.HEADER_LENGTH + bytes.length);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.demo.server;
+
+import com.example.demo.buffer.BufferPool;
+import com.example.demo.buffer.PooledBuffer;
+import com.example.demo.codec.FrameCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author mark
+ * @date 2022/9/7 11:00
+ * @describe 群发准备阶段的基准：把一条群聊消息放入所有接收方的发送队列，不含socket写出
+ * shared是现在的做法，编码一次后每个接收方一个只读副本；perRecipient是原来每个接收方各编码一次，作为对照
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    @Param({"10", "100", "1000"})
+    private int recipients;
+
+    @Param({"64", "1024"})
+    private int length;
+
+    private Session[] sessions;
+
+    private String msg;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            builder.append((char) ('a' + i % 26));
+        }
+        msg = builder.toString();
+        sessions = new Session[recipients];
+        for (int i = 0; i < recipients; i++) {
+            sessions[i] = new Session(null, null);
+        }
+    }
+
+    @Benchmark
+    public long shared() {
+        PooledBuffer frame = FrameCodec.encode(msg, BufferPool.DEFAULT);
+        for (Session session : sessions) {
+            session.enqueue(frame.retainedDuplicate());
+        }
+        frame.release();
+        return drain();
+    }
+
+    @Benchmark
+    public long perRecipient() {
+        for (Session session : sessions) {
+            session.enqueue(FrameCodec.encode(msg, BufferPool.DEFAULT));
+        }
+        return drain();
+    }
+
+    /**
+     * 模拟写出完成，归还所有帧，保证每次调用从空队列开始
+     */
+    private long drain() {
+        long bytes = 0;
+        for (Session session : sessions) {
+            bytes += session.release();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.demo.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author mark
+ * @date 2022/9/7 11:00
+ * @describe 按客户端ID查找会话的基准：registry是现在私聊用的SessionRegistry.get；
+ * scan是原来checkClient/getClientId遍历整个容器逐个比较的做法，作为对照
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionLookupBenchmark {
+
+    @Param({"10", "100", "3844"})
+    private int sessions;
+
+    private final SessionRegistry registry = new SessionRegistry();
+
+    private final ConcurrentHashMap<String, Session> legacy = new ConcurrentHashMap<>();
+
+    private String[] ids;
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ids = new String[sessions];
+        for (int i = 0; i < sessions; i++) {
+            // 每次都新建字符串，和从消息里substring出来的ID一样不是同一个对象
+            ids[i] = new String("c" + i);
+            Session session = new Session(null, null);
+            registry.bind("c" + i, session);
+            legacy.put("c" + i, session);
+        }
+    }
+
+    @Benchmark
+    public Session registry() {
+        return registry.get(nextId());
+    }
+
+    @Benchmark
+    public Session scan() {
+        String id = nextId();
+        Iterator<Map.Entry<String, Session>> iterator = legacy.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Session> entry = iterator.next();
+            if (entry.getKey().equals(id)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    private String nextId() {
+        String id = ids[next];
+        next = next + 1 == ids.length ? 0 : next + 1;
+        return id;
+    }
+}
@@ -0,0 +1,363 @@
+package com.example.demo.bench;
+
+import com.example.demo.DemoApplication;
+import com.example.demo.client.ClientConnectionManager;
+import com.example.demo.client.ClientListener;
+import com.example.demo.metrics.LatencyHistogram;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.SpringApplication;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author mark
+ * @date 2022/9/5 15:20
+ * @describe 压测工具：用项目自己的客户端协议（login + 聊天帧）打开N个会话，按固定速率发送私聊/群发混合消息，
+ * 经服务端的RelayServerListener转发回来，统计吞吐和端到端延迟
+ * 延迟从计划发送时间算起而不是实际发送时间（修正协调遗漏），发送线程落后时照常补发，排队时间计入延迟
+ * <p>
+ * 用法：java -cp demo.jar -Dloader.main=com.example.demo.bench.LoadGenerator org.springframework.boot.loader.PropertiesLauncher
+ * --sessions=200 --rate=20000 --duration=30 --warmup=5 --broadcast-ratio=0.01 --size=64 --embedded --workers=4 --json=result.json
+ * 加--engine=virtual用虚拟线程引擎启动内置服务端（需要Java 21），同样的参数跑两次即可对比两种引擎的吞吐、延迟和每个会话的堆内存
+ * 不加--embedded时压测--host/--port指定的服务端，服务端需要以socket.headless=true、socket.bench.relay=true启动
+ * 服务端按两位字符识别客户端ID，所以会话数最多3844个
+ */
+@Slf4j
+public class LoadGenerator implements ClientListener {
+
+    /**
+     * 客户端ID用的字符，两位最多62*62个会话
+     */
+    static final String ID_CHARS = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+
+    /**
+     * 最多的会话数，每个会话一个两位客户端ID
+     */
+    static final int MAX_SESSIONS = ID_CHARS.length() * ID_CHARS.length();
+
+    static final String LOGIN = "login";
+
+    /**
+     * 消息里时间戳的开始和结束标记，不会出现在客户端ID里
+     */
+    static final char STAMP = '#';
+
+    static final char STAMP_END = ';';
+
+    private final Map<String, String> options;
+
+    private final String host;
+
+    private final int port;
+
+    private final int sessions;
+
+    private final long rate;
+
+    private final int durationSeconds;
+
+    private final int warmupSeconds;
+
+    private final double broadcastRatio;
+
+    private final int size;
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    private final AtomicLong connected = new AtomicLong();
+
+    private final AtomicLong ready = new AtomicLong();
+
+    private final AtomicLong disconnected = new AtomicLong();
+
+    /**
+     * 统计窗口内计划发送的消息应该收到的条数（私聊1条，群发每个会话1条）
+     */
+    private final AtomicLong expected = new AtomicLong();
+
+    /**
+     * 统计窗口内计划发送、已经收到的消息条数
+     */
+    private final AtomicLong received = new AtomicLong();
+
+    /**
+     * 统计窗口开始时间，计划发送时间早于它的消息只算预热
+     */
+    private volatile long measureStart = Long.MAX_VALUE;
+
+    /**
+     * 内置服务端时建立会话前后的堆内存增量按会话数平均，包括客户端一侧的连接状态，-1表示没有测量
+     */
+    private long heapPerSession = -1;
+
+    private LoadGenerator(Map<String, String> options) {
+        this.options = options;
+        this.host = options.getOrDefault("host", "127.0.0.1");
+        this.port = Integer.parseInt(options.getOrDefault("port", "9998"));
+        this.sessions = Integer.parseInt(options.getOrDefault("sessions", "100"));
+        this.rate = Long.parseLong(options.getOrDefault("rate", "10000"));
+        this.durationSeconds = Integer.parseInt(options.getOrDefault("duration", "30"));
+        this.warmupSeconds = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        this.broadcastRatio = Double.parseDouble(options.getOrDefault("broadcast-ratio", "0"));
+        this.size = Integer.parseInt(options.getOrDefault("size", "64"));
+        if (sessions < 1 || sessions > MAX_SESSIONS) {
+            throw new IllegalArgumentException("会话数必须在1到" + MAX_SESSIONS + "之间");
+        }
+        if (rate < 1) {
+            throw new IllegalArgumentException("发送速率必须大于0");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parse(args);
+        LoadGenerator generator = new LoadGenerator(options);
+        if (options.containsKey("embedded")) {
+            startEmbeddedServer(options, generator.host, generator.port);
+        }
+        String json = generator.run();
+        System.out.println(json);
+        String file = options.get("json");
+        if (file != null) {
+            try (Writer writer = new OutputStreamWriter(Files.newOutputStream(Paths.get(file)), StandardCharsets.UTF_8)) {
+                writer.write(json);
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * 解析--key=value形式的参数，没有值的参数记为true
+     */
+    static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("无法识别的参数:" + arg);
+            }
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                options.put(arg.substring(2), "true");
+            } else {
+                options.put(arg.substring(2, eq), arg.substring(eq + 1));
+            }
+        }
+        return options;
+    }
+
+    /**
+     * 在本进程里以无界面、开启转发的方式启动服务端，等端口可以连接后返回
+     */
+    static void startEmbeddedServer(Map<String, String> options, String host, int port) throws InterruptedException {
+        SpringApplication.run(DemoApplication.class,
+                "--socket.headless=true",
+                "--socket.bench.relay=true",
+                "--spring.main.web-application-type=none",
+                "--socket.server.port=" + port,
+                "--socket.server.engine=" + options.getOrDefault("engine", "nio"),
+                "--socket.server.acceptor-count=" + options.getOrDefault("acceptors", "1"),
+                "--socket.server.accept-backlog=" + options.getOrDefault("backlog", "1024"),
+                "--socket.server.max-accept-rate=" + options.getOrDefault("max-accept-rate", "0"),
+                "--socket.server.worker-count=" + options.getOrDefault("workers", "0"),
+                "--socket.server.worker-chooser=" + options.getOrDefault("worker-chooser", "round-robin"),
+                "--socket.server.flush-linger-micros=" + options.getOrDefault("flush-linger-micros", "0"));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (System.nanoTime() < deadline) {
+            try {
+                // 能连上就说明已经开始接入，立即关闭探测连接
+                new Socket(host, port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("内置服务端没有在30秒内启动");
+    }
+
+    /**
+     * 建立会话、发送、等待收完并生成报告
+     *
+     * @return JSON报告
+     */
+    private String run() throws IOException, InterruptedException {
+        boolean embedded = options.containsKey("embedded");
+        long heapBefore = embedded ? usedHeap() : 0;
+        ClientConnectionManager manager = new ClientConnectionManager(
+                Integer.parseInt(options.getOrDefault("loops", "2")), this);
+        manager.start();
+        String[] ids = new String[sessions];
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        for (int i = 0; i < sessions; i++) {
+            ids[i] = idOf(i);
+            manager.connect(address, ids[i]);
+            manager.send(ids[i], LOGIN + ids[i]);
+            // 登录后给自己发一条私聊，收到说明登录和转发都已就绪
+            manager.send(ids[i], ids[i] + STAMP + 0 + STAMP_END);
+        }
+        awaitCount(ready, sessions, "会话就绪");
+        if (embedded) {
+            heapPerSession = (usedHeap() - heapBefore) / sessions;
+        }
+        log.info("====={}个会话就绪，开始压测", sessions);
+
+        Random random = new Random(42);
+        char[] padding = new char[Math.max(0, size - 24)];
+        Arrays.fill(padding, 'x');
+        String pad = new String(padding);
+        double interval = TimeUnit.SECONDS.toNanos(1) / (double) rate;
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long warmupEnd = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = warmupEnd + TimeUnit.SECONDS.toNanos(durationSeconds);
+        measureStart = warmupEnd;
+        long sent = 0;
+        long measuredSent = 0;
+        for (long k = 0; ; k++) {
+            long intended = start + (long) (k * interval);
+            if (intended >= end) {
+                break;
+            }
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0) {
+                if (wait > TimeUnit.MICROSECONDS.toNanos(50)) {
+                    LockSupport.parkNanos(wait - TimeUnit.MICROSECONDS.toNanos(20));
+                } else {
+                    Thread.yield();
+                }
+            }
+            String sender = ids[(int) (k % sessions)];
+            boolean broadcast = random.nextDouble() < broadcastRatio;
+            String target = broadcast ? RelayServerListener.ALL : ids[random.nextInt(sessions)];
+            if (intended >= warmupEnd) {
+                expected.addAndGet(broadcast ? sessions : 1);
+                measuredSent++;
+            }
+            manager.send(sender, target + STAMP + intended + STAMP_END + pad);
+            sent++;
+        }
+        long sendEnd = System.nanoTime();
+        // 等待在途消息收完，最多10秒
+        long deadline = sendEnd + TimeUnit.SECONDS.toNanos(10);
+        while (received.get() < expected.get() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        manager.shutdown();
+        return report(sent, measuredSent, (end - warmupEnd) / 1e9);
+    }
+
+    private void awaitCount(AtomicLong counter, long count, String what) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (counter.get() < count) {
+            if (System.nanoTime() > deadline || disconnected.get() > 0) {
+                throw new IllegalStateException(what + "失败：" + counter.get() + "/" + count + "，断开" + disconnected.get());
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    static String idOf(int index) {
+        return "" + ID_CHARS.charAt(index / ID_CHARS.length()) + ID_CHARS.charAt(index % ID_CHARS.length());
+    }
+
+    @Override
+    public void onConnected(String clientId) {
+        connected.incrementAndGet();
+    }
+
+    @Override
+    public void onMessage(String clientId, String message) {
+        long now = System.nanoTime();
+        int from = message.indexOf(STAMP);
+        int to = message.indexOf(STAMP_END, from + 1);
+        if (from < 0 || to < 0) {
+            return;
+        }
+        long intended = Long.parseLong(message.substring(from + 1, to));
+        if (intended == 0) {
+            ready.incrementAndGet();
+        } else if (intended >= measureStart) {
+            received.incrementAndGet();
+            histogram.record(now - intended);
+        }
+    }
+
+    @Override
+    public void onDisconnected(String clientId) {
+        disconnected.incrementAndGet();
+    }
+
+    /**
+     * 多次GC后已使用的堆内存，只用于估算会话的内存占用
+     */
+    static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * 生成JSON报告，延迟单位微秒
+     */
+    private String report(long sent, long measuredSent, double seconds) {
+        StringBuilder json = new StringBuilder("{\n");
+        field(json, "timestamp", "\"" + Instant.now() + "\"");
+        field(json, "host", "\"" + host + ":" + port + "\"");
+        field(json, "embedded", String.valueOf(options.containsKey("embedded")));
+        field(json, "engine", "\"" + options.getOrDefault("engine", "server default") + "\"");
+        field(json, "workers", "\"" + options.getOrDefault("workers", "server default") + "\"");
+        field(json, "sessions", String.valueOf(sessions));
+        field(json, "targetRate", String.valueOf(rate));
+        field(json, "broadcastRatio", String.valueOf(broadcastRatio));
+        field(json, "messageSize", String.valueOf(size));
+        field(json, "warmupSeconds", String.valueOf(warmupSeconds));
+        field(json, "durationSeconds", String.valueOf(durationSeconds));
+        field(json, "sent", String.valueOf(sent));
+        field(json, "measuredSent", String.valueOf(measuredSent));
+        field(json, "expectedDeliveries", String.valueOf(expected.get()));
+        field(json, "deliveries", String.valueOf(received.get()));
+        field(json, "lost", String.valueOf(expected.get() - received.get()));
+        field(json, "connected", String.valueOf(connected.get()));
+        field(json, "disconnects", String.valueOf(disconnected.get()));
+        field(json, "heapBytesPerSession", heapPerSession < 0 ? "null" : String.valueOf(heapPerSession));
+        field(json, "sendRate", format(measuredSent / seconds));
+        field(json, "deliveryRate", format(received.get() / seconds));
+        json.append("  \"latencyMicros\": {\n");
+        json.append("    \"p50\": ").append(micros(histogram.getValueAtQuantile(0.5))).append(",\n");
+        json.append("    \"p90\": ").append(micros(histogram.getValueAtQuantile(0.9))).append(",\n");
+        json.append("    \"p99\": ").append(micros(histogram.getValueAtQuantile(0.99))).append(",\n");
+        json.append("    \"p999\": ").append(micros(histogram.getValueAtQuantile(0.999))).append(",\n");
+        json.append("    \"max\": ").append(micros(histogram.getMax())).append(",\n");
+        json.append("    \"mean\": ").append(format(histogram.getMean() / 1000)).append("\n");
+        json.append("  }\n}");
+        return json.toString();
+    }
+
+    static void field(StringBuilder json, String name, String value) {
+        json.append("  \"").append(name).append("\": ").append(value).append(",\n");
+    }
+
+    static String micros(long nanos) {
+        return format(nanos / 1000.0);
+    }
+
+    static String format(double value) {
+        return String.format(Locale.ROOT, "%.1f", value);
+    }
+}
@@ -0,0 +1,224 @@
+package com.example.demo.bench;
+
+import com.example.demo.client.ClientConnectionManager;
+import com.example.demo.client.ClientListener;
+import com.example.demo.metrics.LatencyHistogram;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author mark
+ * @date 2022/9/16 10:00
+ * @describe 重连风暴压测：N个客户端同时断开再同时重连，模拟服务端重启后所有客户端一起回来，统计全部重新接入需要的时间
+ * 每个客户端连接后立即登录并给自己发一条私聊，收到转发回来的消息才算接入完成，接入延迟从发起连接算起，
+ * 包括内核等待队列溢出后SYN重传的等待、接入限速的排队、登录和转发
+ * <p>
+ * 用法：java -cp demo.jar -Dloader.main=com.example.demo.bench.ReconnectStorm org.springframework.boot.loader.PropertiesLauncher
+ * --sessions=3000 --rounds=5 --embedded --acceptors=4 --backlog=1024 --max-accept-rate=0 --json=storm.json
+ * 第一轮是冷启动接入，之后每轮先全部断开、等--pause毫秒再全部重连，延迟和耗时按重连轮统计
+ * 不加--embedded时压测--host/--port指定的服务端，服务端需要以socket.headless=true、socket.bench.relay=true启动
+ */
+@Slf4j
+public class ReconnectStorm implements ClientListener {
+
+    private final Map<String, String> options;
+
+    private final String host;
+
+    private final int port;
+
+    private final int sessions;
+
+    private final int rounds;
+
+    /**
+     * 断开后到重连前的等待时间（毫秒），让服务端处理完下线
+     */
+    private final long pauseMillis;
+
+    /**
+     * 每轮等待全部接入的超时时间（秒）
+     */
+    private final long timeoutSeconds;
+
+    /**
+     * 重连轮的接入延迟，只有一轮时统计冷启动轮
+     */
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    /**
+     * 本轮已接入的客户端数
+     */
+    private final AtomicLong admitted = new AtomicLong();
+
+    /**
+     * 本轮连接失败或者接入前被断开的客户端数
+     */
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * 是否正在接入，断开阶段的下线通知不算失败
+     */
+    private volatile boolean admitting;
+
+    /**
+     * 是否记录本轮的接入延迟
+     */
+    private volatile boolean recording;
+
+    private ReconnectStorm(Map<String, String> options) {
+        this.options = options;
+        this.host = options.getOrDefault("host", "127.0.0.1");
+        this.port = Integer.parseInt(options.getOrDefault("port", "9998"));
+        this.sessions = Integer.parseInt(options.getOrDefault("sessions", "1000"));
+        this.rounds = Integer.parseInt(options.getOrDefault("rounds", "3"));
+        this.pauseMillis = Long.parseLong(options.getOrDefault("pause", "1000"));
+        this.timeoutSeconds = Long.parseLong(options.getOrDefault("timeout", "60"));
+        if (sessions < 1 || sessions > LoadGenerator.MAX_SESSIONS) {
+            throw new IllegalArgumentException("会话数必须在1到" + LoadGenerator.MAX_SESSIONS + "之间");
+        }
+        if (rounds < 1) {
+            throw new IllegalArgumentException("轮数必须大于0");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = LoadGenerator.parse(args);
+        ReconnectStorm storm = new ReconnectStorm(options);
+        if (options.containsKey("embedded")) {
+            LoadGenerator.startEmbeddedServer(options, storm.host, storm.port);
+        }
+        String json = storm.run();
+        System.out.println(json);
+        String file = options.get("json");
+        if (file != null) {
+            try (Writer writer = new OutputStreamWriter(Files.newOutputStream(Paths.get(file)), StandardCharsets.UTF_8)) {
+                writer.write(json);
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * 按轮次接入、断开并生成报告
+     *
+     * @return JSON报告
+     */
+    private String run() throws IOException, InterruptedException {
+        ClientConnectionManager manager = new ClientConnectionManager(
+                Integer.parseInt(options.getOrDefault("loops", "2")), this);
+        manager.start();
+        String[] ids = new String[sessions];
+        for (int i = 0; i < sessions; i++) {
+            ids[i] = LoadGenerator.idOf(i);
+        }
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        long[] roundMillis = new long[rounds];
+        long[] roundFailed = new long[rounds];
+        for (int round = 0; round < rounds; round++) {
+            admitted.set(0);
+            failed.set(0);
+            recording = round > 0 || rounds == 1;
+            admitting = true;
+            long start = System.nanoTime();
+            for (String id : ids) {
+                long connectStart = System.nanoTime();
+                manager.connect(address, id);
+                manager.send(id, LoadGenerator.LOGIN + id);
+                // 登录后给自己发一条私聊，收到说明已经接入，时间戳是发起连接的时间
+                manager.send(id, id + LoadGenerator.STAMP + connectStart + LoadGenerator.STAMP_END);
+            }
+            long deadline = start + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+            while (admitted.get() + failed.get() < sessions && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            roundMillis[round] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            roundFailed[round] = sessions - admitted.get();
+            admitting = false;
+            log.info("=====第{}轮{}个客户端接入{}个，耗时{}毫秒", round + 1, sessions, admitted.get(), roundMillis[round]);
+            if (round < rounds - 1) {
+                // 所有客户端同时断开，相当于服务端重启时连接全部失效
+                for (String id : ids) {
+                    manager.disconnect(id);
+                }
+                Thread.sleep(pauseMillis);
+            }
+        }
+        manager.shutdown();
+        return report(roundMillis, roundFailed);
+    }
+
+    @Override
+    public void onMessage(String clientId, String message) {
+        long now = System.nanoTime();
+        int from = message.indexOf(LoadGenerator.STAMP);
+        int to = message.indexOf(LoadGenerator.STAMP_END, from + 1);
+        if (from < 0 || to < 0) {
+            return;
+        }
+        long connectStart = Long.parseLong(message.substring(from + 1, to));
+        admitted.incrementAndGet();
+        if (recording) {
+            histogram.record(now - connectStart);
+        }
+    }
+
+    @Override
+    public void onDisconnected(String clientId) {
+        if (admitting) {
+            failed.incrementAndGet();
+        }
+    }
+
+    private String report(long[] roundMillis, long[] roundFailed) {
+        long total = 0;
+        for (int round = rounds > 1 ? 1 : 0; round < rounds; round++) {
+            total += roundMillis[round];
+        }
+        double meanMillis = (double) total / (rounds > 1 ? rounds - 1 : 1);
+        StringBuilder json = new StringBuilder("{\n");
+        LoadGenerator.field(json, "timestamp", "\"" + Instant.now() + "\"");
+        LoadGenerator.field(json, "host", "\"" + host + ":" + port + "\"");
+        LoadGenerator.field(json, "embedded", String.valueOf(options.containsKey("embedded")));
+        LoadGenerator.field(json, "engine", "\"" + options.getOrDefault("engine", "server default") + "\"");
+        LoadGenerator.field(json, "acceptors", "\"" + options.getOrDefault("acceptors", "server default") + "\"");
+        LoadGenerator.field(json, "backlog", "\"" + options.getOrDefault("backlog", "server default") + "\"");
+        LoadGenerator.field(json, "maxAcceptRate", "\"" + options.getOrDefault("max-accept-rate", "server default") + "\"");
+        LoadGenerator.field(json, "sessions", String.valueOf(sessions));
+        LoadGenerator.field(json, "rounds", String.valueOf(rounds));
+        LoadGenerator.field(json, "roundMillis", array(roundMillis));
+        LoadGenerator.field(json, "roundNotAdmitted", array(roundFailed));
+        LoadGenerator.field(json, "meanReadmitMillis", LoadGenerator.format(meanMillis));
+        LoadGenerator.field(json, "readmitRate", LoadGenerator.format(sessions * 1000.0 / Math.max(1, meanMillis)));
+        json.append("  \"admitLatencyMicros\": {\n");
+        json.append("    \"p50\": ").append(LoadGenerator.micros(histogram.getValueAtQuantile(0.5))).append(",\n");
+        json.append("    \"p90\": ").append(LoadGenerator.micros(histogram.getValueAtQuantile(0.9))).append(",\n");
+        json.append("    \"p99\": ").append(LoadGenerator.micros(histogram.getValueAtQuantile(0.99))).append(",\n");
+        json.append("    \"max\": ").append(LoadGenerator.micros(histogram.getMax())).append(",\n");
+        json.append("    \"mean\": ").append(LoadGenerator.format(histogram.getMean() / 1000)).append("\n");
+        json.append("  }\n}");
+        return json.toString();
+    }
+
+    private static String array(long[] values) {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(values[i]);
+        }
+        return builder.append(']').toString();
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.demo.bench;
+
+import com.example.demo.server.Server;
+import com.example.demo.server.ServerListener;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+/**
+ * @author mark
+ * @date 2022/9/5 15:20
+ * @describe 压测用的转发监听器：socket.bench.relay=true时生效，把客户端发来的消息按目标转发，供LoadGenerator测量端到端延迟
+ * 消息前两个字符是目标：**表示群发，其余表示目标客户端ID，转发内容和界面下发命令走同一条发送路径
+ */
+@Component
+@ConditionalOnProperty(name = "socket.bench.relay", havingValue = "true")
+public class RelayServerListener implements ServerListener {
+
+    /**
+     * 群发目标
+     */
+    static final String ALL = "**";
+
+    private static final String SEND_TO_ALL = "--send-text-to-all";
+
+    private static final String SEND_TO_SINGLE = "--send-text";
+
+    /**
+     * Server启动时要注入所有监听器，这里延迟注入避免循环依赖
+     */
+    @Lazy
+    @Resource
+    private Server server;
+
+    @Override
+    public void onMessage(String clientId, String message) {
+        if (message.length() < 2) {
+            return;
+        }
+        try {
+            if (message.startsWith(ALL)) {
+                server.sendMsgToAll(SEND_TO_ALL + message.substring(2));
+            } else {
+                server.sendMsgToSingle(SEND_TO_SINGLE + message);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.demo.buffer;
+
+/**
+ * @author mark
+ * @date 2022/8/15 10:20
+ * @describe 自适应接收缓冲区大小：每个连接持有一个，根据最近的读取字节数放大或缩小下一次读取用的缓冲区
+ * 一次读满则直接放大，连续两次读取明显偏小才缩小，避免抖动
+ */
+public class AdaptiveRecvSizer {
+
+    /**
+     * 放大时前进的档位数
+     */
+    private static final int INDEX_INCREMENT = 4;
+
+    /**
+     * 缩小时后退的档位数
+     */
+    private static final int INDEX_DECREMENT = 1;
+
+    /**
+     * 档位表：512以下按16递增，之后按2倍递增
+     */
+    private static final int[] SIZE_TABLE;
+
+    static {
+        int count = 0;
+        for (int i = 16; i < 512; i += 16) {
+            count++;
+        }
+        for (int i = 512; i > 0; i <<= 1) {
+            count++;
+        }
+        SIZE_TABLE = new int[count];
+        int index = 0;
+        for (int i = 16; i < 512; i += 16) {
+            SIZE_TABLE[index++] = i;
+        }
+        for (int i = 512; i > 0; i <<= 1) {
+            SIZE_TABLE[index++] = i;
+        }
+    }
+
+    private final int minIndex;
+
+    private final int maxIndex;
+
+    private int index;
+
+    private int nextSize;
+
+    /**
+     * 上一次读取是否已经偏小
+     */
+    private boolean decreaseNow;
+
+    public AdaptiveRecvSizer() {
+        this(64, 1024, 64 * 1024);
+    }
+
+    /**
+     * @param minimum 最小字节数
+     * @param initial 初始字节数
+     * @param maximum 最大字节数
+     */
+    public AdaptiveRecvSizer(int minimum, int initial, int maximum) {
+        minIndex = sizeIndex(minimum);
+        maxIndex = sizeIndex(maximum);
+        index = sizeIndex(initial);
+        nextSize = SIZE_TABLE[index];
+    }
+
+    /**
+     * 下一次读取应使用的缓冲区大小
+     *
+     * @return 字节数
+     */
+    public int guess() {
+        return nextSize;
+    }
+
+    /**
+     * 记录本次实际读取的字节数
+     *
+     * @param actualBytes 读取的字节数
+     */
+    public void record(int actualBytes) {
+        if (actualBytes <= SIZE_TABLE[Math.max(0, index - INDEX_DECREMENT)]) {
+            if (decreaseNow) {
+                index = Math.max(index - INDEX_DECREMENT, minIndex);
+                nextSize = SIZE_TABLE[index];
+                decreaseNow = false;
+            } else {
+                decreaseNow = true;
+            }
+        } else if (actualBytes >= nextSize) {
+            index = Math.min(index + INDEX_INCREMENT, maxIndex);
+            nextSize = SIZE_TABLE[index];
+            decreaseNow = false;
+        }
+    }
+
+    /**
+     * 找到不小于size的最小档位
+     */
+    private static int sizeIndex(int size) {
+        for (int i = 0; i < SIZE_TABLE.length; i++) {
+            if (SIZE_TABLE[i] >= size) {
+                return i;
+            }
+        }
+        return SIZE_TABLE.length - 1;
+    }
+}
@@ -0,0 +1,358 @@
+package com.example.demo.buffer;
+
+import lombok.extern.slf4j.Slf4j;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author mark
+ * @date 2022/8/15 10:20
+ * @describe 直接内存缓冲池：按2的幂划分规格，每个规格从1MB的slab上切分缓冲区，用完按引用计数归还
+ * 服务端和客户端的读写路径共用同一个池，超过最大规格或者某个规格已达上限时退化为非池化分配
+ * 事件循环线程启动时绑定线程本地缓存，之后在本线程分配和归还都先走缓存，只有缓存空了批量补充、满了批量溢出时才获取规格的锁，
+ * 多个worker不会在每次读取和编码时争用同一把锁；没有绑定缓存的线程（调用方线程、虚拟线程等）直接访问规格
+ */
+@Slf4j
+public final class BufferPool {
+
+    /**
+     * 全局共享的缓冲池
+     */
+    public static final BufferPool DEFAULT = new BufferPool(64, 128 * 1024, 1024 * 1024, 32 * 1024 * 1024);
+
+    /**
+     * 线程本地缓存在每个规格上最多缓存的字节数
+     */
+    private static final int THREAD_CACHE_BYTES = 256 * 1024;
+
+    /**
+     * 线程本地缓存在每个规格上最多缓存的缓冲区数
+     */
+    private static final int THREAD_CACHE_MAX_CHUNKS = 256;
+
+    /**
+     * 绑定了缓存的线程各自的缓存，没有绑定为null
+     */
+    private final ThreadLocal<ThreadCache> threadCache = new ThreadLocal<>();
+
+    /**
+     * 各个规格，下标i对应容量minSize << i
+     */
+    private final SizeClass[] sizeClasses;
+
+    /**
+     * 最小规格
+     */
+    private final int minSize;
+
+    /**
+     * 池化的分配次数
+     */
+    private final LongAdder pooledAllocations = new LongAdder();
+
+    /**
+     * 非池化的分配次数，稳态下应接近0
+     */
+    private final LongAdder unpooledAllocations = new LongAdder();
+
+    /**
+     * 创建缓冲池
+     *
+     * @param minSize          最小规格，必须是2的幂
+     * @param maxSize          最大规格，必须是2的幂
+     * @param slabSize         每块slab的字节数
+     * @param maxBytesPerClass 每个规格最多占用的直接内存字节数
+     */
+    public BufferPool(int minSize, int maxSize, int slabSize, int maxBytesPerClass) {
+        if (Integer.bitCount(minSize) != 1 || Integer.bitCount(maxSize) != 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("缓冲池规格必须是2的幂");
+        }
+        this.minSize = minSize;
+        int count = Integer.numberOfTrailingZeros(maxSize) - Integer.numberOfTrailingZeros(minSize) + 1;
+        sizeClasses = new SizeClass[count];
+        for (int i = 0; i < count; i++) {
+            int chunkSize = minSize << i;
+            sizeClasses[i] = new SizeClass(i, chunkSize, Math.max(slabSize, chunkSize), maxBytesPerClass, threadCache);
+        }
+    }
+
+    /**
+     * 分配至少size字节的缓冲区，引用计数为1，用完必须release
+     *
+     * @param size 需要的字节数
+     * @return 缓冲区
+     */
+    public PooledBuffer allocate(int size) {
+        int index = indexOf(size);
+        if (index < sizeClasses.length) {
+            ThreadCache cache = threadCache.get();
+            PooledBuffer buffer = cache == null ? sizeClasses[index].allocate() : cache.allocate(index);
+            if (buffer != null) {
+                pooledAllocations.increment();
+                return buffer;
+            }
+        }
+        unpooledAllocations.increment();
+        return new PooledBuffer(ByteBuffer.allocateDirect(size), null).reset();
+    }
+
+    /**
+     * 为当前线程绑定本地缓存，在事件循环线程启动时调用，重复调用什么也不做
+     * 线程退出前必须调用unbindThreadCache，否则缓存里的缓冲区不会回到池里
+     */
+    public void bindThreadCache() {
+        if (threadCache.get() == null) {
+            threadCache.set(new ThreadCache(sizeClasses));
+        }
+    }
+
+    /**
+     * 解除当前线程的本地缓存并把缓存的缓冲区全部还给各个规格，在事件循环线程退出时调用
+     */
+    public void unbindThreadCache() {
+        ThreadCache cache = threadCache.get();
+        if (cache != null) {
+            threadCache.remove();
+            cache.free();
+        }
+    }
+
+    /**
+     * 池化分配次数
+     *
+     * @return 次数
+     */
+    public long getPooledAllocations() {
+        return pooledAllocations.sum();
+    }
+
+    /**
+     * 非池化分配次数
+     *
+     * @return 次数
+     */
+    public long getUnpooledAllocations() {
+        return unpooledAllocations.sum();
+    }
+
+    /**
+     * 已经从操作系统申请的直接内存字节数
+     *
+     * @return 字节数
+     */
+    public long getReservedBytes() {
+        long total = 0;
+        for (SizeClass sizeClass : sizeClasses) {
+            total += sizeClass.reservedBytes();
+        }
+        return total;
+    }
+
+    /**
+     * 计算size对应的规格下标
+     */
+    private int indexOf(int size) {
+        if (size <= minSize) {
+            return 0;
+        }
+        int normalized = Integer.highestOneBit(size - 1) << 1;
+        return Integer.numberOfTrailingZeros(normalized) - Integer.numberOfTrailingZeros(minSize);
+    }
+
+    /**
+     * 单个规格：空闲缓冲区保存在数组栈里，入栈出栈不产生额外对象
+     */
+    static final class SizeClass {
+
+        /**
+         * 在所属池里的下标
+         */
+        private final int index;
+
+        private final int chunkSize;
+
+        private final int slabSize;
+
+        private final int maxChunks;
+
+        /**
+         * 空闲栈
+         */
+        private final PooledBuffer[] free;
+
+        /**
+         * 空闲栈栈顶
+         */
+        private int top;
+
+        /**
+         * 已经切分出的缓冲区数量
+         */
+        private int created;
+
+        /**
+         * 所属池的线程本地缓存，归还时优先放回当前线程的缓存
+         */
+        private final ThreadLocal<ThreadCache> threadCache;
+
+        SizeClass(int index, int chunkSize, int slabSize, int maxBytes, ThreadLocal<ThreadCache> threadCache) {
+            this.index = index;
+            this.chunkSize = chunkSize;
+            this.slabSize = slabSize;
+            this.maxChunks = Math.max(maxBytes / chunkSize, slabSize / chunkSize);
+            this.free = new PooledBuffer[maxChunks];
+            this.threadCache = threadCache;
+        }
+
+        synchronized PooledBuffer allocate() {
+            if (top == 0 && !grow()) {
+                return null;
+            }
+            PooledBuffer buffer = free[--top];
+            free[top] = null;
+            return buffer.reset();
+        }
+
+        /**
+         * 一次取出多个空闲缓冲区，用于补充线程本地缓存，取出的缓冲区还没有重置
+         *
+         * @param into   目标数组
+         * @param offset 目标数组的起始下标
+         * @param count  最多取出的数量
+         * @return 实际取出的数量，规格已达上限时可能为0
+         */
+        synchronized int allocate(PooledBuffer[] into, int offset, int count) {
+            if (top == 0 && !grow()) {
+                return 0;
+            }
+            int n = Math.min(count, top);
+            for (int i = 0; i < n; i++) {
+                into[offset + i] = free[--top];
+                free[top] = null;
+            }
+            return n;
+        }
+
+        /**
+         * 归还缓冲区，当前线程绑定了缓存时放回缓存
+         *
+         * @param buffer 引用计数已归零的缓冲区
+         */
+        void recycle(PooledBuffer buffer) {
+            ThreadCache cache = threadCache.get();
+            if (cache == null) {
+                push(buffer);
+            } else {
+                cache.recycle(index, buffer);
+            }
+        }
+
+        private synchronized void push(PooledBuffer buffer) {
+            free[top++] = buffer;
+        }
+
+        /**
+         * 一次归还多个缓冲区，用于线程本地缓存溢出和释放
+         *
+         * @param from   来源数组，归还的位置会被清空
+         * @param offset 来源数组的起始下标
+         * @param count  数量
+         */
+        synchronized void recycle(PooledBuffer[] from, int offset, int count) {
+            for (int i = 0; i < count; i++) {
+                free[top++] = from[offset + i];
+                from[offset + i] = null;
+            }
+        }
+
+        synchronized long reservedBytes() {
+            return (long) created * chunkSize;
+        }
+
+        /**
+         * 申请一块新的slab并切分成缓冲区放入空闲栈
+         */
+        private boolean grow() {
+            int chunks = Math.min(slabSize / chunkSize, maxChunks - created);
+            if (chunks <= 0) {
+                return false;
+            }
+            ByteBuffer slab = ByteBuffer.allocateDirect(chunks * chunkSize);
+            for (int i = 0; i < chunks; i++) {
+                slab.limit((i + 1) * chunkSize);
+                slab.position(i * chunkSize);
+                free[top++] = new PooledBuffer(slab.slice(), this);
+            }
+            created += chunks;
+            log.info("=====缓冲池{}字节规格新增{}个缓冲区", chunkSize, chunks);
+            return true;
+        }
+    }
+
+    /**
+     * 线程本地缓存：每个规格一个数组栈，只由所属线程访问，不加锁
+     * 空了从规格一次补充半个栈，满了一次把半个栈还给规格，锁的获取次数按批摊薄
+     */
+    static final class ThreadCache {
+
+        private final SizeClass[] sizeClasses;
+
+        private final PooledBuffer[][] stacks;
+
+        private final int[] tops;
+
+        ThreadCache(SizeClass[] sizeClasses) {
+            this.sizeClasses = sizeClasses;
+            this.stacks = new PooledBuffer[sizeClasses.length][];
+            this.tops = new int[sizeClasses.length];
+            for (int i = 0; i < sizeClasses.length; i++) {
+                int chunks = Math.min(THREAD_CACHE_MAX_CHUNKS, THREAD_CACHE_BYTES / sizeClasses[i].chunkSize);
+                stacks[i] = new PooledBuffer[Math.max(2, chunks)];
+            }
+        }
+
+        PooledBuffer allocate(int index) {
+            PooledBuffer[] stack = stacks[index];
+            int top = tops[index];
+            if (top == 0) {
+                top = sizeClasses[index].allocate(stack, 0, stack.length >> 1);
+                if (top == 0) {
+                    return null;
+                }
+            }
+            PooledBuffer buffer = stack[--top];
+            stack[top] = null;
+            tops[index] = top;
+            return buffer.reset();
+        }
+
+        void recycle(int index, PooledBuffer buffer) {
+            PooledBuffer[] stack = stacks[index];
+            int top = tops[index];
+            if (top == stack.length) {
+                // 把栈底的一半还给规格，栈顶最近归还的缓冲区留在缓存里
+                int spill = stack.length >> 1;
+                sizeClasses[index].recycle(stack, 0, spill);
+                System.arraycopy(stack, spill, stack, 0, top - spill);
+                top -= spill;
+                for (int i = top; i < stack.length; i++) {
+                    stack[i] = null;
+                }
+            }
+            stack[top++] = buffer;
+            tops[index] = top;
+        }
+
+        /**
+         * 把缓存的缓冲区全部还给各个规格
+         */
+        void free() {
+            for (int i = 0; i < stacks.length; i++) {
+                if (tops[i] > 0) {
+                    sizeClasses[i].recycle(stacks[i], 0, tops[i]);
+                    tops[i] = 0;
+                }
+            }
+        }
+    }
+}
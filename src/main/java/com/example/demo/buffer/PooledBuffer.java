@@ -0,0 +1,147 @@
+package com.example.demo.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author mark
+ * @date 2022/8/15 10:20
+ * @describe 带引用计数的池化缓冲区，引用计数归零时归还给所属规格的空闲栈
+ */
+public final class PooledBuffer {
+
+    /**
+     * 缓冲区本体，池化时是slab上切出的一段直接内存
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * 所属规格，非池化缓冲区为null
+     */
+    private final BufferPool.SizeClass owner;
+
+    /**
+     * 派生缓冲区共享的原缓冲区，非派生缓冲区为null
+     */
+    private final PooledBuffer parent;
+
+    /**
+     * 引用计数
+     */
+    private final AtomicInteger refCnt = new AtomicInteger();
+
+    PooledBuffer(ByteBuffer buffer, BufferPool.SizeClass owner) {
+        this(buffer, owner, null);
+    }
+
+    private PooledBuffer(ByteBuffer buffer, BufferPool.SizeClass owner, PooledBuffer parent) {
+        this.buffer = buffer;
+        this.owner = owner;
+        this.parent = parent;
+    }
+
+    /**
+     * 获取缓冲区
+     *
+     * @return 缓冲区
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * 缓冲区容量
+     *
+     * @return 容量
+     */
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * 是否来自池
+     *
+     * @return 池化返回true
+     */
+    public boolean isPooled() {
+        return owner != null;
+    }
+
+    /**
+     * 派生一个只读副本：与原缓冲区共享内容，拥有独立的position和limit，并持有原缓冲区的一次引用
+     * 用于把同一个已编码好的帧交给多个连接各自写出
+     *
+     * @return 引用计数为1的只读副本，release归零时释放对原缓冲区的引用
+     */
+    public PooledBuffer retainedDuplicate() {
+        retain();
+        return new PooledBuffer(buffer.asReadOnlyBuffer(), null, this).reset();
+    }
+
+    /**
+     * 增加一次引用，多个使用方共享同一个缓冲区时每个使用方各持有一次引用
+     *
+     * @return 当前缓冲区
+     */
+    public PooledBuffer retain() {
+        retain(1);
+        return this;
+    }
+
+    /**
+     * 增加多次引用
+     *
+     * @param increment 增加的引用数
+     * @return 当前缓冲区
+     */
+    public PooledBuffer retain(int increment) {
+        int old = refCnt.getAndAdd(increment);
+        if (old <= 0) {
+            refCnt.getAndAdd(-increment);
+            throw new IllegalStateException("缓冲区已经被释放");
+        }
+        return this;
+    }
+
+    /**
+     * 释放一次引用，归零时归还给池
+     *
+     * @return 归零返回true
+     */
+    public boolean release() {
+        int cnt = refCnt.decrementAndGet();
+        if (cnt == 0) {
+            if (owner != null) {
+                owner.recycle(this);
+            } else if (parent != null) {
+                parent.release();
+            }
+            return true;
+        }
+        if (cnt < 0) {
+            refCnt.incrementAndGet();
+            throw new IllegalStateException("缓冲区重复释放");
+        }
+        return false;
+    }
+
+    /**
+     * 当前引用计数
+     *
+     * @return 引用计数
+     */
+    public int refCnt() {
+        return refCnt.get();
+    }
+
+    /**
+     * 从池中取出时重置状态，派生缓冲区保留原缓冲区的position和limit
+     */
+    PooledBuffer reset() {
+        if (parent == null) {
+            buffer.clear();
+        }
+        refCnt.set(1);
+        return this;
+    }
+}
@@ -3,221 +3,180 @@ package com.example.demo.client;
 import com.example.demo.swing.MsgHandler;
 import com.example.demo.utils.ContextUtils;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
-import org.springframework.util.ObjectUtils;
+
+import javax.annotation.PreDestroy;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
-import java.util.Iterator;
-import java.util.concurrent.CompletableFuture;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author mark
  * @describe socket通信客户端
+ * 所有客户端连接共用连接管理器里固定数量的selector线程，第一次连接时才启动
+ * 服务端以集群方式运行时按缓存的哈希环直接连归属节点，连错节点时按服务端的重定向重连，归属节点连不上时回到配置的地址
  * @date 2022/8/2 11:12
  */
 @Slf4j
 @Component
-public class Client {
+public class Client implements ClientListener {
+
+    private static final String LOGIN = "login";
 
     /**
-     * key是客户端id，value是信道
+     * 一次登录最多跟随的重定向次数，超过说明各节点的哈希环还没有收敛，放弃登录
      */
-    private final ConcurrentHashMap<String, SocketChannel> channels = new ConcurrentHashMap<>();
+    private static final int MAX_REDIRECTS = 3;
 
     /**
-     * 选择器
+     * 客户端selector线程数，小于等于0时取CPU核数
      */
-    private Selector selector;
-
-    private static final String LOGIN = "login";
+    @Value("${socket.client.loops:1}")
+    private int loops;
 
     /**
-     * 连接服务端
-     *
-     * @param ip       服务端IP
-     * @param clientId 客户端ID
-     * @param port     服务端端口
-     * @throws IOException IO异常
+     * 多久没有收到服务端数据就发送ping（秒），小于等于0表示不发送
      */
-    public void connect(String ip, String clientId, Integer port) throws IOException {
-       ByteBuffer buffer = ByteBuffer.allocate(100);
-        // 得到一个网络通道
-        SocketChannel socketChannel = SocketChannel.open();
+    @Value("${socket.client.ping-interval-seconds:30}")
+    private long pingIntervalSeconds;
 
-        // 设置为非阻塞
-        socketChannel.configureBlocking(false);
+    /**
+     * 多久没有收到服务端数据就认为服务端已失效并断开（秒），小于等于0表示不检测
+     */
+    @Value("${socket.client.idle-timeout-seconds:90}")
+    private long idleTimeoutSeconds;
 
-        // 根据服务端的ip和端口
-        InetSocketAddress inetSocketAddress = new InetSocketAddress(ip, port);
+    /**
+     * 接收服务端发来的文件的目录，每个客户端一个子目录，为空表示不接收文件
+     */
+    @Value("${socket.client.download-dir:downloads}")
+    private String downloadDir;
 
-        // 连接服务器
-        socketChannel.connect(inetSocketAddress);
+    /**
+     * 连接管理器，第一次连接时创建
+     */
+    private volatile ClientConnectionManager manager;
 
-        // 如果连接成功，就发送数据
-        if (socketChannel.finishConnect()) {
-            channels.put(clientId, socketChannel);
-            buffer.clear();
-            // 给服务端发送登录消息，消息格式：login+clientId
-            String loginMsg = LOGIN + clientId;
-            // 添加包头
-            loginMsg = addPacketLength(loginMsg);
-            buffer.put(loginMsg.getBytes(StandardCharsets.UTF_8));
-            buffer.flip();
-            // 发送数据，将buffer数据写入channel
-            socketChannel.write(buffer);
-            CompletableFuture.runAsync(() -> listenReadable(socketChannel));
-        }
-    }
+    /**
+     * 接收消息后转发的消息处理器，第一次收到消息时从容器中取出（和MsgHandler互相依赖）
+     */
+    private volatile MsgHandler msgHandler;
 
     /**
-     * 监听可读事件
-     *
-     * @param socketChannel 信道
-     * @throws IOException IO异常
+     * 按哈希环直接连归属节点、还没收到服务端确认的客户端，值为配置的地址，连接断开时回到这个地址重连一次
      */
-    private void listenReadable(SocketChannel socketChannel) {
-        // 打开多路复用器
-        try {
-            selector = Selector.open();
-            socketChannel.register(selector, SelectionKey.OP_READ);
-            readMsg();
-        } catch (IOException e) {
-            log.error("=======监听客户端可读事件异常{}", e);
-        }
-    }
+    private final Map<String, InetSocketAddress> routing = new ConcurrentHashMap<>();
 
     /**
-     * 多路复用部分。当select检测到有可读事件则读取服务端所发来的信息,并做相应处理
+     * 客户端本次登录已经跟随的重定向次数，登录被接受后清除
      */
-    private void readMsg() {
-        /*
-         * 此容器用于保存未完整读取的消息（解决TCP粘包、拆包）
-         * key是信道，value是ByteBuffer
-         */
-        ByteBuffer cacheBuffer = ByteBuffer.allocate(100);
-        while (true) {
-            try {
-                selector.select();
-                // 获取注册在selector上的所有的就绪状态的serverSocketChannel中发生的事件
-                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
-                while (keys.hasNext()) {
-                    SelectionKey key = keys.next();
-                    keys.remove();
-                    // 6 验证操作 判断管道是否有效 true 有效，false 无效
-                    if (key.isValid()) {
-                        /*
-                         * 管道状态
-                         * SelectionKey.OP_CONNECT 是否连接
-                         * SelectionKey.OP_ACCEPT  是否阻塞
-                         * SelectionKey.OP_READ    是否可读
-                         *  SelectionKey.OP_WRITE  是否可写
-                         */
-                        this.dealBytebuffer(key, (SocketChannel) key.channel(),cacheBuffer);
-                    }
-                }
-            } catch (IOException e) {
-                log.error("==============服务端断开了连接~~");
-            }
-        }
-    }
+    private final Map<String, Integer> redirects = new ConcurrentHashMap<>();
 
     /**
-     * 判断上一次是否出现拆包粘包情况
+     * 连接服务端
      *
-     * @param key SelectionKey
+     * @param ip       服务端IP
+     * @param clientId 客户端ID
+     * @param port     服务端端口
      * @throws IOException IO异常
      */
-    private void dealBytebuffer(SelectionKey key, SocketChannel channel, ByteBuffer cacheBuffer) {
-        ByteBuffer buffer = ByteBuffer.allocate(100);
-        SocketChannel sc = (SocketChannel) key.channel();
-        //如果客户端接收到了服务器端发送的应答消息 则SocketChannel是可读的
-        if (key.isReadable()) {
-            // 读取服务端数据
-            buffer.clear();
-            int read = 0;
-            try {
-                read = sc.read(buffer);
-            } catch (IOException e) {
-                log.error("======服务端断开了连接~~~~");
-                key.cancel();
-                removeCache(cacheBuffer);
-                return;
-            }
-            if (read == -1) {
-                key.cancel();
-                removeCache(cacheBuffer);
-                return;
-            }
-            // 判断上一次是否发生拆包现象。
-            if (cacheBuffer.position()>0) {
-                // 如果消息池里有这个key说明发生了拆包或者粘包的现象需要把缓存的Bytebuffer取出
-                // 把两个包合在一起
-                cacheBuffer.put(buffer);
-                cacheBuffer.clear();
-                // 读取包数据
-                dealMsg(cacheBuffer,cacheBuffer);
-            }  else {
-                // 如果没有发生拆包粘包现象则正常读取
-                dealMsg(buffer, cacheBuffer);
-            }
+    public void connect(String ip, String clientId, Integer port) throws IOException {
+        ClientConnectionManager current = getManager();
+        InetSocketAddress seed = new InetSocketAddress(ip, port);
+        redirects.remove(clientId);
+        InetSocketAddress owner = current.route(clientId);
+        if (owner == null) {
+            routing.remove(clientId);
+            login(current, seed, clientId);
+        } else {
+            // 已经知道哈希环，直接连归属节点，省掉一次重定向
+            routing.put(clientId, seed);
+            login(current, new InetSocketAddress(owner.getHostString(), owner.getPort()), clientId);
         }
+    }
 
+    private void login(ClientConnectionManager current, InetSocketAddress address, String clientId) throws IOException {
+        // 非阻塞连接，连接建立后由selector线程写出排队的消息
+        current.connect(address, clientId);
+        // 给服务端发送登录消息，消息格式：login+clientId，编码时添加包头，放入发送队列等连接建立后写出
+        current.send(clientId, LOGIN + clientId);
     }
 
     /**
-     * 处理包数据
+     * 给服务端发送消息：只把编码好的帧放入连接的发送队列，由selector线程写出
      *
-     * @param buffer 本次要读取的包
-     * @param cacheBuffer cacheBuffer 缓存临时包的buffer
+     * @param clientId 客户端id
+     * @param msg      要给服务端发送的信息
      */
-    private void dealMsg(ByteBuffer buffer, ByteBuffer cacheBuffer) {
-        // 切换读模式
-        buffer.flip();
-        // 读取readBuf数据 然后打印数据
-        byte[] bytes = new byte[buffer.remaining()];
-        buffer.get(bytes);
-        String msg = new String(bytes);
-        // 首先确定消息长度
-        Integer msgLength = Integer.valueOf(msg.substring(0,2));
-        // 得到第一个消息
-        String firstMsg = msg.substring(2,2+msgLength);
-        // 如果是私聊消息则消息格式为：包头+客户端ID+消息正文，如果是群聊消息则消息格式为：包头+消息正文
-        chatMsgToHandler(firstMsg);
-        // 包长度减2位包头长度得到包可读长度，现在判断包可读长度和消息长度的差值
-        // 如果差值等于0说明包刚好读完跳出循环
-        // 如果差值小于0则说明是拆包情况则把包进行缓存并跳出循环
-        // 如果差值大于0则说明发生粘包情况则递归调用本方法
-        Integer remain = buffer.limit()-2-msgLength;
-        String remainMsg = "";
-        if (remain != 0){
-             // 先得到剩余包：剩余的包 = 总消息 - 已读包
-             remainMsg = msg.substring(2+firstMsg.length());
+    public void sendMsgToServer(String clientId, String msg) {
+        ClientConnectionManager current = manager;
+        if (current != null) {
+            current.send(clientId, msg);
+        }
+    }
+
+    @Override
+    public void onMessage(String clientId, String message) {
+        chatMsgToHandler(message);
+    }
+
+    @Override
+    public void onRoute(String clientId, InetSocketAddress redirect) {
+        routing.remove(clientId);
+        if (redirect == null) {
+            redirects.remove(clientId);
+            return;
         }
-        if (remain == 0) {
-            buffer.clear();
+        int count = redirects.merge(clientId, 1, Integer::sum);
+        if (count > MAX_REDIRECTS) {
+            redirects.remove(clientId);
+            log.warn("=====客户端{}连续被重定向{}次，放弃登录", clientId, MAX_REDIRECTS);
             return;
-        }else if(remain < 0){
-            // 先得到剩余包：剩余的包 = 总消息 - 已读包
-            // 把剩余的包放进缓存
-            ByteBuffer cacheByteBuffer = ByteBuffer.allocate(100);
-            cacheByteBuffer.put(remainMsg.getBytes(StandardCharsets.UTF_8));
-            buffer.clear();
+        }
+        try {
+            login(manager, new InetSocketAddress(redirect.getHostString(), redirect.getPort()), clientId);
+        } catch (IOException e) {
+            log.error("=====客户端{}重连归属节点{}失败{}", clientId, redirect, e);
+        }
+    }
+
+    @Override
+    public void onDisconnected(String clientId) {
+        redirects.remove(clientId);
+        InetSocketAddress seed = routing.remove(clientId);
+        if (seed != null) {
+            // 按缓存的哈希环找到的节点连不上，哈希环可能已经过期，丢掉它回到配置的地址
+            log.warn("=====客户端{}连不上归属节点，回到{}重新登录", clientId, seed);
+            manager.clearRoute();
+            try {
+                login(manager, seed, clientId);
+            } catch (IOException e) {
+                log.error("=====客户端{}连接{}失败{}", clientId, seed, e);
+            }
             return;
-        } else{
-            // 先得到剩余包：剩余的包 = 总消息 - 已读包
-            // 然后递归调用此方法进行拆包处理
-            buffer.clear();
-            buffer.put(remainMsg.getBytes(StandardCharsets.UTF_8));
-            dealMsg(buffer,cacheBuffer);
         }
+        log.error("==============客户端{}和服务端断开了连接~~", clientId);
     }
 
+    @Override
+    public void onFileProgress(String clientId, String fileName, long received, long size) {
+        String progress = size == 0 ? "100" : String.valueOf(received * 100 / size);
+        log.info("=====客户端{}接收文件{}，{}/{}字节，{}%", clientId, fileName, received, size, progress);
+        chatMsgToHandler(clientId + "接收文件" + fileName + " " + progress + "%");
+    }
+
+    @Override
+    public void onFileReceived(String clientId, Path file, long size, long elapsedNanos) {
+        String throughput = String.format("%.1f", size * 1000.0 / Math.max(1, elapsedNanos));
+        log.info("=====客户端{}接收文件完成{}，{}字节，耗时{}毫秒，{}MB/s", clientId, file, size,
+                TimeUnit.NANOSECONDS.toMillis(elapsedNanos), throughput);
+        chatMsgToHandler(clientId + "文件已保存到" + file.toAbsolutePath() + "，" + throughput + "MB/s");
+    }
 
     /**
      * 把消息转发给msgHandler进行下一步处理
@@ -225,49 +184,39 @@ public class Client {
      * @param message 聊天消息
      */
     private void chatMsgToHandler(String message) {
+        MsgHandler handler = msgHandler;
+        if (handler == null) {
+            handler = ContextUtils.getBean(MsgHandler.class);
+            msgHandler = handler;
+        }
         try {
-            ContextUtils.getBean(MsgHandler.class).serverMsgToClientUi(message);
+            handler.serverMsgToClientUi(message);
         } catch (InterruptedException e) {
             log.error("=====客户端接收到服务端消息后将消息转发给MsgHandler出现异常{}", e);
         }
     }
 
-    /**
-     * 给服务端发送消息
-     *
-     * @param clientId 客户端id
-     * @param msg      要给服务端发送的信息
-     * @throws IOException
-     */
-    public synchronized void sendMsgToServer(String clientId, String msg) throws IOException {
-        ByteBuffer buffer = ByteBuffer.allocate(100);
-        //添加包头
-        String message = addPacketLength(msg);
-        SocketChannel socketChannel = channels.get(clientId);
-        if (!ObjectUtils.isEmpty(socketChannel)) {
-            buffer.clear();
-            buffer.put(message.getBytes(StandardCharsets.UTF_8));
-            buffer.flip();
-            socketChannel.write(buffer);
+    private ClientConnectionManager getManager() throws IOException {
+        ClientConnectionManager current = manager;
+        if (current == null) {
+            synchronized (this) {
+                current = manager;
+                if (current == null) {
+                    current = new ClientConnectionManager(loops, pingIntervalSeconds, idleTimeoutSeconds, this);
+                    current.setDownloadDirectory(downloadDir.trim().isEmpty() ? null : Paths.get(downloadDir.trim()));
+                    current.start();
+                    manager = current;
+                }
+            }
         }
+        return current;
     }
 
-    private String addPacketLength(String msg) {
-        if (msg.length() < 10) {
-            msg = "0" + msg.length() + msg;
-        } else {
-            msg = msg.length() + msg;
+    @PreDestroy
+    public void destroy() {
+        ClientConnectionManager current = manager;
+        if (current != null) {
+            current.shutdown();
         }
-        return msg;
-    }
-
-    /**
-     * 服务端和客户端断链以后清楚缓存
-     */
-    private void removeCache(ByteBuffer byteBuffers){
-        channels.clear();
-        byteBuffers.clear();
     }
-
-
 }
@@ -0,0 +1,247 @@
+package com.example.demo.client;
+
+import com.example.demo.buffer.AdaptiveRecvSizer;
+import com.example.demo.buffer.BufferPool;
+import com.example.demo.buffer.PooledBuffer;
+import com.example.demo.codec.FrameDecoder;
+import com.example.demo.timer.TimingWheel;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @author mark
+ * @date 2022/8/15 10:20
+ * @describe 客户端单个连接的状态，作为attachment挂在SelectionKey上
+ * 发送队列允许任意线程入队，出队写出只在监听该连接的selector线程进行；连接建立前入队的帧在连接建立后写出
+ * 继承时间轮的定时任务节点，由selector线程做空闲检测
+ */
+class ClientConnection extends TimingWheel.Timeout {
+
+    /**
+     * 客户端ID
+     */
+    final String clientId;
+
+    /**
+     * 负责该连接的selector线程
+     */
+    final ClientLoop loop;
+
+    /**
+     * 帧解码器
+     */
+    final FrameDecoder decoder = new FrameDecoder();
+
+    /**
+     * 自适应接收缓冲区大小
+     */
+    private final AdaptiveRecvSizer recvSizer = new AdaptiveRecvSizer();
+
+    /**
+     * 发送队列，里面是已编码好的帧
+     */
+    private final ConcurrentLinkedQueue<PooledBuffer> outbound = new ConcurrentLinkedQueue<>();
+
+    /**
+     * selector线程从发送队列搬出、等待gather写出的帧，按顺序排在数组头部，第一次写出时才创建
+     */
+    private PooledBuffer[] flushing;
+
+    private int flushingSize;
+
+    /**
+     * 是否已经关注了OP_WRITE，避免每个消息都修改一次关注事件并唤醒selector
+     */
+    private final AtomicBoolean writeInterest = new AtomicBoolean();
+
+    /**
+     * 连接建立后的key，建立前为null
+     */
+    private volatile SelectionKey key;
+
+    /**
+     * 注册到selector得到的key，只由selector线程访问
+     */
+    SelectionKey registeredKey;
+
+    /**
+     * 最近一次收到服务端数据的时间（纳秒），只由selector线程访问
+     */
+    long lastReadNanos;
+
+    /**
+     * 最近一次发送ping的时间（纳秒），只由selector线程访问
+     */
+    long lastPingNanos;
+
+    /**
+     * 连接已关闭，之后入队的帧直接归还
+     */
+    private volatile boolean closed;
+
+    /**
+     * 接收服务端发来的文件，第一次收到文件时创建，只由selector线程访问
+     */
+    FileReceiver files;
+
+    ClientConnection(String clientId, ClientLoop loop) {
+        this.clientId = clientId;
+        this.loop = loop;
+    }
+
+    /**
+     * 连接建立后绑定key，建立前入队的帧在此时开始写出
+     *
+     * @param key SelectionKey
+     */
+    void bind(SelectionKey key) {
+        this.key = key;
+        if (!outbound.isEmpty()) {
+            requestFlush();
+        }
+    }
+
+    /**
+     * 把帧放入发送队列，可以在任意线程调用
+     *
+     * @param frame 已编码好的帧，调用后所有权转移给发送队列
+     */
+    void write(PooledBuffer frame) {
+        if (closed) {
+            frame.release();
+            return;
+        }
+        outbound.offer(frame);
+        if (closed) {
+            // 和关闭交错时由入队线程归还
+            drain();
+            return;
+        }
+        requestFlush();
+    }
+
+    /**
+     * 关注OP_WRITE并唤醒selector，由selector线程写出
+     */
+    private void requestFlush() {
+        SelectionKey k = key;
+        if (k != null && k.isValid() && writeInterest.compareAndSet(false, true)) {
+            k.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            k.selector().wakeup();
+        }
+    }
+
+    /**
+     * 在selector线程中用gather写出发送队列，每次合并多个帧，写完后取消关注OP_WRITE
+     * 本次写出超过字节数预算时停下，保持关注OP_WRITE，同一线程上的其他连接也能得到写出机会
+     *
+     * @param gather   selector线程复用的数组，长度即单次写出的帧数上限
+     * @param maxBytes 本次写出的字节数预算，至少写出一个帧
+     * @throws IOException IO异常
+     */
+    void flush(ByteBuffer[] gather, int maxBytes) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (flushing == null) {
+            flushing = new PooledBuffer[gather.length];
+        }
+        long total = 0;
+        while (true) {
+            // 把其他线程入队的帧搬到本地数组，最多搬够一次写出需要的数量
+            PooledBuffer frame;
+            while (flushingSize < flushing.length && (frame = outbound.poll()) != null) {
+                flushing[flushingSize++] = frame;
+            }
+            if (flushingSize == 0) {
+                break;
+            }
+            int count = 0;
+            long bytes = 0;
+            while (count < flushingSize && count < gather.length && (count == 0 || bytes < maxBytes)) {
+                gather[count] = flushing[count].buffer();
+                bytes += gather[count++].remaining();
+            }
+            long written = count == 1 ? channel.write(gather[0]) : channel.write(gather, 0, count);
+            total += written;
+            // 归还已经完整写出的帧，只写出一部分的帧留在头部
+            int completed = 0;
+            while (completed < count && !gather[completed].hasRemaining()) {
+                flushing[completed].release();
+                completed++;
+            }
+            for (int i = 0; i < count; i++) {
+                gather[i] = null;
+            }
+            System.arraycopy(flushing, completed, flushing, 0, flushingSize - completed);
+            for (int i = flushingSize - completed; i < flushingSize; i++) {
+                flushing[i] = null;
+            }
+            flushingSize -= completed;
+            if (written < bytes || total >= maxBytes) {
+                // socket发送缓冲区满或者用完了预算，保持关注OP_WRITE等下次可写再继续
+                return;
+            }
+        }
+        // 先取消关注再清除标记，最后复查一次，避免和入队线程交错时丢失OP_WRITE
+        key.interestOps(SelectionKey.OP_READ);
+        writeInterest.set(false);
+        if (!outbound.isEmpty()) {
+            requestFlush();
+        }
+    }
+
+    /**
+     * 按最近的读取情况从缓冲池分配本次读取用的缓冲区
+     *
+     * @return 缓冲区，用完必须release
+     */
+    PooledBuffer allocateRecvBuffer() {
+        PooledBuffer buffer = BufferPool.DEFAULT.allocate(recvSizer.guess());
+        buffer.buffer().limit(recvSizer.guess());
+        return buffer;
+    }
+
+    /**
+     * 记录本次读取的字节数
+     *
+     * @param bytes 字节数
+     */
+    void recordRead(int bytes) {
+        recvSizer.record(bytes);
+    }
+
+    /**
+     * 连接是否已关闭
+     *
+     * @return 已关闭返回true
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * 连接关闭时归还占用的缓冲区，只在selector线程调用
+     */
+    void release() {
+        closed = true;
+        decoder.release();
+        while (flushingSize > 0) {
+            flushing[--flushingSize].release();
+            flushing[flushingSize] = null;
+        }
+        drain();
+        if (files != null) {
+            files.release();
+        }
+    }
+
+    private void drain() {
+        PooledBuffer frame;
+        while ((frame = outbound.poll()) != null) {
+            frame.release();
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package com.example.demo.client;
+
+import com.example.demo.buffer.BufferPool;
+import com.example.demo.buffer.PooledBuffer;
+import com.example.demo.cluster.HashRing;
+import com.example.demo.cluster.Route;
+import com.example.demo.codec.FrameCodec;
+import lombok.extern.slf4j.Slf4j;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author mark
+ * @date 2022/9/1 10:30
+ * @describe 客户端连接管理器：固定数量的selector线程多路复用任意多个连接，一个进程可以维持成千上万个客户端
+ * 连接用OP_CONNECT非阻塞建立，按轮询分配给selector线程；每个连接持有自己的解码器和发送队列，
+ * 连接建立前发送的消息先排队，建立后按顺序写出；每个连接一直收不到服务端数据时先发ping，超时后断开，用来发现已经失效的服务端
+ * 设置了下载目录时接收服务端发来的文件，保存在下载目录下以客户端ID命名的子目录里
+ * 服务端以集群方式运行时缓存它发来的一致性哈希环，调用方可以用route查出客户端ID的归属节点直接连接，不用先被重定向
+ */
+@Slf4j
+public class ClientConnectionManager {
+
+    /**
+     * 所有selector线程
+     */
+    private final ClientLoop[] loops;
+
+    /**
+     * 连接事件监听器
+     */
+    private final ClientListener listener;
+
+    /**
+     * key是客户端ID，value是连接状态
+     */
+    private final ConcurrentHashMap<String, ClientConnection> connections = new ConcurrentHashMap<>();
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * 下载目录，null表示不接收文件
+     */
+    private volatile Path downloadDirectory;
+
+    /**
+     * 最近一次收到的哈希环，没有收到过为null
+     */
+    private volatile HashRing ring;
+
+    /**
+     * 多久没有收到服务端数据就发送ping（纳秒），0表示不发送
+     */
+    private final long pingIntervalNanos;
+
+    /**
+     * 多久没有收到服务端数据就断开（纳秒），0表示不检测
+     */
+    private final long idleTimeoutNanos;
+
+    /**
+     * 创建连接管理器，30秒没有收到服务端数据发送ping，90秒没有收到则断开
+     *
+     * @param loopCount selector线程数，小于等于0时取CPU核数
+     * @param listener  连接事件监听器
+     */
+    public ClientConnectionManager(int loopCount, ClientListener listener) {
+        this(loopCount, 30, 90, listener);
+    }
+
+    /**
+     * 创建连接管理器
+     *
+     * @param loopCount           selector线程数，小于等于0时取CPU核数
+     * @param pingIntervalSeconds 多久没有收到服务端数据就发送ping（秒），小于等于0表示不发送
+     * @param idleTimeoutSeconds  多久没有收到服务端数据就断开（秒），小于等于0表示不检测
+     * @param listener            连接事件监听器
+     */
+    public ClientConnectionManager(int loopCount, long pingIntervalSeconds, long idleTimeoutSeconds, ClientListener listener) {
+        if (loopCount <= 0) {
+            loopCount = Runtime.getRuntime().availableProcessors();
+        }
+        this.pingIntervalNanos = TimeUnit.SECONDS.toNanos(Math.max(0, pingIntervalSeconds));
+        this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(Math.max(0, idleTimeoutSeconds));
+        this.listener = listener;
+        this.loops = new ClientLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new ClientLoop("client-loop-" + i, this);
+        }
+    }
+
+    /**
+     * 启动所有selector线程
+     *
+     * @throws IOException IO异常
+     */
+    public void start() throws IOException {
+        for (ClientLoop loop : loops) {
+            loop.start();
+        }
+        log.info("=====客户端连接管理器启动{}个selector线程", loops.length);
+    }
+
+    /**
+     * 发起非阻塞连接，立即返回，连接结果通过监听器通知
+     * 同一个客户端ID已有连接时关闭旧连接
+     *
+     * @param address  服务端地址
+     * @param clientId 客户端ID
+     * @throws IOException 打开信道失败
+     */
+    public void connect(InetSocketAddress address, String clientId) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.connect(address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        ClientLoop loop = loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+        ClientConnection connection = new ClientConnection(clientId, loop);
+        // 先投递注册任务再登记，保证之后的关闭任务一定排在注册之后
+        loop.register(channel, connection);
+        ClientConnection previous = connections.put(clientId, connection);
+        if (previous != null) {
+            previous.loop.close(previous);
+        }
+        if (connection.isClosed()) {
+            // 登记前注册就失败了，selector线程没能移除，这里补上
+            closed(connection);
+        }
+    }
+
+    /**
+     * 给服务端发送消息：只把编码好的帧放入连接的发送队列，由selector线程写出，可以在任意线程调用
+     *
+     * @param clientId 客户端ID
+     * @param msg      消息
+     * @return 没有该客户端的连接返回false
+     */
+    public boolean send(String clientId, String msg) {
+        ClientConnection connection = connections.get(clientId);
+        if (connection == null) {
+            return false;
+        }
+        connection.write(FrameCodec.encode(msg, BufferPool.DEFAULT));
+        return true;
+    }
+
+    /**
+     * 发送已编码好的帧，同一次调用的帧连续写出，不和其他帧交错，可以在任意线程调用
+     *
+     * @param clientId 客户端ID
+     * @param frame    已编码好的帧，调用后所有权转移给连接
+     * @return 没有该客户端的连接返回false
+     */
+    public boolean send(String clientId, PooledBuffer frame) {
+        ClientConnection connection = connections.get(clientId);
+        if (connection == null) {
+            frame.release();
+            return false;
+        }
+        connection.write(frame);
+        return true;
+    }
+
+    /**
+     * 关闭指定客户端的连接
+     *
+     * @param clientId 客户端ID
+     */
+    public void disconnect(String clientId) {
+        ClientConnection connection = connections.get(clientId);
+        if (connection != null) {
+            connection.loop.close(connection);
+        }
+    }
+
+    /**
+     * 当前连接数，包括正在建立的连接
+     *
+     * @return 连接数
+     */
+    public int size() {
+        return connections.size();
+    }
+
+    /**
+     * 关闭所有连接和selector线程
+     */
+    public void shutdown() {
+        for (ClientLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    /**
+     * 设置下载目录，服务端发来的文件保存在下载目录下以客户端ID命名的子目录里，null表示不接收文件
+     *
+     * @param downloadDirectory 下载目录
+     */
+    public void setDownloadDirectory(Path downloadDirectory) {
+        this.downloadDirectory = downloadDirectory;
+    }
+
+    /**
+     * 按缓存的哈希环查找客户端ID的归属节点
+     *
+     * @param clientId 客户端ID
+     * @return 未解析的地址，没有收到过哈希环时返回null
+     */
+    public InetSocketAddress route(String clientId) {
+        HashRing current = ring;
+        String owner = current == null ? null : current.owner(clientId);
+        return owner == null ? null : HashRing.address(owner);
+    }
+
+    /**
+     * 丢弃缓存的哈希环，之后route返回null，调用方回到配置的地址，用于归属节点连不上时
+     */
+    public void clearRoute() {
+        ring = null;
+    }
+
+    long getPingIntervalNanos() {
+        return pingIntervalNanos;
+    }
+
+    long getIdleTimeoutNanos() {
+        return idleTimeoutNanos;
+    }
+
+    void connected(ClientConnection connection) {
+        listener.onConnected(connection.clientId);
+    }
+
+    void received(ClientConnection connection, String message) {
+        listener.onMessage(connection.clientId, message);
+    }
+
+    void receivedFile(ClientConnection connection, int type, int transferId, ByteBuffer payload) {
+        Path directory = downloadDirectory;
+        if (directory == null) {
+            if (type == FrameCodec.FILE_BEGIN) {
+                log.warn("=====客户端{}没有设置下载目录，忽略服务端发来的文件", connection.clientId);
+            }
+            return;
+        }
+        if (connection.files == null) {
+            connection.files = new FileReceiver(connection.clientId, directory.resolve(connection.clientId), listener);
+        }
+        connection.files.onFile(type, transferId, payload);
+    }
+
+    /**
+     * 缓存路由帧里的哈希环并通知监听器，需要重连时随后关闭这个连接，监听器已经用新连接替换了它时不通知断开
+     */
+    void routed(ClientConnection connection, ByteBuffer payload) {
+        Route route;
+        try {
+            route = Route.decode(payload);
+        } catch (IllegalArgumentException e) {
+            log.warn("=====客户端{}收到的路由帧不合法{}", connection.clientId, e.getMessage());
+            return;
+        }
+        ring = route.getRing();
+        InetSocketAddress redirect = route.getTargetAddress();
+        if (redirect != null) {
+            log.info("=====客户端{}被重定向到{}", connection.clientId, route.getTarget());
+        }
+        listener.onRoute(connection.clientId, redirect);
+        if (redirect != null) {
+            connection.loop.close(connection);
+        }
+    }
+
+    /**
+     * 连接关闭后移除，被同一个客户端ID的新连接替换掉的旧连接不通知
+     */
+    void closed(ClientConnection connection) {
+        if (connections.remove(connection.clientId, connection)) {
+            listener.onDisconnected(connection.clientId);
+        }
+    }
+}
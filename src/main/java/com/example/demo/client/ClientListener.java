@@ -0,0 +1,70 @@
+package com.example.demo.client;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+
+/**
+ * @author mark
+ * @date 2022/9/1 10:30
+ * @describe 客户端连接事件监听器：连接建立、收到服务端消息、连接断开时回调
+ * 回调在selector线程上执行，实现类不能阻塞，耗时处理请自行转到其他线程
+ */
+public interface ClientListener {
+
+    /**
+     * 连接建立
+     *
+     * @param clientId 客户端ID
+     */
+    default void onConnected(String clientId) {
+    }
+
+    /**
+     * 收到服务端消息
+     *
+     * @param clientId 收到消息的连接的客户端ID
+     * @param message  消息
+     */
+    default void onMessage(String clientId, String message) {
+    }
+
+    /**
+     * 收到服务端的路由帧，哈希环已经缓存到连接管理器；需要重连时连接管理器在回调之后关闭这个连接，
+     * 回调里用同一个客户端ID连接目标地址即可，新连接替换旧连接，旧连接关闭时不再通知断开
+     *
+     * @param clientId 客户端ID
+     * @param redirect 要重连的归属节点地址，未解析；null表示服务端已接受登录
+     */
+    default void onRoute(String clientId, InetSocketAddress redirect) {
+    }
+
+    /**
+     * 连接断开或连接失败
+     *
+     * @param clientId 客户端ID
+     */
+    default void onDisconnected(String clientId) {
+    }
+
+    /**
+     * 文件接收进度，开始接收时回调一次，之后每收到10%回调一次
+     *
+     * @param clientId 收到文件的连接的客户端ID
+     * @param fileName 文件名
+     * @param received 已收到的字节数
+     * @param size     文件字节数
+     */
+    default void onFileProgress(String clientId, String fileName, long received, long size) {
+    }
+
+    /**
+     * 文件接收完成，已经从临时文件改成正式文件名
+     *
+     * @param clientId     收到文件的连接的客户端ID
+     * @param file         保存的文件
+     * @param size         文件字节数
+     * @param elapsedNanos 从收到开始帧到收到结束帧的耗时（纳秒）
+     */
+    default void onFileReceived(String clientId, Path file, long size, long elapsedNanos) {
+    }
+}
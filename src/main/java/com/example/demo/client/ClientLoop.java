@@ -0,0 +1,401 @@
+package com.example.demo.client;
+
+import com.example.demo.buffer.BufferPool;
+import com.example.demo.buffer.PooledBuffer;
+import com.example.demo.codec.FrameCodec;
+import com.example.demo.codec.FrameHandler;
+import com.example.demo.timer.TimingWheel;
+import lombok.extern.slf4j.Slf4j;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author mark
+ * @date 2022/9/1 10:30
+ * @describe 客户端selector线程：一个线程多路复用多个客户端连接，负责非阻塞连接、读写和解码
+ * 连接的注册、关闭都投递到本线程执行，避免多个线程同时操作selector
+ * 回复服务端的ping，并用时间轮检测每个连接多久没有收到服务端数据：超过ping间隔发送ping，超过空闲超时断开
+ */
+@Slf4j
+class ClientLoop implements Runnable {
+
+    /**
+     * 空闲检测时间轮的刻度（毫秒）
+     */
+    private static final long IDLE_TICK_MILLIS = 100;
+
+    /**
+     * 空闲检测时间轮的槽数
+     */
+    private static final int IDLE_TICKS = 1024;
+
+    /**
+     * 单次gather写出最多合并的帧数，和服务端socket.server.max-flush-frames的默认值一致
+     */
+    private static final int MAX_FLUSH_FRAMES = 64;
+
+    /**
+     * 每个连接每次写出的字节数预算，和服务端socket.server.max-flush-bytes的默认值一致
+     */
+    private static final int MAX_FLUSH_BYTES = 256 * 1024;
+
+    /**
+     * 线程名称
+     */
+    private final String name;
+
+    /**
+     * 所属的连接管理器
+     */
+    private final ClientConnectionManager manager;
+
+    /**
+     * 需要在本线程中执行的任务，其他线程只入队并唤醒selector
+     */
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 当前线程上的连接数
+     */
+    private final AtomicInteger connections = new AtomicInteger();
+
+    /**
+     * gather写出复用的数组，只由本线程使用
+     */
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_FLUSH_FRAMES];
+
+    private Selector selector;
+
+    private Thread thread;
+
+    /**
+     * 已关闭，线程退出循环
+     */
+    private volatile boolean shutdown;
+
+    /**
+     * 空闲检测时间轮，只由本线程访问
+     */
+    private final TimingWheel<ClientConnection> idleTimer =
+            new TimingWheel<>(TimeUnit.MILLISECONDS.toNanos(IDLE_TICK_MILLIS), IDLE_TICKS, this::idleCheck);
+
+    /**
+     * 本轮循环开始的时间（纳秒）
+     */
+    private long clock = System.nanoTime();
+
+    /**
+     * 正在解码的连接，只在read期间不为null，供共用的帧处理器使用
+     */
+    private ClientConnection reading;
+
+    /**
+     * 本线程所有连接共用的帧处理器，解码前设置reading，避免每次读取都创建回调对象
+     */
+    private final FrameHandler frames = new FrameHandler() {
+        @Override
+        public void onFrame(ByteBuffer frame) {
+            manager.received(reading, FrameCodec.decodeToString(frame));
+        }
+
+        @Override
+        public void onControl(int type) {
+            if (type == FrameCodec.PING) {
+                reading.write(FrameCodec.encodeControl(FrameCodec.PONG, BufferPool.DEFAULT));
+            }
+        }
+
+        @Override
+        public void onFile(int type, int transferId, ByteBuffer payload) {
+            manager.receivedFile(reading, type, transferId, payload);
+        }
+
+        @Override
+        public void onRoute(ByteBuffer payload) {
+            manager.routed(reading, payload);
+        }
+    };
+
+    ClientLoop(String name, ClientConnectionManager manager) {
+        this.name = name;
+        this.manager = manager;
+    }
+
+    /**
+     * 启动selector线程
+     *
+     * @throws IOException IO异常
+     */
+    void start() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 获取当前连接数
+     *
+     * @return 连接数
+     */
+    int getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * 注册正在连接的信道，连接建立后开始读写
+     *
+     * @param channel    已发起非阻塞连接的信道
+     * @param connection 连接状态
+     */
+    void register(SocketChannel channel, ClientConnection connection) {
+        connections.incrementAndGet();
+        execute(() -> {
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_CONNECT, connection);
+                connection.registeredKey = key;
+                // 连接迟迟建立不起来也按空闲超时处理
+                connection.lastReadNanos = clock;
+                connection.lastPingNanos = clock;
+                scheduleIdleCheck(connection);
+                if (channel.isConnected()) {
+                    connected(key, connection);
+                }
+            } catch (IOException e) {
+                log.error("=====客户端{}注册到{}失败{}", connection.clientId, name, e);
+                closeChannel(channel);
+                closed(connection);
+            }
+        });
+    }
+
+    /**
+     * 在本线程关闭连接，注册任务先于关闭任务入队，执行到这里时连接已经注册或已因注册失败关闭
+     *
+     * @param connection 连接状态
+     */
+    void close(ClientConnection connection) {
+        execute(() -> {
+            if (connection.registeredKey != null) {
+                close(connection.registeredKey, connection);
+            } else {
+                closed(connection);
+            }
+        });
+    }
+
+    /**
+     * 关闭所有连接并退出线程
+     */
+    void shutdown() {
+        shutdown = true;
+        selector.wakeup();
+    }
+
+    /**
+     * 把任务交给本线程执行
+     *
+     * @param task 任务
+     */
+    void execute(Runnable task) {
+        tasks.offer(task);
+        selector.wakeup();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("=====执行{}的任务异常{}", name, e);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        BufferPool.DEFAULT.bindThreadCache();
+        try {
+            while (!shutdown) {
+                long timeout = idleTimer.nanosToNextTick(System.nanoTime());
+                if (timeout < 0) {
+                    selector.select();
+                } else if (timeout == 0) {
+                    selector.selectNow();
+                } else {
+                    // select的超时精度是毫秒，向上取整
+                    selector.select(TimeUnit.NANOSECONDS.toMillis(timeout + 999_999));
+                }
+                clock = System.nanoTime();
+                runTasks();
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (key.isValid()) {
+                        process(key);
+                    }
+                }
+                clock = System.nanoTime();
+                idleTimer.advance(clock);
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            log.error("=====客户端selector线程{}异常退出{}", name, e);
+        } finally {
+            runTasks();
+            for (SelectionKey key : selector.keys()) {
+                close(key, (ClientConnection) key.attachment());
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                log.error("=====关闭客户端selector异常{}", e);
+            }
+            BufferPool.DEFAULT.unbindThreadCache();
+        }
+    }
+
+    /**
+     * 处理一个就绪的连接，任何IO异常都只关闭这一个连接
+     */
+    private void process(SelectionKey key) {
+        ClientConnection connection = (ClientConnection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        try {
+            if (key.isConnectable()) {
+                if (!channel.finishConnect()) {
+                    return;
+                }
+                connected(key, connection);
+            }
+            // socket发送缓冲区有空间了，写出发送队列
+            if (key.isValid() && key.isWritable()) {
+                connection.flush(gather, MAX_FLUSH_BYTES);
+            }
+            if (key.isValid() && key.isReadable()) {
+                read(key, connection);
+            }
+        } catch (IOException e) {
+            log.error("======客户端{}连接异常，服务端断开了连接~~~~{}", connection.clientId, e.getMessage());
+            close(key, connection);
+        } catch (RuntimeException e) {
+            // 监听器回调抛出的异常只关闭这一个连接，不影响本线程上的其他连接
+            log.error("=====处理客户端{}的数据异常，关闭连接{}", connection.clientId, e);
+            try {
+                close(key, connection);
+            } catch (RuntimeException ex) {
+                log.error("=====客户端{}断开回调异常{}", connection.clientId, ex);
+            }
+        }
+    }
+
+    /**
+     * 连接建立，开始关注可读事件，写出连接前入队的帧
+     */
+    private void connected(SelectionKey key, ClientConnection connection) {
+        key.interestOps(SelectionKey.OP_READ);
+        connection.bind(key);
+        manager.connected(connection);
+    }
+
+    /**
+     * 读取服务端数据，拆包粘包由连接上的帧解码器处理
+     */
+    private void read(SelectionKey key, ClientConnection connection) throws IOException {
+        // 从缓冲池取本次读取用的缓冲区，处理完立即归还
+        PooledBuffer buffer = connection.allocateRecvBuffer();
+        try {
+            int read = ((SocketChannel) key.channel()).read(buffer.buffer());
+            if (read == -1) {
+                log.info("======服务端关闭了客户端{}的连接", connection.clientId);
+                close(key, connection);
+                return;
+            }
+            connection.recordRead(read);
+            connection.lastReadNanos = clock;
+            buffer.buffer().flip();
+            // 如果是私聊消息则消息格式为：包头+客户端ID+消息正文，如果是群聊消息则消息格式为：包头+消息正文
+            reading = connection;
+            connection.decoder.decode(buffer.buffer(), frames);
+        } finally {
+            reading = null;
+            buffer.release();
+        }
+    }
+
+    private void close(SelectionKey key, ClientConnection connection) {
+        key.cancel();
+        closeChannel((SocketChannel) key.channel());
+        closed(connection);
+    }
+
+    /**
+     * 按最近一次收到数据和发送ping的时间登记下一次空闲检查
+     */
+    private void scheduleIdleCheck(ClientConnection connection) {
+        long pingInterval = manager.getPingIntervalNanos();
+        long idleTimeout = manager.getIdleTimeoutNanos();
+        long deadline = Long.MAX_VALUE;
+        if (idleTimeout > 0) {
+            deadline = connection.lastReadNanos + idleTimeout;
+        }
+        if (pingInterval > 0) {
+            deadline = Math.min(deadline, Math.max(connection.lastReadNanos, connection.lastPingNanos) + pingInterval);
+        }
+        if (deadline != Long.MAX_VALUE) {
+            idleTimer.schedule(connection, deadline);
+        }
+    }
+
+    /**
+     * 空闲检查到期：超过空闲超时断开连接，超过ping间隔发送ping，否则按最新的读时间重新登记
+     */
+    private void idleCheck(ClientConnection connection) {
+        if (connection.isClosed()) {
+            return;
+        }
+        long idle = clock - connection.lastReadNanos;
+        long idleTimeout = manager.getIdleTimeoutNanos();
+        if (idleTimeout > 0 && idle >= idleTimeout) {
+            log.info("=====客户端{}{}毫秒没有收到服务端数据，断开连接", connection.clientId, TimeUnit.NANOSECONDS.toMillis(idle));
+            close(connection.registeredKey, connection);
+            return;
+        }
+        long pingInterval = manager.getPingIntervalNanos();
+        if (pingInterval > 0 && clock - Math.max(connection.lastReadNanos, connection.lastPingNanos) >= pingInterval) {
+            connection.lastPingNanos = clock;
+            connection.write(FrameCodec.encodeControl(FrameCodec.PING, BufferPool.DEFAULT));
+        }
+        scheduleIdleCheck(connection);
+    }
+
+    /**
+     * 归还连接占用的缓冲区并通知管理器，同一个连接只处理一次
+     */
+    private void closed(ClientConnection connection) {
+        if (connection.isClosed()) {
+            return;
+        }
+        idleTimer.cancel(connection);
+        connection.release();
+        connections.decrementAndGet();
+        manager.closed(connection);
+    }
+
+    private void closeChannel(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.error("=====关闭客户端信道异常{}", e);
+        }
+    }
+}
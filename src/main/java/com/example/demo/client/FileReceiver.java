@@ -0,0 +1,240 @@
+package com.example.demo.client;
+
+import com.example.demo.codec.FrameCodec;
+import lombok.extern.slf4j.Slf4j;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author mark
+ * @date 2022/9/17 10:00
+ * @describe 接收服务端发来的文件：每个连接一个，只由连接所在的selector线程访问
+ * 文件数据帧和聊天帧在同一个连接上交错，必须经过解码器分帧，不能用transferFrom直接从socket读进文件；
+ * 数据帧的内容是读缓冲区（池化的直接内存）上的切片，用FileChannel按位置写入，只有一次内核拷贝，不经过堆上的byte[]
+ * 接收中的文件写到.part临时文件，收到结束帧且字节数和开始帧声明的一致才改成正式文件名，连接断开时删除临时文件
+ */
+@Slf4j
+class FileReceiver {
+
+    /**
+     * 接收中的临时文件后缀
+     */
+    private static final String PART_SUFFIX = ".part";
+
+    private final String clientId;
+
+    /**
+     * 下载目录
+     */
+    private final Path directory;
+
+    private final ClientListener listener;
+
+    /**
+     * key是传输ID，value是接收中的文件
+     */
+    private final Map<Integer, Incoming> incoming = new HashMap<>(4);
+
+    FileReceiver(String clientId, Path directory, ClientListener listener) {
+        this.clientId = clientId;
+        this.directory = directory;
+        this.listener = listener;
+    }
+
+    /**
+     * 处理一个文件控制帧
+     *
+     * @param type       控制类型
+     * @param transferId 传输ID
+     * @param payload    传输ID之后的参数
+     */
+    void onFile(int type, int transferId, ByteBuffer payload) {
+        switch (type) {
+            case FrameCodec.FILE_BEGIN:
+                begin(transferId, payload);
+                break;
+            case FrameCodec.FILE_DATA:
+                data(transferId, payload);
+                break;
+            case FrameCodec.FILE_END:
+                end(transferId);
+                break;
+            default:
+        }
+    }
+
+    private void begin(int transferId, ByteBuffer payload) {
+        if (payload.remaining() < 8) {
+            log.warn("=====客户端{}收到非法的文件开始帧", clientId);
+            return;
+        }
+        long size = payload.getLong();
+        String name = safeName(FrameCodec.decodeToString(payload));
+        try {
+            Files.createDirectories(directory);
+            Incoming file = create(name, size);
+            Incoming previous = incoming.put(transferId, file);
+            if (previous != null) {
+                abort(previous, "传输ID重复");
+            }
+            listener.onFileProgress(clientId, name, 0, size);
+        } catch (IOException e) {
+            // 不登记这个传输，后面的数据帧和结束帧都会被忽略，连接照常使用
+            log.error("=====客户端{}创建文件{}失败{}", clientId, name, e.getMessage());
+        }
+    }
+
+    /**
+     * 选一个还没有被占用的文件名，同名文件已存在时在扩展名前加序号，用CREATE_NEW打开临时文件占住这个名字
+     */
+    private Incoming create(String name, long size) throws IOException {
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        for (int i = 0; ; i++) {
+            Path target = directory.resolve(i == 0 ? name : base + "(" + i + ")" + extension);
+            if (Files.exists(target)) {
+                continue;
+            }
+            Path part = target.resolveSibling(target.getFileName() + PART_SUFFIX);
+            try {
+                FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                return new Incoming(name, size, target, part, channel);
+            } catch (FileAlreadyExistsException e) {
+                // 同名文件正在接收，换下一个序号
+            }
+        }
+    }
+
+    private void data(int transferId, ByteBuffer payload) {
+        Incoming file = incoming.get(transferId);
+        if (file == null) {
+            // 开始帧没有登记成功或者传输已经中止
+            return;
+        }
+        if (file.received + payload.remaining() > file.size) {
+            incoming.remove(transferId);
+            abort(file, "超过声明的大小" + file.size);
+            return;
+        }
+        try {
+            while (payload.hasRemaining()) {
+                file.received += file.channel.write(payload, file.received);
+            }
+        } catch (IOException e) {
+            incoming.remove(transferId);
+            abort(file, e.getMessage());
+            return;
+        }
+        int percent = (int) (file.received * 100 / file.size);
+        if (percent >= file.nextPercent) {
+            file.nextPercent = percent / 10 * 10 + 10;
+            listener.onFileProgress(clientId, file.name, file.received, file.size);
+        }
+    }
+
+    private void end(int transferId) {
+        Incoming file = incoming.remove(transferId);
+        if (file == null) {
+            return;
+        }
+        if (file.received != file.size) {
+            abort(file, "只收到" + file.received + "字节，声明的大小为" + file.size);
+            return;
+        }
+        try {
+            file.channel.close();
+            Files.move(file.part, file.target);
+        } catch (IOException e) {
+            abort(file, e.getMessage());
+            return;
+        }
+        listener.onFileReceived(clientId, file.target, file.size, System.nanoTime() - file.startNanos);
+    }
+
+    /**
+     * 关闭并删除临时文件
+     */
+    private void abort(Incoming file, String reason) {
+        log.warn("=====客户端{}接收文件{}失败，{}", clientId, file.name, reason);
+        try {
+            file.channel.close();
+            Files.deleteIfExists(file.part);
+        } catch (IOException e) {
+            log.error("=====删除临时文件{}失败{}", file.part, e.getMessage());
+        }
+    }
+
+    /**
+     * 连接关闭时放弃所有接收中的文件
+     */
+    void release() {
+        for (Incoming file : incoming.values()) {
+            abort(file, "连接已断开");
+        }
+        incoming.clear();
+    }
+
+    /**
+     * 只保留服务端发来的文件名的最后一段，去掉控制字符，避免写到下载目录之外
+     *
+     * @param name 服务端发来的文件名
+     * @return 安全的文件名
+     */
+    static String safeName(String name) {
+        String last = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+        StringBuilder builder = new StringBuilder(last.length());
+        for (int i = 0; i < last.length(); i++) {
+            char c = last.charAt(i);
+            builder.append(c < 0x20 || c == ':' || c == '*' || c == '?' || c == '"' || c == '<' || c == '>' || c == '|' ? '_' : c);
+        }
+        String safe = builder.toString().trim();
+        return safe.isEmpty() || ".".equals(safe) || "..".equals(safe) ? "file" : safe;
+    }
+
+    /**
+     * 接收中的文件
+     */
+    private static final class Incoming {
+
+        final String name;
+
+        /**
+         * 开始帧声明的字节数
+         */
+        final long size;
+
+        final Path target;
+
+        final Path part;
+
+        final FileChannel channel;
+
+        final long startNanos = System.nanoTime();
+
+        /**
+         * 已收到的字节数，也是下一次写入的位置
+         */
+        long received;
+
+        /**
+         * 下一次回调进度的百分比
+         */
+        int nextPercent = 10;
+
+        Incoming(String name, long size, Path target, Path part, FileChannel channel) {
+            this.name = name;
+            this.size = size;
+            this.target = target;
+            this.part = part;
+            this.channel = channel;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.example.demo.cluster;
+
+import com.example.demo.buffer.BufferPool;
+import com.example.demo.buffer.PooledBuffer;
+import com.example.demo.codec.FrameCodec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author mark
+ * @date 2022/9/21 10:00
+ * @describe 集群控制帧的编解码：包体为1字节控制类型CLUSTER + 1字节操作类型 + 该操作的参数，字符串为2字节长度 + UTF-8
+ * 握手带节点ID和共享密钥；上下线带一串客户端ID，超过单帧上限时拆成多个帧；
+ * 转发消息的控制帧只带目标，消息本身按普通帧（超长时分片）紧跟在后面，和控制帧放在同一个缓冲区里一起写出，不会被其他帧插入
+ */
+final class ClusterCodec {
+
+    /**
+     * 握手：节点ID + 共享密钥，必须是连接上的第一个帧
+     */
+    static final int HELLO = 1;
+
+    /**
+     * 清空目录里对端节点的所有客户端，之后跟着对端当前的全部在线客户端
+     */
+    static final int RESET = 2;
+
+    /**
+     * 客户端在对端上线：一串客户端ID
+     */
+    static final int ONLINE = 3;
+
+    /**
+     * 客户端在对端下线：一串客户端ID
+     */
+    static final int OFFLINE = 4;
+
+    /**
+     * 之后的普通帧是私聊消息：客户端ID
+     */
+    static final int DIRECT = 5;
+
+    /**
+     * 之后的普通帧是群发消息，没有参数
+     */
+    static final int BROADCAST = 6;
+
+    /**
+     * 之后的普通帧是主题消息：主题
+     */
+    static final int PUBLISH = 7;
+
+    /**
+     * 包体中控制类型和操作类型的长度
+     */
+    private static final int OP_LENGTH = 2;
+
+    private ClusterCodec() {
+    }
+
+    /**
+     * 编码握手帧
+     *
+     * @param nodeId 本节点ID
+     * @param secret 共享密钥
+     * @return 已切换为读模式的帧，用完必须release
+     */
+    static PooledBuffer encodeHello(String nodeId, String secret) {
+        byte[] id = bytes(nodeId);
+        byte[] key = bytes(secret);
+        PooledBuffer pooled = allocate(HELLO, 4 + id.length + key.length);
+        ByteBuffer buffer = pooled.buffer();
+        putString(buffer, id);
+        putString(buffer, key);
+        buffer.flip();
+        return pooled;
+    }
+
+    /**
+     * 编码没有参数的帧
+     *
+     * @param op 操作类型
+     * @return 已切换为读模式的帧，用完必须release
+     */
+    static PooledBuffer encode(int op) {
+        PooledBuffer pooled = allocate(op, 0);
+        pooled.buffer().flip();
+        return pooled;
+    }
+
+    /**
+     * 把上线或下线的客户端ID编码成尽量少的帧，每帧不超过单帧上限，所有帧放在同一个缓冲区里
+     *
+     * @param op        ONLINE/OFFLINE
+     * @param clientIds 客户端ID，不能为空
+     * @return 已切换为读模式的帧，用完必须release
+     */
+    static PooledBuffer encodePresence(int op, List<String> clientIds) {
+        List<byte[]> ids = new ArrayList<>(clientIds.size());
+        // 先按单帧上限分好帧，算出总长度
+        int total = 0;
+        int length = FrameCodec.MAX_FRAME_SIZE;
+        for (String clientId : clientIds) {
+            byte[] id = bytes(clientId);
+            ids.add(id);
+            if (length + 2 + id.length > FrameCodec.MAX_FRAME_SIZE) {
+                total += FrameCodec.HEADER_LENGTH + OP_LENGTH;
+                length = OP_LENGTH;
+            }
+            length += 2 + id.length;
+            total += 2 + id.length;
+        }
+        PooledBuffer pooled = BufferPool.DEFAULT.allocate(total);
+        ByteBuffer buffer = pooled.buffer();
+        buffer.clear();
+        int i = 0;
+        while (i < ids.size()) {
+            int start = buffer.position();
+            buffer.position(start + FrameCodec.HEADER_LENGTH);
+            buffer.put((byte) FrameCodec.CLUSTER);
+            buffer.put((byte) op);
+            length = OP_LENGTH;
+            while (i < ids.size() && length + 2 + ids.get(i).length <= FrameCodec.MAX_FRAME_SIZE) {
+                putString(buffer, ids.get(i));
+                length += 2 + ids.get(i).length;
+                i++;
+            }
+            buffer.putInt(start, FrameCodec.CONTROL_FLAG | length);
+        }
+        buffer.flip();
+        return pooled;
+    }
+
+    /**
+     * 编码转发消息：带目标的控制帧后面紧跟已编码好的普通帧
+     *
+     * @param op     DIRECT/BROADCAST/PUBLISH
+     * @param target 私聊的客户端ID或者主题，群发为null
+     * @param frames 已编码好的一个或多个普通帧，调用后归还
+     * @return 已切换为读模式的帧，用完必须release
+     */
+    static PooledBuffer encodeRelay(int op, String target, PooledBuffer frames) {
+        try {
+            byte[] bytes = target == null ? null : bytes(target);
+            int length = bytes == null ? 0 : 2 + bytes.length;
+            ByteBuffer body = frames.buffer();
+            PooledBuffer pooled = BufferPool.DEFAULT.allocate(FrameCodec.HEADER_LENGTH + OP_LENGTH + length + body.remaining());
+            ByteBuffer buffer = pooled.buffer();
+            buffer.clear();
+            buffer.putInt(FrameCodec.CONTROL_FLAG | (OP_LENGTH + length));
+            buffer.put((byte) FrameCodec.CLUSTER);
+            buffer.put((byte) op);
+            if (bytes != null) {
+                putString(buffer, bytes);
+            }
+            buffer.put(body.duplicate());
+            buffer.flip();
+            return pooled;
+        } finally {
+            frames.release();
+        }
+    }
+
+    /**
+     * 读取一个字符串
+     *
+     * @param payload 集群控制帧的参数
+     * @return 字符串
+     * @throws IllegalArgumentException 参数不完整
+     */
+    static String readString(ByteBuffer payload) {
+        if (payload.remaining() < 2) {
+            throw new IllegalArgumentException("集群帧参数不完整");
+        }
+        int length = payload.getShort() & 0xFFFF;
+        if (payload.remaining() < length) {
+            throw new IllegalArgumentException("集群帧参数不完整");
+        }
+        byte[] bytes = new byte[length];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static PooledBuffer allocate(int op, int length) {
+        PooledBuffer pooled = BufferPool.DEFAULT.allocate(FrameCodec.HEADER_LENGTH + OP_LENGTH + length);
+        ByteBuffer buffer = pooled.buffer();
+        buffer.clear();
+        buffer.limit(FrameCodec.HEADER_LENGTH + OP_LENGTH + length);
+        buffer.putInt(FrameCodec.CONTROL_FLAG | (OP_LENGTH + length));
+        buffer.put((byte) FrameCodec.CLUSTER);
+        buffer.put((byte) op);
+        return pooled;
+    }
+
+    private static byte[] bytes(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("集群帧参数过长");
+        }
+        return bytes;
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+}
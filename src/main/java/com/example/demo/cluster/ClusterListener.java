@@ -0,0 +1,52 @@
+package com.example.demo.cluster;
+
+/**
+ * @author mark
+ * @date 2022/9/21 10:00
+ * @describe 集群事件监听器：收到其他节点转发来的消息、其他节点上有客户端上线时回调
+ * 回调在读取节点连接的线程上执行，实现类只做本节点内的投递，不能再转发给其他节点，也不能阻塞
+ */
+public interface ClusterListener {
+
+    /**
+     * 其他节点转发来的私聊消息，接收者在本节点
+     *
+     * @param clientId 客户端ID
+     * @param message  消息正文
+     */
+    default void onDirect(String clientId, String message) {
+    }
+
+    /**
+     * 其他节点转发来的群发消息，每个节点只收到一次，发给本节点的所有客户端
+     *
+     * @param message 消息正文
+     */
+    default void onBroadcast(String message) {
+    }
+
+    /**
+     * 其他节点转发来的主题消息，每个节点只收到一次，发给本节点匹配的订阅者
+     *
+     * @param topic   主题
+     * @param message 消息正文
+     */
+    default void onPublish(String topic, String message) {
+    }
+
+    /**
+     * 客户端在其他节点上线
+     *
+     * @param clientId 客户端ID
+     */
+    default void onRemoteOnline(String clientId) {
+    }
+
+    /**
+     * 哈希环的成员变化，在集群的连接线程上回调，可以按新的环把不再属于本节点的客户端重定向出去
+     *
+     * @param ring 新的哈希环
+     */
+    default void onRingChanged(HashRing ring) {
+    }
+}
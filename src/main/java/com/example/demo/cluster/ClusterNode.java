@@ -0,0 +1,711 @@
+package com.example.demo.cluster;
+
+import com.example.demo.buffer.BufferPool;
+import com.example.demo.buffer.PooledBuffer;
+import com.example.demo.client.ClientConnectionManager;
+import com.example.demo.client.ClientListener;
+import com.example.demo.codec.FrameCodec;
+import lombok.extern.slf4j.Slf4j;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author mark
+ * @date 2022/9/21 10:00
+ * @describe 集群节点：每个节点用客户端连接管理器主动连接其他所有节点，这些连接只写不读；其他节点连进来的连接由服务端引擎接入，只读
+ * 节点之间交换在线目录：本节点的客户端上下线合并成批发给所有节点，连接建立时先发全量；其他节点的上下线记在目录里，
+ * 私聊发给不在本节点的客户端时按目录转发给它所在的节点，群发和主题消息每个节点只转发一次，由各节点自己发给本节点的客户端，
+ * 所以每个节点的开销只和本节点的连接数有关，加节点就能线性增加总连接数
+ * 到其他节点的连接断开后按间隔重连，对端节点连进来的连接断开时清空目录里它的客户端
+ * 开启放置时用本节点和已连上的节点建一致性哈希环，客户端登录到不是归属节点的节点时给它发路由帧让它重连，
+ * 节点加入或离开时环只变动一小部分，只有归属变了的客户端需要移动
+ */
+@Slf4j
+public class ClusterNode implements Closeable {
+
+    /**
+     * 本节点ID
+     */
+    private final String nodeId;
+
+    private final String secret;
+
+    private final long reconnectIntervalMillis;
+
+    private final long presenceFlushMillis;
+
+    /**
+     * 本节点在节点列表里的成员字符串，节点列表不包含本节点时为null，不做放置
+     */
+    private final String self;
+
+    /**
+     * 当前的哈希环：本节点和已连上的节点，不做放置时为null
+     */
+    private volatile HashRing ring;
+
+    /**
+     * 集群事件监听器
+     */
+    private final ClusterListener listener;
+
+    /**
+     * key是节点ID，value是到这个节点的连接状态，创建后不再变化
+     */
+    private final Map<String, Peer> peers = new LinkedHashMap<>();
+
+    /**
+     * 到其他节点的连接，用节点ID作为客户端ID
+     */
+    private final ClientConnectionManager links;
+
+    /**
+     * 连接、重连、发送上下线都在这一个线程里执行，不需要加锁就能保证全量和增量的顺序
+     */
+    private final ScheduledExecutorService executor;
+
+    /**
+     * 还没有发给其他节点的本节点上下线
+     */
+    private final ConcurrentLinkedQueue<Presence> changes = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 本节点的在线客户端，只由executor线程访问
+     */
+    private final Set<String> locals = new HashSet<>();
+
+    /**
+     * 在线目录：key是其他节点上的客户端ID，value是所在的节点ID
+     */
+    private final ConcurrentHashMap<String, String> owners = new ConcurrentHashMap<>();
+
+    /**
+     * key是节点ID，value是这个节点当前连进来的连接，重连时旧连接上迟到的上下线不再生效
+     */
+    private final ConcurrentHashMap<String, PeerSession> inbound = new ConcurrentHashMap<>();
+
+    /**
+     * 转发给其他节点的消息数，群发按节点数计
+     */
+    private final LongAdder relayed = new LongAdder();
+
+    /**
+     * 其他节点转发来的消息数
+     */
+    private final LongAdder received = new LongAdder();
+
+    /**
+     * 重定向到其他节点的客户端登录数，包括哈希环变化后移走的客户端
+     */
+    private final LongAdder redirects = new LongAdder();
+
+    private volatile boolean closed;
+
+    /**
+     * 创建集群节点
+     *
+     * @param options  集群配置
+     * @param listener 集群事件监听器
+     * @throws IllegalArgumentException 节点ID或者密钥为空，或者节点列表格式不对
+     */
+    public ClusterNode(ClusterOptions options, ClusterListener listener) {
+        if (options.getNodeId() == null || options.getNodeId().isEmpty()) {
+            throw new IllegalArgumentException("没有配置节点ID");
+        }
+        if (options.getSecret() == null || options.getSecret().isEmpty()) {
+            // 没有密钥时任何能连上服务端口的人都能冒充节点，注入在线目录和转发消息
+            throw new IllegalArgumentException("没有配置集群密钥，不能开启集群");
+        }
+        this.nodeId = options.getNodeId();
+        this.secret = options.getSecret();
+        this.reconnectIntervalMillis = Math.max(1, options.getReconnectIntervalMillis());
+        this.presenceFlushMillis = Math.max(1, options.getPresenceFlushMillis());
+        this.listener = listener;
+        String member = null;
+        for (String entry : options.getPeers().split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            InetSocketAddress address = HashRing.address(entry);
+            String id = HashRing.nodeId(entry);
+            if (id.equals(nodeId)) {
+                member = entry;
+            } else {
+                peers.put(id, new Peer(id, entry, address));
+            }
+        }
+        if (options.isPlacement() && member == null) {
+            log.warn("=====节点列表里没有本节点{}，不按一致性哈希放置客户端", nodeId);
+        }
+        this.self = options.isPlacement() ? member : null;
+        this.ring = self == null ? null : HashRing.of(Collections.singletonList(self));
+        this.links = new ClientConnectionManager(1, new ClientListener() {
+            @Override
+            public void onConnected(String clientId) {
+                log.info("=====已连接集群节点{}", clientId);
+                Peer peer = peers.get(clientId);
+                if (peer != null) {
+                    execute(() -> connected(peer));
+                }
+            }
+
+            @Override
+            public void onDisconnected(String clientId) {
+                Peer peer = peers.get(clientId);
+                if (peer != null) {
+                    execute(() -> disconnected(peer));
+                }
+            }
+        });
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cluster-" + nodeId);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 启动连接线程，连接其他所有节点，连不上的按间隔重试
+     *
+     * @throws IOException IO异常
+     */
+    public void start() throws IOException {
+        links.start();
+        for (Peer peer : peers.values()) {
+            execute(() -> connect(peer));
+        }
+        executor.scheduleWithFixedDelay(this::flushPresence, presenceFlushMillis, presenceFlushMillis, TimeUnit.MILLISECONDS);
+        log.info("=====集群节点{}启动，其他节点{}", nodeId, peers.keySet());
+    }
+
+    /**
+     * 本节点的客户端上线，合并后发给其他节点，可以在任意线程调用
+     *
+     * @param clientId 客户端ID
+     */
+    public void online(String clientId) {
+        changes.offer(new Presence(clientId, true));
+    }
+
+    /**
+     * 本节点的客户端下线，合并后发给其他节点，可以在任意线程调用
+     *
+     * @param clientId 客户端ID
+     */
+    public void offline(String clientId) {
+        changes.offer(new Presence(clientId, false));
+    }
+
+    /**
+     * 客户端所在的其他节点
+     *
+     * @param clientId 客户端ID
+     * @return 节点ID，不在其他节点上返回null
+     */
+    public String owner(String clientId) {
+        return owners.get(clientId);
+    }
+
+    /**
+     * 把私聊消息转发给客户端所在的节点
+     *
+     * @param clientId 客户端ID
+     * @param msg      消息正文
+     * @return 客户端不在其他节点上或者到那个节点的连接没有建立返回false
+     */
+    public boolean send(String clientId, String msg) {
+        Peer peer = ownerPeer(clientId);
+        return peer != null && relay(peer, ClusterCodec.encodeRelay(ClusterCodec.DIRECT, clientId, FrameCodec.encode(msg, BufferPool.DEFAULT)));
+    }
+
+    /**
+     * 把已编码好的私聊消息转发给客户端所在的节点，用于把离线邮箱里的消息转给在其他节点上线的客户端
+     *
+     * @param clientId 客户端ID
+     * @param frames   已编码好的一个或多个普通帧，调用后所有权转移给集群节点
+     * @return 客户端不在其他节点上或者到那个节点的连接没有建立返回false
+     */
+    public boolean forward(String clientId, PooledBuffer frames) {
+        Peer peer = ownerPeer(clientId);
+        if (peer == null) {
+            frames.release();
+            return false;
+        }
+        return relay(peer, ClusterCodec.encodeRelay(ClusterCodec.DIRECT, clientId, frames));
+    }
+
+    /**
+     * 把群发消息转发给其他所有节点，每个节点一次，只编码一次
+     *
+     * @param msg 消息正文
+     */
+    public void broadcast(String msg) {
+        relayAll(ClusterCodec.BROADCAST, null, msg);
+    }
+
+    /**
+     * 把主题消息转发给其他所有节点，每个节点一次，由各节点自己匹配订阅者
+     *
+     * @param topic 主题
+     * @param msg   消息正文
+     */
+    public void publish(String topic, String msg) {
+        relayAll(ClusterCodec.PUBLISH, topic, msg);
+    }
+
+    /**
+     * 客户端登录时检查归属：按一致性哈希归属其他节点时返回让它重连的路由帧
+     *
+     * @param clientId 客户端ID
+     * @return 路由帧，调用方写给客户端后不登记登录；归属本节点或者不做放置时返回null
+     */
+    public PooledBuffer redirect(String clientId) {
+        HashRing current = ring;
+        if (current == null) {
+            return null;
+        }
+        String owner = current.owner(clientId);
+        if (owner == null || owner.equals(self)) {
+            return null;
+        }
+        redirects.increment();
+        return new Route(current, owner).encode(BufferPool.DEFAULT);
+    }
+
+    /**
+     * 客户端登录成功后发给它的路由帧，只带当前的哈希环，客户端缓存后下次直接连归属节点
+     *
+     * @return 路由帧，不做放置时返回null
+     */
+    public PooledBuffer route() {
+        HashRing current = ring;
+        return current == null ? null : new Route(current, null).encode(BufferPool.DEFAULT);
+    }
+
+    /**
+     * 当前的哈希环
+     *
+     * @return 不做放置时返回null
+     */
+    public HashRing getRing() {
+        return ring;
+    }
+
+    /**
+     * 处理其他节点连进来后的第一个集群控制帧，必须是握手
+     *
+     * @param payload 控制类型之后的参数
+     * @return 握手成功返回连接状态，由调用方挂在会话上；不是握手、密钥不对或者节点ID不对返回null，调用方应断开连接
+     */
+    public PeerSession handshake(ByteBuffer payload) {
+        try {
+            if ((payload.get() & 0xFF) != ClusterCodec.HELLO) {
+                log.warn("=====集群连接的第一个帧不是握手，断开连接");
+                return null;
+            }
+            String id = ClusterCodec.readString(payload);
+            byte[] key = ClusterCodec.readString(payload).getBytes(StandardCharsets.UTF_8);
+            if (!MessageDigest.isEqual(key, secret.getBytes(StandardCharsets.UTF_8))) {
+                log.warn("=====集群节点{}的密钥不一致，断开连接", id);
+                return null;
+            }
+            if (!peers.containsKey(id)) {
+                // 只接受节点列表里的其他节点，本节点和列表外的ID都拒绝
+                log.warn("=====集群节点{}不在节点列表里，断开连接", id);
+                return null;
+            }
+            PeerSession session = new PeerSession(id);
+            inbound.put(id, session);
+            log.info("=====集群节点{}连入", id);
+            return session;
+        } catch (IllegalArgumentException e) {
+            log.warn("=====集群握手帧不合法{}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 处理其他节点发来的集群控制帧，在读取这个连接的线程里调用
+     *
+     * @param session 握手时返回的连接状态
+     * @param payload 控制类型之后的参数
+     */
+    public void receive(PeerSession session, ByteBuffer payload) {
+        int op = payload.get() & 0xFF;
+        try {
+            switch (op) {
+                case ClusterCodec.RESET:
+                    if (inbound.get(session.nodeId) == session) {
+                        purge(session.nodeId);
+                    }
+                    break;
+                case ClusterCodec.ONLINE:
+                    boolean current = inbound.get(session.nodeId) == session;
+                    while (payload.hasRemaining()) {
+                        String clientId = ClusterCodec.readString(payload);
+                        if (current) {
+                            owners.put(clientId, session.nodeId);
+                            listener.onRemoteOnline(clientId);
+                        }
+                    }
+                    break;
+                case ClusterCodec.OFFLINE:
+                    while (payload.hasRemaining()) {
+                        String clientId = ClusterCodec.readString(payload);
+                        // 客户端已经在其他节点重新登录时不删除
+                        owners.remove(clientId, session.nodeId);
+                    }
+                    break;
+                case ClusterCodec.DIRECT:
+                case ClusterCodec.PUBLISH:
+                    session.target = ClusterCodec.readString(payload);
+                    session.op = op;
+                    break;
+                case ClusterCodec.BROADCAST:
+                    session.target = null;
+                    session.op = op;
+                    break;
+                default:
+                    log.warn("=====忽略集群节点{}发来的未知操作{}", session.nodeId, op);
+            }
+        } catch (IllegalArgumentException e) {
+            log.warn("=====集群节点{}发来的帧不合法{}", session.nodeId, e.getMessage());
+        }
+    }
+
+    /**
+     * 处理其他节点转发来的消息，发给最近一个集群控制帧指定的目标，在读取这个连接的线程里调用
+     *
+     * @param session 握手时返回的连接状态
+     * @param message 消息正文
+     */
+    public void receive(PeerSession session, String message) {
+        received.increment();
+        switch (session.op) {
+            case ClusterCodec.DIRECT:
+                listener.onDirect(session.target, message);
+                break;
+            case ClusterCodec.BROADCAST:
+                listener.onBroadcast(message);
+                break;
+            case ClusterCodec.PUBLISH:
+                listener.onPublish(session.target, message);
+                break;
+            default:
+                log.warn("=====集群节点{}发来的消息没有目标，丢弃", session.nodeId);
+        }
+    }
+
+    /**
+     * 其他节点连进来的连接断开，还是这个节点当前的连接时清空目录里它的客户端，可以重复调用
+     *
+     * @param session 握手时返回的连接状态
+     */
+    public void closed(PeerSession session) {
+        if (inbound.remove(session.nodeId, session)) {
+            purge(session.nodeId);
+            log.info("=====集群节点{}断开", session.nodeId);
+        }
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * 配置的其他节点数
+     *
+     * @return 节点数
+     */
+    public int getPeers() {
+        return peers.size();
+    }
+
+    /**
+     * 已经握手、可以转发的其他节点数
+     *
+     * @return 节点数
+     */
+    public int getConnectedPeers() {
+        int count = 0;
+        for (Peer peer : peers.values()) {
+            if (peer.ready) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 目录里其他节点上的客户端数
+     *
+     * @return 客户端数
+     */
+    public int getRemoteClients() {
+        return owners.size();
+    }
+
+    public long getRelayed() {
+        return relayed.sum();
+    }
+
+    public long getReceived() {
+        return received.sum();
+    }
+
+    public long getRedirects() {
+        return redirects.sum();
+    }
+
+    /**
+     * 断开到其他节点的连接，停止连接线程
+     */
+    @Override
+    public void close() {
+        closed = true;
+        executor.shutdownNow();
+        links.shutdown();
+    }
+
+    /**
+     * 连接一个节点，连接放入发送队列后立即排队握手和全量在线目录，连接失败由断开回调安排重连，在executor线程调用
+     */
+    private void connect(Peer peer) {
+        if (closed) {
+            return;
+        }
+        try {
+            InetSocketAddress address = new InetSocketAddress(peer.address.getHostString(), peer.address.getPort());
+            links.connect(address, peer.nodeId);
+        } catch (IOException e) {
+            log.warn("=====连接集群节点{}失败{}，{}毫秒后重试", peer.nodeId, e.getMessage(), reconnectIntervalMillis);
+            schedule(() -> connect(peer));
+            return;
+        }
+        if (!links.send(peer.nodeId, ClusterCodec.encodeHello(nodeId, secret))) {
+            // 已经连接失败，断开回调会安排重连
+            return;
+        }
+        links.send(peer.nodeId, ClusterCodec.encode(ClusterCodec.RESET));
+        if (!locals.isEmpty()) {
+            links.send(peer.nodeId, ClusterCodec.encodePresence(ClusterCodec.ONLINE, new ArrayList<>(locals)));
+        }
+        peer.ready = true;
+    }
+
+    /**
+     * 到一个节点的连接建立，把它加入哈希环，在executor线程调用
+     */
+    private void connected(Peer peer) {
+        if (peer.ready) {
+            peer.linked = true;
+            updateRing();
+        }
+    }
+
+    /**
+     * 到一个节点的连接断开或连接失败，把它移出哈希环，间隔一段时间后重连，在executor线程调用
+     */
+    private void disconnected(Peer peer) {
+        if (peer.linked) {
+            log.warn("=====到集群节点{}的连接断开，{}毫秒后重连", peer.nodeId, reconnectIntervalMillis);
+        }
+        peer.ready = false;
+        peer.linked = false;
+        updateRing();
+        schedule(() -> connect(peer));
+    }
+
+    /**
+     * 用本节点和已连上的节点重建哈希环，成员变了才替换并通知监听器，在executor线程调用
+     * 只用真正建立了连接的节点，连不上的节点不会每次重连都进出一次环
+     */
+    private void updateRing() {
+        if (self == null) {
+            return;
+        }
+        List<String> members = new ArrayList<>(peers.size() + 1);
+        members.add(self);
+        for (Peer peer : peers.values()) {
+            if (peer.linked) {
+                members.add(peer.member);
+            }
+        }
+        HashRing next = HashRing.of(members);
+        if (next.equals(ring)) {
+            return;
+        }
+        ring = next;
+        log.info("=====哈希环成员变为{}", next);
+        try {
+            listener.onRingChanged(next);
+        } catch (RuntimeException e) {
+            log.error("=====处理哈希环变化异常", e);
+        }
+    }
+
+    /**
+     * 把积攒的上下线按顺序合并成批，每批编码一次发给所有已连接的节点，在executor线程调用
+     */
+    private void flushPresence() {
+        try {
+            List<String> batch = new ArrayList<>();
+            boolean online = true;
+            Presence change;
+            while ((change = changes.poll()) != null) {
+                if (change.online != online && !batch.isEmpty()) {
+                    sendPresence(online, batch);
+                    batch.clear();
+                }
+                online = change.online;
+                if (online ? locals.add(change.clientId) : locals.remove(change.clientId)) {
+                    batch.add(change.clientId);
+                }
+            }
+            if (!batch.isEmpty()) {
+                sendPresence(online, batch);
+            }
+        } catch (RuntimeException e) {
+            log.error("=====发送在线目录异常", e);
+        }
+    }
+
+    private void sendPresence(boolean online, List<String> clientIds) {
+        PooledBuffer frames = ClusterCodec.encodePresence(online ? ClusterCodec.ONLINE : ClusterCodec.OFFLINE, clientIds);
+        try {
+            for (Peer peer : peers.values()) {
+                if (peer.ready) {
+                    links.send(peer.nodeId, frames.retainedDuplicate());
+                }
+            }
+        } finally {
+            frames.release();
+        }
+    }
+
+    private void relayAll(int op, String target, String msg) {
+        Collection<Peer> ready = new ArrayList<>(peers.size());
+        for (Peer peer : peers.values()) {
+            if (peer.ready) {
+                ready.add(peer);
+            }
+        }
+        if (ready.isEmpty()) {
+            return;
+        }
+        PooledBuffer frames = ClusterCodec.encodeRelay(op, target, FrameCodec.encode(msg, BufferPool.DEFAULT));
+        try {
+            for (Peer peer : ready) {
+                relay(peer, frames.retainedDuplicate());
+            }
+        } finally {
+            frames.release();
+        }
+    }
+
+    private boolean relay(Peer peer, PooledBuffer frames) {
+        if (!peer.ready) {
+            frames.release();
+            return false;
+        }
+        if (links.send(peer.nodeId, frames)) {
+            relayed.increment();
+            return true;
+        }
+        return false;
+    }
+
+    private Peer ownerPeer(String clientId) {
+        String owner = owners.get(clientId);
+        return owner == null ? null : peers.get(owner);
+    }
+
+    private void purge(String peerId) {
+        owners.values().removeIf(peerId::equals);
+    }
+
+    private void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // 已经关闭
+        }
+    }
+
+    private void schedule(Runnable task) {
+        try {
+            executor.schedule(task, reconnectIntervalMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // 已经关闭
+        }
+    }
+
+    /**
+     * 到一个节点的连接
+     */
+    private static final class Peer {
+
+        final String nodeId;
+
+        /**
+         * 节点列表里的原样配置，作为哈希环的成员
+         */
+        final String member;
+
+        /**
+         * 未解析的地址，每次连接时重新解析
+         */
+        final InetSocketAddress address;
+
+        /**
+         * 已经排队了握手和全量在线目录，之后的转发和增量上下线可以发给这个节点
+         */
+        volatile boolean ready;
+
+        /**
+         * 连接已经建立，在哈希环里，只由executor线程访问
+         */
+        boolean linked;
+
+        Peer(String nodeId, String member, InetSocketAddress address) {
+            this.nodeId = nodeId;
+            this.member = member;
+            this.address = address;
+        }
+    }
+
+    /**
+     * 一次上下线
+     */
+    private static final class Presence {
+
+        final String clientId;
+
+        final boolean online;
+
+        Presence(String clientId, boolean online) {
+            this.clientId = clientId;
+            this.online = online;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.example.demo.cluster;
+
+import lombok.Data;
+
+/**
+ * @author mark
+ * @date 2022/9/21 10:00
+ * @describe 集群的配置，由Server根据配置文件组装
+ */
+@Data
+public class ClusterOptions {
+
+    /**
+     * 本节点ID，集群内唯一
+     */
+    private String nodeId;
+
+    /**
+     * 所有节点，格式为节点ID@主机:端口，逗号分隔，可以包含本节点，所有节点用同一份配置即可
+     */
+    private String peers = "";
+
+    /**
+     * 节点之间握手用的共享密钥，不一致的节点不能加入，不能为空
+     */
+    private String secret = "";
+
+    /**
+     * 到其他节点的连接断开或连接失败后重连的间隔（毫秒）
+     */
+    private long reconnectIntervalMillis = 1000;
+
+    /**
+     * 合并客户端上下线通知的间隔（毫秒），连接风暴时一批上下线只发一个帧
+     */
+    private long presenceFlushMillis = 20;
+
+    /**
+     * 是否按一致性哈希放置客户端：客户端登录到不是归属节点的节点时，告诉它重连到归属节点，节点列表里需要包含本节点
+     */
+    private boolean placement = true;
+}
@@ -0,0 +1,182 @@
+package com.example.demo.cluster;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author mark
+ * @date 2022/9/22 10:00
+ * @describe 一致性哈希环：每个节点按节点ID在环上放VIRTUAL_NODES个虚拟节点，客户端ID顺时针找到的第一个虚拟节点所属的节点就是它的归属节点
+ * 节点加入时只有落到新节点虚拟节点上的客户端换到新节点，节点离开时只有它自己的客户端分散到其他节点，其他客户端的归属不变
+ * 位置只由节点ID决定，节点换地址不影响归属；服务端和客户端用同样的成员列表建出同样的环
+ * 创建后不可变，成员变化时整体替换
+ */
+public final class HashRing {
+
+    /**
+     * 每个节点的虚拟节点数，越多各节点分到的客户端越均匀
+     */
+    public static final int VIRTUAL_NODES = 160;
+
+    /**
+     * 成员，格式为节点ID@主机:端口，按字符串排序
+     */
+    private final List<String> members;
+
+    /**
+     * 虚拟节点在环上的位置，从小到大
+     */
+    private final long[] points;
+
+    /**
+     * 和points一一对应的成员下标
+     */
+    private final int[] owners;
+
+    private HashRing(List<String> members) {
+        this.members = members;
+        int count = members.size() * VIRTUAL_NODES;
+        long[] hashes = new long[count];
+        int[] indexes = new int[count];
+        // 位置和成员下标打包排序，位置相同时按成员下标，保证各处建出的环一致
+        long[][] pairs = new long[count][];
+        int n = 0;
+        for (int i = 0; i < members.size(); i++) {
+            String nodeId = nodeId(members.get(i));
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                pairs[n++] = new long[]{hash(nodeId + "#" + v), i};
+            }
+        }
+        Arrays.sort(pairs, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        for (int i = 0; i < count; i++) {
+            hashes[i] = pairs[i][0];
+            indexes[i] = (int) pairs[i][1];
+        }
+        this.points = hashes;
+        this.owners = indexes;
+    }
+
+    /**
+     * 用成员列表建环
+     *
+     * @param members 成员，格式为节点ID@主机:端口，节点ID不能重复
+     * @return 哈希环
+     * @throws IllegalArgumentException 成员格式不对或者节点ID重复
+     */
+    public static HashRing of(Collection<String> members) {
+        List<String> sorted = new ArrayList<>(members);
+        Collections.sort(sorted);
+        for (int i = 0; i < sorted.size(); i++) {
+            address(sorted.get(i));
+            if (i > 0 && nodeId(sorted.get(i)).equals(nodeId(sorted.get(i - 1)))) {
+                throw new IllegalArgumentException("哈希环的节点ID重复:" + nodeId(sorted.get(i)));
+            }
+        }
+        return new HashRing(Collections.unmodifiableList(sorted));
+    }
+
+    /**
+     * 客户端ID的归属节点
+     *
+     * @param clientId 客户端ID
+     * @return 成员，格式为节点ID@主机:端口，环为空时返回null
+     */
+    public String owner(String clientId) {
+        if (points.length == 0) {
+            return null;
+        }
+        int i = Arrays.binarySearch(points, hash(clientId));
+        if (i < 0) {
+            i = -i - 1;
+        } else {
+            // 位置相同的虚拟节点取第一个
+            while (i > 0 && points[i - 1] == points[i]) {
+                i--;
+            }
+        }
+        return members.get(owners[i == points.length ? 0 : i]);
+    }
+
+    /**
+     * 所有成员，按字符串排序
+     *
+     * @return 不可修改的列表
+     */
+    public List<String> getMembers() {
+        return members;
+    }
+
+    public boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    /**
+     * 成员的节点ID
+     *
+     * @param member 节点ID@主机:端口
+     * @return 节点ID
+     */
+    public static String nodeId(String member) {
+        int at = member.indexOf('@');
+        if (at <= 0) {
+            throw new IllegalArgumentException("集群节点格式为节点ID@主机:端口:" + member);
+        }
+        return member.substring(0, at);
+    }
+
+    /**
+     * 成员的地址，不解析主机名
+     *
+     * @param member 节点ID@主机:端口
+     * @return 未解析的地址
+     */
+    public static InetSocketAddress address(String member) {
+        int at = member.indexOf('@');
+        int colon = member.lastIndexOf(':');
+        if (at <= 0 || colon < at + 2 || colon == member.length() - 1) {
+            throw new IllegalArgumentException("集群节点格式为节点ID@主机:端口:" + member);
+        }
+        try {
+            return InetSocketAddress.createUnresolved(member.substring(at + 1, colon), Integer.parseInt(member.substring(colon + 1)));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("集群节点端口不合法:" + member);
+        }
+    }
+
+    /**
+     * 64位FNV-1a再做一次murmur3的最终混合，两个字符的客户端ID也能均匀分布在环上
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof HashRing && members.equals(((HashRing) o).members);
+    }
+
+    @Override
+    public int hashCode() {
+        return members.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return members.toString();
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.demo.cluster;
+
+/**
+ * @author mark
+ * @date 2022/9/21 10:00
+ * @describe 其他节点连进来的连接的状态：握手后挂在服务端会话上，只由读取这个连接的线程访问
+ * 转发消息时先收到一个带目标的集群控制帧，随后的普通帧都发给这个目标，直到下一个集群控制帧
+ */
+public final class PeerSession {
+
+    /**
+     * 对端节点ID
+     */
+    final String nodeId;
+
+    /**
+     * 之后的普通帧的用途 ClusterCodec.DIRECT/BROADCAST/PUBLISH，握手后还没有收到时为0
+     */
+    int op;
+
+    /**
+     * 私聊的客户端ID或者主题
+     */
+    String target;
+
+    PeerSession(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * 对端节点ID
+     *
+     * @return 节点ID
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+}
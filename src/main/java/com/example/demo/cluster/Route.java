@@ -0,0 +1,115 @@
+package com.example.demo.cluster;
+
+import com.example.demo.buffer.BufferPool;
+import com.example.demo.buffer.PooledBuffer;
+import com.example.demo.codec.FrameCodec;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author mark
+ * @date 2022/9/22 10:00
+ * @describe 服务端发给客户端的路由帧：当前的哈希环 + 要重连的节点
+ * 包体为1字节控制类型ROUTE + 目标成员（空字符串表示已接受登录，不需要重连）+ 2字节成员数 + 各个成员，字符串为2字节长度 + UTF-8
+ * 客户端缓存哈希环，之后同一批客户端ID直接连归属节点，不再经过重定向
+ */
+public final class Route {
+
+    /**
+     * 当前的哈希环
+     */
+    private final HashRing ring;
+
+    /**
+     * 要重连的成员，格式为节点ID@主机:端口，null表示服务端已接受登录
+     */
+    private final String target;
+
+    public Route(HashRing ring, String target) {
+        this.ring = ring;
+        this.target = target;
+    }
+
+    public HashRing getRing() {
+        return ring;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * 要重连的地址，不解析主机名
+     *
+     * @return 不需要重连时返回null
+     */
+    public InetSocketAddress getTargetAddress() {
+        return target == null ? null : HashRing.address(target);
+    }
+
+    /**
+     * 编码路由帧
+     *
+     * @param pool 缓冲池
+     * @return 已切换为读模式的帧，用完必须release
+     */
+    public PooledBuffer encode(BufferPool pool) {
+        List<byte[]> strings = new ArrayList<>(ring.getMembers().size() + 1);
+        strings.add((target == null ? "" : target).getBytes(StandardCharsets.UTF_8));
+        for (String member : ring.getMembers()) {
+            strings.add(member.getBytes(StandardCharsets.UTF_8));
+        }
+        int length = 1 + 2;
+        for (byte[] bytes : strings) {
+            length += 2 + bytes.length;
+        }
+        if (length > FrameCodec.MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("哈希环成员过多");
+        }
+        PooledBuffer pooled = pool.allocate(FrameCodec.HEADER_LENGTH + length);
+        ByteBuffer buffer = pooled.buffer();
+        buffer.clear();
+        buffer.putInt(FrameCodec.CONTROL_FLAG | length);
+        buffer.put((byte) FrameCodec.ROUTE);
+        putString(buffer, strings.get(0));
+        buffer.putShort((short) ring.getMembers().size());
+        for (int i = 1; i < strings.size(); i++) {
+            putString(buffer, strings.get(i));
+        }
+        buffer.flip();
+        return pooled;
+    }
+
+    /**
+     * 解码路由帧
+     *
+     * @param payload 控制类型之后的参数
+     * @return 路由
+     * @throws IllegalArgumentException 参数不完整或者成员格式不对
+     */
+    public static Route decode(ByteBuffer payload) {
+        String target = ClusterCodec.readString(payload);
+        if (payload.remaining() < 2) {
+            throw new IllegalArgumentException("路由帧参数不完整");
+        }
+        int count = payload.getShort() & 0xFFFF;
+        List<String> members = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            members.add(ClusterCodec.readString(payload));
+        }
+        HashRing ring = HashRing.of(members);
+        if (target.isEmpty()) {
+            return new Route(ring, null);
+        }
+        HashRing.address(target);
+        return new Route(ring, target);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+}
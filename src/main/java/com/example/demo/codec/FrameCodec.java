@@ -0,0 +1,325 @@
+package com.example.demo.codec;
+
+import com.example.demo.buffer.BufferPool;
+import com.example.demo.buffer.PooledBuffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author mark
+ * @date 2022/8/12 14:05
+ * @describe 帧编解码：帧格式为4字节大端包头 + 包体，包头低30位是包体长度（按字节计算），最高位是分片标记，次高位是控制标记
+ * 普通帧的包体是UTF-8编码的消息；超过单帧上限的消息拆成多个分片帧连续写出，
+ * 分片帧的包体为4字节消息ID + 4字节分片序号 + 4字节消息总长度 + 本分片的UTF-8字节，接收方按序号重组
+ * 控制帧的包体是1字节的控制类型 + 该类型的参数：ping/pong没有参数，由连接自己处理，不交给上层；
+ * 文件传输的三种控制帧参数都以4字节传输ID开头，开始帧之后是8字节文件大小和UTF-8文件名，数据帧之后是文件内容，结束帧没有其他参数
+ * 文件内容不经过编码，发送方按数据帧的包头直接把文件区间写进socket，和聊天消息共用一个连接，以帧为单位交错
+ * 集群控制帧只在服务端节点之间的连接上出现，路由帧由服务端发给客户端，参数都由com.example.demo.cluster自己编解码
+ */
+public final class FrameCodec {
+
+    /**
+     * 包头长度
+     */
+    public static final int HEADER_LENGTH = 4;
+
+    /**
+     * 单帧包体最大字节数，超过此长度的帧视为非法帧并断开连接
+     */
+    public static final int MAX_FRAME_SIZE = 64 * 1024;
+
+    /**
+     * 分片消息重组后的最大字节数，超过此长度的消息视为非法并断开连接
+     */
+    public static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * 包头最高位为1表示分片帧
+     */
+    public static final int CHUNK_FLAG = 0x80000000;
+
+    /**
+     * 包头次高位为1表示控制帧
+     */
+    public static final int CONTROL_FLAG = 0x40000000;
+
+    /**
+     * 控制帧：心跳请求，收到后回复PONG
+     */
+    public static final int PING = 1;
+
+    /**
+     * 控制帧：心跳回复
+     */
+    public static final int PONG = 2;
+
+    /**
+     * 控制帧：文件开始，参数为传输ID + 文件大小 + 文件名
+     */
+    public static final int FILE_BEGIN = 3;
+
+    /**
+     * 控制帧：文件数据，参数为传输ID + 文件内容
+     */
+    public static final int FILE_DATA = 4;
+
+    /**
+     * 控制帧：文件结束，参数为传输ID
+     */
+    public static final int FILE_END = 5;
+
+    /**
+     * 控制帧：服务端节点之间的集群消息，参数为1字节操作类型 + 该操作的参数
+     */
+    public static final int CLUSTER = 6;
+
+    /**
+     * 控制帧：服务端告诉客户端当前的哈希环和要重连的节点，参数由com.example.demo.cluster.Route编解码
+     */
+    public static final int ROUTE = 7;
+
+    /**
+     * 文件控制帧包体中控制类型和传输ID的长度
+     */
+    public static final int FILE_HEADER_LENGTH = 5;
+
+    /**
+     * 每个文件数据帧携带的文件字节数
+     */
+    public static final int FILE_CHUNK_SIZE = MAX_FRAME_SIZE - FILE_HEADER_LENGTH;
+
+    /**
+     * 分片帧包体中分片头的长度：消息ID + 分片序号 + 消息总长度
+     */
+    public static final int CHUNK_HEADER_LENGTH = 12;
+
+    /**
+     * 每个分片携带的消息字节数
+     */
+    public static final int CHUNK_PAYLOAD_SIZE = MAX_FRAME_SIZE - CHUNK_HEADER_LENGTH;
+
+    /**
+     * 每个线程复用一个编码器
+     */
+    private static final ThreadLocal<CharsetEncoder> ENCODER = ThreadLocal.withInitial(() -> StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE));
+
+    /**
+     * 分片消息ID
+     */
+    private static final AtomicInteger MESSAGE_ID = new AtomicInteger();
+
+    private FrameCodec() {
+    }
+
+    /**
+     * 把消息直接编码到池化缓冲区里，避免中间的byte[]和堆缓冲区
+     * 消息超过单帧上限时编码成连续的多个分片帧，放在同一个缓冲区里，作为一个整体入队保证同一连接上不会和其他消息交错
+     *
+     * @param msg  消息
+     * @param pool 缓冲池
+     * @return 已切换为读模式的帧，用完必须release
+     */
+    public static PooledBuffer encode(CharSequence msg, BufferPool pool) {
+        int length = utf8Length(msg);
+        if (length > MAX_FRAME_SIZE) {
+            return encodeChunks(msg, length, pool);
+        }
+        PooledBuffer pooled = pool.allocate(HEADER_LENGTH + length);
+        ByteBuffer buffer = pooled.buffer();
+        buffer.limit(HEADER_LENGTH + length);
+        buffer.putInt(length);
+        CharsetEncoder encoder = ENCODER.get().reset();
+        encoder.encode(CharBuffer.wrap(msg), buffer, true);
+        encoder.flush(buffer);
+        buffer.flip();
+        return pooled;
+    }
+
+    /**
+     * 编码控制帧
+     *
+     * @param type 控制类型 PING/PONG
+     * @param pool 缓冲池
+     * @return 已切换为读模式的帧，用完必须release
+     */
+    public static PooledBuffer encodeControl(int type, BufferPool pool) {
+        PooledBuffer pooled = pool.allocate(HEADER_LENGTH + 1);
+        ByteBuffer buffer = pooled.buffer();
+        buffer.limit(HEADER_LENGTH + 1);
+        buffer.putInt(CONTROL_FLAG | 1);
+        buffer.put((byte) type);
+        buffer.flip();
+        return pooled;
+    }
+
+    /**
+     * 编码文件开始帧
+     *
+     * @param transferId 传输ID
+     * @param size       文件字节数
+     * @param name       文件名，不含目录
+     * @param pool       缓冲池
+     * @return 已切换为读模式的帧，用完必须release
+     */
+    public static PooledBuffer encodeFileBegin(int transferId, long size, String name, BufferPool pool) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int length = FILE_HEADER_LENGTH + 8 + bytes.length;
+        if (length > MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("文件名过长:" + name);
+        }
+        PooledBuffer pooled = pool.allocate(HEADER_LENGTH + length);
+        ByteBuffer buffer = pooled.buffer();
+        buffer.limit(HEADER_LENGTH + length);
+        buffer.putInt(CONTROL_FLAG | length);
+        buffer.put((byte) FILE_BEGIN);
+        buffer.putInt(transferId);
+        buffer.putLong(size);
+        buffer.put(bytes);
+        buffer.flip();
+        return pooled;
+    }
+
+    /**
+     * 编码文件结束帧
+     *
+     * @param transferId 传输ID
+     * @param pool       缓冲池
+     * @return 已切换为读模式的帧，用完必须release
+     */
+    public static PooledBuffer encodeFileEnd(int transferId, BufferPool pool) {
+        PooledBuffer pooled = pool.allocate(HEADER_LENGTH + FILE_HEADER_LENGTH);
+        ByteBuffer buffer = pooled.buffer();
+        buffer.limit(HEADER_LENGTH + FILE_HEADER_LENGTH);
+        buffer.putInt(CONTROL_FLAG | FILE_HEADER_LENGTH);
+        buffer.put((byte) FILE_END);
+        buffer.putInt(transferId);
+        buffer.flip();
+        return pooled;
+    }
+
+    /**
+     * 写入文件数据帧的包头和参数，随后的length个字节是文件内容，由调用方直接从文件写进socket
+     *
+     * @param buffer     至少还有HEADER_LENGTH + FILE_HEADER_LENGTH个字节的空间
+     * @param transferId 传输ID
+     * @param length     本帧携带的文件字节数，不超过FILE_CHUNK_SIZE
+     */
+    public static void putFileDataHeader(ByteBuffer buffer, int transferId, int length) {
+        buffer.putInt(CONTROL_FLAG | (FILE_HEADER_LENGTH + length));
+        buffer.put((byte) FILE_DATA);
+        buffer.putInt(transferId);
+    }
+
+    /**
+     * 把大消息编码成连续的分片帧
+     *
+     * @param msg    消息
+     * @param length 消息的UTF-8字节数
+     * @param pool   缓冲池
+     * @return 已切换为读模式的分片帧
+     */
+    private static PooledBuffer encodeChunks(CharSequence msg, int length, BufferPool pool) {
+        if (length > MAX_MESSAGE_SIZE) {
+            throw new IllegalArgumentException("消息长度" + length + "超过上限" + MAX_MESSAGE_SIZE);
+        }
+        int chunks = (length + CHUNK_PAYLOAD_SIZE - 1) / CHUNK_PAYLOAD_SIZE;
+        int total = length + chunks * (HEADER_LENGTH + CHUNK_HEADER_LENGTH);
+        PooledBuffer pooled = pool.allocate(total);
+        ByteBuffer buffer = pooled.buffer();
+        buffer.limit(total);
+        int messageId = MESSAGE_ID.incrementAndGet();
+        int written = 0;
+        int chunkRemaining = 0;
+        int sequence = 0;
+        for (int i = 0; i < msg.length(); i++) {
+            char c = msg.charAt(i);
+            int codePoint = c;
+            if (Character.isHighSurrogate(c) && i + 1 < msg.length() && Character.isLowSurrogate(msg.charAt(i + 1))) {
+                codePoint = Character.toCodePoint(c, msg.charAt(++i));
+            } else if (Character.isSurrogate(c)) {
+                // 不成对的代理字符和JDK编码器一样替换为'?'
+                codePoint = '?';
+            }
+            int bytes = codePoint < 0x80 ? 1 : codePoint < 0x800 ? 2 : codePoint < 0x10000 ? 3 : 4;
+            for (int b = bytes - 1; b >= 0; b--) {
+                if (chunkRemaining == 0) {
+                    // 开始一个新分片，多字节字符允许跨分片，接收方重组后才解码
+                    chunkRemaining = Math.min(CHUNK_PAYLOAD_SIZE, length - written);
+                    buffer.putInt(CHUNK_FLAG | (CHUNK_HEADER_LENGTH + chunkRemaining));
+                    buffer.putInt(messageId);
+                    buffer.putInt(sequence++);
+                    buffer.putInt(length);
+                }
+                buffer.put(utf8Byte(codePoint, bytes, b));
+                chunkRemaining--;
+                written++;
+            }
+        }
+        buffer.flip();
+        return pooled;
+    }
+
+    /**
+     * 计算UTF-8编码后第index个字节（从高位数，index为0表示最后一个字节）
+     */
+    private static byte utf8Byte(int codePoint, int bytes, int index) {
+        if (bytes == 1) {
+            return (byte) codePoint;
+        }
+        int bits = (codePoint >>> (6 * index)) & 0x3F;
+        if (index < bytes - 1) {
+            return (byte) (0x80 | bits);
+        }
+        // 首字节
+        switch (bytes) {
+            case 2:
+                return (byte) (0xC0 | (codePoint >>> 6));
+            case 3:
+                return (byte) (0xE0 | (codePoint >>> 12));
+            default:
+                return (byte) (0xF0 | (codePoint >>> 18));
+        }
+    }
+
+    /**
+     * 计算消息UTF-8编码后的字节数，不成对的代理字符按替换成'?'计算
+     *
+     * @param msg 消息
+     * @return 字节数
+     */
+    public static int utf8Length(CharSequence msg) {
+        int length = 0;
+        for (int i = 0; i < msg.length(); i++) {
+            char c = msg.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < msg.length() && Character.isLowSurrogate(msg.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * 把帧的包体解码成字符串
+     *
+     * @param frame 帧的包体
+     * @return 消息
+     */
+    public static String decodeToString(ByteBuffer frame) {
+        return StandardCharsets.UTF_8.decode(frame).toString();
+    }
+}
@@ -0,0 +1,285 @@
+package com.example.demo.codec;
+
+import com.example.demo.buffer.BufferPool;
+import com.example.demo.buffer.PooledBuffer;
+import java.nio.ByteBuffer;
+
+/**
+ * @author mark
+ * @date 2022/8/12 14:05
+ * @describe 帧解码器：每个连接持有一个，增量解析任意拆包粘包组合的数据
+ * 整帧落在本次读取的数据里时直接切片回调，不做拷贝；只有跨多次读取的帧才会缓存到池化缓冲区里
+ * 分片帧按消息ID和序号重组，凑齐整条消息后才回调，处理器看到的始终是完整消息；控制帧单独回调
+ */
+public class FrameDecoder {
+
+    /**
+     * 单帧包体最大字节数
+     */
+    private final int maxFrameSize;
+
+    /**
+     * 分片消息重组后的最大字节数
+     */
+    private final int maxMessageSize;
+
+    /**
+     * 不完整的包头已读到的部分，按大端累加，用int代替缓冲区减少每个连接的内存占用
+     */
+    private int header;
+
+    /**
+     * 不完整的包头已读到的字节数
+     */
+    private int headerBytes;
+
+    /**
+     * 缓存不完整的包体用的缓冲池
+     */
+    private final BufferPool pool;
+
+    /**
+     * 缓存不完整的包体，为null表示正在读取包头
+     */
+    private PooledBuffer body;
+
+    /**
+     * 当前帧是否是分片帧
+     */
+    private boolean chunked;
+
+    /**
+     * 当前帧是否是控制帧
+     */
+    private boolean control;
+
+    /**
+     * 正在重组的分片消息，为null表示没有未完成的分片消息
+     */
+    private PooledBuffer message;
+
+    /**
+     * 正在重组的分片消息ID
+     */
+    private int messageId;
+
+    /**
+     * 期望的下一个分片序号
+     */
+    private int nextSequence;
+
+    /**
+     * 连接已关闭，不再解析剩余数据
+     */
+    private boolean released;
+
+    public FrameDecoder() {
+        this(FrameCodec.MAX_FRAME_SIZE, FrameCodec.MAX_MESSAGE_SIZE, BufferPool.DEFAULT);
+    }
+
+    public FrameDecoder(int maxFrameSize, int maxMessageSize, BufferPool pool) {
+        this.maxFrameSize = maxFrameSize;
+        this.maxMessageSize = maxMessageSize;
+        this.pool = pool;
+    }
+
+    /**
+     * 解析本次读到的数据，每得到一个完整的帧就回调一次
+     *
+     * @param in      读模式的数据，解析完后全部被消费
+     * @param handler 帧处理器
+     * @throws FrameException 非法帧
+     */
+    public void decode(ByteBuffer in, FrameHandler handler) throws FrameException {
+        while (in.hasRemaining() && !released) {
+            if (body == null) {
+                int length;
+                if (headerBytes == 0 && in.remaining() >= FrameCodec.HEADER_LENGTH) {
+                    length = checkLength(in.getInt());
+                    if (in.remaining() >= length) {
+                        // 整帧都在本次数据里，直接切片交给处理器
+                        ByteBuffer frame = in.slice();
+                        frame.limit(length);
+                        in.position(in.position() + length);
+                        onFrame(frame, handler);
+                        continue;
+                    }
+                } else {
+                    // 包头被拆开了，先凑齐4个字节
+                    while (headerBytes < FrameCodec.HEADER_LENGTH && in.hasRemaining()) {
+                        header = (header << 8) | (in.get() & 0xFF);
+                        headerBytes++;
+                    }
+                    if (headerBytes < FrameCodec.HEADER_LENGTH) {
+                        return;
+                    }
+                    length = checkLength(header);
+                    header = 0;
+                    headerBytes = 0;
+                    if (length == 0) {
+                        // 包头刚好在本次数据末尾凑齐的空帧，立即回调，不能等下一次读
+                        onFrame(ByteBuffer.allocate(0), handler);
+                        continue;
+                    }
+                }
+                body = pool.allocate(length);
+                body.buffer().limit(length);
+            }
+            // 包体被拆开了，拷贝到缓存里直到凑齐
+            ByteBuffer frame = body.buffer();
+            int n = Math.min(frame.remaining(), in.remaining());
+            int limit = in.limit();
+            in.limit(in.position() + n);
+            frame.put(in);
+            in.limit(limit);
+            if (!frame.hasRemaining()) {
+                frame.flip();
+                PooledBuffer completed = body;
+                body = null;
+                try {
+                    onFrame(frame, handler);
+                } finally {
+                    completed.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * 普通帧直接回调，分片帧先重组，控制帧回调控制类型
+     */
+    private void onFrame(ByteBuffer frame, FrameHandler handler) throws FrameException {
+        if (control) {
+            onControl(frame, handler);
+        } else if (chunked) {
+            onChunk(frame, handler);
+        } else {
+            handler.onFrame(frame);
+        }
+    }
+
+    /**
+     * 文件控制帧回调传输ID和其余参数，集群控制帧和路由帧回调全部参数，其他控制帧只有1字节的控制类型
+     */
+    private void onControl(ByteBuffer frame, FrameHandler handler) throws FrameException {
+        int length = frame.remaining();
+        if (length == 0) {
+            throw new FrameException("非法控制帧长度0");
+        }
+        int type = frame.get() & 0xFF;
+        switch (type) {
+            case FrameCodec.FILE_BEGIN:
+            case FrameCodec.FILE_DATA:
+            case FrameCodec.FILE_END:
+                if (length < FrameCodec.FILE_HEADER_LENGTH) {
+                    throw new FrameException("非法文件帧长度" + length);
+                }
+                handler.onFile(type, frame.getInt(), frame);
+                break;
+            case FrameCodec.CLUSTER:
+                if (length < 2) {
+                    throw new FrameException("非法集群帧长度" + length);
+                }
+                handler.onCluster(frame);
+                break;
+            case FrameCodec.ROUTE:
+                handler.onRoute(frame);
+                break;
+            default:
+                if (length != 1) {
+                    throw new FrameException("非法控制帧长度" + length);
+                }
+                handler.onControl(type);
+        }
+    }
+
+    /**
+     * 把分片拷贝到重组缓冲区，凑齐整条消息后回调
+     * 发送方把一条消息的所有分片作为一个整体写出，同一连接上分片不会和其他消息交错，所以只需要一个重组缓冲区
+     *
+     * @param frame   分片帧的包体
+     * @param handler 帧处理器
+     * @throws FrameException 非法分片
+     */
+    private void onChunk(ByteBuffer frame, FrameHandler handler) throws FrameException {
+        if (frame.remaining() < FrameCodec.CHUNK_HEADER_LENGTH) {
+            throw new FrameException("非法分片长度" + frame.remaining());
+        }
+        int id = frame.getInt();
+        int sequence = frame.getInt();
+        int total = frame.getInt();
+        if (sequence == 0) {
+            if (message != null) {
+                throw new FrameException("分片消息" + messageId + "未完成就收到了新消息" + id);
+            }
+            if (total <= 0 || total > maxMessageSize) {
+                throw new FrameException("非法消息长度" + total + "，上限" + maxMessageSize);
+            }
+            message = pool.allocate(total);
+            message.buffer().limit(total);
+            messageId = id;
+            nextSequence = 0;
+        } else if (message == null || id != messageId || sequence != nextSequence) {
+            throw new FrameException("分片乱序，消息" + id + "序号" + sequence + "，期望消息" + messageId + "序号" + nextSequence);
+        }
+        ByteBuffer buffer = message.buffer();
+        if (frame.remaining() > buffer.remaining()) {
+            throw new FrameException("分片消息" + id + "超过声明的长度" + total);
+        }
+        buffer.put(frame);
+        nextSequence++;
+        if (!buffer.hasRemaining()) {
+            buffer.flip();
+            PooledBuffer completed = message;
+            message = null;
+            try {
+                handler.onFrame(buffer);
+            } finally {
+                completed.release();
+            }
+        }
+    }
+
+    /**
+     * 当前缓存的不完整帧和未重组完的分片消息字节数
+     *
+     * @return 字节数
+     */
+    public int buffered() {
+        return headerBytes + (body == null ? 0 : body.buffer().position())
+                + (message == null ? 0 : message.buffer().position());
+    }
+
+    /**
+     * 连接关闭时归还缓存的半包
+     */
+    public void release() {
+        released = true;
+        if (body != null) {
+            body.release();
+            body = null;
+        }
+        if (message != null) {
+            message.release();
+            message = null;
+        }
+        header = 0;
+        headerBytes = 0;
+    }
+
+    /**
+     * 从包头取出分片标记、控制标记和包体长度并校验
+     */
+    private int checkLength(int header) throws FrameException {
+        chunked = (header & FrameCodec.CHUNK_FLAG) != 0;
+        control = (header & FrameCodec.CONTROL_FLAG) != 0;
+        if (chunked && control) {
+            throw new FrameException("非法包头" + Integer.toHexString(header));
+        }
+        int length = header & ~(FrameCodec.CHUNK_FLAG | FrameCodec.CONTROL_FLAG);
+        if (length > maxFrameSize) {
+            throw new FrameException("非法帧长度" + length + "，上限" + maxFrameSize);
+        }
+        return length;
+    }
+}
@@ -0,0 +1,17 @@
+package com.example.demo.codec;
+
+import java.io.IOException;
+
+/**
+ * @author mark
+ * @date 2022/8/12 14:05
+ * @describe 非法帧异常：包头长度为负数或者超过上限，连接上的数据已无法继续解析
+ */
+public class FrameException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public FrameException(String message) {
+        super(message);
+    }
+}
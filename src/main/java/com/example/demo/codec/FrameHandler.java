@@ -0,0 +1,53 @@
+package com.example.demo.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author mark
+ * @date 2022/8/12 14:05
+ * @describe 帧处理器：解码出完整的帧后回调
+ */
+@FunctionalInterface
+public interface FrameHandler {
+
+    /**
+     * 收到一个完整的帧
+     *
+     * @param frame 帧的包体，只在回调期间有效，需要保留时自行拷贝
+     */
+    void onFrame(ByteBuffer frame);
+
+    /**
+     * 收到一个控制帧，默认忽略
+     *
+     * @param type 控制类型 FrameCodec.PING/FrameCodec.PONG
+     */
+    default void onControl(int type) {
+    }
+
+    /**
+     * 收到一个文件传输的控制帧，默认忽略
+     *
+     * @param type       控制类型 FrameCodec.FILE_BEGIN/FrameCodec.FILE_DATA/FrameCodec.FILE_END
+     * @param transferId 传输ID
+     * @param payload    传输ID之后的参数，只在回调期间有效
+     */
+    default void onFile(int type, int transferId, ByteBuffer payload) {
+    }
+
+    /**
+     * 收到一个集群控制帧，默认忽略
+     *
+     * @param payload 控制类型之后的参数，只在回调期间有效
+     */
+    default void onCluster(ByteBuffer payload) {
+    }
+
+    /**
+     * 收到一个路由帧，默认忽略
+     *
+     * @param payload 控制类型之后的参数，只在回调期间有效
+     */
+    default void onRoute(ByteBuffer payload) {
+    }
+}
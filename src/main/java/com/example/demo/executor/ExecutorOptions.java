@@ -0,0 +1,37 @@
+package com.example.demo.executor;
+
+import lombok.Data;
+
+/**
+ * @author mark
+ * @date 2022/8/31 9:40
+ * @describe 按客户端有序执行器的配置，由MsgHandler根据配置文件组装
+ */
+@Data
+public class ExecutorOptions {
+
+    /**
+     * 线程名前缀
+     */
+    private String name = "msg";
+
+    /**
+     * 线程数，小于等于0时取CPU核数
+     */
+    private int threads;
+
+    /**
+     * 单个客户端最多排队的任务数，超出后按拒绝策略处理
+     */
+    private int maxPendingPerKey = 1024;
+
+    /**
+     * 拒绝策略 abort/discard/discard-oldest
+     */
+    private String rejectionPolicy = OrderedExecutor.ABORT;
+
+    /**
+     * 一个客户端连续执行的任务数上限，执行够了就让出线程给其他客户端
+     */
+    private int maxTasksPerRun = 16;
+}
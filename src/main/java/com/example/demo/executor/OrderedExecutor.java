@@ -0,0 +1,241 @@
+package com.example.demo.executor;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author mark
+ * @date 2022/8/31 9:40
+ * @describe 按客户端有序执行器：同一个key的任务按提交顺序串行执行，不同key在独立的固定大小线程池上并行
+ * 每个key有自己的有界队列，同一时刻最多占用一个线程，连续执行maxTasksPerRun个任务后让出线程重新排队，
+ * 一个客户端的突发消息不会饿死其他客户端，也不会和JVM公共线程池里的其他任务互相抢占
+ */
+@Slf4j
+public class OrderedExecutor {
+
+    /**
+     * 队列满时抛出RejectedExecutionException
+     */
+    public static final String ABORT = "abort";
+
+    /**
+     * 队列满时丢弃新任务
+     */
+    public static final String DISCARD = "discard";
+
+    /**
+     * 队列满时丢弃最早的任务，放入新任务
+     */
+    public static final String DISCARD_OLDEST = "discard-oldest";
+
+    /**
+     * 执行任务的线程池，队列里是各个key的串行执行体，每个key最多一个
+     */
+    private final ThreadPoolExecutor pool;
+
+    /**
+     * 有待执行任务的key，任务执行完后移除，空闲的key不占内存
+     */
+    private final ConcurrentHashMap<String, SerialQueue> queues = new ConcurrentHashMap<>();
+
+    private final int maxPendingPerKey;
+
+    private final String rejectionPolicy;
+
+    private final int maxTasksPerRun;
+
+    /**
+     * 所有key排队中的任务数
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /**
+     * 被拒绝或丢弃的任务数
+     */
+    private final AtomicLong rejected = new AtomicLong();
+
+    public OrderedExecutor(ExecutorOptions options) {
+        int threads = options.getThreads();
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        switch (options.getRejectionPolicy()) {
+            case ABORT:
+            case DISCARD:
+            case DISCARD_OLDEST:
+                break;
+            default:
+                throw new IllegalArgumentException("未知的拒绝策略:" + options.getRejectionPolicy());
+        }
+        this.maxPendingPerKey = Math.max(1, options.getMaxPendingPerKey());
+        this.rejectionPolicy = options.getRejectionPolicy();
+        this.maxTasksPerRun = Math.max(1, options.getMaxTasksPerRun());
+        AtomicInteger index = new AtomicInteger();
+        String name = options.getName();
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, name + "-" + index.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        log.info("=====创建有序执行器{}，{}个线程，单key队列上限{}，拒绝策略{}", name, threads, maxPendingPerKey, rejectionPolicy);
+    }
+
+    /**
+     * 提交任务，同一个key的任务按提交顺序执行
+     *
+     * @param key  排序用的key，一般是客户端ID
+     * @param task 任务
+     * @throws RejectedExecutionException 拒绝策略为abort且该key的队列已满，或执行器已关闭
+     */
+    public void execute(String key, Runnable task) {
+        if (pool.isShutdown()) {
+            throw new RejectedExecutionException("有序执行器已关闭");
+        }
+        SerialQueue[] start = new SerialQueue[1];
+        boolean[] full = new boolean[1];
+        // 入队和空队列移除都在compute里进行，同一个key不会同时存在两个串行执行体
+        queues.compute(key, (k, queue) -> {
+            if (queue == null) {
+                queue = new SerialQueue(k);
+            }
+            synchronized (queue) {
+                if (queue.tasks.size() >= maxPendingPerKey) {
+                    if (!DISCARD_OLDEST.equals(rejectionPolicy)) {
+                        full[0] = true;
+                        return queue;
+                    }
+                    queue.tasks.poll();
+                    pending.decrementAndGet();
+                    rejected.incrementAndGet();
+                }
+                queue.tasks.offer(task);
+                pending.incrementAndGet();
+                if (!queue.running) {
+                    queue.running = true;
+                    start[0] = queue;
+                }
+            }
+            return queue;
+        });
+        if (full[0]) {
+            rejected.incrementAndGet();
+            if (ABORT.equals(rejectionPolicy)) {
+                throw new RejectedExecutionException("key" + key + "排队任务数超过上限" + maxPendingPerKey);
+            }
+            log.warn("=====key{}排队任务数超过上限{}，丢弃任务", key, maxPendingPerKey);
+            return;
+        }
+        if (start[0] != null) {
+            pool.execute(start[0]);
+        }
+    }
+
+    /**
+     * 所有key排队中的任务数
+     *
+     * @return 任务数
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * 指定key排队中的任务数
+     *
+     * @param key key
+     * @return 任务数
+     */
+    public int getPending(String key) {
+        SerialQueue queue = queues.get(key);
+        if (queue == null) {
+            return 0;
+        }
+        synchronized (queue) {
+            return queue.tasks.size();
+        }
+    }
+
+    /**
+     * 被拒绝或丢弃的任务数
+     *
+     * @return 任务数
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * 关闭执行器，已排队的任务继续执行完，之后提交的任务被拒绝
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * 一个key的串行执行体：同一时刻最多在一个线程上运行
+     */
+    private final class SerialQueue implements Runnable {
+
+        private final String key;
+
+        /**
+         * 待执行的任务，用自身加锁
+         */
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+        /**
+         * 是否已交给线程池
+         */
+        private boolean running;
+
+        SerialQueue(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < maxTasksPerRun; i++) {
+                Runnable task;
+                synchronized (this) {
+                    task = tasks.poll();
+                }
+                if (task == null) {
+                    break;
+                }
+                pending.decrementAndGet();
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    log.error("=====执行key{}的任务异常", key, e);
+                }
+            }
+            boolean[] again = new boolean[1];
+            queues.compute(key, (k, queue) -> {
+                synchronized (this) {
+                    if (tasks.isEmpty()) {
+                        running = false;
+                        return queue == this ? null : queue;
+                    }
+                    again[0] = true;
+                    return queue;
+                }
+            });
+            if (again[0]) {
+                // 还有任务，重新排到线程池队尾，让其他key先执行
+                try {
+                    pool.execute(this);
+                } catch (RejectedExecutionException e) {
+                    log.warn("=====有序执行器已关闭，key{}剩余任务不再执行", key);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,466 @@
+package com.example.demo.journal;
+
+import lombok.extern.slf4j.Slf4j;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * @author mark
+ * @date 2022/9/18 10:00
+ * @describe 消息日志：只追加的分段日志，日志段用MappedByteBuffer映射，写入就是内存拷贝，由操作系统写回磁盘
+ * 调用方只把记录放入无锁队列就返回，一个专门的写线程负责编码、写入、刷盘、滚动和清理，worker线程不会因为磁盘阻塞；
+ * 队列超过上限时丢弃新记录并计数，宁可少记也不拖慢消息转发
+ * 持久化方式：async只写入映射内存，进程崩溃不丢数据，机器掉电可能丢失操作系统还没写回的部分；
+ * fsync每隔固定毫秒数调用一次force，掉电最多丢失一个间隔的记录
+ * 启动时从最后一个日志段的最后一条有效记录之后开始一个新的日志段，崩溃时写了一半的记录会被校验发现并跳过
+ */
+@Slf4j
+public class Journal implements Closeable {
+
+    /**
+     * 记录类型：客户端发来的聊天消息
+     */
+    public static final byte INBOUND = 1;
+
+    /**
+     * 记录类型：服务端群发的消息
+     */
+    public static final byte BROADCAST = 2;
+
+    /**
+     * 记录类型：服务端私发给一个客户端的消息
+     */
+    public static final byte DIRECT = 3;
+
+    /**
+     * 记录类型：服务端发布到主题的消息，客户端ID的位置记录主题
+     */
+    public static final byte PUBLISH = 4;
+
+    /**
+     * 持久化方式：只写入映射内存，由操作系统异步写回磁盘
+     */
+    public static final String ASYNC = "async";
+
+    /**
+     * 持久化方式：每隔固定间隔强制刷盘
+     */
+    public static final String FSYNC = "fsync";
+
+    /**
+     * 没有记录时写线程最长的休眠时间，也是按时间清理日志段的检查间隔
+     */
+    private static final long IDLE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final byte[] NO_CLIENT_ID = new byte[0];
+
+    private final Path directory;
+
+    private final int segmentBytes;
+
+    private final boolean fsync;
+
+    private final long fsyncIntervalNanos;
+
+    private final long retentionBytes;
+
+    private final long retentionMillis;
+
+    private final int maxPending;
+
+    /**
+     * 等待写入的记录，任意线程入队，只由写线程出队
+     */
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final Thread writer;
+
+    /**
+     * 写线程是否在休眠，入队后只在休眠时唤醒，避免每条记录都unpark
+     */
+    private volatile boolean sleeping;
+
+    private volatile boolean closed;
+
+    /**
+     * 当前日志段的映射，只由写线程访问
+     */
+    private MappedByteBuffer segment;
+
+    private long segmentBase;
+
+    /**
+     * 上一条记录的时间戳，保证日志里的时间戳不递减，回放时可以按时间提前结束
+     */
+    private long lastTimestamp;
+
+    /**
+     * 上次刷盘之后是否有新记录
+     */
+    private boolean dirty;
+
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * 写入的记录数
+     */
+    private final LongAdder appended = new LongAdder();
+
+    /**
+     * 队列已满或者记录超过日志段大小被丢弃的记录数
+     */
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * 写入的字节数
+     */
+    private final LongAdder bytes = new LongAdder();
+
+    /**
+     * 刷盘次数
+     */
+    private final LongAdder fsyncs = new LongAdder();
+
+    /**
+     * 打开日志目录，从最后一个日志段之后开始写入，并启动写线程
+     *
+     * @param options 配置
+     * @throws IOException 创建目录或日志段失败
+     */
+    public Journal(JournalOptions options) throws IOException {
+        switch (options.getDurability()) {
+            case ASYNC:
+                this.fsync = false;
+                break;
+            case FSYNC:
+                this.fsync = true;
+                break;
+            default:
+                throw new IllegalArgumentException("未知的持久化方式:" + options.getDurability());
+        }
+        if (options.getSegmentBytes() < JournalSegment.HEADER_LENGTH + 256) {
+            throw new IllegalArgumentException("日志段大小过小:" + options.getSegmentBytes());
+        }
+        this.directory = Paths.get(options.getDirectory());
+        this.segmentBytes = options.getSegmentBytes();
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, options.getFsyncIntervalMillis()));
+        this.retentionBytes = options.getRetentionBytes();
+        this.retentionMillis = TimeUnit.HOURS.toMillis(options.getRetentionHours());
+        this.maxPending = Math.max(1, options.getMaxPending());
+        Files.createDirectories(directory);
+        openSegment(recover());
+        this.writer = new Thread(this::run, "journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+        log.info("=====消息日志目录{}，日志段{}字节，持久化方式{}，起始偏移量{}", directory.toAbsolutePath(), segmentBytes,
+                options.getDurability(), segmentBase);
+    }
+
+    /**
+     * 追加一条记录，可以在任意线程调用，只入队不做IO
+     *
+     * @param type     记录类型 INBOUND/BROADCAST/DIRECT/PUBLISH
+     * @param clientId 发送方或接收方的客户端ID，群发为null，发布到主题时是主题
+     * @param message  消息正文
+     * @return 日志已关闭或者队列已满返回false
+     */
+    public boolean append(byte type, String clientId, String message) {
+        if (closed) {
+            return false;
+        }
+        if (pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            dropped.increment();
+            return false;
+        }
+        queue.offer(new Entry(type, clientId, message, System.currentTimeMillis()));
+        if (sleeping) {
+            LockSupport.unpark(writer);
+        }
+        return true;
+    }
+
+    /**
+     * 停止接收新记录，等写线程写完队列里的记录并刷盘后返回
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getAppended() {
+        return appended.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    public long getFsyncs() {
+        return fsyncs.sum();
+    }
+
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * 找到最后一个日志段的有效结尾作为新日志段的起始偏移量，最后一个日志段是空的则删除后复用它的偏移量
+     *
+     * @return 新日志段的起始偏移量
+     */
+    private long recover() throws IOException {
+        List<JournalSegment> segments = JournalSegment.list(directory);
+        if (segments.isEmpty()) {
+            return 0;
+        }
+        JournalSegment last = segments.get(segments.size() - 1);
+        int end;
+        try (FileChannel channel = FileChannel.open(last.path, StandardOpenOption.READ)) {
+            end = JournalSegment.validEnd(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+        if (end == 0) {
+            Files.delete(last.path);
+        }
+        return last.baseOffset + end;
+    }
+
+    /**
+     * 创建并映射一个新的日志段，文件按固定大小预分配
+     */
+    private void openSegment(long baseOffset) throws IOException {
+        Path path = directory.resolve(JournalSegment.fileName(baseOffset));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // 映射后关闭信道不影响映射，映射在缓冲区被回收时解除
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+        segmentBase = baseOffset;
+    }
+
+    /**
+     * 写线程：取出记录写入当前日志段，按持久化方式刷盘，空闲时检查保留策略
+     */
+    private void run() {
+        long nextFsync = System.nanoTime() + fsyncIntervalNanos;
+        long nextRetention = 0;
+        while (true) {
+            Entry entry = queue.poll();
+            long now = System.nanoTime();
+            if (entry != null) {
+                pending.decrementAndGet();
+                try {
+                    write(entry);
+                } catch (IOException e) {
+                    dropped.increment();
+                    log.error("=====写入消息日志失败{}", e.getMessage());
+                }
+            }
+            if (fsync && now - nextFsync >= 0) {
+                force();
+                nextFsync = now + fsyncIntervalNanos;
+            }
+            if (entry != null) {
+                continue;
+            }
+            if (closed) {
+                break;
+            }
+            if (now - nextRetention >= 0) {
+                retain();
+                nextRetention = now + IDLE_PARK_NANOS;
+            }
+            sleeping = true;
+            if (queue.isEmpty() && !closed) {
+                LockSupport.parkNanos(this, fsync && dirty ? Math.max(0, nextFsync - now) : IDLE_PARK_NANOS);
+            }
+            sleeping = false;
+        }
+        force();
+        log.info("=====消息日志已关闭，共写入{}条记录", appended.sum());
+    }
+
+    /**
+     * 把记录直接编码进映射内存，当前日志段放不下时滚动到新的日志段
+     */
+    private void write(Entry entry) throws IOException {
+        long timestamp = Math.max(lastTimestamp, entry.timestamp);
+        byte[] clientId = entry.clientId == null ? NO_CLIENT_ID : entry.clientId.getBytes(StandardCharsets.UTF_8);
+        if (clientId.length > 0xFF) {
+            throw new IOException("客户端ID过长:" + entry.clientId);
+        }
+        int start = segment.position();
+        int length = encode(entry, clientId);
+        if (length == 0) {
+            if (start == 0) {
+                // 空日志段也放不下
+                dropped.increment();
+                log.warn("=====消息长度超过日志段大小{}，不写入消息日志", segmentBytes);
+                return;
+            }
+            roll();
+            start = 0;
+            length = encode(entry, clientId);
+            if (length == 0) {
+                dropped.increment();
+                log.warn("=====消息长度超过日志段大小{}，不写入消息日志", segmentBytes);
+                return;
+            }
+        }
+        segment.putLong(start + JournalSegment.TIMESTAMP, timestamp);
+        segment.put(start + JournalSegment.TYPE, entry.type);
+        segment.put(start + JournalSegment.CLIENT_ID_LENGTH, (byte) clientId.length);
+        for (int i = 0; i < clientId.length; i++) {
+            segment.put(start + JournalSegment.HEADER_LENGTH + i, clientId[i]);
+        }
+        ByteBuffer body = segment.duplicate();
+        body.limit(start + length);
+        body.position(start + JournalSegment.CRC_START);
+        crc.reset();
+        crc.update(body);
+        segment.putInt(start + 4, (int) crc.getValue());
+        // 长度最后写，之前读到的都是0，当作日志段结尾
+        segment.putInt(start, length);
+        segment.position(start + length);
+        lastTimestamp = timestamp;
+        dirty = true;
+        appended.increment();
+        bytes.add(length);
+    }
+
+    /**
+     * 把消息正文编码到记录头之后
+     *
+     * @return 记录总长度，当前日志段剩余空间放不下返回0
+     */
+    private int encode(Entry entry, byte[] clientId) {
+        int start = segment.position();
+        int bodyStart = start + JournalSegment.HEADER_LENGTH + clientId.length;
+        if (bodyStart > segment.limit()) {
+            return 0;
+        }
+        ByteBuffer body = segment.duplicate();
+        body.position(bodyStart);
+        encoder.reset();
+        CoderResult result = encoder.encode(CharBuffer.wrap(entry.message), body, true);
+        if (result.isOverflow() || encoder.flush(body).isOverflow()) {
+            return 0;
+        }
+        return body.position() - start;
+    }
+
+    /**
+     * 当前日志段写满，滚动到新的日志段并检查保留策略，fsync方式下先把写满的日志段刷盘
+     */
+    private void roll() throws IOException {
+        if (fsync) {
+            force();
+        }
+        Path full = directory.resolve(JournalSegment.fileName(segmentBase));
+        long next = segmentBase + segment.position();
+        openSegment(next);
+        // 写满的时间作为日志段的修改时间，按时间清理时以它为准
+        Files.setLastModifiedTime(full, FileTime.fromMillis(System.currentTimeMillis()));
+        log.info("=====消息日志滚动到新的日志段{}", JournalSegment.fileName(next));
+        retain();
+    }
+
+    private void force() {
+        if (dirty && segment != null) {
+            segment.force();
+            dirty = false;
+            fsyncs.increment();
+        }
+    }
+
+    /**
+     * 按总大小和时间删除最早的已写满日志段，正在写入的日志段不删除
+     */
+    private void retain() {
+        if (retentionBytes <= 0 && retentionMillis <= 0) {
+            return;
+        }
+        try {
+            List<JournalSegment> segments = JournalSegment.list(directory);
+            long total = 0;
+            for (JournalSegment old : segments) {
+                if (old.baseOffset != segmentBase) {
+                    total += Files.size(old.path);
+                }
+            }
+            long now = System.currentTimeMillis();
+            for (JournalSegment old : segments) {
+                if (old.baseOffset == segmentBase) {
+                    break;
+                }
+                long size = Files.size(old.path);
+                boolean expired = retentionMillis > 0 && now - Files.getLastModifiedTime(old.path).toMillis() > retentionMillis;
+                if (!expired && (retentionBytes <= 0 || total <= retentionBytes)) {
+                    break;
+                }
+                Files.delete(old.path);
+                total -= size;
+                log.info("=====删除过期的日志段{}", old.path.getFileName());
+            }
+        } catch (IOException e) {
+            log.error("=====清理消息日志失败{}", e.getMessage());
+        }
+    }
+
+    /**
+     * 等待写入的记录
+     */
+    private static final class Entry {
+
+        final byte type;
+
+        final String clientId;
+
+        final String message;
+
+        final long timestamp;
+
+        Entry(byte type, String clientId, String message, long timestamp) {
+            this.type = type;
+            this.clientId = clientId;
+            this.message = message;
+            this.timestamp = timestamp;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.demo.journal;
+
+import lombok.Data;
+
+/**
+ * @author mark
+ * @date 2022/9/18 10:00
+ * @describe 消息日志的配置，由Server根据配置文件组装
+ */
+@Data
+public class JournalOptions {
+
+    /**
+     * 日志文件目录
+     */
+    private String directory = "journal";
+
+    /**
+     * 单个日志段的字节数，写满后滚动到新的日志段，单条记录不能超过这个大小
+     */
+    private int segmentBytes = 64 * 1024 * 1024;
+
+    /**
+     * 持久化方式 async/fsync
+     */
+    private String durability = Journal.ASYNC;
+
+    /**
+     * fsync方式下强制刷盘的间隔（毫秒）
+     */
+    private long fsyncIntervalMillis = 1000;
+
+    /**
+     * 已写满的日志段最多保留的总字节数，超出时删除最早的日志段，小于等于0表示不按大小清理
+     */
+    private long retentionBytes = 1024L * 1024 * 1024;
+
+    /**
+     * 已写满的日志段最多保留的小时数，小于等于0表示不按时间清理
+     */
+    private long retentionHours = 168;
+
+    /**
+     * 等待写入的记录数上限，写线程跟不上时新记录直接丢弃并计数，不阻塞调用方
+     */
+    private int maxPending = 65536;
+}
@@ -0,0 +1,172 @@
+package com.example.demo.journal;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * @author mark
+ * @date 2022/9/18 10:00
+ * @describe 消息日志的顺序读取：按时间范围回放，日志段整个只读映射后顺序遍历，不做额外拷贝，速度只受磁盘顺序读限制
+ * 时间戳在日志里不递减，从最后一个第一条记录不晚于起始时间的日志段开始，读到晚于结束时间的记录就停止
+ * 可以和写线程同时运行，读到正在写入的位置就结束
+ * <p>
+ * 命令行回放：java -cp demo.jar -Dloader.main=com.example.demo.journal.JournalReader org.springframework.boot.loader.PropertiesLauncher
+ * --dir=journal --from="2022-09-18 10:00:00" --to="2022-09-18 11:00:00" [--client=01] [--quiet]
+ * 时间可以写成本地时间或者毫秒时间戳，不写表示不限；--quiet只统计不输出记录
+ */
+public class JournalReader {
+
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
+            .withZone(ZoneId.systemDefault());
+
+    private final Path directory;
+
+    /**
+     * @param directory 日志目录
+     */
+    public JournalReader(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * 按时间顺序回放时间范围内的记录
+     *
+     * @param fromMillis 起始时间（毫秒，包含）
+     * @param toMillis   结束时间（毫秒，包含）
+     * @param consumer   记录回调，记录对象复用，只在回调期间有效
+     * @return 回放的记录数
+     * @throws IOException IO异常
+     */
+    public long replay(long fromMillis, long toMillis, Consumer<JournalRecord> consumer) throws IOException {
+        List<JournalSegment> segments = JournalSegment.list(directory);
+        int first = 0;
+        for (int i = segments.size() - 1; i > 0; i--) {
+            long timestamp = firstTimestamp(segments.get(i));
+            if (timestamp >= 0 && timestamp <= fromMillis) {
+                first = i;
+                break;
+            }
+        }
+        JournalRecord record = new JournalRecord();
+        CRC32 crc = new CRC32();
+        long count = 0;
+        for (int i = first; i < segments.size(); i++) {
+            JournalSegment segment = segments.get(i);
+            ByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            int position = 0;
+            int length;
+            while ((length = JournalSegment.recordLength(buffer, position, crc)) > 0) {
+                long timestamp = buffer.getLong(position + JournalSegment.TIMESTAMP);
+                if (timestamp > toMillis) {
+                    return count;
+                }
+                if (timestamp >= fromMillis) {
+                    record.reset(buffer, segment.baseOffset, position, length);
+                    consumer.accept(record);
+                    count++;
+                }
+                position += length;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 读取日志段第一条记录的时间戳
+     *
+     * @return 时间戳，日志段是空的返回-1
+     */
+    private static long firstTimestamp(JournalSegment segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(JournalSegment.HEADER_LENGTH);
+            while (header.hasRemaining() && channel.read(header) > 0) {
+                // 读满记录头
+            }
+            if (header.hasRemaining() || header.getInt(0) == 0) {
+                return -1;
+            }
+            return header.getLong(JournalSegment.TIMESTAMP);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int eq = arg.indexOf('=');
+                options.put(eq < 0 ? arg.substring(2) : arg.substring(2, eq), eq < 0 ? "" : arg.substring(eq + 1));
+            }
+        }
+        JournalReader reader = new JournalReader(Paths.get(options.getOrDefault("dir", "journal")));
+        long from = parseTime(options.get("from"), Long.MIN_VALUE);
+        long to = parseTime(options.get("to"), Long.MAX_VALUE);
+        String client = options.get("client");
+        boolean quiet = options.containsKey("quiet");
+        long[] bytes = new long[1];
+        long start = System.nanoTime();
+        long count;
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16)) {
+            count = reader.replay(from, to, record -> {
+                bytes[0] += record.getLength();
+                if (quiet || (client != null && !client.equals(record.getClientId()))) {
+                    return;
+                }
+                try {
+                    out.write(record.getOffset() + " " + TIME.format(Instant.ofEpochMilli(record.getTimestamp())) + " "
+                            + typeName(record.getType()) + " " + record.getClientId() + " " + record.getMessage() + "\n");
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+        long nanos = Math.max(1, System.nanoTime() - start);
+        System.err.printf("=====回放%d条记录，%d字节，耗时%d毫秒，%.1fMB/s%n", count, bytes[0],
+                TimeUnit.NANOSECONDS.toMillis(nanos), bytes[0] * 1000.0 / nanos);
+    }
+
+    private static long parseTime(String value, long defaultValue) {
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        if (value.chars().allMatch(Character::isDigit)) {
+            return Long.parseLong(value);
+        }
+        return LocalDateTime.parse(value.trim().replace(' ', 'T')).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static String typeName(byte type) {
+        switch (type) {
+            case Journal.INBOUND:
+                return "inbound";
+            case Journal.BROADCAST:
+                return "broadcast";
+            case Journal.DIRECT:
+                return "direct";
+            case Journal.PUBLISH:
+                return "publish";
+            default:
+                return String.valueOf(type);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.demo.journal;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author mark
+ * @date 2022/9/18 10:00
+ * @describe 回放时的一条记录：回放过程中复用同一个对象，指向映射内存里的记录，只在回调期间有效
+ * 消息正文和客户端ID用到时才解码，只统计或者按类型过滤时不产生字符串
+ */
+public final class JournalRecord {
+
+    private ByteBuffer segment;
+
+    private int position;
+
+    private int length;
+
+    private long offset;
+
+    JournalRecord() {
+    }
+
+    /**
+     * 指向下一条记录
+     */
+    void reset(ByteBuffer segment, long baseOffset, int position, int length) {
+        this.segment = segment;
+        this.position = position;
+        this.length = length;
+        this.offset = baseOffset + position;
+    }
+
+    /**
+     * 记录在整个日志里的偏移量
+     *
+     * @return 偏移量
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * 记录的总字节数，下一条记录的偏移量是offset加上这个长度
+     *
+     * @return 字节数
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * 写入日志的时间（毫秒）
+     *
+     * @return 时间戳
+     */
+    public long getTimestamp() {
+        return segment.getLong(position + JournalSegment.TIMESTAMP);
+    }
+
+    /**
+     * 记录类型 Journal.INBOUND/Journal.BROADCAST/Journal.DIRECT/Journal.PUBLISH
+     *
+     * @return 类型
+     */
+    public byte getType() {
+        return segment.get(position + JournalSegment.TYPE);
+    }
+
+    /**
+     * 发送方或接收方的客户端ID
+     *
+     * @return 客户端ID，群发为null，发布到主题时是主题
+     */
+    public String getClientId() {
+        int idLength = segment.get(position + JournalSegment.CLIENT_ID_LENGTH) & 0xFF;
+        if (idLength == 0) {
+            return null;
+        }
+        return StandardCharsets.UTF_8.decode(slice(position + JournalSegment.HEADER_LENGTH, idLength)).toString();
+    }
+
+    /**
+     * 消息正文的UTF-8字节，只读
+     *
+     * @return 消息正文
+     */
+    public ByteBuffer getPayload() {
+        int start = JournalSegment.HEADER_LENGTH + (segment.get(position + JournalSegment.CLIENT_ID_LENGTH) & 0xFF);
+        return slice(position + start, length - start);
+    }
+
+    /**
+     * 消息正文
+     *
+     * @return 消息正文
+     */
+    public String getMessage() {
+        return StandardCharsets.UTF_8.decode(getPayload()).toString();
+    }
+
+    private ByteBuffer slice(int from, int bytes) {
+        ByteBuffer buffer = segment.duplicate();
+        buffer.limit(from + bytes);
+        buffer.position(from);
+        return buffer.slice().asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.demo.journal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * @author mark
+ * @date 2022/9/18 10:00
+ * @describe 日志段：文件名是20位的起始偏移量，记录的偏移量等于所在日志段的起始偏移量加上记录在文件里的位置，不单独存储
+ * 日志段创建时按固定大小预分配，未写入的部分全是0，读到长度为0、越界或者校验不通过的记录就是这个日志段的结尾
+ * 记录格式：4字节记录总长度 + 4字节CRC32（时间戳到记录结尾）+ 8字节时间戳（毫秒）+ 1字节类型
+ * + 1字节客户端ID长度 + 客户端ID + UTF-8消息正文，全部大端
+ */
+final class JournalSegment {
+
+    /**
+     * 日志段文件后缀
+     */
+    static final String SUFFIX = ".journal";
+
+    /**
+     * 记录头的长度，不含客户端ID
+     */
+    static final int HEADER_LENGTH = 18;
+
+    /**
+     * CRC32覆盖的范围从时间戳开始
+     */
+    static final int CRC_START = 8;
+
+    static final int TIMESTAMP = 8;
+
+    static final int TYPE = 16;
+
+    static final int CLIENT_ID_LENGTH = 17;
+
+    final Path path;
+
+    /**
+     * 起始偏移量
+     */
+    final long baseOffset;
+
+    private JournalSegment(Path path, long baseOffset) {
+        this.path = path;
+        this.baseOffset = baseOffset;
+    }
+
+    /**
+     * 日志段文件名
+     *
+     * @param baseOffset 起始偏移量
+     * @return 文件名
+     */
+    static String fileName(long baseOffset) {
+        return String.format("%020d%s", baseOffset, SUFFIX);
+    }
+
+    /**
+     * 列出目录下的所有日志段，按起始偏移量排序
+     *
+     * @param directory 日志目录
+     * @return 日志段，目录不存在时为空
+     * @throws IOException IO异常
+     */
+    static List<JournalSegment> list(Path directory) throws IOException {
+        List<JournalSegment> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return segments;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    segments.add(new JournalSegment(path, Long.parseLong(name.substring(0, name.length() - SUFFIX.length()))));
+                } catch (NumberFormatException e) {
+                    // 不是日志段，忽略
+                }
+            }
+        }
+        segments.sort(Comparator.comparingLong(segment -> segment.baseOffset));
+        return segments;
+    }
+
+    /**
+     * 校验position处的记录
+     *
+     * @param buffer   日志段的内容
+     * @param position 记录的位置
+     * @param crc      调用方复用的CRC32
+     * @return 记录总长度，不是完整有效的记录返回0
+     */
+    static int recordLength(ByteBuffer buffer, int position, CRC32 crc) {
+        if (buffer.limit() - position < HEADER_LENGTH) {
+            return 0;
+        }
+        int length = buffer.getInt(position);
+        if (length < HEADER_LENGTH || length > buffer.limit() - position
+                || HEADER_LENGTH + (buffer.get(position + CLIENT_ID_LENGTH) & 0xFF) > length) {
+            return 0;
+        }
+        ByteBuffer body = buffer.duplicate();
+        body.limit(position + length);
+        body.position(position + CRC_START);
+        crc.reset();
+        crc.update(body);
+        return (int) crc.getValue() == buffer.getInt(position + 4) ? length : 0;
+    }
+
+    /**
+     * 从头扫描日志段，找到最后一条有效记录的结尾
+     *
+     * @param buffer 日志段的内容
+     * @return 有效数据的字节数
+     */
+    static int validEnd(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        int position = 0;
+        int length;
+        while ((length = recordLength(buffer, position, crc)) > 0) {
+            position += length;
+        }
+        return position;
+    }
+}
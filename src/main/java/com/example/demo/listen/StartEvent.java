@@ -1,8 +1,6 @@
 package com.example.demo.listen;
 
 import com.example.demo.server.Server;
-import com.example.demo.swing.ChatClientUi;
-import com.example.demo.swing.ChatServerUi;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.stereotype.Component;
@@ -15,15 +13,13 @@ import java.util.concurrent.CompletableFuture;
 /**
  * @author mark
  * @describe 服务初始化类：当容器完成初始化后时候初始化一些动作
+ * 这里只启动NIO服务端，聊天窗口由UiStartEvent在非无界面模式下启动
  * @date 2022/7/29 15:20
  */
 @Slf4j
 @Component
 public class StartEvent implements CommandLineRunner {
 
-    @Resource
-    private ChatServerUi chatServerUi;
-
     @Resource
     private Server server;
 
@@ -37,17 +33,5 @@ public class StartEvent implements CommandLineRunner {
                 log.error("=====启动NIO服务端异常{}", e);
             }
         });
-        //服务端信息收集器初始化
-        chatServerUi.init();
-
-        //客户端信息收集器初始化
-        ChatClientUi receiver = new ChatClientUi();
-        ChatClientUi chatClientUi = new ChatClientUi();
-        CompletableFuture.runAsync(() -> {
-            receiver.init();
-            chatClientUi.init();
-        });
-
-
     }
 }
@@ -0,0 +1,63 @@
+package com.example.demo.listen;
+
+import com.example.demo.swing.ChatClientUi;
+import com.example.demo.swing.ChatServerUi;
+import com.example.demo.swing.RenderOptions;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.concurrent.CompletableFuture;
+
+
+/**
+ * @author mark
+ * @describe 聊天窗口初始化类：容器完成初始化后打开服务端和客户端窗口
+ * socket.headless=true时不创建，整个进程不会加载任何Swing类
+ * @date 2022/8/30 14:10
+ */
+@Component
+@ConditionalOnProperty(name = "socket.headless", havingValue = "false", matchIfMissing = true)
+public class UiStartEvent implements CommandLineRunner {
+
+    @Resource
+    private ChatServerUi chatServerUi;
+
+    /**
+     * 聊天窗口回滚区最多保留的行数
+     */
+    @Value("${socket.ui.scrollback-lines:5000}")
+    private int scrollbackLines;
+
+    /**
+     * 聊天窗口每秒最多刷新的次数
+     */
+    @Value("${socket.ui.max-fps:30}")
+    private int maxFps;
+
+    /**
+     * 聊天窗口显示方式 text/list
+     */
+    @Value("${socket.ui.view:text}")
+    private String view;
+
+    @Override
+    public void run(String... args) {
+        RenderOptions options = new RenderOptions();
+        options.setScrollbackLines(scrollbackLines);
+        options.setMaxFps(maxFps);
+        options.setView(view);
+        //服务端信息收集器初始化
+        chatServerUi.init(options);
+
+        //客户端信息收集器初始化
+        ChatClientUi receiver = new ChatClientUi();
+        ChatClientUi chatClientUi = new ChatClientUi();
+        CompletableFuture.runAsync(() -> {
+            receiver.init(options);
+            chatClientUi.init(options);
+        });
+    }
+}
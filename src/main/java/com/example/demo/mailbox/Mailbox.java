@@ -0,0 +1,280 @@
+package com.example.demo.mailbox;
+
+import com.example.demo.buffer.BufferPool;
+import com.example.demo.buffer.PooledBuffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * @author mark
+ * @date 2022/9/19 10:00
+ * @describe 单个客户端的离线邮箱：先进先出的字节队列，内容放在直接内存的块链表里，堆上只有块的引用
+ * 记录格式：8字节存入时间（毫秒）+ 4字节帧长度 + 已编码好的帧，投递时直接拼接写出，不需要重新编码
+ * 记录头不跨块，块尾放不下记录头时从下一块开始；帧内容可以跨块。块的大小从刚好放下第一条记录开始逐块翻倍，
+ * 只有一两条消息的邮箱只占一个小块，邮箱清空时归还所有块
+ * 不是线程安全的，由MailboxStore在邮箱对象上加锁后访问
+ */
+final class Mailbox {
+
+    /**
+     * 记录头的长度
+     */
+    static final int RECORD_HEADER_LENGTH = 12;
+
+    private static final int LENGTH = 8;
+
+    /**
+     * 块链表，队头是最早的记录所在的块
+     */
+    private final ArrayDeque<PooledBuffer> chunks = new ArrayDeque<>();
+
+    /**
+     * 队头块里下一条记录的位置
+     */
+    private int readIndex;
+
+    /**
+     * 队尾块里下一次写入的位置
+     */
+    private int writeIndex;
+
+    private int messages;
+
+    /**
+     * 记录的帧的总字节数，不含记录头
+     */
+    private long bytes;
+
+    /**
+     * 持有的块的总容量
+     */
+    private long reservedBytes;
+
+    /**
+     * 上一条记录的存入时间，保证时间不递减，过期的记录总在队头
+     */
+    private long lastTimestamp;
+
+    /**
+     * 邮箱已经清空并从MailboxStore移除，之后不能再存入
+     */
+    boolean removed;
+
+    int getMessages() {
+        return messages;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    boolean isEmpty() {
+        return messages == 0;
+    }
+
+    /**
+     * 在队尾追加一条记录
+     *
+     * @param timestamp    存入时间
+     * @param frame        已编码好的帧，只读取position到limit之间的内容，不改变它的position
+     * @param pool         分配块的缓冲池
+     * @param maxChunkSize 单个块的最大字节数
+     * @return 新占用的块容量
+     */
+    long append(long timestamp, ByteBuffer frame, BufferPool pool, int maxChunkSize) {
+        long before = reservedBytes;
+        int length = frame.remaining();
+        lastTimestamp = Math.max(timestamp, lastTimestamp);
+        PooledBuffer tail = chunks.peekLast();
+        if (tail == null || tail.capacity() - writeIndex < RECORD_HEADER_LENGTH) {
+            tail = grow(RECORD_HEADER_LENGTH + length, pool, maxChunkSize);
+        }
+        tail.buffer().putLong(writeIndex, lastTimestamp);
+        tail.buffer().putInt(writeIndex + LENGTH, length);
+        writeIndex += RECORD_HEADER_LENGTH;
+        ByteBuffer source = frame.duplicate();
+        int end = source.limit();
+        while (source.hasRemaining()) {
+            if (writeIndex == tail.capacity()) {
+                tail = grow(source.remaining(), pool, maxChunkSize);
+            }
+            ByteBuffer target = tail.buffer().duplicate();
+            target.clear();
+            target.position(writeIndex);
+            source.limit(Math.min(end, source.position() + target.remaining()));
+            writeIndex += source.remaining();
+            target.put(source);
+            source.limit(end);
+        }
+        messages++;
+        bytes += length;
+        return reservedBytes - before;
+    }
+
+    /**
+     * 队头记录的存入时间，邮箱不能为空
+     *
+     * @return 存入时间
+     */
+    long firstTimestamp() {
+        return firstChunk().buffer().getLong(firstIndex());
+    }
+
+    /**
+     * 队头记录的帧长度，邮箱不能为空
+     *
+     * @return 字节数
+     */
+    int firstLength() {
+        return firstChunk().buffer().getInt(firstIndex() + LENGTH);
+    }
+
+    /**
+     * 从队头开始把放得下的完整记录依次复制到target，不移除，确认投递后再调用removeFirst
+     *
+     * @param target 批量写出的缓冲区
+     * @return 复制的记录数
+     */
+    int peekInto(ByteBuffer target) {
+        if (messages == 0) {
+            return 0;
+        }
+        Iterator<PooledBuffer> iterator = chunks.iterator();
+        PooledBuffer chunk = iterator.next();
+        int index = readIndex;
+        int count = 0;
+        while (count < messages) {
+            if (chunk.capacity() - index < RECORD_HEADER_LENGTH) {
+                chunk = iterator.next();
+                index = 0;
+            }
+            int length = chunk.buffer().getInt(index + LENGTH);
+            if (length > target.remaining()) {
+                break;
+            }
+            index += RECORD_HEADER_LENGTH;
+            int remaining = length;
+            while (remaining > 0) {
+                if (index == chunk.capacity()) {
+                    chunk = iterator.next();
+                    index = 0;
+                }
+                int n = Math.min(remaining, chunk.capacity() - index);
+                ByteBuffer source = chunk.buffer().duplicate();
+                source.clear();
+                source.position(index);
+                source.limit(index + n);
+                target.put(source);
+                index += n;
+                remaining -= n;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * 移除队头记录，读完的块归还给缓冲池，邮箱清空时归还所有块
+     *
+     * @return 归还的块容量
+     */
+    long removeFirst() {
+        long before = reservedBytes;
+        PooledBuffer chunk = skipChunkTail();
+        int length = chunk.buffer().getInt(readIndex + LENGTH);
+        readIndex += RECORD_HEADER_LENGTH;
+        int remaining = length;
+        while (remaining > 0) {
+            if (readIndex == chunk.capacity()) {
+                chunk = releaseHead();
+            }
+            int n = Math.min(remaining, chunk.capacity() - readIndex);
+            readIndex += n;
+            remaining -= n;
+        }
+        messages--;
+        bytes -= length;
+        if (messages == 0) {
+            clear();
+        }
+        return before - reservedBytes;
+    }
+
+    /**
+     * 归还所有块
+     *
+     * @return 归还的块容量
+     */
+    long clear() {
+        long released = reservedBytes;
+        PooledBuffer chunk;
+        while ((chunk = chunks.pollFirst()) != null) {
+            chunk.release();
+        }
+        readIndex = 0;
+        writeIndex = 0;
+        messages = 0;
+        bytes = 0;
+        reservedBytes = 0;
+        return released;
+    }
+
+    /**
+     * 队头记录所在的块，队头块剩余的空间放不下记录头时是下一块，只查看不归还
+     */
+    private PooledBuffer firstChunk() {
+        if (chunks.peekFirst().capacity() - readIndex >= RECORD_HEADER_LENGTH) {
+            return chunks.peekFirst();
+        }
+        Iterator<PooledBuffer> iterator = chunks.iterator();
+        iterator.next();
+        return iterator.next();
+    }
+
+    private int firstIndex() {
+        return chunks.peekFirst().capacity() - readIndex >= RECORD_HEADER_LENGTH ? readIndex : 0;
+    }
+
+    /**
+     * 队头块剩余的空间放不下记录头时，下一条记录从下一块开始，归还队头块
+     *
+     * @return 队头记录所在的块
+     */
+    private PooledBuffer skipChunkTail() {
+        PooledBuffer head = chunks.peekFirst();
+        if (head.capacity() - readIndex < RECORD_HEADER_LENGTH) {
+            head = releaseHead();
+        }
+        return head;
+    }
+
+    private PooledBuffer releaseHead() {
+        PooledBuffer head = chunks.pollFirst();
+        reservedBytes -= head.capacity();
+        head.release();
+        readIndex = 0;
+        return chunks.peekFirst();
+    }
+
+    /**
+     * 在队尾追加一个块，至少放得下needed字节，并且是上一块的两倍，不超过maxChunkSize
+     */
+    private PooledBuffer grow(int needed, BufferPool pool, int maxChunkSize) {
+        PooledBuffer last = chunks.peekLast();
+        int size = Math.min(maxChunkSize, Math.max(needed, last == null ? 0 : last.capacity() * 2));
+        PooledBuffer chunk = pool.allocate(size);
+        chunk.buffer().clear();
+        if (chunks.isEmpty()) {
+            readIndex = 0;
+        }
+        chunks.addLast(chunk);
+        reservedBytes += chunk.capacity();
+        writeIndex = 0;
+        return chunk;
+    }
+}
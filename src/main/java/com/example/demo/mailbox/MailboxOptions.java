@@ -0,0 +1,32 @@
+package com.example.demo.mailbox;
+
+import lombok.Data;
+
+/**
+ * @author mark
+ * @date 2022/9/19 10:00
+ * @describe 离线邮箱的配置，由Server根据配置文件组装
+ */
+@Data
+public class MailboxOptions {
+
+    /**
+     * 单个客户端最多保存的离线消息数，超出时丢弃最早的消息
+     */
+    private int maxMessagesPerClient = 1000;
+
+    /**
+     * 单个客户端最多保存的离线消息字节数（编码后的帧），超出时丢弃最早的消息，单条超过这个大小的消息不保存
+     */
+    private long maxBytesPerClient = 512 * 1024;
+
+    /**
+     * 所有邮箱最多占用的直接内存字节数，超出时新消息不再保存
+     */
+    private long maxTotalBytes = 256L * 1024 * 1024;
+
+    /**
+     * 离线消息保存的秒数，过期后不再投递，小于等于0表示不过期
+     */
+    private long ttlSeconds = 86400;
+}
@@ -0,0 +1,329 @@
+package com.example.demo.mailbox;
+
+import com.example.demo.buffer.BufferPool;
+import com.example.demo.buffer.PooledBuffer;
+import lombok.extern.slf4j.Slf4j;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * @author mark
+ * @date 2022/9/19 10:00
+ * @describe 离线邮箱：私聊消息的接收方不在线时按客户端ID暂存已编码好的帧，客户端登录后批量投递
+ * 消息内容放在专用缓冲池的直接内存里，大量离线消息不占用堆，也不和读写路径共用的缓冲池争抢
+ * 每个邮箱有条数和字节数上限，超出时丢弃最早的消息；所有邮箱共用一个直接内存上限，超出时新消息不再保存
+ * 过期的消息在投递时跳过，清理线程每秒把过期消息从队头移除并归还内存
+ */
+@Slf4j
+public class MailboxStore implements Closeable {
+
+    /**
+     * 块的最小规格
+     */
+    private static final int MIN_CHUNK_SIZE = 64;
+
+    /**
+     * 块的最大规格，超过的帧跨多个块存放
+     */
+    private static final int MAX_CHUNK_SIZE = 64 * 1024;
+
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+    private final int maxMessagesPerClient;
+
+    private final long maxBytesPerClient;
+
+    private final long maxTotalBytes;
+
+    /**
+     * 消息保存的毫秒数，0表示不过期
+     */
+    private final long ttlMillis;
+
+    /**
+     * 邮箱专用的缓冲池
+     */
+    private final BufferPool pool;
+
+    /**
+     * key是客户端ID，value是还有消息的邮箱，清空的邮箱立即移除
+     */
+    private final ConcurrentHashMap<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+    private final Thread sweeper;
+
+    private volatile boolean closed;
+
+    /**
+     * 保存中的消息数
+     */
+    private final AtomicLong messages = new AtomicLong();
+
+    /**
+     * 邮箱持有的块的总容量
+     */
+    private final AtomicLong reservedBytes = new AtomicLong();
+
+    /**
+     * 上一次清理时最深的邮箱的消息数
+     */
+    private volatile int maxDepth;
+
+    /**
+     * 存入的消息数
+     */
+    private final LongAdder deposited = new LongAdder();
+
+    /**
+     * 投递的消息数
+     */
+    private final LongAdder delivered = new LongAdder();
+
+    /**
+     * 过期丢弃的消息数
+     */
+    private final LongAdder expired = new LongAdder();
+
+    /**
+     * 邮箱超过条数或字节数上限丢弃的最早的消息数
+     */
+    private final LongAdder evicted = new LongAdder();
+
+    /**
+     * 超过总内存上限或者单条过大没有保存的消息数
+     */
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * 创建离线邮箱并启动清理线程
+     *
+     * @param options 配置
+     */
+    public MailboxStore(MailboxOptions options) {
+        this.maxMessagesPerClient = Math.max(1, options.getMaxMessagesPerClient());
+        this.maxBytesPerClient = options.getMaxBytesPerClient();
+        this.maxTotalBytes = options.getMaxTotalBytes();
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(Math.max(0, options.getTtlSeconds()));
+        this.pool = new BufferPool(MIN_CHUNK_SIZE, MAX_CHUNK_SIZE, 1024 * 1024, (int) Math.min(maxTotalBytes, Integer.MAX_VALUE));
+        this.sweeper = new Thread(this::sweep, "mailbox-sweeper");
+        sweeper.setDaemon(true);
+        sweeper.start();
+        log.info("=====离线邮箱每个客户端最多{}条、{}字节，总内存上限{}字节，保存{}秒", maxMessagesPerClient, maxBytesPerClient,
+                maxTotalBytes, options.getTtlSeconds() > 0 ? options.getTtlSeconds() : "不限");
+    }
+
+    /**
+     * 把一个帧存入客户端的邮箱，可以在任意线程调用，内容被复制，调用方仍然持有这个帧
+     *
+     * @param clientId 客户端ID
+     * @param frame    已编码好的帧，只读取position到limit之间的内容
+     * @return 邮箱已关闭、超过总内存上限或者单条过大返回false
+     */
+    public boolean offer(String clientId, ByteBuffer frame) {
+        int length = frame.remaining();
+        if (closed || length > maxBytesPerClient || reservedBytes.get() >= maxTotalBytes) {
+            rejected.increment();
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        while (true) {
+            Mailbox mailbox = mailboxes.computeIfAbsent(clientId, id -> new Mailbox());
+            synchronized (mailbox) {
+                if (mailbox.removed) {
+                    // 刚被清空移除，重新创建
+                    continue;
+                }
+                while (!mailbox.isEmpty() && (mailbox.getMessages() >= maxMessagesPerClient
+                        || mailbox.getBytes() + length > maxBytesPerClient)) {
+                    reservedBytes.addAndGet(-mailbox.removeFirst());
+                    messages.decrementAndGet();
+                    evicted.increment();
+                }
+                reservedBytes.addAndGet(mailbox.append(now, frame, pool, MAX_CHUNK_SIZE));
+                messages.incrementAndGet();
+                deposited.increment();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 把客户端邮箱里的消息按顺序拼接成批量写出的缓冲区交给sender，每批只写一次，跳过过期的消息
+     * 持有邮箱的锁依次调用sender，保证并发投递时消息不乱序；sender返回false时停止，这一批和之后的消息留在邮箱里
+     *
+     * @param clientId   客户端ID
+     * @param batchBytes 每批的字节数，单条消息超过时这一批只有这一条
+     * @param sender     发送一批，调用后缓冲区的所有权转移给sender，发出返回true
+     * @return 投递的消息数
+     */
+    public int drain(String clientId, int batchBytes, Predicate<PooledBuffer> sender) {
+        Mailbox mailbox = mailboxes.get(clientId);
+        if (mailbox == null) {
+            return 0;
+        }
+        int count = 0;
+        synchronized (mailbox) {
+            if (mailbox.removed) {
+                return 0;
+            }
+            expire(mailbox, System.currentTimeMillis());
+            while (!mailbox.isEmpty()) {
+                int size = Math.max(batchBytes, mailbox.firstLength());
+                PooledBuffer batch = BufferPool.DEFAULT.allocate(size);
+                ByteBuffer buffer = batch.buffer();
+                buffer.clear();
+                buffer.limit(size);
+                int n = mailbox.peekInto(buffer);
+                buffer.flip();
+                if (!sender.test(batch)) {
+                    break;
+                }
+                for (int i = 0; i < n; i++) {
+                    reservedBytes.addAndGet(-mailbox.removeFirst());
+                }
+                messages.addAndGet(-n);
+                delivered.add(n);
+                count += n;
+            }
+            removeIfEmpty(clientId, mailbox);
+        }
+        return count;
+    }
+
+    /**
+     * 客户端邮箱里的消息数
+     *
+     * @param clientId 客户端ID
+     * @return 消息数
+     */
+    public int depth(String clientId) {
+        Mailbox mailbox = mailboxes.get(clientId);
+        if (mailbox == null) {
+            return 0;
+        }
+        synchronized (mailbox) {
+            return mailbox.getMessages();
+        }
+    }
+
+    /**
+     * 停止清理线程，丢弃所有消息并归还内存
+     */
+    @Override
+    public void close() {
+        closed = true;
+        sweeper.interrupt();
+        try {
+            sweeper.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Map.Entry<String, Mailbox> entry : mailboxes.entrySet()) {
+            Mailbox mailbox = entry.getValue();
+            synchronized (mailbox) {
+                messages.addAndGet(-mailbox.getMessages());
+                reservedBytes.addAndGet(-mailbox.clear());
+                removeIfEmpty(entry.getKey(), mailbox);
+            }
+        }
+    }
+
+    /**
+     * 有消息的邮箱数
+     *
+     * @return 邮箱数
+     */
+    public int getMailboxes() {
+        return mailboxes.size();
+    }
+
+    public long getMessages() {
+        return messages.get();
+    }
+
+    public long getReservedBytes() {
+        return reservedBytes.get();
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public long getDeposited() {
+        return deposited.sum();
+    }
+
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    public long getEvicted() {
+        return evicted.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * 清理线程：每秒遍历一次所有邮箱，移除过期的消息和清空的邮箱，顺便统计最深的邮箱
+     */
+    private void sweep() {
+        while (!closed) {
+            try {
+                Thread.sleep(SWEEP_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            int deepest = 0;
+            for (Map.Entry<String, Mailbox> entry : mailboxes.entrySet()) {
+                Mailbox mailbox = entry.getValue();
+                synchronized (mailbox) {
+                    if (mailbox.removed) {
+                        continue;
+                    }
+                    expire(mailbox, now);
+                    deepest = Math.max(deepest, mailbox.getMessages());
+                    removeIfEmpty(entry.getKey(), mailbox);
+                }
+            }
+            maxDepth = deepest;
+        }
+    }
+
+    /**
+     * 从队头移除过期的消息，存入时间不递减，遇到没过期的就停止
+     */
+    private void expire(Mailbox mailbox, long now) {
+        if (ttlMillis == 0) {
+            return;
+        }
+        long deadline = now - ttlMillis;
+        while (!mailbox.isEmpty() && mailbox.firstTimestamp() < deadline) {
+            reservedBytes.addAndGet(-mailbox.removeFirst());
+            messages.decrementAndGet();
+            expired.increment();
+        }
+    }
+
+    /**
+     * 邮箱清空时从索引里移除，持有邮箱的锁调用
+     */
+    private void removeIfEmpty(String clientId, Mailbox mailbox) {
+        if (mailbox.isEmpty()) {
+            mailbox.removed = true;
+            mailboxes.remove(clientId, mailbox);
+        }
+    }
+}
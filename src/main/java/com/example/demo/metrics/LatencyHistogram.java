@@ -0,0 +1,122 @@
+package com.example.demo.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @author mark
+ * @date 2022/9/5 15:20
+ * @describe 并发延迟直方图（纳秒）：对数分段，每个2的幂区间再等分256份，相对误差小于0.4%
+ * 记录只是一次原子自增，可以在多个selector线程上同时记录；上限约18分钟，超出的按上限记录
+ */
+public class LatencyHistogram {
+
+    /**
+     * 每个2的幂区间等分的份数 2^SUB_BITS
+     */
+    private static final int SUB_BITS = 8;
+
+    /**
+     * 可记录的最大值
+     */
+    private static final long MAX_VALUE = (1L << 40) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(indexOf(MAX_VALUE) + 1);
+
+    private final AtomicLong total = new AtomicLong();
+
+    private final AtomicLong sum = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * 记录一个值
+     *
+     * @param nanos 延迟（纳秒），负数按0记录
+     */
+    public void record(long nanos) {
+        long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+        counts.incrementAndGet(indexOf(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // 重试
+        }
+    }
+
+    /**
+     * 记录的值的个数
+     *
+     * @return 个数
+     */
+    public long getCount() {
+        return total.get();
+    }
+
+    /**
+     * 所有值的和
+     *
+     * @return 纳秒
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * 最大值
+     *
+     * @return 纳秒
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * 平均值
+     *
+     * @return 纳秒
+     */
+    public double getMean() {
+        long count = total.get();
+        return count == 0 ? 0 : (double) sum.get() / count;
+    }
+
+    /**
+     * 分位值，返回所在分段的上界
+     *
+     * @param quantile 0到1之间，例如0.999
+     * @return 纳秒
+     */
+    public long getValueAtQuantile(double quantile) {
+        long count = total.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(valueOf(i + 1) - 1, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * 值所在的分段：小于512的值每个值一段，之后每个2的幂区间256段
+     */
+    private static int indexOf(long value) {
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - (SUB_BITS + 1));
+        return (shift << SUB_BITS) + (int) (value >>> shift);
+    }
+
+    /**
+     * 分段的下界
+     */
+    private static long valueOf(int index) {
+        int shift = Math.max(0, (index >> SUB_BITS) - 1);
+        return (long) (index - (shift << SUB_BITS)) << shift;
+    }
+}
@@ -0,0 +1,31 @@
+package com.example.demo.metrics;
+
+import com.example.demo.server.Server;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * @author mark
+ * @date 2022/9/9 10:00
+ * @describe 运行指标抓取接口，按Prometheus文本格式输出，汇总在请求线程上完成，不打扰worker线程
+ */
+@RestController
+public class MetricsController {
+
+    @Resource
+    private Server server;
+
+    /**
+     * 抓取运行指标
+     *
+     * @return Prometheus文本格式的指标
+     */
+    @GetMapping(value = "/metrics", produces = PrometheusWriter.CONTENT_TYPE)
+    public String metrics() {
+        PrometheusWriter writer = new PrometheusWriter();
+        server.writeMetrics(writer);
+        return writer.toString();
+    }
+}
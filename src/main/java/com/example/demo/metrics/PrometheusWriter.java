@@ -0,0 +1,90 @@
+package com.example.demo.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author mark
+ * @date 2022/9/9 10:00
+ * @describe 按Prometheus文本格式（0.0.4）输出指标，只在抓取时使用，不在IO线程上执行
+ * 同名指标先调用一次type，再逐个标签调用sample
+ */
+public class PrometheusWriter {
+
+    /**
+     * 文本格式的Content-Type
+     */
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final StringBuilder out = new StringBuilder(4096);
+
+    /**
+     * 输出指标说明和类型
+     *
+     * @param name 指标名
+     * @param help 说明
+     * @param type counter/gauge/summary
+     */
+    public void type(String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * 输出一个样本
+     *
+     * @param name   指标名
+     * @param labels 标签，形如 worker="worker=0"，没有时传null
+     * @param value  值
+     */
+    public void sample(String name, String labels, double value) {
+        out.append(name);
+        if (labels != null) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    /**
+     * 把纳秒直方图按秒输出成summary：各分位值、总和、个数
+     *
+     * @param name      指标名
+     * @param labels    标签，没有时传null
+     * @param histogram 直方图
+     */
+    public void summary(String name, String labels, LatencyHistogram histogram) {
+        String prefix = labels == null ? "" : labels + ",";
+        for (double quantile : QUANTILES) {
+            sample(name, prefix + "quantile=\"" + quantile + "\"", seconds(histogram.getValueAtQuantile(quantile)));
+        }
+        sample(name + "_sum", labels, seconds(histogram.getSum()));
+        sample(name + "_count", labels, histogram.getCount());
+    }
+
+    /**
+     * 标签值转义
+     *
+     * @param name  标签名
+     * @param value 标签值
+     * @return 形如 name="value"
+     */
+    public static String label(String name, String value) {
+        return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    @Override
+    public String toString() {
+        return out.toString();
+    }
+}
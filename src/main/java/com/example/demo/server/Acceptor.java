@@ -0,0 +1,247 @@
+package com.example.demo.server;
+
+import lombok.extern.slf4j.Slf4j;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author mark
+ * @date 2022/9/16 10:00
+ * @describe 接入线程：一个监听socket一个selector，就绪后循环accept直到返回null，一次唤醒接入内核队列里的所有连接，
+ * 按分配策略交给worker；配置了接入速率时用令牌桶限速，超出时暂停关注OP_ACCEPT，新连接留在内核的等待队列里
+ * 多个接入线程时各自的监听socket用SO_REUSEPORT绑定同一端口，由内核按连接的四元组分散，互不竞争
+ */
+@Slf4j
+class Acceptor implements Runnable {
+
+    /**
+     * accept失败（例如文件描述符耗尽）后暂停接入的时间
+     */
+    private static final long ERROR_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * SO_REUSEPORT选项，Java 9才加入StandardSocketOptions，项目按Java 8编译所以反射获取，没有时为null
+     */
+    private static final SocketOption<Boolean> SO_REUSEPORT = reusePortOption();
+
+    private final String name;
+
+    /**
+     * 监听socket
+     */
+    private final ServerSocketChannel ssc;
+
+    /**
+     * 接入的连接交给这个worker组
+     */
+    private final WorkerGroup workers;
+
+    /**
+     * 每秒最多接入的连接数，小于等于0表示不限制
+     */
+    private final double permitsPerSecond;
+
+    /**
+     * 令牌桶容量，允许100毫秒的突发
+     */
+    private final double maxPermits;
+
+    /**
+     * 当前令牌数，只由接入线程访问
+     */
+    private double permits;
+
+    /**
+     * 上次补充令牌的时间（纳秒），只由接入线程访问
+     */
+    private long refillNanos = System.nanoTime();
+
+    /**
+     * 接入的连接数
+     */
+    private final LongAdder accepted = new LongAdder();
+
+    /**
+     * 因限速暂停接入的次数
+     */
+    private final LongAdder throttled = new LongAdder();
+
+    /**
+     * accept失败的次数
+     */
+    private final LongAdder errors = new LongAdder();
+
+    /**
+     * 创建接入线程
+     *
+     * @param name             名称
+     * @param ssc              已绑定的监听socket
+     * @param workers          worker组
+     * @param permitsPerSecond 每秒最多接入的连接数，小于等于0表示不限制
+     */
+    Acceptor(String name, ServerSocketChannel ssc, WorkerGroup workers, double permitsPerSecond) {
+        this.name = name;
+        this.ssc = ssc;
+        this.workers = workers;
+        this.permitsPerSecond = permitsPerSecond;
+        this.maxPermits = Math.max(1, permitsPerSecond / 10);
+        this.permits = maxPermits;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 当前平台能否用SO_REUSEPORT让多个监听socket绑定同一端口
+     *
+     * @return 支持返回true
+     */
+    static boolean isReusePortSupported() {
+        if (SO_REUSEPORT == null) {
+            return false;
+        }
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 打开非阻塞的监听socket并绑定端口
+     *
+     * @param port      端口
+     * @param backlog   等待队列长度，小于等于0时用JDK默认值
+     * @param reusePort 是否开启SO_REUSEPORT
+     * @return 监听socket
+     * @throws IOException IO异常
+     */
+    static ServerSocketChannel bind(int port, int backlog, boolean reusePort) throws IOException {
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+        try {
+            ssc.configureBlocking(false);
+            if (reusePort) {
+                ssc.setOption(SO_REUSEPORT, true);
+            }
+            ssc.bind(new InetSocketAddress(port), Math.max(0, backlog));
+        } catch (IOException e) {
+            ssc.close();
+            throw e;
+        }
+        return ssc;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    long getAccepted() {
+        return accepted.sum();
+    }
+
+    long getThrottled() {
+        return throttled.sum();
+    }
+
+    long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public void run() {
+        try (Selector selector = Selector.open()) {
+            SelectionKey key = ssc.register(selector, SelectionKey.OP_ACCEPT);
+            long pauseNanos = 0;
+            while (true) {
+                if (pauseNanos > 0) {
+                    // 暂停期间不关注OP_ACCEPT，否则内核队列里有连接时select会一直立即返回
+                    key.interestOps(0);
+                    selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(pauseNanos + 999_999)));
+                    key.interestOps(SelectionKey.OP_ACCEPT);
+                } else {
+                    selector.select();
+                }
+                selector.selectedKeys().clear();
+                pauseNanos = acceptAll();
+            }
+        } catch (IOException e) {
+            log.error("====={}接入连接时发生异常{}", name, e);
+        }
+    }
+
+    /**
+     * 循环accept直到没有新连接或者令牌用完
+     *
+     * @return 需要暂停接入的纳秒数，0表示已经接入了所有连接
+     */
+    private long acceptAll() {
+        while (true) {
+            long wait = awaitPermitNanos();
+            if (wait > 0) {
+                throttled.increment();
+                return wait;
+            }
+            SocketChannel sc;
+            try {
+                sc = ssc.accept();
+            } catch (IOException e) {
+                // 文件描述符耗尽等错误，连接留在内核队列里，稍后重试
+                errors.increment();
+                log.error("====={}接入连接失败{}", name, e.getMessage());
+                return ERROR_BACKOFF_NANOS;
+            }
+            if (sc == null) {
+                return 0;
+            }
+            if (permitsPerSecond > 0) {
+                permits -= 1;
+            }
+            accepted.increment();
+            try {
+                sc.configureBlocking(false);
+                if (log.isDebugEnabled()) {
+                    log.debug("===connected...{}", sc.getRemoteAddress());
+                }
+                // 按分配策略选出worker，交给worker的selector
+                workers.next().register(sc);
+            } catch (IOException e) {
+                log.error("====={}注册连接失败{}", name, e.getMessage());
+                try {
+                    sc.close();
+                } catch (IOException ignored) {
+                    // 连接本来就要丢弃
+                }
+            }
+        }
+    }
+
+    /**
+     * 补充令牌，不限速或者有令牌时返回0，否则返回攒够一个令牌需要的纳秒数
+     */
+    private long awaitPermitNanos() {
+        if (permitsPerSecond <= 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        permits = Math.min(maxPermits, permits + (now - refillNanos) * permitsPerSecond / TimeUnit.SECONDS.toNanos(1));
+        refillNanos = now;
+        if (permits >= 1) {
+            return 0;
+        }
+        return (long) Math.ceil((1 - permits) * TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+    }
+}
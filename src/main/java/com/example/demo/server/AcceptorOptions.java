@@ -0,0 +1,29 @@
+package com.example.demo.server;
+
+import lombok.Data;
+
+/**
+ * @author mark
+ * @date 2022/9/16 10:00
+ * @describe 接入连接的配置，由Server根据配置文件组装
+ */
+@Data
+class AcceptorOptions {
+
+    /**
+     * 接入线程数，大于1时每个线程一个监听socket，用SO_REUSEPORT绑定同一端口，由内核分散新连接；
+     * 平台不支持SO_REUSEPORT时退回1个，只对nio引擎有效
+     */
+    private int acceptorCount = 1;
+
+    /**
+     * 监听socket的等待队列长度，实际上限受内核参数somaxconn限制，小于等于0时用JDK默认值
+     */
+    private int backlog = 1024;
+
+    /**
+     * 每秒最多接入的连接数，所有接入线程平分，小于等于0表示不限制；超出时新连接留在内核的等待队列里，
+     * 只对nio引擎有效
+     */
+    private int maxAcceptRate;
+}
@@ -0,0 +1,116 @@
+package com.example.demo.server;
+
+import com.example.demo.buffer.PooledBuffer;
+import com.example.demo.cluster.PeerSession;
+
+/**
+ * @author mark
+ * @date 2022/9/19 10:00
+ * @describe 服务端连接：selector引擎的会话和虚拟线程引擎的连接都实现它，登录、聊天、集群握手、下线、空闲检测和高水位判断
+ * 由SessionHandler统一处理，两个引擎只负责各自的读写和线程模型
+ * 没有特别说明的方法只在连接的读线程调用：selector引擎是所属worker线程，虚拟线程引擎是连接的读线程
+ */
+interface Connection {
+
+    /**
+     * 登录后的客户端ID
+     *
+     * @return 未登录为null
+     */
+    String getClientId();
+
+    void setClientId(String clientId);
+
+    /**
+     * 其他节点连进来的连接握手后的状态
+     *
+     * @return 客户端连接为null
+     */
+    PeerSession getPeer();
+
+    void setPeer(PeerSession peer);
+
+    /**
+     * 连接是否已经关闭，可以在任意线程调用
+     *
+     * @return 已关闭返回true
+     */
+    boolean isClosed();
+
+    /**
+     * 发送一个帧并立即写出，可以在任意线程调用
+     *
+     * @param frame 已编码好的帧，调用后所有权转移给连接
+     * @return 连接已关闭或者帧被溢出策略丢弃返回false
+     */
+    boolean writeAndFlush(PooledBuffer frame);
+
+    /**
+     * 关闭连接，不通知下线
+     */
+    void close();
+
+    /**
+     * 由重复登录触发，断开旧连接，不通知下线，可以在任意线程调用
+     */
+    void kick();
+
+    /**
+     * 把任务交给连接的线程模型异步执行，可以在任意线程调用，用于不能在调用方线程里回调监听器的场景
+     *
+     * @param task 任务
+     */
+    void execute(Runnable task);
+
+    /**
+     * 连接所属的运行指标
+     *
+     * @return 指标
+     */
+    WorkerMetrics metrics();
+
+    /**
+     * 是否被调用方暂停读取或者因超过高水位不读取，期间不算读空闲
+     *
+     * @return 暂停读取返回true
+     */
+    boolean isReadPaused();
+
+    long getLastReadNanos();
+
+    void setLastReadNanos(long nanos);
+
+    long getLastWriteNanos();
+
+    long getLastPingNanos();
+
+    void setLastPingNanos(long nanos);
+
+    /**
+     * 发送队列或文件传输是否还有数据
+     *
+     * @return 有数据返回true
+     */
+    boolean hasPendingWrites();
+
+    /**
+     * 发送队列中尚未写出的字节数，可以在任意线程调用
+     *
+     * @return 字节数
+     */
+    long getOutboundBytes();
+
+    /**
+     * 发送队列是否超过了高水位且还没有降到低水位，可以在任意线程调用
+     *
+     * @return 超过返回true
+     */
+    boolean isUnwritable();
+
+    /**
+     * 标记为超过高水位，可以在任意线程调用
+     *
+     * @return 本次调用完成了从可写到不可写的切换返回true，已经是不可写返回false
+     */
+    boolean markUnwritable();
+}
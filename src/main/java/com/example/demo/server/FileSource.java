@@ -0,0 +1,90 @@
+package com.example.demo.server;
+
+import lombok.extern.slf4j.Slf4j;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author mark
+ * @date 2022/9/17 10:00
+ * @describe 待发送的文件：发给所有客户端时只打开一次，所有传输共用同一个FileChannel，
+ * 每个传输按自己的位置调用transferTo，互不影响；每个传输各持有一次引用，全部结束后关闭文件
+ * 文件大小在打开时确定，发送过程中文件被追加的部分不发送，被截断则中止传输
+ */
+@Slf4j
+class FileSource {
+
+    private final FileChannel channel;
+
+    /**
+     * 文件名，不含目录
+     */
+    private final String name;
+
+    /**
+     * 打开时的文件字节数
+     */
+    private final long size;
+
+    private final AtomicInteger refCnt = new AtomicInteger(1);
+
+    private FileSource(FileChannel channel, String name, long size) {
+        this.channel = channel;
+        this.name = name;
+        this.size = size;
+    }
+
+    /**
+     * 以只读方式打开文件，调用方持有一次引用
+     *
+     * @param path 文件路径
+     * @return 文件
+     * @throws IOException 文件不存在或者不可读
+     */
+    static FileSource open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new FileSource(channel, path.getFileName().toString(), channel.size());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    FileChannel channel() {
+        return channel;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * 增加多次引用，每个传输各持有一次
+     *
+     * @param increment 增加的引用数
+     */
+    void retain(int increment) {
+        refCnt.addAndGet(increment);
+    }
+
+    /**
+     * 释放一次引用，归零时关闭文件
+     */
+    void release() {
+        if (refCnt.decrementAndGet() == 0) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.error("=====关闭文件{}异常{}", name, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.example.demo.server;
+
+import com.example.demo.buffer.BufferPool;
+import com.example.demo.buffer.PooledBuffer;
+import com.example.demo.codec.FrameCodec;
+import lombok.extern.slf4j.Slf4j;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author mark
+ * @date 2022/9/17 10:00
+ * @describe 发给一个客户端的文件传输：文件按FILE_CHUNK_SIZE切成数据帧，每帧先写9字节的包头，
+ * 再用FileChannel.transferTo把文件区间直接写进socket，文件内容不经过用户态缓冲区
+ * 一帧没写完时记住剩余的包头和文件字节，下次接着写，调用方保证这期间不插入其他帧
+ * 只由负责写出的线程访问
+ */
+@Slf4j
+class FileTransfer {
+
+    /**
+     * 传输ID，同一个连接上的多个传输靠它区分
+     */
+    private static final AtomicInteger TRANSFER_ID = new AtomicInteger();
+
+    final int id;
+
+    final FileSource source;
+
+    /**
+     * 接收方的客户端ID，用于日志
+     */
+    private final String clientId;
+
+    /**
+     * 当前数据帧的包头，写完之前留在这里
+     */
+    private final ByteBuffer header = ByteBuffer.allocate(FrameCodec.HEADER_LENGTH + FrameCodec.FILE_HEADER_LENGTH);
+
+    /**
+     * 下一个要写出的文件字节位置
+     */
+    private long position;
+
+    /**
+     * 当前数据帧还没写出的文件字节数
+     */
+    private long chunkRemaining;
+
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * 下一次打印进度的百分比
+     */
+    private int nextPercent = 10;
+
+    /**
+     * 创建传输，持有文件的一次引用，由complete或abort释放
+     *
+     * @param source   文件
+     * @param clientId 接收方的客户端ID
+     */
+    FileTransfer(FileSource source, String clientId) {
+        this.id = TRANSFER_ID.incrementAndGet();
+        this.source = source;
+        this.clientId = clientId;
+        header.limit(0);
+    }
+
+    /**
+     * 编码开始帧，排在数据帧之前发出
+     *
+     * @return 已编码好的帧
+     */
+    PooledBuffer begin() {
+        return FrameCodec.encodeFileBegin(id, source.getSize(), source.getName(), BufferPool.DEFAULT);
+    }
+
+    /**
+     * 编码结束帧，所有数据帧写出后发出
+     *
+     * @return 已编码好的帧
+     */
+    PooledBuffer end() {
+        return FrameCodec.encodeFileEnd(id, BufferPool.DEFAULT);
+    }
+
+    /**
+     * 当前数据帧是否写了一部分，写完之前不能写其他帧
+     *
+     * @return 写了一部分返回true
+     */
+    boolean isInChunk() {
+        return header.hasRemaining() || chunkRemaining > 0;
+    }
+
+    /**
+     * 所有数据帧是否都已写出
+     *
+     * @return 写完返回true
+     */
+    boolean isDone() {
+        return !isInChunk() && position >= source.getSize();
+    }
+
+    /**
+     * 写出数据帧，直到写出maxBytes个字节、socket发送缓冲区满或者文件写完
+     * 超出预算时可能停在一帧的中间，下次调用先写完这一帧
+     *
+     * @param channel  信道，非阻塞信道写满时返回，阻塞信道会一直写完
+     * @param maxBytes 本次最多写出的字节数
+     * @return 本次写出的字节数，包括数据帧的包头
+     * @throws IOException IO异常，或者文件在发送过程中被截断
+     */
+    long writeTo(WritableByteChannel channel, long maxBytes) throws IOException {
+        long written = 0;
+        while (written < maxBytes) {
+            if (!isInChunk()) {
+                if (position >= source.getSize()) {
+                    break;
+                }
+                int length = (int) Math.min(FrameCodec.FILE_CHUNK_SIZE, source.getSize() - position);
+                header.clear();
+                FrameCodec.putFileDataHeader(header, id, length);
+                header.flip();
+                chunkRemaining = length;
+            }
+            if (header.hasRemaining()) {
+                written += channel.write(header);
+                if (header.hasRemaining() || written >= maxBytes) {
+                    break;
+                }
+            }
+            long n = source.channel().transferTo(position, Math.min(chunkRemaining, maxBytes - written), channel);
+            if (n == 0) {
+                if (position >= source.channel().size()) {
+                    throw new IOException("文件" + source.getName() + "在发送过程中被截断");
+                }
+                // socket发送缓冲区满，等下次可写
+                break;
+            }
+            position += n;
+            chunkRemaining -= n;
+            written += n;
+        }
+        if (log.isDebugEnabled() && source.getSize() > 0) {
+            int percent = (int) (position * 100 / source.getSize());
+            if (percent >= nextPercent) {
+                log.debug("=====文件{}发给客户端{}已完成{}%", source.getName(), clientId, percent);
+                nextPercent = percent / 10 * 10 + 10;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * 所有数据帧和结束帧都已入队，打印吞吐量并释放文件
+     */
+    void complete() {
+        long nanos = Math.max(1, System.nanoTime() - startNanos);
+        log.info("=====文件{}发给客户端{}完成，{}字节，耗时{}毫秒，{}MB/s", source.getName(), clientId, source.getSize(),
+                TimeUnit.NANOSECONDS.toMillis(nanos),
+                String.format("%.1f", source.getSize() * 1000.0 / nanos));
+        source.release();
+    }
+
+    /**
+     * 连接关闭或者开始帧被丢弃，放弃传输并释放文件
+     */
+    void abort() {
+        if (position > 0) {
+            log.info("=====文件{}发给客户端{}中止，已发送{}字节", source.getName(), clientId, position);
+        }
+        source.release();
+    }
+}
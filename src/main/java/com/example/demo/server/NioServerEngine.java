@@ -0,0 +1,185 @@
+package com.example.demo.server;
+
+import com.example.demo.buffer.PooledBuffer;
+import com.example.demo.cluster.ClusterNode;
+import com.example.demo.metrics.PrometheusWriter;
+import lombok.extern.slf4j.Slf4j;
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Collection;
+import java.util.function.Function;
+
+/**
+ * @author mark
+ * @date 2022/9/15 10:00
+ * @describe selector引擎：接入线程接入连接，按分配策略交给worker组，worker的事件循环负责读写
+ */
+@Slf4j
+class NioServerEngine implements ServerEngine {
+
+    /**
+     * 监听端口
+     */
+    private final int port;
+
+    /**
+     * 接入连接的配置
+     */
+    private final AcceptorOptions acceptorOptions;
+
+    /**
+     * 工作线程组专门用于处理读写事件
+     */
+    private final WorkerGroup workers;
+
+    /**
+     * 接入线程，启动后才创建
+     */
+    private volatile Acceptor[] acceptors = new Acceptor[0];
+
+    NioServerEngine(int port, AcceptorOptions acceptorOptions, WorkerOptions options, ServerListener listener, ClusterNode cluster) {
+        this.port = port;
+        this.acceptorOptions = acceptorOptions;
+        this.workers = new WorkerGroup(options, listener, cluster);
+    }
+
+    @Override
+    public void start() throws IOException {
+        int count = Math.max(1, acceptorOptions.getAcceptorCount());
+        boolean reusePort = count > 1 && Acceptor.isReusePortSupported();
+        if (count > 1 && !reusePort) {
+            log.warn("=====当前平台不支持SO_REUSEPORT，只使用1个接入线程");
+            count = 1;
+        }
+        // 先绑定所有监听socket，端口被占用时在启动worker之前失败
+        ServerSocketChannel[] channels = new ServerSocketChannel[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                channels[i] = Acceptor.bind(port, acceptorOptions.getBacklog(), reusePort);
+            }
+        } catch (IOException e) {
+            for (ServerSocketChannel channel : channels) {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+            throw e;
+        }
+        double rate = acceptorOptions.getMaxAcceptRate() > 0 ? (double) acceptorOptions.getMaxAcceptRate() / count : 0;
+        Acceptor[] started = new Acceptor[count];
+        for (int i = 0; i < count; i++) {
+            started[i] = new Acceptor("acceptor=" + i, channels[i], workers, rate);
+        }
+        acceptors = started;
+        workers.start();
+        log.info("====={}个接入线程，backlog={}，每秒最多接入{}", count, acceptorOptions.getBacklog(),
+                acceptorOptions.getMaxAcceptRate() > 0 ? acceptorOptions.getMaxAcceptRate() : "不限");
+        for (int i = 1; i < count; i++) {
+            new Thread(started[i], started[i].getName()).start();
+        }
+        // 第一个接入线程就是调用线程，和原来的boss线程一样一直阻塞到服务端退出
+        started[0].run();
+    }
+
+    @Override
+    public void broadcast(PooledBuffer frame) {
+        workers.broadcast(frame);
+    }
+
+    @Override
+    public void multicast(Collection<String> clientIds, PooledBuffer frame) {
+        try {
+            for (String clientId : clientIds) {
+                Session session = workers.getSessions().get(clientId);
+                if (session != null) {
+                    session.worker.write(session, frame.retainedDuplicate());
+                }
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Override
+    public boolean send(String clientId, PooledBuffer frame) {
+        Session session = workers.getSessions().get(clientId);
+        if (session == null) {
+            frame.release();
+            return false;
+        }
+        return session.worker.writeAndFlush(session, frame);
+    }
+
+    @Override
+    public void broadcastFile(FileSource source) {
+        workers.broadcastFile(source);
+    }
+
+    @Override
+    public boolean sendFile(String clientId, FileSource source) {
+        Session session = workers.getSessions().get(clientId);
+        if (session == null) {
+            source.release();
+            return false;
+        }
+        session.worker.sendFile(session, source);
+        return true;
+    }
+
+    @Override
+    public boolean suspendRead(String clientId, boolean suspended) {
+        Session session = workers.getSessions().get(clientId);
+        if (session == null) {
+            return false;
+        }
+        session.worker.suspendRead(session, suspended);
+        return true;
+    }
+
+    @Override
+    public void route(Function<String, PooledBuffer> router) {
+        workers.getSessions().forEach((clientId, session) -> {
+            PooledBuffer frame = router.apply(clientId);
+            if (frame != null) {
+                session.worker.writeAndFlush(session, frame);
+            }
+        });
+    }
+
+    @Override
+    public boolean isOnline(String clientId) {
+        return workers.getSessions().get(clientId) != null;
+    }
+
+    @Override
+    public int sessions() {
+        return workers.getSessions().size();
+    }
+
+    @Override
+    public void writeMetrics(PrometheusWriter writer) {
+        Worker[] all = workers.getWorkers();
+        String[] labels = new String[all.length];
+        WorkerMetrics[] metrics = new WorkerMetrics[all.length];
+        int[] connections = new int[all.length];
+        for (int i = 0; i < all.length; i++) {
+            labels[i] = PrometheusWriter.label("worker", all[i].getName());
+            metrics[i] = all[i].getMetrics();
+            connections[i] = all[i].getConnections();
+        }
+        WorkerMetrics.write(writer, labels, metrics, connections);
+        Acceptor[] current = acceptors;
+        writer.type("socket_acceptor_accepted_total", "Connections accepted.", "counter");
+        for (Acceptor acceptor : current) {
+            writer.sample("socket_acceptor_accepted_total", PrometheusWriter.label("acceptor", acceptor.getName()), acceptor.getAccepted());
+        }
+        writer.type("socket_acceptor_throttled_total", "Times accepting paused because the accept rate limit was reached.", "counter");
+        for (Acceptor acceptor : current) {
+            writer.sample("socket_acceptor_throttled_total", PrometheusWriter.label("acceptor", acceptor.getName()), acceptor.getThrottled());
+        }
+        writer.type("socket_acceptor_errors_total", "Failed accept calls, e.g. when file descriptors are exhausted.", "counter");
+        for (Acceptor acceptor : current) {
+            writer.sample("socket_acceptor_errors_total", PrometheusWriter.label("acceptor", acceptor.getName()), acceptor.getErrors());
+        }
+    }
+}
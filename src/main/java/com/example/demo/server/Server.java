@@ -1,20 +1,30 @@
 package com.example.demo.server;
 
-import com.example.demo.swing.MsgHandler;
-import com.example.demo.utils.ContextUtils;
+import com.example.demo.buffer.BufferPool;
+import com.example.demo.buffer.PooledBuffer;
+import com.example.demo.cluster.ClusterListener;
+import com.example.demo.cluster.ClusterNode;
+import com.example.demo.cluster.ClusterOptions;
+import com.example.demo.cluster.HashRing;
+import com.example.demo.codec.FrameCodec;
+import com.example.demo.journal.Journal;
+import com.example.demo.journal.JournalOptions;
+import com.example.demo.mailbox.MailboxOptions;
+import com.example.demo.mailbox.MailboxStore;
+import com.example.demo.metrics.PrometheusWriter;
+import com.example.demo.topic.TopicTrie;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.ServerSocketChannel;
-import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * @author mark
@@ -26,474 +36,810 @@ import java.util.concurrent.ConcurrentHashMap;
 public class Server {
 
     /**
-     * 工作线程专门用于处理读写事件
+     * 服务端引擎 nio/virtual，virtual需要Java 21及以上的运行时
      */
-    private Worker worker;
+    @Value("${socket.server.engine:nio}")
+    private String serverEngine;
 
     /**
-     * 开启服务端
-     *
-     * @throws IOException IO异常
+     * 服务端监听端口
      */
-    public void startServer() throws IOException {
-        ServerSocketChannel ssc = ServerSocketChannel.open();
-        ssc.configureBlocking(false);
-        // 专用于链接事件
-        Selector boss = Selector.open();
-        ssc.register(boss, SelectionKey.OP_ACCEPT);
-        ssc.bind(new InetSocketAddress(9998));
-        // 创建固定数量的worker
-        worker = new Worker("worker=0");
-        while (true) {
-            boss.select();
-            Iterator<SelectionKey> iterator = boss.selectedKeys().iterator();
-            while (iterator.hasNext()) {
-                SelectionKey key = iterator.next();
-                iterator.remove();
-                if (key.isAcceptable()) {
-                    SocketChannel sc = ssc.accept();
-                    sc.configureBlocking(false);
-                    log.info("===connected...{}", sc.getRemoteAddress());
-                    // 2关联selector
-                    log.info("=====beforeRegister{}", sc.getRemoteAddress());
-                    //boss调用 初始化worker的selector 启动线程
-                    worker.register(sc);
-                    log.info("====afterRegister{}", sc.getRemoteAddress());
-                }
-            }
-        }
-    }
+    @Value("${socket.server.port:9998}")
+    private int serverPort;
 
     /**
-     * 向全员发消息相当于群聊功能
-     *
-     * @param message 群聊消息 --send-text-to-all
-     * @throws InterruptedException 中断异常
+     * 接入线程数，大于1时用SO_REUSEPORT绑定多个监听socket，只对nio引擎有效
      */
-    public void sendMsgToAll(String message) throws InterruptedException {
-        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
-        Iterator<Map.Entry<String, Integer>> iterator = worker.getClients().entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<String, Integer> entry = iterator.next();
-            Integer port = entry.getValue();
-            SocketChannel socketChannel = worker.getSockets().get(port);
-            if (bytes.length > 68) {
-                sendMsgToClient(message.substring(18, 67), socketChannel);
-                sendMsgToClient(message.substring(68, message.length()), socketChannel);
-            } else {
-                sendMsgToClient(message.substring(18, message.length()), socketChannel);
-            }
-        }
-    }
+    @Value("${socket.server.acceptor-count:1}")
+    private int acceptorCount;
 
     /**
-     * 私聊功能 私聊功能：--send-text两位字符作为客户端ID
-     *
-     * @param message 服务端给客户端私发消息是携带客户端id的(clientId+message)
-     * @throws InterruptedException 中断异常
+     * 监听socket的等待队列长度，小于等于0时用JDK默认值
      */
-    public void sendMsgToSingle(String message) throws InterruptedException {
-        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
-        // 先提取客户ID
-        String id = message.substring(11, 13);
-        if (worker.getClients().get(id) == null) {
-            return;
-        }
-        Integer port = worker.getClients().get(id);
-        SocketChannel socketChannel = worker.getSockets().get(port);
-        if (bytes.length > 65) {
-            sendMsgToClient(message.substring(11, 62), socketChannel);
-            sendMsgToClient(id + message.substring(62, message.length()), socketChannel);
-        } else {
-            sendMsgToClient(id + message.substring(13, message.length()), socketChannel);
-        }
+    @Value("${socket.server.accept-backlog:1024}")
+    private int acceptBacklog;
 
+    /**
+     * 每秒最多接入的连接数，小于等于0表示不限制，只对nio引擎有效
+     */
+    @Value("${socket.server.max-accept-rate:0}")
+    private int maxAcceptRate;
 
-    }
+    /**
+     * worker数量，小于等于0时取CPU核数
+     */
+    @Value("${socket.server.worker-count:0}")
+    private int workerCount;
 
     /**
-     * 发送消息给客户端
-     *
-     * @param msg           消息正文
-     * @param socketChannel 客户端信道
-     */
-    private void sendMsgToClient(String msg, SocketChannel socketChannel) {
-        ByteBuffer buffer = ByteBuffer.allocate(70);
-        String message = addPacketLength(msg);
-        buffer.clear();
-        buffer.put(message.getBytes(StandardCharsets.UTF_8));
-        buffer.flip();
-        try {
-            socketChannel.write(buffer);
-        } catch (IOException e) {
-            log.error("===========发送消息给客户端失败{}", e);
-        }
-    }
+     * 连接分配策略 round-robin/least-connections/least-pending-bytes
+     */
+    @Value("${socket.server.worker-chooser:round-robin}")
+    private String workerChooser;
 
-    private String addPacketLength(String msg) {
-        if (msg.length() < 10) {
-            msg = "0" + msg.length() + msg;
-        } else {
-            msg = msg.length() + msg;
-        }
-        return msg;
-    }
-}
+    /**
+     * 写出延迟合并窗口（微秒），0表示立即写出
+     */
+    @Value("${socket.server.flush-linger-micros:0}")
+    private long flushLingerMicros;
 
-@Slf4j
-class Worker implements Runnable {
+    /**
+     * 单次写出最多合并的字节数
+     */
+    @Value("${socket.server.max-flush-bytes:262144}")
+    private int maxFlushBytes;
 
     /**
-     * 此容器用于判断客户端是否已经登录，如果第一次登录则会保存客户端ID和socketChannel的端口
-     * 保存客户端ID和对应的socketChannel的关系的容器key是客户端ID，value是socketChannel的端口
+     * 单次写出最多合并的帧数
      */
-    private final ConcurrentHashMap<String, Integer> clients = new ConcurrentHashMap<>();
+    @Value("${socket.server.max-flush-frames:64}")
+    private int maxFlushFrames;
 
     /**
-     * 此容器用于根据端口找到其对应的SocketChannel 因为服务端要发消息给客户端的时候需要根据客户端ID对应的端口找到对应的socketChannel进行发送
-     * 保存socketChannel的端口和socketChannel的关系的容器key是端口，value是socketChannel
+     * 单个连接发送队列的高水位（字节），小于等于0表示不限制
      */
-    private final ConcurrentHashMap<Integer, SocketChannel> sockets = new ConcurrentHashMap<>();
+    @Value("${socket.server.high-water-mark:1048576}")
+    private long highWaterMark;
 
+    /**
+     * 单个连接发送队列的低水位（字节）
+     */
+    @Value("${socket.server.low-water-mark:524288}")
+    private long lowWaterMark;
 
     /**
-     * 此容器用于服务端主动关闭客户端链接 根据端口找到对应的key，然后调用key.cancel关闭客户端连接
-     * 保存SelectionKey和对应socketChannel的关系，key是客户端ID对应客户端端口，value是SelectionKey
+     * 发送队列超过高水位时的溢出策略 drop-newest/drop-oldest/disconnect
      */
-    private final ConcurrentHashMap<Integer, SelectionKey> keys = new ConcurrentHashMap<>();
+    @Value("${socket.server.overflow-policy:disconnect}")
+    private String overflowPolicy;
 
     /**
-     * 用于启动worker
+     * 连接多久没有收到数据就发送一次ping（秒），小于等于0表示不发送
      */
-    private Thread thread;
+    @Value("${socket.server.ping-interval-seconds:30}")
+    private long pingIntervalSeconds;
 
     /**
-     * 多路复用选择器
+     * 连接多久没有收到任何数据就断开（秒），小于等于0表示不检测
      */
-    private Selector selector;
+    @Value("${socket.server.read-idle-timeout-seconds:90}")
+    private long readIdleTimeoutSeconds;
 
     /**
-     * 工作线程名称
+     * 发送队列有数据但多久没有写出就断开（秒），小于等于0表示不检测
      */
-    private String name;
+    @Value("${socket.server.write-idle-timeout-seconds:60}")
+    private long writeIdleTimeoutSeconds;
 
     /**
-     * 登录指令前两位字符
+     * 是否记录消息日志
      */
-    private static final String LO = "lo";
+    @Value("${socket.journal.enabled:false}")
+    private boolean journalEnabled;
 
     /**
-     * 线程是否启动
+     * 消息日志目录
      */
-    private volatile boolean start = false;
+    @Value("${socket.journal.dir:journal}")
+    private String journalDir;
 
-    public Worker(String name) {
-        this.name = name;
-    }
+    /**
+     * 单个日志段的字节数
+     */
+    @Value("${socket.journal.segment-bytes:67108864}")
+    private int journalSegmentBytes;
+
+    /**
+     * 消息日志的持久化方式 async/fsync
+     */
+    @Value("${socket.journal.durability:async}")
+    private String journalDurability;
+
+    /**
+     * fsync方式下强制刷盘的间隔（毫秒）
+     */
+    @Value("${socket.journal.fsync-interval-millis:1000}")
+    private long journalFsyncIntervalMillis;
+
+    /**
+     * 已写满的日志段最多保留的总字节数，小于等于0表示不按大小清理
+     */
+    @Value("${socket.journal.retention-bytes:1073741824}")
+    private long journalRetentionBytes;
+
+    /**
+     * 已写满的日志段最多保留的小时数，小于等于0表示不按时间清理
+     */
+    @Value("${socket.journal.retention-hours:168}")
+    private long journalRetentionHours;
+
+    /**
+     * 等待写入消息日志的记录数上限
+     */
+    @Value("${socket.journal.max-pending:65536}")
+    private int journalMaxPending;
+
+    /**
+     * 是否给不在线的客户端保存私聊消息，登录后批量投递，会占用直接内存，默认关闭
+     */
+    @Value("${socket.mailbox.enabled:false}")
+    private boolean mailboxEnabled;
+
+    /**
+     * 单个客户端最多保存的离线消息数，超出时丢弃最早的消息
+     */
+    @Value("${socket.mailbox.max-messages-per-client:1000}")
+    private int mailboxMaxMessagesPerClient;
+
+    /**
+     * 单个客户端最多保存的离线消息字节数，超出时丢弃最早的消息，不超过发送队列的高水位
+     */
+    @Value("${socket.mailbox.max-bytes-per-client:524288}")
+    private long mailboxMaxBytesPerClient;
+
+    /**
+     * 所有离线邮箱最多占用的直接内存字节数
+     */
+    @Value("${socket.mailbox.max-total-bytes:268435456}")
+    private long mailboxMaxTotalBytes;
+
+    /**
+     * 离线消息保存的秒数，小于等于0表示不过期
+     */
+    @Value("${socket.mailbox.ttl-seconds:86400}")
+    private long mailboxTtlSeconds;
+
+    /**
+     * 是否支持主题订阅，客户端发送--subscribe+过滤器订阅，--unsubscribe+过滤器取消订阅，默认关闭
+     */
+    @Value("${socket.topic.enabled:false}")
+    private boolean topicEnabled;
+
+    /**
+     * 单个客户端最多订阅的过滤器数，小于等于0表示不限制
+     */
+    @Value("${socket.topic.max-subscriptions-per-client:1000}")
+    private int topicMaxSubscriptionsPerClient;
+
+    /**
+     * 是否以集群方式运行，多个节点互相连接，交换在线目录并转发私聊、群发和主题消息
+     */
+    @Value("${socket.cluster.enabled:false}")
+    private boolean clusterEnabled;
+
+    /**
+     * 本节点ID，集群内唯一
+     */
+    @Value("${socket.cluster.node-id:}")
+    private String clusterNodeId;
+
+    /**
+     * 所有节点，格式为节点ID@主机:端口，逗号分隔，可以包含本节点
+     */
+    @Value("${socket.cluster.peers:}")
+    private String clusterPeers;
+
+    /**
+     * 节点之间握手用的共享密钥，开启集群时必须配置
+     */
+    @Value("${socket.cluster.secret:}")
+    private String clusterSecret;
+
+    /**
+     * 到其他节点的连接断开后重连的间隔（毫秒）
+     */
+    @Value("${socket.cluster.reconnect-interval-millis:1000}")
+    private long clusterReconnectIntervalMillis;
+
+    /**
+     * 合并客户端上下线通知的间隔（毫秒）
+     */
+    @Value("${socket.cluster.presence-flush-millis:20}")
+    private long clusterPresenceFlushMillis;
+
+    /**
+     * 是否按一致性哈希放置客户端，登录到不是归属节点的客户端被重定向到归属节点
+     */
+    @Value("${socket.cluster.placement:true}")
+    private boolean clusterPlacement;
+
+    /**
+     * 入站事件监听器，容器里所有实现ServerListener的Bean，没有时事件只记录日志
+     */
+    @Autowired(required = false)
+    private List<ServerListener> listeners = Collections.emptyList();
+
+    /**
+     * 服务端引擎，启动后才创建
+     */
+    private volatile ServerEngine engine;
+
+    /**
+     * 消息日志，没有开启时为null
+     */
+    private volatile Journal journal;
+
+    /**
+     * 离线邮箱，没有开启时为null
+     */
+    private volatile MailboxStore mailboxes;
+
+    /**
+     * 主题订阅索引，没有开启时为null
+     */
+    private volatile TopicTrie topics;
+
+    /**
+     * 集群节点，没有开启集群时为null
+     */
+    private volatile ClusterNode cluster;
+
+    /**
+     * 发布到主题的消息数
+     */
+    private final LongAdder topicPublished = new LongAdder();
+
+    /**
+     * 发布到主题的消息投递给订阅者的次数
+     */
+    private final LongAdder topicDeliveries = new LongAdder();
 
     /**
-     * 获取客户端map
+     * 编码的帧数，群发只编码一次按一帧计
+     */
+    private final LongAdder framesEncoded = new LongAdder();
+
+    /**
+     * 开启服务端，按配置选择引擎，一直阻塞到服务端退出
      *
-     * @return
+     * @throws IOException IO异常
      */
-    public ConcurrentHashMap<String, Integer> getClients() {
-        return clients;
+    public void startServer() throws IOException {
+        WorkerOptions options = new WorkerOptions();
+        options.setWorkerCount(workerCount);
+        options.setWorkerChooser(workerChooser);
+        options.setFlushLingerMicros(flushLingerMicros);
+        options.setMaxFlushBytes(maxFlushBytes);
+        options.setMaxFlushFrames(maxFlushFrames);
+        options.setHighWaterMark(highWaterMark);
+        options.setLowWaterMark(lowWaterMark);
+        options.setOverflowPolicy(overflowPolicy);
+        options.setPingIntervalSeconds(pingIntervalSeconds);
+        options.setReadIdleTimeoutSeconds(readIdleTimeoutSeconds);
+        options.setWriteIdleTimeoutSeconds(writeIdleTimeoutSeconds);
+        AcceptorOptions acceptor = new AcceptorOptions();
+        acceptor.setAcceptorCount(acceptorCount);
+        acceptor.setBacklog(acceptBacklog);
+        acceptor.setMaxAcceptRate(maxAcceptRate);
+        List<ServerListener> all = new ArrayList<>(listeners);
+        if (journalEnabled) {
+            JournalOptions journalOptions = new JournalOptions();
+            journalOptions.setDirectory(journalDir);
+            journalOptions.setSegmentBytes(journalSegmentBytes);
+            journalOptions.setDurability(journalDurability);
+            journalOptions.setFsyncIntervalMillis(journalFsyncIntervalMillis);
+            journalOptions.setRetentionBytes(journalRetentionBytes);
+            journalOptions.setRetentionHours(journalRetentionHours);
+            journalOptions.setMaxPending(journalMaxPending);
+            Journal opened = new Journal(journalOptions);
+            journal = opened;
+            // 客户端发来的消息在交给其他监听器之前记录，只入队，不阻塞worker线程
+            all.add(0, new ServerListener() {
+                @Override
+                public void onMessage(String clientId, String message) {
+                    opened.append(Journal.INBOUND, clientId, message);
+                }
+            });
+        }
+        if (mailboxEnabled) {
+            MailboxOptions mailboxOptions = new MailboxOptions();
+            mailboxOptions.setMaxMessagesPerClient(mailboxMaxMessagesPerClient);
+            mailboxOptions.setMaxBytesPerClient(mailboxMaxBytesPerClient);
+            if (highWaterMark > 0 && mailboxMaxBytesPerClient > highWaterMark) {
+                // 登录时一次投递整个邮箱，超过高水位会触发溢出策略
+                log.warn("=====离线邮箱单个客户端字节数{}超过发送队列高水位，按{}处理", mailboxMaxBytesPerClient, highWaterMark);
+                mailboxOptions.setMaxBytesPerClient(highWaterMark);
+            }
+            mailboxOptions.setMaxTotalBytes(mailboxMaxTotalBytes);
+            mailboxOptions.setTtlSeconds(mailboxTtlSeconds);
+            mailboxes = new MailboxStore(mailboxOptions);
+            // 客户端登录后先投递离线消息，再通知其他监听器
+            all.add(journal == null ? 0 : 1, new ServerListener() {
+                @Override
+                public void onConnected(String clientId) {
+                    deliverMailbox(clientId);
+                }
+            });
+        }
+        ClusterNode node = null;
+        if (clusterEnabled) {
+            node = startCluster();
+            ClusterNode joined = node;
+            // 本节点的客户端上下线通知其他节点，只入队，不阻塞worker线程
+            all.add(0, new ServerListener() {
+                @Override
+                public void onConnected(String clientId) {
+                    joined.online(clientId);
+                }
+
+                @Override
+                public void onDisconnected(String clientId) {
+                    joined.offline(clientId);
+                }
+            });
+        }
+        ServerListener listener = ServerListener.of(all);
+        if (topicEnabled) {
+            TopicTrie created = new TopicTrie(topicMaxSubscriptionsPerClient);
+            topics = created;
+            // 订阅命令在其他监听器之前处理，不当作聊天消息
+            listener = new TopicListener(created, listener);
+        }
+        ServerEngine current = ServerEngine.of(serverEngine, serverPort, acceptor, options, listener, node);
+        engine = current;
+        log.info("=====服务端引擎{}，监听端口{}", serverEngine, serverPort);
+        current.start();
     }
 
     /**
-     * 获取信道map
+     * 创建集群节点并开始连接其他节点，其他节点转发来的消息只发给本节点的客户端，不再转发
      *
-     * @return
+     * @return 集群节点
+     * @throws IOException IO异常
      */
-    public ConcurrentHashMap<Integer, SocketChannel> getSockets() {
-        return sockets;
+    private ClusterNode startCluster() throws IOException {
+        ClusterOptions clusterOptions = new ClusterOptions();
+        clusterOptions.setNodeId(clusterNodeId);
+        clusterOptions.setPeers(clusterPeers);
+        clusterOptions.setSecret(clusterSecret);
+        clusterOptions.setReconnectIntervalMillis(clusterReconnectIntervalMillis);
+        clusterOptions.setPresenceFlushMillis(clusterPresenceFlushMillis);
+        clusterOptions.setPlacement(clusterPlacement);
+        ClusterNode node = new ClusterNode(clusterOptions, new ClusterListener() {
+            @Override
+            public void onDirect(String clientId, String message) {
+                deliverDirect(message, clientId, false);
+            }
+
+            @Override
+            public void onBroadcast(String message) {
+                framesEncoded.increment();
+                engine.broadcast(FrameCodec.encode(message, BufferPool.DEFAULT));
+            }
+
+            @Override
+            public void onPublish(String topic, String message) {
+                TopicTrie current = topics;
+                if (current != null) {
+                    multicast(current.match(topic), topic, message);
+                }
+            }
+
+            @Override
+            public void onRemoteOnline(String clientId) {
+                forwardMailbox(clientId);
+            }
+
+            @Override
+            public void onRingChanged(HashRing ring) {
+                // 只有归属变到其他节点的客户端收到重定向，其余客户端不动
+                ServerEngine current = engine;
+                if (current != null) {
+                    current.route(cluster::redirect);
+                }
+            }
+        });
+        cluster = node;
+        node.start();
+        return node;
     }
 
+    /**
+     * 向全员发消息相当于群聊功能
+     *
+     * @param message 群聊消息 --send-text-to-all
+     * @throws InterruptedException 中断异常
+     */
+    public void sendMsgToAll(String message) throws InterruptedException {
+        // 超长消息由编解码层分片传输，这里不再拆分
+        broadcast(message.substring(18, message.length()));
+    }
 
     /**
-     * 注册读写事件
+     * 群发一条消息：只编码一次，交给引擎分发
      *
-     * @param sc SocketChannel
-     * @throws IOException IO异常
+     * @param msg 消息正文
      */
-    public void register(SocketChannel sc) throws IOException {
-        if (!start) {
-            selector = Selector.open();
-            thread = new Thread(this, name);
-            thread.start();
-            start = true;
+    private void broadcast(String msg) {
+        Journal current = journal;
+        if (current != null) {
+            current.append(Journal.BROADCAST, null, msg);
+        }
+        framesEncoded.increment();
+        engine.broadcast(FrameCodec.encode(msg, BufferPool.DEFAULT));
+        ClusterNode currentCluster = cluster;
+        if (currentCluster != null) {
+            currentCluster.broadcast(msg);
         }
-        // 唤醒selector
-        selector.wakeup();
-        sc.register(selector, SelectionKey.OP_READ);
     }
 
     /**
-     * 判断上一次是否出现拆包粘包情况
+     * 发布到主题：--publish+主题+空格+消息，只发给订阅了匹配这个主题的过滤器的客户端
      *
-     * @param source 用来读取消息的buffer
-     * @param key    SelectionKey
-     * @throws IOException IO异常
+     * @param message 发布命令
      */
-    private void dealBytebuffer(ByteBuffer source, SelectionKey key, SocketChannel channel,  ConcurrentHashMap<SocketChannel,ByteBuffer> byteBuffers) throws IOException {
-        // 获取端口
-        InetSocketAddress address = null;
+    public void publish(String message) {
+        String command = message.substring(9);
+        int space = command.indexOf(' ');
+        if (space <= 0) {
+            log.warn("=====发布命令格式为--publish+主题+空格+消息:{}", message);
+            return;
+        }
         try {
-            address = (InetSocketAddress) channel.getRemoteAddress();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        int port = address.getPort();
-        // 判断上一次是否发生拆包现象。
-        if (byteBuffers.containsKey(channel)) {
-            // 如果消息池里有这个key说明发生了拆包或者粘包的现象需要把缓存的Bytebuffer取出
-            ByteBuffer cacheBuffer = byteBuffers.get(channel);
-            byteBuffers.remove(channel);
-            // 把两个包合在一起
-            cacheBuffer.put(source);
-            // 读取包数据
-            dealMsg(port,cacheBuffer,channel,key,byteBuffers);
-        }  else {
-            // 如果没有发生拆包粘包现象则正常读取
-            dealMsg(port,source, channel, key,byteBuffers);
+            int count = publish(command.substring(0, space), command.substring(space + 1));
+            log.info("=====主题{}的消息发给{}个订阅者", command.substring(0, space), count);
+        } catch (IllegalArgumentException e) {
+            log.warn("=====发布失败{}", e.getMessage());
         }
     }
 
     /**
-     * 处理包数据
+     * 发布到主题：只编码一次，发给所有订阅了匹配这个主题的过滤器的在线客户端，客户端收到的是主题+空格+消息
+     * 集群方式下再转发给其他每个节点一次，由各节点发给自己的订阅者
      *
-     * @param buffer ByteBuffer
-     * @param channel 信道
-     * @param key SelectionKey
-     * @param port 端口
-     */
-    private void dealMsg(Integer port, ByteBuffer buffer, SocketChannel channel, SelectionKey key, ConcurrentHashMap<SocketChannel,ByteBuffer> byteBuffers) {
-        // 切换读模式
-        buffer.flip();
-        // 读取readBuf数据 然后打印数据
-        byte[] bytes = new byte[buffer.remaining()];
-        buffer.get(bytes);
-        String msg = new String(bytes);
-        // 首先确定消息长度
-        Integer msgLength = Integer.valueOf(msg.substring(0,2));
-        // 得到第一个消息
-        String firstMsg = msg.substring(2,2+msgLength);
-        // 现在只有两种情况：第一种情况这个消息为登录消息消息,格式为：login+clientId，另一种情况:此消息是个普通消息
-        String m = firstMsg.substring(0, 2);
-        // 第一个消息只能是登录消息消息格式为：login+clientId。所以前两个字母只能是lo。
-        if (m.equals(LO)) {
-            login(firstMsg, port, channel, key);
-        } else {
-            handleChatMsg(firstMsg, port, channel, key,byteBuffers);
-        }
-        // 包长度减2位包头长度得到包可读长度，现在判断包可读长度和消息长度的差值
-        // 如果差值等于0说明包刚好读完跳出循环
-        // 如果差值小于0则说明是拆包情况则把包进行缓存并跳出循环
-        // 如果差值大于0则说明发生粘包情况则递归调用本方法
-        Integer remain = buffer.limit()-2-msgLength;
-        String remainMsg = "";
-        if (remain != 0){
-            // 先得到剩余包：剩余的包 = 总消息 - 已读包
-            remainMsg = msg.substring(2+firstMsg.length());
-        }
-        if (remain == 0) {
-            buffer.clear();
+     * @param topic 主题，不能包含通配符
+     * @param msg   消息正文
+     * @return 本节点的订阅者数
+     * @throws IllegalArgumentException 没有开启主题订阅或者主题不合法
+     */
+    public int publish(String topic, String msg) {
+        TopicTrie current = topics;
+        if (current == null) {
+            throw new IllegalArgumentException("没有开启主题订阅");
+        }
+        List<String> subscribers = current.match(topic);
+        Journal currentJournal = journal;
+        if (currentJournal != null) {
+            currentJournal.append(Journal.PUBLISH, topic, msg);
+        }
+        topicPublished.increment();
+        ClusterNode currentCluster = cluster;
+        if (currentCluster != null) {
+            currentCluster.publish(topic, msg);
+        }
+        multicast(subscribers, topic, msg);
+        return subscribers.size();
+    }
+
+    /**
+     * 把主题消息发给本节点的订阅者
+     *
+     * @param subscribers 订阅者
+     * @param topic       主题
+     * @param msg         消息正文
+     */
+    private void multicast(List<String> subscribers, String topic, String msg) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        topicDeliveries.add(subscribers.size());
+        framesEncoded.increment();
+        engine.multicast(subscribers, FrameCodec.encode(topic + " " + msg, BufferPool.DEFAULT));
+    }
+
+    /**
+     * 私聊功能 私聊功能：--send-text两位字符作为客户端ID
+     *
+     * @param message 服务端给客户端私发消息是携带客户端id的(clientId+message)
+     * @throws InterruptedException 中断异常
+     */
+    public void sendMsgToSingle(String message) throws InterruptedException {
+        // 先提取客户ID
+        String id = message.substring(11, 13);
+        sendMsgToClient(id + message.substring(13, message.length()), id);
+    }
+
+    /**
+     * 发送消息给客户端：编码后交给引擎放入会话的发送队列
+     *
+     * @param msg      消息正文
+     * @param clientId 客户端ID
+     */
+    private void sendMsgToClient(String msg, String clientId) {
+        Journal current = journal;
+        if (current != null) {
+            current.append(Journal.DIRECT, clientId, msg);
+        }
+        deliverDirect(msg, clientId, true);
+    }
+
+    /**
+     * 投递私聊消息：客户端在本节点时直接写出，在其他节点时转发过去，都不在线时存入离线邮箱
+     *
+     * @param msg      消息正文
+     * @param clientId 客户端ID
+     * @param relay    是否可以转发给其他节点，其他节点转发来的消息不再转发，避免目录还没同步时来回转发
+     */
+    private void deliverDirect(String msg, String clientId, boolean relay) {
+        MailboxStore store = mailboxes;
+        if (store != null && store.depth(clientId) > 0) {
+            // 邮箱里还有没投递的消息：客户端刚登录、登录时的投递还没开始，或者上次投递被高水位挡住
+            // 新消息排在邮箱末尾一起投递，不能先于旧消息到达；投递时持有邮箱的锁，投递完成前这里会等待
+            depositMailbox(store, msg, clientId, relay);
+            return;
+        }
+        // 私聊对延迟敏感，不等合并窗口直接写出
+        framesEncoded.increment();
+        if (engine.send(clientId, FrameCodec.encode(msg, BufferPool.DEFAULT))) {
+            return;
+        }
+        if (engine.isOnline(clientId)) {
+            log.warn("=====私聊消息未发出，客户端{}发送队列积压", clientId);
             return;
-        }else if(remain < 0){
-            // 先得到剩余包：剩余的包 = 总消息 - 已读包
-            // 把剩余的包放进缓存
-            ByteBuffer cacheBuffer = ByteBuffer.allocate(100);
-            cacheBuffer.put(remainMsg.getBytes(StandardCharsets.UTF_8));
-            byteBuffers.put(channel,cacheBuffer);
-            buffer.clear();
+        }
+        ClusterNode currentCluster = cluster;
+        if (relay && currentCluster != null && currentCluster.send(clientId, msg)) {
             return;
-        } else{
-            // 先得到剩余包：剩余的包 = 总消息 - 已读包
-            // 然后递归调用此方法进行拆包处理
-            buffer.clear();
-            buffer.put(remainMsg.getBytes(StandardCharsets.UTF_8));
-            dealMsg(port,buffer,channel,key,byteBuffers);
+        }
+        if (store != null) {
+            depositMailbox(store, msg, clientId, relay);
+        } else {
+            log.warn("=====私聊消息未发出，客户端{}不在线", clientId);
         }
     }
 
     /**
-     * 处理普通消息
+     * 把私聊消息存入不在线客户端的离线邮箱
      *
-     * @param message 聊天消息
-     * @param port    客户端端口
-     * @param channel 信道
-     * @param key     SelectionKey
-     */
-    private void handleChatMsg(String message, Integer port, SocketChannel channel, SelectionKey key, ConcurrentHashMap<SocketChannel,ByteBuffer> byteBuffers) {
-        // 如果不是登录消息则判断这个信道是否在容器里如果不在容器里说明他发的第一个消息不是登录消息则断开连接，如果在容器里则有两种情况
-        // 第一种情况是个普通消息，则给ServerMsgReceiver返回。另一种情况这个消息是个主动断开连接消息--disconnect-server+clientId
-        if (checkClient(port)) {
-            // 如果存在给ServerMsgReceiver返回
-            String clientId = getClientId(port);
-            if (message.charAt(4) == 'd') {
-                // 如果是断开客户端连接就是断开相应的客户端连接
-                offLine(channel,byteBuffers);
-            } else {
-                // 如果是普通消息就进行返显
-                // 消息加上客户端ID
-                String id = clientId + ":";
-                StringBuilder totalMsg = new StringBuilder(id + message);
-                ContextUtils.getBean(MsgHandler.class).clientMsgToServerUi(totalMsg);
+     * @param store    离线邮箱
+     * @param msg      消息正文
+     * @param clientId 客户端ID
+     * @param relay    客户端在存入前刚好在其他节点上线时，是否转发过去
+     */
+    private void depositMailbox(MailboxStore store, String msg, String clientId, boolean relay) {
+        PooledBuffer frame = FrameCodec.encode(msg, BufferPool.DEFAULT);
+        try {
+            if (!store.offer(clientId, frame.buffer())) {
+                log.warn("=====客户端{}不在线，离线邮箱已满，私聊消息丢弃", clientId);
+                return;
             }
-        } else {
-            // 这种情况说明他发的第一个消息不是登录消息需要直接断开连接
-            key.cancel();
+        } finally {
+            frame.release();
+        }
+        // 客户端可能在存入前刚好登录完，登录时的投递已经结束，再检查一次
+        if (engine.isOnline(clientId)) {
+            deliverMailbox(clientId);
+        } else if (relay) {
+            forwardMailbox(clientId);
         }
     }
 
     /**
-     * 登录服务端方法
+     * 投递客户端的离线消息：拼接成不超过单次写出上限的批次，每批一次写出
      *
-     * @param msg     登录消息
-     * @param port    客户端端口
-     * @param channel 信道
-     * @param key     SelectionKey
-     */
-    private void login(String msg, Integer port, SocketChannel channel, SelectionKey key) {
-        // 判断是不是第一次登录消息，如果不是第一次登录根据这个ID肯定是在容器里能找到信道，则断开连接
-        // 获取客户端ID
-        String clientId = msg.substring(5, 7);
-        Integer clientPort = clients.get(clientId);
-        if (clientPort != null) {
-            // 如果如果收到重复的clientId，则断开前一个连接,并只保留现在这个连接
-            log.info("==========同一个客户端登录断开之前客户端连接=======");
-            SelectionKey selectionKey = keys.get(clientPort);
-            selectionKey.cancel();
-            keys.remove(clientPort);
-            sockets.remove(port);
-            clients.put(clientId, port);
-            sockets.put(port, channel);
-            keys.put(port, key);
-        } else {
-            // 此情况为用户第一次登录，则存储用户信息
-            clients.put(clientId, port);
-            keys.put(port, key);
-            sockets.put(port, channel);
-            // 服务端需显示客户端连接、断开信息，如：“client1 has connected”、“client1 has disconnected”
-            StringBuilder m = new StringBuilder("");
-            m.append("client" + clientId + " has connected");
-            log.info("========客户端登录" + m);
-            ContextUtils.getBean(MsgHandler.class).clientMsgToServerUi(m);
+     * @param clientId 客户端ID
+     */
+    private void deliverMailbox(String clientId) {
+        MailboxStore store = mailboxes;
+        ServerEngine current = engine;
+        if (store == null || current == null) {
+            return;
+        }
+        int count = store.drain(clientId, maxFlushBytes, batch -> current.send(clientId, batch));
+        if (count > 0) {
+            log.info("=====客户端{}登录，投递离线消息{}条", clientId, count);
         }
     }
 
+    /**
+     * 客户端在其他节点上线后，把本节点离线邮箱里它的消息按批转发过去
+     *
+     * @param clientId 客户端ID
+     */
+    private void forwardMailbox(String clientId) {
+        MailboxStore store = mailboxes;
+        ClusterNode currentCluster = cluster;
+        if (store == null || currentCluster == null || engine.isOnline(clientId)) {
+            return;
+        }
+        int count = store.drain(clientId, maxFlushBytes, batch -> currentCluster.forward(clientId, batch));
+        if (count > 0) {
+            log.info("=====客户端{}在节点{}登录，转发离线消息{}条", clientId, currentCluster.owner(clientId), count);
+        }
+    }
 
-    /***
-     * 判断此客户端是否已经登录，如果登录则返回ture，否则返回false
-     * clientPort 客户端端口
-     * @return
+    /**
+     * 向全员发送文件：--send-file-to-all+文件路径，文件只打开一次，所有客户端的传输共用
+     *
+     * @param message 发文件命令
      */
-    private Boolean checkClient(Integer clientPort) {
-        Iterator<Map.Entry<String, Integer>> iterator = clients.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<String, Integer> entry = iterator.next();
-            Integer port = entry.getValue();
-            if (port.equals(clientPort)) {
-                return true;
-            }
+    public void sendFileToAll(String message) {
+        FileSource source = openFile(message.substring(18));
+        if (source != null) {
+            engine.broadcastFile(source);
         }
-        return false;
     }
 
     /**
-     * 根据客户端端口得到对应的客户端ID
+     * 私发文件：--send-file两位字符作为客户端ID，之后是文件路径
      *
-     * @param clientPort 客户端端口
-     * @return
-     * @throws IOException
-     */
-    private String getClientId(Integer clientPort) {
-        Iterator<Map.Entry<String, Integer>> iterator = clients.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<String, Integer> entry = iterator.next();
-            Integer port = entry.getValue();
-            if (port.equals(clientPort)) {
-                return entry.getKey();
-            }
+     * @param message 发文件命令
+     */
+    public void sendFileToSingle(String message) {
+        String id = message.substring(11, 13);
+        FileSource source = openFile(message.substring(13));
+        if (source != null && !engine.sendFile(id, source)) {
+            log.warn("=====文件未发出，客户端{}不在线", id);
         }
-        return null;
     }
 
     /**
-     * 移除下线的客户端
+     * 打开要发送的文件，失败时记录日志
      *
-     * @param socketChannel 要下线的信道
+     * @param path 文件路径，忽略首尾空白
+     * @return 文件，失败返回null
      */
-    private void offLine(SocketChannel socketChannel, ConcurrentHashMap<SocketChannel,ByteBuffer> byteBuffers) {
-        InetSocketAddress address = null;
+    private FileSource openFile(String path) {
         try {
-            address = (InetSocketAddress) socketChannel.getRemoteAddress();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        Integer port = address.getPort();
-        SelectionKey key = keys.get(port);
-        key.cancel();
-        keys.remove(socketChannel);
-        // 服务端需显示客户端连接、断开信息，如：“client1 has connected”、“client1 has disconnected”
-        StringBuilder m = new StringBuilder("");
-        String clientId = getClientId(port);
-        m.append("client" + clientId + " has disconnected");
-        ContextUtils.getBean(MsgHandler.class).clientMsgToServerUi(m);
-        Iterator<Map.Entry<String, Integer>> iterator = clients.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<String, Integer> entry = iterator.next();
-            Integer clientPort = entry.getValue();
-            if (port.equals(clientPort)) {
-                clients.remove(entry.getKey());
-                sockets.remove(port);
-                byteBuffers.remove(socketChannel);
-            }
+            FileSource source = FileSource.open(Paths.get(path.trim()));
+            log.info("=====开始发送文件{}，{}字节", source.getName(), source.getSize());
+            return source;
+        } catch (IOException | InvalidPathException e) {
+            log.warn("=====打开文件{}失败{}", path.trim(), e.getMessage());
+            return null;
         }
     }
 
-    @Override
-    public void run() {
-        try {
-            while (true) {
-                /*
-                 * 此容器用于保存未完整读取的消息（解决TCP粘包、拆包）
-                 * key是信道，value是ByteBuffer
-                 */
-                ConcurrentHashMap<SocketChannel, ByteBuffer> byteBuffers = new ConcurrentHashMap<>();
-                selector.select();
-                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
-                while (iterator.hasNext()) {
-                    SelectionKey key = iterator.next();
-                    if (!key.isValid()) {
-                        continue;
-                    }
-                    iterator.remove();
-                    if ((key.isReadable())) {
-                        try {
-                            ByteBuffer buffer = ByteBuffer.allocate(100);
-                            SocketChannel channel = (SocketChannel) key.channel();
-                            // 如果客户端是正常断开的话，read方法的返回值是-1
-                            int read = channel.read(buffer);
-                            if (read == -1) {
-                                key.cancel();
-                                // 从client中移除下线的客户端
-                                offLine(channel,byteBuffers);
-                            } else {
-                                dealBytebuffer(buffer, key, channel,byteBuffers);
-                            }
-                        } catch (IOException e) {
-                            log.error("===========客户端断开了连接~~");
-                            // 如果客户端被强制关闭那么把key从selectedKey集合中移除
-                            key.cancel();
-                            SocketChannel channel = (SocketChannel) key.channel();
-                            offLine(channel,byteBuffers);
-                        }
-                    }
-                }
+    /**
+     * 暂停读取客户端的消息，供把入站消息转到其他线程处理的监听器在该客户端积压时使用，积压消除后调用resumeRead恢复
+     *
+     * @param clientId 客户端ID
+     * @return 客户端不在线返回false
+     */
+    public boolean suspendRead(String clientId) {
+        ServerEngine current = engine;
+        return current != null && current.suspendRead(clientId, true);
+    }
+
+    /**
+     * 恢复读取客户端的消息
+     *
+     * @param clientId 客户端ID
+     * @return 客户端不在线返回false
+     */
+    public boolean resumeRead(String clientId) {
+        ServerEngine current = engine;
+        return current != null && current.suspendRead(clientId, false);
+    }
+
+    /**
+     * 按Prometheus文本格式输出运行指标：引擎里每个worker一组带worker标签的计数器、
+     * 连接数和发送队列积压字节数，以及事件循环耗时分布；服务端未启动时只输出服务端级别的指标
+     *
+     * @param writer 输出
+     */
+    public void writeMetrics(PrometheusWriter writer) {
+        ServerEngine current = engine;
+        if (current != null) {
+            current.writeMetrics(writer);
+        }
+        writer.type("socket_server_sessions", "Logged-in client sessions.", "gauge");
+        writer.sample("socket_server_sessions", null, current == null ? 0 : current.sessions());
+        writer.type("socket_server_frames_encoded_total", "Frames encoded by the server; a broadcast counts once.", "counter");
+        writer.sample("socket_server_frames_encoded_total", null, framesEncoded.sum());
+        Journal currentJournal = journal;
+        if (currentJournal != null) {
+            writer.type("socket_journal_appended_total", "Records written to the message journal.", "counter");
+            writer.sample("socket_journal_appended_total", null, currentJournal.getAppended());
+            writer.type("socket_journal_dropped_total", "Records dropped because the journal queue was full or the record did not fit a segment.", "counter");
+            writer.sample("socket_journal_dropped_total", null, currentJournal.getDropped());
+            writer.type("socket_journal_bytes_total", "Bytes written to the message journal.", "counter");
+            writer.sample("socket_journal_bytes_total", null, currentJournal.getBytes());
+            writer.type("socket_journal_fsyncs_total", "Journal segment forces.", "counter");
+            writer.sample("socket_journal_fsyncs_total", null, currentJournal.getFsyncs());
+            writer.type("socket_journal_pending", "Records queued for the journal writer.", "gauge");
+            writer.sample("socket_journal_pending", null, currentJournal.getPending());
+        }
+        TopicTrie currentTopics = topics;
+        if (currentTopics != null) {
+            writer.type("socket_topic_nodes", "Nodes in the topic subscription trie.", "gauge");
+            writer.sample("socket_topic_nodes", null, currentTopics.getNodes());
+            writer.type("socket_topic_filters", "Distinct topic filters with at least one subscriber.", "gauge");
+            writer.sample("socket_topic_filters", null, currentTopics.getFilters());
+            writer.type("socket_topic_subscriptions", "Topic subscriptions of online clients.", "gauge");
+            writer.sample("socket_topic_subscriptions", null, currentTopics.getSubscriptions());
+            writer.type("socket_topic_subscribers", "Clients with at least one topic subscription.", "gauge");
+            writer.sample("socket_topic_subscribers", null, currentTopics.getSubscribers());
+            writer.type("socket_topic_published_total", "Messages published to topics.", "counter");
+            writer.sample("socket_topic_published_total", null, topicPublished.sum());
+            writer.type("socket_topic_deliveries_total", "Published messages fanned out to subscribers.", "counter");
+            writer.sample("socket_topic_deliveries_total", null, topicDeliveries.sum());
+        }
+        ClusterNode currentCluster = cluster;
+        if (currentCluster != null) {
+            writer.type("socket_cluster_peers", "Other cluster nodes configured.", "gauge");
+            writer.sample("socket_cluster_peers", null, currentCluster.getPeers());
+            writer.type("socket_cluster_connected_peers", "Other cluster nodes with an established outbound link.", "gauge");
+            writer.sample("socket_cluster_connected_peers", null, currentCluster.getConnectedPeers());
+            writer.type("socket_cluster_remote_clients", "Clients logged in on other cluster nodes.", "gauge");
+            writer.sample("socket_cluster_remote_clients", null, currentCluster.getRemoteClients());
+            writer.type("socket_cluster_relayed_total", "Messages relayed to other nodes; a broadcast counts once per node.", "counter");
+            writer.sample("socket_cluster_relayed_total", null, currentCluster.getRelayed());
+            writer.type("socket_cluster_received_total", "Messages relayed from other nodes.", "counter");
+            writer.sample("socket_cluster_received_total", null, currentCluster.getReceived());
+            HashRing ring = currentCluster.getRing();
+            if (ring != null) {
+                writer.type("socket_cluster_ring_members", "Nodes in the consistent-hash ring used for client placement.", "gauge");
+                writer.sample("socket_cluster_ring_members", null, ring.getMembers().size());
+                writer.type("socket_cluster_redirects_total", "Clients told to reconnect to their owner node.", "counter");
+                writer.sample("socket_cluster_redirects_total", null, currentCluster.getRedirects());
             }
-        } catch (IOException e) {
-            log.error("=====读取客户端消息时发生异常{}", e);
+        }
+        MailboxStore currentMailboxes = mailboxes;
+        if (currentMailboxes != null) {
+            writer.type("socket_mailbox_boxes", "Offline mailboxes holding at least one message.", "gauge");
+            writer.sample("socket_mailbox_boxes", null, currentMailboxes.getMailboxes());
+            writer.type("socket_mailbox_messages", "Private messages waiting in offline mailboxes.", "gauge");
+            writer.sample("socket_mailbox_messages", null, currentMailboxes.getMessages());
+            writer.type("socket_mailbox_max_depth", "Messages in the deepest mailbox at the last sweep.", "gauge");
+            writer.sample("socket_mailbox_max_depth", null, currentMailboxes.getMaxDepth());
+            writer.type("socket_mailbox_reserved_bytes", "Direct memory held by offline mailboxes.", "gauge");
+            writer.sample("socket_mailbox_reserved_bytes", null, currentMailboxes.getReservedBytes());
+            writer.type("socket_mailbox_deposited_total", "Private messages stored for offline clients.", "counter");
+            writer.sample("socket_mailbox_deposited_total", null, currentMailboxes.getDeposited());
+            writer.type("socket_mailbox_delivered_total", "Offline messages delivered after login.", "counter");
+            writer.sample("socket_mailbox_delivered_total", null, currentMailboxes.getDelivered());
+            writer.type("socket_mailbox_expired_total", "Offline messages discarded after their TTL.", "counter");
+            writer.sample("socket_mailbox_expired_total", null, currentMailboxes.getExpired());
+            writer.type("socket_mailbox_evicted_total", "Oldest offline messages discarded because a mailbox was full.", "counter");
+            writer.sample("socket_mailbox_evicted_total", null, currentMailboxes.getEvicted());
+            writer.type("socket_mailbox_rejected_total", "Offline messages not stored because of the memory limit or their size.", "counter");
+            writer.sample("socket_mailbox_rejected_total", null, currentMailboxes.getRejected());
+        }
+        writer.type("socket_buffer_pooled_allocations_total", "Buffers served from the pool.", "counter");
+        writer.sample("socket_buffer_pooled_allocations_total", null, BufferPool.DEFAULT.getPooledAllocations());
+        writer.type("socket_buffer_unpooled_allocations_total", "Buffers allocated outside the pool.", "counter");
+        writer.sample("socket_buffer_unpooled_allocations_total", null, BufferPool.DEFAULT.getUnpooledAllocations());
+        writer.type("socket_buffer_reserved_bytes", "Direct memory reserved by the buffer pool.", "gauge");
+        writer.sample("socket_buffer_reserved_bytes", null, BufferPool.DEFAULT.getReservedBytes());
+    }
+
+    /**
+     * 关闭消息日志，写完队列里的记录并刷盘；关闭离线邮箱，归还直接内存；断开到其他节点的连接
+     */
+    @PreDestroy
+    public void destroy() {
+        ClusterNode currentCluster = cluster;
+        if (currentCluster != null) {
+            currentCluster.close();
+        }
+        Journal current = journal;
+        if (current != null) {
+            current.close();
+        }
+        MailboxStore currentMailboxes = mailboxes;
+        if (currentMailboxes != null) {
+            currentMailboxes.close();
         }
     }
 }
@@ -0,0 +1,138 @@
+package com.example.demo.server;
+
+import com.example.demo.buffer.PooledBuffer;
+import com.example.demo.cluster.ClusterNode;
+import com.example.demo.metrics.PrometheusWriter;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.function.Function;
+
+/**
+ * @author mark
+ * @date 2022/9/15 10:00
+ * @describe 服务端引擎：负责接入连接、读写和协议处理，Server只负责配置、编码和对外API
+ * 两种引擎的协议、监听器回调、背压和心跳行为一致，按部署选择，可以用同一个压测场景对比
+ * 开启集群时其他节点也连到同一个端口，第一个帧是集群握手而不是登录，之后只发集群控制帧和转发的消息
+ */
+interface ServerEngine {
+
+    /**
+     * selector事件循环：一个boss接入连接，固定数量的worker多路复用读写，Java 8即可运行
+     */
+    String NIO = "nio";
+
+    /**
+     * 虚拟线程：每个连接一个虚拟线程阻塞读取，需要Java 21及以上的运行时
+     */
+    String VIRTUAL = "virtual";
+
+    /**
+     * 绑定端口并开始接入连接，一直阻塞到服务端退出
+     *
+     * @throws IOException IO异常
+     */
+    void start() throws IOException;
+
+    /**
+     * 把同一个帧发给所有已登录的客户端，可以在任意线程调用
+     *
+     * @param frame 已编码好的帧，调用后所有权转移给引擎
+     */
+    void broadcast(PooledBuffer frame);
+
+    /**
+     * 把同一个帧发给一组客户端，不在线的跳过，可以在任意线程调用
+     * 和群发一样每个连接拿到一个共享内容的只读副本，按合并窗口写出
+     *
+     * @param clientIds 客户端ID
+     * @param frame     已编码好的帧，调用后所有权转移给引擎
+     */
+    void multicast(Collection<String> clientIds, PooledBuffer frame);
+
+    /**
+     * 给指定客户端发送一个帧并立即写出，可以在任意线程调用
+     *
+     * @param clientId 客户端ID
+     * @param frame    已编码好的帧，调用后所有权转移给引擎
+     * @return 客户端不在线、连接已关闭或者帧被溢出策略丢弃返回false
+     */
+    boolean send(String clientId, PooledBuffer frame);
+
+    /**
+     * 按客户端ID给每个已登录的客户端发一个帧并立即写出，用于哈希环变化后把不再归属本节点的客户端重定向出去，可以在任意线程调用
+     *
+     * @param router 按客户端ID返回要发的帧，所有权转移给引擎；返回null表示不发
+     */
+    void route(Function<String, PooledBuffer> router);
+
+    /**
+     * 把同一个文件发给所有已登录的客户端，可以在任意线程调用
+     * 文件内容在各个连接的发送队列写空后用transferTo直接写进socket，和聊天消息以帧为单位交错
+     *
+     * @param source 已打开的文件，调用后调用方的引用转移给引擎
+     */
+    void broadcastFile(FileSource source);
+
+    /**
+     * 给指定客户端发送文件，可以在任意线程调用
+     *
+     * @param clientId 客户端ID
+     * @param source   已打开的文件，调用后调用方的引用转移给引擎
+     * @return 客户端不在线返回false
+     */
+    boolean sendFile(String clientId, FileSource source);
+
+    /**
+     * 暂停或恢复读取客户端的消息
+     *
+     * @param clientId  客户端ID
+     * @param suspended true暂停，false恢复
+     * @return 客户端不在线返回false
+     */
+    boolean suspendRead(String clientId, boolean suspended);
+
+    /**
+     * 客户端是否在线
+     *
+     * @param clientId 客户端ID
+     * @return 已登录返回true
+     */
+    boolean isOnline(String clientId);
+
+    /**
+     * 在线会话数
+     *
+     * @return 会话数
+     */
+    int sessions();
+
+    /**
+     * 输出引擎的运行指标
+     *
+     * @param writer 输出
+     */
+    void writeMetrics(PrometheusWriter writer);
+
+    /**
+     * 根据引擎名称创建引擎
+     *
+     * @param engine   引擎名称
+     * @param port     监听端口
+     * @param acceptor 接入连接的配置，接入线程数和接入速率只对nio引擎有效
+     * @param options  连接相关的配置，worker数量和分配策略只对nio引擎有效
+     * @param listener 入站事件监听器
+     * @param cluster  集群节点，其他节点连进来的连接握手后交给它处理，没有开启集群时为null
+     * @return 引擎
+     */
+    static ServerEngine of(String engine, int port, AcceptorOptions acceptor, WorkerOptions options, ServerListener listener,
+                           ClusterNode cluster) {
+        switch (engine) {
+            case NIO:
+                return new NioServerEngine(port, acceptor, options, listener, cluster);
+            case VIRTUAL:
+                return new VirtualThreadServerEngine(port, acceptor.getBacklog(), options, listener, cluster);
+            default:
+                throw new IllegalArgumentException("未知的服务端引擎:" + engine);
+        }
+    }
+}
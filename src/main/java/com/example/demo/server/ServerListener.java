@@ -0,0 +1,94 @@
+package com.example.demo.server;
+
+import lombok.extern.slf4j.Slf4j;
+import java.util.List;
+
+/**
+ * @author mark
+ * @date 2022/8/30 14:10
+ * @describe 服务端入站事件监听器：客户端登录、发消息、下线时回调，实现类注册为Spring Bean即可生效
+ * 服务端启动时解析一次，回调在worker线程上执行，实现类不能阻塞，耗时处理请自行转到其他线程
+ */
+public interface ServerListener {
+
+    /**
+     * 客户端第一次登录
+     *
+     * @param clientId 客户端ID
+     */
+    default void onConnected(String clientId) {
+    }
+
+    /**
+     * 收到已登录客户端的聊天消息
+     *
+     * @param clientId 客户端ID
+     * @param message  消息正文
+     */
+    default void onMessage(String clientId, String message) {
+    }
+
+    /**
+     * 客户端下线
+     *
+     * @param clientId 客户端ID
+     */
+    default void onDisconnected(String clientId) {
+    }
+
+    /**
+     * 把所有监听器合成一个，按顺序回调，单个监听器抛出的异常只记录日志，不影响worker线程和其他监听器
+     *
+     * @param listeners 所有监听器
+     * @return 合成后的监听器
+     */
+    static ServerListener of(List<ServerListener> listeners) {
+        return new CompositeServerListener(listeners.toArray(new ServerListener[0]));
+    }
+}
+
+/**
+ * 按顺序回调多个监听器
+ */
+@Slf4j
+class CompositeServerListener implements ServerListener {
+
+    private final ServerListener[] listeners;
+
+    CompositeServerListener(ServerListener[] listeners) {
+        this.listeners = listeners;
+    }
+
+    @Override
+    public void onConnected(String clientId) {
+        for (ServerListener listener : listeners) {
+            try {
+                listener.onConnected(clientId);
+            } catch (RuntimeException e) {
+                log.error("=====监听器{}处理客户端{}登录异常", listener, clientId, e);
+            }
+        }
+    }
+
+    @Override
+    public void onMessage(String clientId, String message) {
+        for (ServerListener listener : listeners) {
+            try {
+                listener.onMessage(clientId, message);
+            } catch (RuntimeException e) {
+                log.error("=====监听器{}处理客户端{}消息异常", listener, clientId, e);
+            }
+        }
+    }
+
+    @Override
+    public void onDisconnected(String clientId) {
+        for (ServerListener listener : listeners) {
+            try {
+                listener.onDisconnected(clientId);
+            } catch (RuntimeException e) {
+                log.error("=====监听器{}处理客户端{}下线异常", listener, clientId, e);
+            }
+        }
+    }
+}
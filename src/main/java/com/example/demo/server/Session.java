@@ -0,0 +1,501 @@
+package com.example.demo.server;
+
+import com.example.demo.buffer.AdaptiveRecvSizer;
+import com.example.demo.buffer.BufferPool;
+import com.example.demo.buffer.PooledBuffer;
+import com.example.demo.cluster.PeerSession;
+import com.example.demo.codec.FrameDecoder;
+import com.example.demo.timer.TimingWheel;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * @author mark
+ * @date 2022/8/15 10:20
+ * @describe 服务端会话：一个连接对应一个会话，作为attachment挂在SelectionKey上，按连接查找会话是O(1)
+ * 除发送队列外只由所属worker线程访问，发送队列允许其他线程入队，出队写出只在worker线程进行
+ * 单个空闲会话实测约217字节堆内存（JDK17，压缩指针，创建100万个会话并登记到注册表后按堆增量平均），
+ * 包括会话本身、解码器、接收缓冲区状态、空发送队列及注册表条目，不含客户端ID字符串、JDK的SocketChannel/SelectionKey和内核socket缓冲区
+ * 计数字段用字段更新器代替原子类、解码器包头用int代替缓冲区、直接继承时间轮的定时任务节点，都是为了减少每个会话的对象数
+ */
+class Session extends TimingWheel.Timeout implements Connection {
+
+    private static final AtomicIntegerFieldUpdater<Session> FLUSH_STATE =
+            AtomicIntegerFieldUpdater.newUpdater(Session.class, "flushState");
+
+    /**
+     * 没有待执行的写出
+     */
+    static final int FLUSH_IDLE = 0;
+
+    /**
+     * 已登记到合并窗口，窗口到期后写出
+     */
+    static final int FLUSH_LINGER = 1;
+
+    /**
+     * 已向worker投递了立即写出任务
+     */
+    static final int FLUSH_POSTED = 2;
+
+    private static final AtomicIntegerFieldUpdater<Session> WRITABILITY =
+            AtomicIntegerFieldUpdater.newUpdater(Session.class, "unwritable");
+
+    private static final AtomicLongFieldUpdater<Session> OUTBOUND_BYTES =
+            AtomicLongFieldUpdater.newUpdater(Session.class, "outboundBytes");
+
+    /**
+     * 连接注册到selector后得到的key
+     */
+    final SelectionKey key;
+
+    /**
+     * 连接所在的worker
+     */
+    final Worker worker;
+
+    /**
+     * 登录后的客户端ID，未登录为null
+     */
+    volatile String clientId;
+
+    /**
+     * 其他节点连进来的连接握手后的状态，客户端连接为null，只由worker线程访问
+     */
+    PeerSession peer;
+
+    /**
+     * 帧解码器
+     */
+    final FrameDecoder decoder = new FrameDecoder();
+
+    /**
+     * 自适应接收缓冲区大小
+     */
+    private final AdaptiveRecvSizer recvSizer = new AdaptiveRecvSizer();
+
+    /**
+     * 发送队列，里面是已编码好的帧，其他线程只往这里入队
+     */
+    private final ConcurrentLinkedQueue<PooledBuffer> outbound = new ConcurrentLinkedQueue<>();
+
+    /**
+     * worker线程从发送队列搬出、等待gather写出的帧，环形数组，第一次写出时才创建
+     */
+    private PooledBuffer[] flushing;
+
+    private int flushingHead;
+
+    private int flushingSize;
+
+    /**
+     * 排队中的文件传输，按顺序逐个发送，只由worker线程访问，第一次发送文件时才创建
+     */
+    private ArrayDeque<FileTransfer> transfers;
+
+    /**
+     * 写出状态 FLUSH_IDLE/FLUSH_LINGER/FLUSH_POSTED，避免每个消息都唤醒一次selector
+     */
+    private volatile int flushState;
+
+    /**
+     * 合并窗口到期时间（纳秒），只由worker线程访问
+     */
+    long lingerDeadline;
+
+    /**
+     * 发送队列中尚未写出的字节数
+     */
+    private volatile long outboundBytes;
+
+    /**
+     * 发送队列超过高水位后置1，写出到低水位以下才恢复0，期间按溢出策略处理新的帧并暂停读取
+     */
+    private volatile int unwritable;
+
+    /**
+     * 是否被调用方暂停读取，只由worker线程访问
+     */
+    boolean readSuspended;
+
+    /**
+     * 最近一次读到数据的时间（纳秒），只由worker线程访问
+     */
+    long lastReadNanos;
+
+    /**
+     * 最近一次写出数据的时间（纳秒），只由worker线程访问
+     */
+    long lastWriteNanos;
+
+    /**
+     * 最近一次发送ping的时间（纳秒），只由worker线程访问
+     */
+    long lastPingNanos;
+
+    Session(SelectionKey key, Worker worker) {
+        this.key = key;
+        this.worker = worker;
+    }
+
+    /**
+     * 是否已经登录
+     *
+     * @return 已登录返回true
+     */
+    boolean isLoggedIn() {
+        return clientId != null;
+    }
+
+    @Override
+    public String getClientId() {
+        return clientId;
+    }
+
+    @Override
+    public void setClientId(String clientId) {
+        this.clientId = clientId;
+    }
+
+    @Override
+    public PeerSession getPeer() {
+        return peer;
+    }
+
+    @Override
+    public void setPeer(PeerSession peer) {
+        this.peer = peer;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !key.isValid();
+    }
+
+    @Override
+    public boolean writeAndFlush(PooledBuffer frame) {
+        return worker.writeAndFlush(this, frame);
+    }
+
+    @Override
+    public void close() {
+        worker.close(key);
+    }
+
+    @Override
+    public void kick() {
+        worker.kick(this);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        worker.execute(task);
+    }
+
+    @Override
+    public WorkerMetrics metrics() {
+        return worker.getMetrics();
+    }
+
+    @Override
+    public boolean isReadPaused() {
+        return readSuspended || isUnwritable();
+    }
+
+    @Override
+    public long getLastReadNanos() {
+        return lastReadNanos;
+    }
+
+    @Override
+    public void setLastReadNanos(long nanos) {
+        lastReadNanos = nanos;
+    }
+
+    @Override
+    public long getLastWriteNanos() {
+        return lastWriteNanos;
+    }
+
+    @Override
+    public long getLastPingNanos() {
+        return lastPingNanos;
+    }
+
+    @Override
+    public void setLastPingNanos(long nanos) {
+        lastPingNanos = nanos;
+    }
+
+    /**
+     * 按最近的读取情况从缓冲池分配本次读取用的缓冲区
+     *
+     * @return 缓冲区，用完必须release
+     */
+    PooledBuffer allocateRecvBuffer() {
+        PooledBuffer buffer = BufferPool.DEFAULT.allocate(recvSizer.guess());
+        buffer.buffer().limit(recvSizer.guess());
+        return buffer;
+    }
+
+    /**
+     * 记录本次读取的字节数
+     *
+     * @param bytes 字节数
+     */
+    void recordRead(int bytes) {
+        recvSizer.record(bytes);
+    }
+
+    /**
+     * 把帧放入发送队列，可以在任意线程调用
+     *
+     * @param frame 已编码好的帧
+     */
+    void enqueue(PooledBuffer frame) {
+        OUTBOUND_BYTES.addAndGet(this, frame.buffer().remaining());
+        outbound.offer(frame);
+    }
+
+    /**
+     * 尝试把写出状态从from改为to
+     *
+     * @param from 期望的当前状态
+     * @param to   新状态
+     * @return 修改成功返回true
+     */
+    boolean casFlushState(int from, int to) {
+        return FLUSH_STATE.compareAndSet(this, from, to);
+    }
+
+    /**
+     * 当前写出状态
+     *
+     * @return 状态
+     */
+    int getFlushState() {
+        return flushState;
+    }
+
+    /**
+     * 在worker线程中用一次gather写出发送队列头部的多个帧，受字节数和帧数预算限制
+     * 遇到socket发送缓冲区满则停下保留剩余部分
+     *
+     * @param channel  信道
+     * @param gather   worker线程复用的数组，长度即单次写出的帧数上限
+     * @param maxBytes 单次写出的字节数上限，至少包含一个帧
+     * @param metrics  所属worker的运行指标
+     * @return 本次写出的字节数
+     * @throws IOException IO异常
+     */
+    long flush(SocketChannel channel, ByteBuffer[] gather, int maxBytes, WorkerMetrics metrics) throws IOException {
+        // 先清除标记，之后入队的帧会重新投递写出任务
+        flushState = FLUSH_IDLE;
+        // 把其他线程入队的帧搬到本地环形数组，最多搬够一次写出需要的数量
+        PooledBuffer frame;
+        while (flushingSize < gather.length && (frame = outbound.poll()) != null) {
+            addFlushing(frame);
+        }
+        if (flushingSize == 0) {
+            return 0;
+        }
+        int mask = flushing.length - 1;
+        int count = 0;
+        long bytes = 0;
+        while (count < flushingSize && count < gather.length && (count == 0 || bytes < maxBytes)) {
+            ByteBuffer buffer = flushing[(flushingHead + count) & mask].buffer();
+            gather[count++] = buffer;
+            bytes += buffer.remaining();
+        }
+        long written = count == 1 ? channel.write(gather[0]) : channel.write(gather, 0, count);
+        // 归还已经完整写出的帧，只写出一部分的帧留在头部等OP_WRITE再继续
+        boolean completed = true;
+        for (int i = 0; i < count; i++) {
+            completed = completed && !gather[i].hasRemaining();
+            if (completed) {
+                metrics.framesWritten.increment();
+                flushing[flushingHead].release();
+                flushing[flushingHead] = null;
+                flushingHead = (flushingHead + 1) & mask;
+                flushingSize--;
+            }
+            gather[i] = null;
+        }
+        if (written < bytes) {
+            metrics.partialWrites.increment();
+        }
+        metrics.bytesOut.add(written);
+        OUTBOUND_BYTES.addAndGet(this, -written);
+        return written;
+    }
+
+    /**
+     * 放入本地环形数组，满了按2倍扩容
+     */
+    private void addFlushing(PooledBuffer frame) {
+        if (flushing == null) {
+            flushing = new PooledBuffer[8];
+        } else if (flushingSize == flushing.length) {
+            PooledBuffer[] grown = new PooledBuffer[flushing.length << 1];
+            for (int i = 0; i < flushingSize; i++) {
+                grown[i] = flushing[(flushingHead + i) & (flushing.length - 1)];
+            }
+            flushing = grown;
+            flushingHead = 0;
+        }
+        flushing[(flushingHead + flushingSize) & (flushing.length - 1)] = frame;
+        flushingSize++;
+    }
+
+    /**
+     * 是否有上次没写完的帧，只在worker线程调用
+     *
+     * @return 有返回true
+     */
+    boolean hasFlushing() {
+        return flushingSize > 0;
+    }
+
+    /**
+     * 发送队列或文件传输是否还有数据
+     *
+     * @return 有数据返回true
+     */
+    @Override
+    public boolean hasPendingWrites() {
+        return hasQueuedFrames() || currentTransfer() != null;
+    }
+
+    /**
+     * 发送队列是否还有帧，不含文件传输
+     *
+     * @return 有帧返回true
+     */
+    boolean hasQueuedFrames() {
+        return flushingSize > 0 || !outbound.isEmpty();
+    }
+
+    /**
+     * 排队一个文件传输，只在worker线程调用，开始帧由调用方先放入发送队列
+     *
+     * @param transfer 文件传输
+     */
+    void addTransfer(FileTransfer transfer) {
+        if (transfers == null) {
+            transfers = new ArrayDeque<>(2);
+        }
+        transfers.offer(transfer);
+    }
+
+    /**
+     * 正在发送的文件传输，只在worker线程调用
+     *
+     * @return 没有时返回null
+     */
+    FileTransfer currentTransfer() {
+        return transfers == null ? null : transfers.peek();
+    }
+
+    /**
+     * 移除已经写完的文件传输，只在worker线程调用
+     */
+    void removeTransfer() {
+        transfers.poll();
+    }
+
+    /**
+     * 发送队列中尚未写出的字节数
+     *
+     * @return 字节数
+     */
+    @Override
+    public long getOutboundBytes() {
+        return outboundBytes;
+    }
+
+    /**
+     * 发送队列是否超过了高水位且还没有降到低水位
+     *
+     * @return 超过返回true
+     */
+    @Override
+    public boolean isUnwritable() {
+        return unwritable != 0;
+    }
+
+    /**
+     * 标记为超过高水位，可以在任意线程调用
+     *
+     * @return 本次调用完成了从可写到不可写的切换返回true，已经是不可写返回false
+     */
+    @Override
+    public boolean markUnwritable() {
+        return WRITABILITY.compareAndSet(this, 0, 1);
+    }
+
+    /**
+     * 发送队列降到低水位以下后恢复可写，只在worker线程调用
+     *
+     * @return 本次调用完成了从不可写到可写的切换返回true
+     */
+    boolean markWritable() {
+        return WRITABILITY.compareAndSet(this, 1, 0);
+    }
+
+    /**
+     * 从发送队列头部丢弃最早的帧，直到未写出字节数不超过limit，可以在任意线程调用
+     * worker线程已经搬到本地数组的帧（可能已写出一部分）不丢弃，保证不会写出残缺的帧
+     *
+     * @param limit   字节数上限
+     * @param metrics 所属worker的运行指标
+     * @return 丢弃的字节数
+     */
+    long dropOldest(long limit, WorkerMetrics metrics) {
+        long dropped = 0;
+        PooledBuffer frame;
+        while (outboundBytes - dropped > limit && (frame = outbound.poll()) != null) {
+            metrics.framesDropped.increment();
+            dropped += frame.buffer().remaining();
+            frame.release();
+        }
+        OUTBOUND_BYTES.addAndGet(this, -dropped);
+        return dropped;
+    }
+
+    /**
+     * 连接关闭时归还占用的缓冲区，放弃排队中的文件传输
+     *
+     * @return 丢弃的未写出字节数
+     */
+    long release() {
+        decoder.release();
+        // 之后再有入队会重新投递写出任务，由写出任务负责归还
+        flushState = FLUSH_IDLE;
+        long dropped = 0;
+        PooledBuffer frame;
+        while (flushingSize > 0) {
+            frame = flushing[flushingHead];
+            flushing[flushingHead] = null;
+            flushingHead = (flushingHead + 1) & (flushing.length - 1);
+            flushingSize--;
+            dropped += frame.buffer().remaining();
+            frame.release();
+        }
+        while ((frame = outbound.poll()) != null) {
+            dropped += frame.buffer().remaining();
+            frame.release();
+        }
+        FileTransfer transfer;
+        while (transfers != null && (transfer = transfers.poll()) != null) {
+            transfer.abort();
+        }
+        OUTBOUND_BYTES.addAndGet(this, -dropped);
+        return dropped;
+    }
+}
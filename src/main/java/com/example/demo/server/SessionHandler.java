@@ -0,0 +1,390 @@
+package com.example.demo.server;
+
+import com.example.demo.buffer.BufferPool;
+import com.example.demo.buffer.PooledBuffer;
+import com.example.demo.cluster.ClusterNode;
+import com.example.demo.codec.FrameCodec;
+import lombok.extern.slf4j.Slf4j;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author mark
+ * @date 2022/9/19 10:00
+ * @describe 会话处理器：两个引擎共用的协议状态机，处理登录、聊天、断开指令、ping、集群握手和下线，
+ * 以及空闲检测和高水位的判断，引擎解码出帧后交给这里，保证selector引擎和虚拟线程引擎的协议行为完全一致
+ * 线程安全，一个引擎一个实例，所有连接共用
+ */
+@Slf4j
+class SessionHandler<C extends Connection> {
+
+    /**
+     * 登录指令前两位字符
+     */
+    private static final String LO = "lo";
+
+    /**
+     * 登录消息的最短长度：login + 两位客户端ID
+     */
+    private static final int LOGIN_LENGTH = 7;
+
+    /**
+     * 溢出策略：丢弃新到的帧，已排队的帧照常写出
+     */
+    static final String DROP_NEWEST = "drop-newest";
+
+    /**
+     * 溢出策略：新帧入队，从队头丢弃最早还没开始写出的帧
+     */
+    static final String DROP_OLDEST = "drop-oldest";
+
+    /**
+     * 溢出策略：断开连接，不丢弃任何已接收的帧
+     */
+    static final String DISCONNECT = "disconnect";
+
+    /**
+     * 入站事件监听器
+     */
+    private final ServerListener listener;
+
+    /**
+     * 集群节点，没有开启集群时为null
+     */
+    private final ClusterNode cluster;
+
+    /**
+     * 客户端ID到已登录连接的注册表
+     */
+    private final SessionRegistry<C> sessions = new SessionRegistry<>();
+
+    /**
+     * 单个连接发送队列的高水位，小于等于0表示不限制
+     */
+    private final long highWaterMark;
+
+    /**
+     * 超过高水位时的溢出策略
+     */
+    private final String overflowPolicy;
+
+    /**
+     * 多久没有收到数据就发送ping（纳秒），0表示不发送
+     */
+    private final long pingIntervalNanos;
+
+    /**
+     * 多久没有收到数据就断开（纳秒），0表示不检测
+     */
+    private final long readIdleNanos;
+
+    /**
+     * 有待写出数据时多久没有写出就断开（纳秒），0表示不检测
+     */
+    private final long writeIdleNanos;
+
+    SessionHandler(WorkerOptions options, ServerListener listener, ClusterNode cluster) {
+        this.listener = listener;
+        this.cluster = cluster;
+        this.highWaterMark = options.getHighWaterMark();
+        this.overflowPolicy = options.getOverflowPolicy();
+        switch (overflowPolicy) {
+            case DROP_NEWEST:
+            case DROP_OLDEST:
+            case DISCONNECT:
+                break;
+            default:
+                throw new IllegalArgumentException("未知的溢出策略:" + overflowPolicy);
+        }
+        this.pingIntervalNanos = TimeUnit.SECONDS.toNanos(Math.max(0, options.getPingIntervalSeconds()));
+        this.readIdleNanos = TimeUnit.SECONDS.toNanos(Math.max(0, options.getReadIdleTimeoutSeconds()));
+        this.writeIdleNanos = TimeUnit.SECONDS.toNanos(Math.max(0, options.getWriteIdleTimeoutSeconds()));
+    }
+
+    /**
+     * 获取会话注册表
+     *
+     * @return 会话注册表
+     */
+    SessionRegistry<C> getSessions() {
+        return sessions;
+    }
+
+    /**
+     * 处理一个完整的数据帧
+     *
+     * @param connection 连接
+     * @param frame      帧内容
+     */
+    void onFrame(C connection, ByteBuffer frame) {
+        // 前面的帧已经导致连接断开，后面的帧不再处理
+        if (connection.isClosed()) {
+            return;
+        }
+        connection.metrics().framesDecoded.increment();
+        String msg = FrameCodec.decodeToString(frame);
+        if (connection.getPeer() != null) {
+            // 其他节点转发来的消息
+            cluster.receive(connection.getPeer(), msg);
+            return;
+        }
+        // 现在只有两种情况：第一种情况这个消息为登录消息消息,格式为：login+clientId，另一种情况:此消息是个普通消息
+        // 第一个消息只能是登录消息消息格式为：login+clientId。所以前两个字母只能是lo。
+        // 登录之后的消息都是普通消息，以lo开头的聊天消息也要交给监听器
+        if (connection.getClientId() == null && msg.startsWith(LO)) {
+            login(msg, connection);
+        } else {
+            handleChatMsg(msg, connection);
+        }
+    }
+
+    /**
+     * 处理控制帧：收到ping回复pong，收到pong只需要更新读时间，读到数据时已经更新过了
+     *
+     * @param connection 连接
+     * @param type       控制类型
+     */
+    void onControl(C connection, int type) {
+        if (type == FrameCodec.PING && !connection.isClosed()) {
+            connection.writeAndFlush(FrameCodec.encodeControl(FrameCodec.PONG, BufferPool.DEFAULT));
+        }
+    }
+
+    /**
+     * 处理集群控制帧：未登录的连接发来的第一个集群控制帧必须是握手，握手后的连接是其他节点连进来的
+     *
+     * @param connection 连接
+     * @param payload    控制类型之后的参数
+     */
+    void onCluster(C connection, ByteBuffer payload) {
+        if (connection.isClosed()) {
+            return;
+        }
+        if (connection.getPeer() != null) {
+            cluster.receive(connection.getPeer(), payload);
+            return;
+        }
+        // 没有开启集群、已登录的客户端或者握手失败都断开连接
+        if (cluster == null || connection.getClientId() != null) {
+            offLine(connection);
+            return;
+        }
+        connection.setPeer(cluster.handshake(payload));
+        if (connection.getPeer() == null) {
+            offLine(connection);
+        }
+    }
+
+    /**
+     * 处理普通消息
+     *
+     * @param message    聊天消息
+     * @param connection 连接
+     */
+    private void handleChatMsg(String message, C connection) {
+        // 如果不是登录消息则判断这个连接是否已登录如果没登录说明他发的第一个消息不是登录消息则断开连接，如果已登录则有两种情况
+        // 第一种情况是个普通消息，则交给监听器。另一种情况这个消息是个主动断开连接消息--disconnect-server+clientId
+        String clientId = connection.getClientId();
+        if (clientId != null) {
+            if (message.length() > 4 && message.charAt(4) == 'd') {
+                // 如果是断开客户端连接就是断开相应的客户端连接
+                offLine(connection);
+            } else {
+                // 如果是普通消息就交给监听器
+                listener.onMessage(clientId, message);
+            }
+        } else {
+            // 这种情况说明他发的第一个消息不是登录消息需要直接断开连接
+            connection.close();
+        }
+    }
+
+    /**
+     * 登录服务端方法
+     *
+     * @param msg        登录消息
+     * @param connection 连接
+     */
+    private void login(String msg, C connection) {
+        if (msg.length() < LOGIN_LENGTH) {
+            // 不完整的登录消息只断开这一个连接
+            log.warn("=====收到不完整的登录消息，断开连接");
+            connection.close();
+            return;
+        }
+        // 获取客户端ID
+        String clientId = msg.substring(5, LOGIN_LENGTH);
+        if (cluster != null) {
+            PooledBuffer redirect = cluster.redirect(clientId);
+            if (redirect != null) {
+                // 按一致性哈希不归属本节点，告诉客户端重连到归属节点，不登记登录，之后再发聊天消息会被断开
+                log.info("========客户端{}重定向到归属节点", clientId);
+                connection.writeAndFlush(redirect);
+                return;
+            }
+        }
+        connection.setClientId(clientId);
+        connection.metrics().logins.increment();
+        // 判断是不是第一次登录，如果注册表里已经有这个客户端ID的连接，则断开之前的连接,并只保留现在这个连接
+        C previous = sessions.bind(clientId, connection);
+        if (connection.isClosed()) {
+            // 登记前连接已经被其他线程关闭（虚拟线程引擎的写线程或者溢出断开），撤销登记
+            sessions.unbind(clientId, connection);
+            return;
+        }
+        if (cluster != null) {
+            // 登录成功后把当前的哈希环发给客户端缓存，在离线消息之前写出
+            PooledBuffer route = cluster.route();
+            if (route != null) {
+                connection.writeAndFlush(route);
+            }
+        }
+        if (previous != null) {
+            // 旧连接已经不在注册表里，断开时不显示下线信息
+            previous.kick();
+        } else {
+            // 此情况为用户第一次登录
+            log.info("========客户端登录client{}", clientId);
+            listener.onConnected(clientId);
+        }
+    }
+
+    /**
+     * 关闭连接并移除下线的客户端，注册表里登记的还是这个连接时才通知下线，同一个连接只通知一次
+     *
+     * @param connection 要下线的连接
+     */
+    void offLine(C connection) {
+        connection.close();
+        if (connection.getPeer() != null) {
+            cluster.closed(connection.getPeer());
+            return;
+        }
+        String clientId = connection.getClientId();
+        // 只有注册表里登记的还是这个连接才算下线，被重复登录踢掉的旧连接不显示
+        if (clientId != null && sessions.unbind(clientId, connection)) {
+            connection.metrics().disconnects.increment();
+            log.info("========客户端下线client{}", clientId);
+            listener.onDisconnected(clientId);
+        }
+    }
+
+    /**
+     * 空闲检查：读空闲或写空闲超时则按下线处理，读空闲超过ping间隔则发送ping
+     * 暂停读取期间读不到数据是本端造成的，不算读空闲
+     *
+     * @param connection 连接
+     * @param now        当前时间（纳秒）
+     * @return 连接因超时断开返回false
+     */
+    boolean idleCheck(C connection, long now) {
+        if (connection.isReadPaused()) {
+            connection.setLastReadNanos(now);
+        }
+        if (readIdleNanos > 0 && now - connection.getLastReadNanos() >= readIdleNanos) {
+            evict(connection, "读");
+            return false;
+        }
+        if (writeIdleNanos > 0 && connection.hasPendingWrites() && now - connection.getLastWriteNanos() >= writeIdleNanos) {
+            evict(connection, "写");
+            return false;
+        }
+        if (pingIntervalNanos > 0 && now - Math.max(connection.getLastReadNanos(), connection.getLastPingNanos()) >= pingIntervalNanos) {
+            connection.setLastPingNanos(now);
+            connection.metrics().pingsSent.increment();
+            connection.writeAndFlush(FrameCodec.encodeControl(FrameCodec.PING, BufferPool.DEFAULT));
+        }
+        return true;
+    }
+
+    /**
+     * 按连接最近的读写时间计算下一次空闲检查的时间
+     *
+     * @param connection 连接
+     * @param now        当前时间（纳秒）
+     * @return 纳秒，三个超时都没有配置时返回Long.MAX_VALUE
+     */
+    long nextIdleCheck(C connection, long now) {
+        long deadline = Long.MAX_VALUE;
+        if (readIdleNanos > 0) {
+            deadline = connection.getLastReadNanos() + readIdleNanos;
+        }
+        if (pingIntervalNanos > 0) {
+            // 一直没有收到数据时每隔一个间隔发送一次
+            deadline = Math.min(deadline, Math.max(connection.getLastReadNanos(), connection.getLastPingNanos()) + pingIntervalNanos);
+        }
+        if (writeIdleNanos > 0) {
+            // 没有待写出数据时也定期检查，之后积压的连接最迟两个超时周期内被发现
+            long since = connection.hasPendingWrites() ? connection.getLastWriteNanos() : now;
+            deadline = Math.min(deadline, since + writeIdleNanos);
+        }
+        return deadline;
+    }
+
+    /**
+     * 三个空闲超时中最短的一个
+     *
+     * @return 纳秒，都没有配置时返回0
+     */
+    long shortestIdleNanos() {
+        long shortest = Long.MAX_VALUE;
+        for (long nanos : new long[]{pingIntervalNanos, readIdleNanos, writeIdleNanos}) {
+            if (nanos > 0) {
+                shortest = Math.min(shortest, nanos);
+            }
+        }
+        return shortest == Long.MAX_VALUE ? 0 : shortest;
+    }
+
+    /**
+     * 断开空闲超时的连接，和客户端主动断开走同一套清理
+     *
+     * @param connection 连接
+     * @param type       读/写
+     */
+    private void evict(C connection, String type) {
+        connection.metrics().idleEvictions.increment();
+        log.info("=====客户端{}{}空闲超时，断开连接", connection.getClientId(), type);
+        offLine(connection);
+    }
+
+    /**
+     * 判断放入这个帧后发送队列是否超过高水位，超过后直到写出到低水位之前都算超过，可以在任意线程调用
+     * 发送队列为空时总是放行，保证单个超过高水位的大消息也能发出
+     * 刚超过时按disconnect策略安排下线，不在调用方线程里回调监听器
+     *
+     * @param connection 连接
+     * @param bytes      帧的字节数
+     * @return 超过返回true，没有配置高水位总是返回false
+     */
+    boolean isOverHighWater(C connection, int bytes) {
+        if (highWaterMark <= 0) {
+            return false;
+        }
+        if (connection.isUnwritable()) {
+            return true;
+        }
+        long queued = connection.getOutboundBytes();
+        if (queued == 0 || queued + bytes <= highWaterMark) {
+            return false;
+        }
+        if (connection.markUnwritable()) {
+            connection.metrics().highWaterMarks.increment();
+            log.warn("=====客户端{}发送队列积压{}字节超过高水位，按{}处理", connection.getClientId(), queued, overflowPolicy);
+            if (DISCONNECT.equals(overflowPolicy)) {
+                connection.execute(() -> offLine(connection));
+            }
+            // 其余策略下发送队列不为空，随后的写出会暂停读取，直到写出到低水位以下
+        }
+        return true;
+    }
+
+    /**
+     * 超过高水位时新帧是否仍然入队（再从队头丢弃最早的帧），否则直接丢弃新帧
+     *
+     * @return drop-oldest策略返回true
+     */
+    boolean isDropOldest() {
+        return DROP_OLDEST.equals(overflowPolicy);
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.demo.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * @author mark
+ * @date 2022/8/18 09:40
+ * @describe 会话注册表：客户端ID到会话的索引，按连接到会话的方向由SelectionKey的attachment完成，两个方向都是O(1)
+ * 只在登录、重复登录踢下线和下线时修改，聊天消息的处理路径上不访问
+ * 两个引擎共用，selector引擎登记Session，虚拟线程引擎登记VirtualConnection
+ */
+class SessionRegistry<C extends Connection> {
+
+    /**
+     * key是客户端ID，value是已登录的会话
+     */
+    private final ConcurrentHashMap<String, C> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * 根据客户端ID查找会话
+     *
+     * @param clientId 客户端ID
+     * @return 会话，不在线返回null
+     */
+    C get(String clientId) {
+        return sessions.get(clientId);
+    }
+
+    /**
+     * 登记会话
+     *
+     * @param clientId 客户端ID
+     * @param session  会话
+     * @return 同一个客户端ID之前登记的会话，首次登录返回null
+     */
+    C bind(String clientId, C session) {
+        return sessions.put(clientId, session);
+    }
+
+    /**
+     * 解除登记，只有登记的仍然是这个会话时才移除，避免重复登录时误删新会话
+     *
+     * @param clientId 客户端ID
+     * @param session  会话
+     * @return 移除成功返回true
+     */
+    boolean unbind(String clientId, C session) {
+        return sessions.remove(clientId, session);
+    }
+
+    /**
+     * 遍历所有已登录的会话，遍历期间的登录和下线不一定能看到
+     *
+     * @param action 回调
+     */
+    void forEach(BiConsumer<String, ? super C> action) {
+        sessions.forEach(action);
+    }
+
+    /**
+     * 在线会话数
+     *
+     * @return 会话数
+     */
+    int size() {
+        return sessions.size();
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.demo.server;
+
+import com.example.demo.topic.TopicTrie;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * @author mark
+ * @date 2022/9/20 10:00
+ * @describe 处理客户端的订阅命令：--subscribe+过滤器订阅，--unsubscribe+过滤器取消订阅，
+ * 命令不再交给其他监听器；客户端下线时取消它的所有订阅，其余事件原样转给其他监听器
+ */
+@Slf4j
+class TopicListener implements ServerListener {
+
+    /**
+     * 订阅命令
+     */
+    static final String SUBSCRIBE = "--subscribe";
+
+    /**
+     * 取消订阅命令
+     */
+    static final String UNSUBSCRIBE = "--unsubscribe";
+
+    private final TopicTrie topics;
+
+    private final ServerListener delegate;
+
+    TopicListener(TopicTrie topics, ServerListener delegate) {
+        this.topics = topics;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void onConnected(String clientId) {
+        delegate.onConnected(clientId);
+    }
+
+    @Override
+    public void onMessage(String clientId, String message) {
+        try {
+            if (message.startsWith(SUBSCRIBE)) {
+                String filter = message.substring(SUBSCRIBE.length());
+                if (!topics.subscribe(clientId, filter)) {
+                    log.warn("=====客户端{}订阅{}失败，已经订阅过或者超过订阅上限", clientId, filter);
+                }
+                return;
+            }
+            if (message.startsWith(UNSUBSCRIBE)) {
+                topics.unsubscribe(clientId, message.substring(UNSUBSCRIBE.length()));
+                return;
+            }
+        } catch (IllegalArgumentException e) {
+            log.warn("=====客户端{}的订阅命令不合法{}", clientId, e.getMessage());
+            return;
+        }
+        delegate.onMessage(clientId, message);
+    }
+
+    @Override
+    public void onDisconnected(String clientId) {
+        topics.unsubscribeAll(clientId);
+        delegate.onDisconnected(clientId);
+    }
+}
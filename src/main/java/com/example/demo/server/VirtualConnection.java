@@ -0,0 +1,589 @@
+package com.example.demo.server;
+
+import com.example.demo.buffer.PooledBuffer;
+import com.example.demo.cluster.PeerSession;
+import com.example.demo.codec.FrameCodec;
+import com.example.demo.codec.FrameDecoder;
+import com.example.demo.codec.FrameHandler;
+import lombok.extern.slf4j.Slf4j;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author mark
+ * @date 2022/9/15 10:00
+ * @describe 虚拟线程引擎的连接：读线程阻塞读取、解码并处理消息；其他线程只往发送队列入队，
+ * 队列有数据时启动一个写线程用阻塞的gather写出，写完退出，空闲连接只占一个阻塞在读上的虚拟线程
+ * 文件传输也由写线程完成，发送队列写空后用阻塞的transferTo写一批文件数据，再回来检查发送队列
+ * 阻塞时虚拟线程会让出载体线程，这里不使用synchronized，用ReentrantLock等待恢复读取，避免把虚拟线程钉在载体线程上
+ */
+@Slf4j
+class VirtualConnection implements FrameHandler, Connection {
+
+    /**
+     * 每个连接的读缓冲区大小，读线程阻塞时一直持有
+     */
+    private static final int READ_BUFFER_SIZE = 2048;
+
+    private static final AtomicIntegerFieldUpdater<VirtualConnection> WRITING =
+            AtomicIntegerFieldUpdater.newUpdater(VirtualConnection.class, "writing");
+
+    private static final AtomicIntegerFieldUpdater<VirtualConnection> WRITABILITY =
+            AtomicIntegerFieldUpdater.newUpdater(VirtualConnection.class, "unwritable");
+
+    private static final AtomicIntegerFieldUpdater<VirtualConnection> CLOSED =
+            AtomicIntegerFieldUpdater.newUpdater(VirtualConnection.class, "closed");
+
+    private static final AtomicLongFieldUpdater<VirtualConnection> OUTBOUND_BYTES =
+            AtomicLongFieldUpdater.newUpdater(VirtualConnection.class, "outboundBytes");
+
+    /**
+     * 阻塞模式的信道
+     */
+    private final SocketChannel channel;
+
+    /**
+     * 所属引擎
+     */
+    private final VirtualThreadServerEngine engine;
+
+    /**
+     * 登录后的客户端ID，未登录为null
+     */
+    volatile String clientId;
+
+    /**
+     * 其他节点连进来的连接握手后的状态，客户端连接为null
+     */
+    volatile PeerSession peer;
+
+    /**
+     * 帧解码器，只由读线程访问
+     */
+    private final FrameDecoder decoder = new FrameDecoder();
+
+    /**
+     * 发送队列，里面是已编码好的帧
+     */
+    private final ConcurrentLinkedQueue<PooledBuffer> outbound = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 排队中的文件传输，其他线程入队，写线程按顺序逐个发送
+     */
+    private final ConcurrentLinkedQueue<FileTransfer> transfers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 发送队列中尚未写出的字节数
+     */
+    private volatile long outboundBytes;
+
+    /**
+     * 是否有写线程在运行，同一时间最多一个
+     */
+    private volatile int writing;
+
+    /**
+     * 发送队列超过高水位后置1，写出到低水位以下才恢复0，期间按溢出策略处理新的帧并暂停读取
+     */
+    private volatile int unwritable;
+
+    private volatile int closed;
+
+    /**
+     * 是否被调用方暂停读取
+     */
+    private volatile boolean readSuspended;
+
+    /**
+     * 暂停读取时读线程在这里等待
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition readable = lock.newCondition();
+
+    /**
+     * 最近一次读到数据的时间（纳秒）
+     */
+    volatile long lastReadNanos;
+
+    /**
+     * 最近一次写出数据的时间（纳秒）
+     */
+    volatile long lastWriteNanos;
+
+    /**
+     * 最近一次发送ping的时间（纳秒）
+     */
+    volatile long lastPingNanos;
+
+    VirtualConnection(SocketChannel channel, VirtualThreadServerEngine engine) {
+        this.channel = channel;
+        this.engine = engine;
+        this.lastReadNanos = this.lastWriteNanos = System.nanoTime();
+    }
+
+    /**
+     * 读线程：阻塞读取直到连接关闭，读超时醒来做空闲检查
+     */
+    void serve() {
+        byte[] bytes = new byte[READ_BUFFER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long checkNanos = TimeUnit.MILLISECONDS.toNanos(engine.checkIntervalMillis);
+        long lastCheckNanos = System.nanoTime();
+        try {
+            Socket socket = channel.socket();
+            socket.setSoTimeout(engine.checkIntervalMillis);
+            InputStream in = socket.getInputStream();
+            while (awaitReadable()) {
+                int read;
+                try {
+                    read = in.read(bytes);
+                } catch (SocketTimeoutException e) {
+                    lastCheckNanos = System.nanoTime();
+                    if (!engine.handler.idleCheck(this, System.nanoTime())) {
+                        return;
+                    }
+                    continue;
+                }
+                if (read == -1) {
+                    // 客户端正常断开
+                    engine.handler.offLine(this);
+                    return;
+                }
+                long now = System.nanoTime();
+                lastReadNanos = now;
+                engine.metrics.bytesIn.add(read);
+                buffer.clear();
+                buffer.limit(read);
+                decoder.decode(buffer, this);
+                // 一直有数据可读时读超时不会触发，按间隔检查写空闲
+                if (checkNanos > 0 && now - lastCheckNanos >= checkNanos) {
+                    lastCheckNanos = now;
+                    if (!engine.handler.idleCheck(this, System.nanoTime())) {
+                        return;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (!isClosed()) {
+                log.error("===========客户端断开了连接~~");
+            }
+            engine.handler.offLine(this);
+        } catch (RuntimeException e) {
+            // 单个连接的处理异常（包括监听器抛出的）只断开这一个连接，不影响其他连接
+            log.error("=====处理客户端{}的数据异常，断开连接{}", clientId, e);
+            try {
+                engine.handler.offLine(this);
+            } catch (RuntimeException ex) {
+                log.error("=====客户端{}下线处理异常{}", clientId, ex);
+            }
+        } finally {
+            decoder.release();
+        }
+    }
+
+    @Override
+    public void onFrame(ByteBuffer frame) {
+        engine.handler.onFrame(this, frame);
+    }
+
+    @Override
+    public void onControl(int type) {
+        engine.handler.onControl(this, type);
+    }
+
+    @Override
+    public void onCluster(ByteBuffer payload) {
+        engine.handler.onCluster(this, payload);
+    }
+
+    @Override
+    public String getClientId() {
+        return clientId;
+    }
+
+    @Override
+    public void setClientId(String clientId) {
+        this.clientId = clientId;
+    }
+
+    @Override
+    public PeerSession getPeer() {
+        return peer;
+    }
+
+    @Override
+    public void setPeer(PeerSession peer) {
+        this.peer = peer;
+    }
+
+    @Override
+    public boolean writeAndFlush(PooledBuffer frame) {
+        return write(frame);
+    }
+
+    @Override
+    public void kick() {
+        log.info("==========同一个客户端登录断开之前客户端连接=======");
+        close();
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        engine.threads.newThread(task).start();
+    }
+
+    @Override
+    public WorkerMetrics metrics() {
+        return engine.metrics;
+    }
+
+    @Override
+    public long getLastReadNanos() {
+        return lastReadNanos;
+    }
+
+    @Override
+    public void setLastReadNanos(long nanos) {
+        lastReadNanos = nanos;
+    }
+
+    @Override
+    public long getLastWriteNanos() {
+        return lastWriteNanos;
+    }
+
+    @Override
+    public long getLastPingNanos() {
+        return lastPingNanos;
+    }
+
+    @Override
+    public void setLastPingNanos(long nanos) {
+        lastPingNanos = nanos;
+    }
+
+    /**
+     * 暂停读取期间在这里等待，按读超时醒来做空闲检查
+     *
+     * @return 连接仍然打开、可以继续读取返回true
+     */
+    private boolean awaitReadable() {
+        if (!isReadPaused()) {
+            return !isClosed();
+        }
+        lock.lock();
+        try {
+            while (isReadPaused() && !isClosed()) {
+                if (engine.checkIntervalMillis > 0) {
+                    readable.await(engine.checkIntervalMillis, TimeUnit.MILLISECONDS);
+                    if (!engine.handler.idleCheck(this, System.nanoTime())) {
+                        return false;
+                    }
+                } else {
+                    readable.await();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            engine.handler.offLine(this);
+            return false;
+        } finally {
+            lock.unlock();
+        }
+        return !isClosed();
+    }
+
+    /**
+     * 唤醒等待恢复读取的读线程
+     */
+    private void signalReadable() {
+        lock.lock();
+        try {
+            readable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 暂停或恢复读取，可以在任意线程调用
+     *
+     * @param suspended true暂停，false恢复
+     */
+    void suspendRead(boolean suspended) {
+        readSuspended = suspended;
+        if (!suspended) {
+            signalReadable();
+        }
+    }
+
+    /**
+     * 被调用方暂停读取或者发送队列超过高水位时不读取，不读取就不会处理该客户端的请求，也就不会继续产生回复
+     *
+     * @return 暂停读取返回true
+     */
+    @Override
+    public boolean isReadPaused() {
+        return readSuspended || unwritable != 0;
+    }
+
+    /**
+     * 把帧放入发送队列并确保有写线程在写出，可以在任意线程调用
+     *
+     * @param frame 已编码好的帧，调用后所有权转移给发送队列
+     * @return 连接已关闭或者帧被溢出策略丢弃返回false
+     */
+    boolean write(PooledBuffer frame) {
+        if (isClosed()) {
+            frame.release();
+            return false;
+        }
+        int bytes = frame.buffer().remaining();
+        boolean overflow = engine.handler.isOverHighWater(this, bytes);
+        if (overflow && !engine.handler.isDropOldest()) {
+            // drop-newest直接丢弃；disconnect已经安排断开，断开前到达的帧也不再入队
+            engine.metrics.framesDropped.increment();
+            frame.release();
+            return false;
+        }
+        OUTBOUND_BYTES.addAndGet(this, bytes);
+        engine.metrics.outboundBytes.add(bytes);
+        outbound.offer(frame);
+        if (overflow) {
+            dropOldest(engine.highWaterMark);
+        }
+        if (isClosed()) {
+            // 和close并发时close可能已经清空过发送队列，归还刚入队的帧
+            drain();
+            return false;
+        }
+        if (WRITING.compareAndSet(this, 0, 1)) {
+            engine.threads.newThread(this::writeLoop).start();
+        }
+        return true;
+    }
+
+    /**
+     * 发送文件，可以在任意线程调用：开始帧进入发送队列，文件内容由写线程在发送队列写空后写出
+     *
+     * @param source 文件，调用方为本次调用持有一次引用，传输结束或放弃后释放
+     */
+    void sendFile(FileSource source) {
+        FileTransfer transfer = new FileTransfer(source, clientId);
+        // 开始帧和聊天帧一样受高水位限制，被丢弃时放弃这次传输，接收方不会收到没有开始帧的数据
+        if (!write(transfer.begin())) {
+            transfer.abort();
+            return;
+        }
+        transfers.offer(transfer);
+        if (isClosed()) {
+            drainTransfers();
+            return;
+        }
+        if (WRITING.compareAndSet(this, 0, 1)) {
+            engine.threads.newThread(this::writeLoop).start();
+        }
+    }
+
+    @Override
+    public long getOutboundBytes() {
+        return outboundBytes;
+    }
+
+    @Override
+    public boolean isUnwritable() {
+        return unwritable != 0;
+    }
+
+    @Override
+    public boolean markUnwritable() {
+        return WRITABILITY.compareAndSet(this, 0, 1);
+    }
+
+    /**
+     * 写线程：每次从发送队列取出一批帧用一次gather写出，阻塞直到写完；发送队列空了写一批文件数据，都写完了退出
+     */
+    private void writeLoop() {
+        ByteBuffer[] gather = new ByteBuffer[engine.maxFlushFrames];
+        PooledBuffer[] frames = new PooledBuffer[engine.maxFlushFrames];
+        int count = 0;
+        long bytes = 0;
+        try {
+            while (true) {
+                bytes = 0;
+                PooledBuffer frame;
+                while (count < frames.length && (count == 0 || bytes < engine.maxFlushBytes)
+                        && (frame = outbound.poll()) != null) {
+                    frames[count] = frame;
+                    gather[count] = frame.buffer();
+                    bytes += frame.buffer().remaining();
+                    count++;
+                }
+                if (count == 0) {
+                    FileTransfer transfer = transfers.peek();
+                    if (transfer != null) {
+                        writeFile(transfer);
+                        continue;
+                    }
+                    writing = 0;
+                    // 清除标记前入队的帧没有启动新的写线程，由本线程继续写出
+                    if ((outbound.isEmpty() && transfers.isEmpty()) || !WRITING.compareAndSet(this, 0, 1)) {
+                        return;
+                    }
+                    continue;
+                }
+                long written = 0;
+                while (written < bytes) {
+                    long n = channel.write(gather, 0, count);
+                    if (written == 0 && n < bytes) {
+                        engine.metrics.partialWrites.increment();
+                    }
+                    written += n;
+                }
+                lastWriteNanos = System.nanoTime();
+                engine.metrics.bytesOut.add(written);
+                engine.metrics.framesWritten.add(count);
+                OUTBOUND_BYTES.addAndGet(this, -written);
+                engine.metrics.outboundBytes.add(-written);
+                for (int i = 0; i < count; i++) {
+                    frames[i].release();
+                    frames[i] = null;
+                    gather[i] = null;
+                }
+                count = 0;
+                if (unwritable != 0 && outboundBytes <= engine.lowWaterMark && WRITABILITY.compareAndSet(this, 1, 0)) {
+                    signalReadable();
+                }
+            }
+        } catch (IOException e) {
+            if (!isClosed()) {
+                log.error("===========发送消息给客户端失败{}", e.getMessage());
+            }
+            // 本批已取出的帧不再写出，整批从未写出字节数里扣除
+            for (int i = 0; i < count; i++) {
+                frames[i].release();
+            }
+            OUTBOUND_BYTES.addAndGet(this, -bytes);
+            engine.metrics.outboundBytes.add(-bytes);
+            engine.handler.offLine(this);
+        }
+    }
+
+    /**
+     * 用阻塞的transferTo写出一批文件数据，最多一次写出预算，停在帧的边界上，之后入队的聊天帧不用等整个文件
+     * 数据帧全部写出后放入结束帧
+     *
+     * @param transfer 当前文件传输
+     * @throws IOException IO异常，或者文件在发送过程中被截断
+     */
+    private void writeFile(FileTransfer transfer) throws IOException {
+        long written = transfer.writeTo(channel, engine.maxFlushBytes);
+        while (transfer.isInChunk()) {
+            written += transfer.writeTo(channel, FrameCodec.FILE_CHUNK_SIZE);
+        }
+        lastWriteNanos = System.nanoTime();
+        engine.metrics.bytesOut.add(written);
+        engine.metrics.fileBytesOut.add(written);
+        // 和close并发时传输已经被close移除并放弃
+        if (transfer.isDone() && transfers.remove(transfer)) {
+            // 结束帧不受高水位限制，接收方靠它确认文件完整
+            PooledBuffer end = transfer.end();
+            int bytes = end.buffer().remaining();
+            OUTBOUND_BYTES.addAndGet(this, bytes);
+            engine.metrics.outboundBytes.add(bytes);
+            outbound.offer(end);
+            engine.metrics.filesSent.increment();
+            transfer.complete();
+            if (isClosed()) {
+                drain();
+            }
+        }
+    }
+
+    /**
+     * 从发送队列头部丢弃最早的帧，直到未写出字节数不超过limit，写线程已经取出的帧不丢弃
+     *
+     * @param limit 字节数上限
+     */
+    private void dropOldest(long limit) {
+        long dropped = 0;
+        PooledBuffer frame;
+        while (outboundBytes - dropped > limit && (frame = outbound.poll()) != null) {
+            engine.metrics.framesDropped.increment();
+            dropped += frame.buffer().remaining();
+            frame.release();
+        }
+        OUTBOUND_BYTES.addAndGet(this, -dropped);
+        engine.metrics.outboundBytes.add(-dropped);
+    }
+
+    /**
+     * 归还发送队列中的全部帧
+     */
+    private void drain() {
+        long dropped = 0;
+        PooledBuffer frame;
+        while ((frame = outbound.poll()) != null) {
+            dropped += frame.buffer().remaining();
+            frame.release();
+        }
+        OUTBOUND_BYTES.addAndGet(this, -dropped);
+        engine.metrics.outboundBytes.add(-dropped);
+    }
+
+    /**
+     * 放弃排队中的全部文件传输
+     */
+    private void drainTransfers() {
+        FileTransfer transfer;
+        while ((transfer = transfers.poll()) != null) {
+            transfer.abort();
+        }
+    }
+
+    /**
+     * 发送队列或文件传输是否还有数据
+     *
+     * @return 有数据返回true
+     */
+    @Override
+    public boolean hasPendingWrites() {
+        return outboundBytes > 0 || !transfers.isEmpty();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed != 0;
+    }
+
+    /**
+     * 关闭连接，可以在任意线程调用，重复调用什么也不做
+     * 阻塞在读写上的线程会因信道关闭抛出异常退出，解码器由读线程退出时归还
+     */
+    @Override
+    public void close() {
+        if (!CLOSED.compareAndSet(this, 0, 1)) {
+            return;
+        }
+        engine.connections.decrementAndGet();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.error("=====关闭客户端信道异常{}", e);
+        }
+        drain();
+        drainTransfers();
+        signalReadable();
+    }
+}
@@ -0,0 +1,252 @@
+package com.example.demo.server;
+
+import com.example.demo.buffer.PooledBuffer;
+import com.example.demo.cluster.ClusterNode;
+import com.example.demo.metrics.PrometheusWriter;
+import lombok.extern.slf4j.Slf4j;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * @author mark
+ * @date 2022/9/15 10:00
+ * @describe 虚拟线程引擎：每个连接一个虚拟线程用阻塞IO读取和解码，发送队列有数据时临时启动一个虚拟线程写出
+ * 协议处理、监听器回调、高低水位、心跳和空闲检测和selector引擎共用SessionHandler，行为一致，便于同场景对比
+ * 项目按Java 8编译，虚拟线程的API通过反射获取，运行时低于Java 21时启动失败，selector引擎不受影响
+ */
+@Slf4j
+class VirtualThreadServerEngine implements ServerEngine {
+
+    /**
+     * accept失败（例如文件描述符耗尽）后暂停接入的时间
+     */
+    private static final long ERROR_BACKOFF_MILLIS = 100;
+
+    /**
+     * 监听端口
+     */
+    private final int port;
+
+    /**
+     * 监听socket的等待队列长度
+     */
+    private final int backlog;
+
+    /**
+     * 会话处理器，协议状态机、空闲检测和高水位判断都在这里，和selector引擎共用，持有客户端ID到连接的注册表
+     */
+    final SessionHandler<VirtualConnection> handler;
+
+    /**
+     * 创建虚拟线程
+     */
+    final ThreadFactory threads;
+
+    /**
+     * 当前连接数
+     */
+    final AtomicInteger connections = new AtomicInteger();
+
+    /**
+     * accept失败的次数
+     */
+    private final LongAdder acceptErrors = new LongAdder();
+
+    /**
+     * 运行指标，整个引擎一份
+     */
+    final WorkerMetrics metrics = new WorkerMetrics();
+
+    /**
+     * 单次写出最多合并的字节数
+     */
+    final int maxFlushBytes;
+
+    /**
+     * 单次写出最多合并的帧数
+     */
+    final int maxFlushFrames;
+
+    /**
+     * 单个连接发送队列的高水位，小于等于0表示不限制
+     */
+    final long highWaterMark;
+
+    /**
+     * 单个连接发送队列的低水位
+     */
+    final long lowWaterMark;
+
+    /**
+     * 读超时（毫秒），读线程每隔这么久醒来做一次空闲检查，0表示不检查
+     */
+    final int checkIntervalMillis;
+
+    VirtualThreadServerEngine(int port, int backlog, WorkerOptions options, ServerListener listener, ClusterNode cluster) {
+        this.port = port;
+        this.backlog = backlog;
+        this.handler = new SessionHandler<>(options, listener, cluster);
+        this.threads = virtualThreadFactory();
+        this.maxFlushBytes = options.getMaxFlushBytes();
+        this.maxFlushFrames = Math.max(1, options.getMaxFlushFrames());
+        this.highWaterMark = options.getHighWaterMark();
+        this.lowWaterMark = Math.min(options.getLowWaterMark(), highWaterMark);
+        // 取最短的超时的一半，空闲连接的读线程只在这个间隔醒来一次
+        long shortest = handler.shortestIdleNanos();
+        this.checkIntervalMillis = shortest == 0 ? 0
+                : (int) Math.max(100, TimeUnit.NANOSECONDS.toMillis(shortest / 2));
+    }
+
+    /**
+     * 通过反射取得虚拟线程工厂，Java 21以下没有Thread.ofVirtual
+     *
+     * @return 虚拟线程工厂
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> type = Class.forName("java.lang.Thread$Builder");
+            builder = type.getMethod("name", String.class, long.class).invoke(builder, "virtual-conn-", 0L);
+            return (ThreadFactory) type.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("virtual引擎需要Java 21及以上的运行时，当前为" + System.getProperty("java.version"), e);
+        }
+    }
+
+    @Override
+    public void start() throws IOException {
+        // 阻塞模式的信道：读写都在虚拟线程里阻塞，阻塞时虚拟线程让出载体线程
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+        ssc.bind(new InetSocketAddress(port), Math.max(0, backlog));
+        while (true) {
+            SocketChannel sc;
+            try {
+                sc = ssc.accept();
+            } catch (ClosedChannelException e) {
+                throw e;
+            } catch (IOException e) {
+                // 文件描述符耗尽等错误，连接留在内核队列里，稍后重试
+                acceptErrors.increment();
+                log.error("=====接入连接失败{}", e.getMessage());
+                try {
+                    TimeUnit.MILLISECONDS.sleep(ERROR_BACKOFF_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("接入线程被中断");
+                }
+                continue;
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("===connected...{}", sc.getRemoteAddress());
+            }
+            connections.incrementAndGet();
+            VirtualConnection connection = new VirtualConnection(sc, this);
+            threads.newThread(connection::serve).start();
+        }
+    }
+
+    @Override
+    public void broadcast(PooledBuffer frame) {
+        try {
+            // 在调用线程里入队，每个连接拿到一个共享内容的只读副本，写出由各个连接自己的写线程完成
+            handler.getSessions().forEach((clientId, connection) -> connection.write(frame.retainedDuplicate()));
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Override
+    public void multicast(Collection<String> clientIds, PooledBuffer frame) {
+        try {
+            for (String clientId : clientIds) {
+                VirtualConnection connection = handler.getSessions().get(clientId);
+                if (connection != null) {
+                    connection.write(frame.retainedDuplicate());
+                }
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Override
+    public boolean send(String clientId, PooledBuffer frame) {
+        VirtualConnection connection = handler.getSessions().get(clientId);
+        if (connection == null) {
+            frame.release();
+            return false;
+        }
+        return connection.write(frame);
+    }
+
+    @Override
+    public void broadcastFile(FileSource source) {
+        try {
+            handler.getSessions().forEach((clientId, connection) -> {
+                source.retain(1);
+                connection.sendFile(source);
+            });
+        } finally {
+            source.release();
+        }
+    }
+
+    @Override
+    public boolean sendFile(String clientId, FileSource source) {
+        VirtualConnection connection = handler.getSessions().get(clientId);
+        if (connection == null) {
+            source.release();
+            return false;
+        }
+        connection.sendFile(source);
+        return true;
+    }
+
+    @Override
+    public boolean suspendRead(String clientId, boolean suspended) {
+        VirtualConnection connection = handler.getSessions().get(clientId);
+        if (connection == null) {
+            return false;
+        }
+        connection.suspendRead(suspended);
+        return true;
+    }
+
+    @Override
+    public void route(Function<String, PooledBuffer> router) {
+        handler.getSessions().forEach((clientId, connection) -> {
+            PooledBuffer frame = router.apply(clientId);
+            if (frame != null) {
+                connection.write(frame);
+            }
+        });
+    }
+
+    @Override
+    public boolean isOnline(String clientId) {
+        return handler.getSessions().get(clientId) != null;
+    }
+
+    @Override
+    public int sessions() {
+        return handler.getSessions().size();
+    }
+
+    @Override
+    public void writeMetrics(PrometheusWriter writer) {
+        WorkerMetrics.write(writer, new String[]{PrometheusWriter.label("worker", ServerEngine.VIRTUAL)},
+                new WorkerMetrics[]{metrics}, new int[]{connections.get()});
+        writer.type("socket_acceptor_errors_total", "Failed accept calls, e.g. when file descriptors are exhausted.", "counter");
+        writer.sample("socket_acceptor_errors_total", PrometheusWriter.label("acceptor", ServerEngine.VIRTUAL), acceptErrors.sum());
+    }
+}
@@ -0,0 +1,774 @@
+package com.example.demo.server;
+
+import com.example.demo.buffer.BufferPool;
+import com.example.demo.buffer.PooledBuffer;
+import com.example.demo.codec.FrameDecoder;
+import com.example.demo.codec.FrameHandler;
+import com.example.demo.timer.TimingWheel;
+import lombok.extern.slf4j.Slf4j;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author mark
+ * @date 2022/7/29 15:23
+ * @describe 工作线程，负责处理已接入连接的读写事件
+ */
+@Slf4j
+class Worker implements Runnable {
+
+    /**
+     * 用于启动worker
+     */
+    private Thread thread;
+
+    /**
+     * 多路复用选择器
+     */
+    private Selector selector;
+
+    /**
+     * 工作线程名称
+     */
+    private String name;
+
+    /**
+     * 空闲检测时间轮的刻度（毫秒）
+     */
+    private static final long IDLE_TICK_MILLIS = 100;
+
+    /**
+     * 空闲检测时间轮的槽数，一圈约102秒
+     */
+    private static final int IDLE_TICKS = 1024;
+
+    /**
+     * 所属的worker组，用于通过会话注册表跨worker维护客户端ID归属
+     */
+    private final WorkerGroup group;
+
+    /**
+     * 需要在worker线程中执行的任务（注册信道、踢下线等），其他线程只入队并唤醒selector
+     */
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 是否已经唤醒过selector还没进入下一次select，连接风暴时大量注册任务只唤醒一次
+     */
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+    /**
+     * 当前worker上的连接数，供最少连接数策略使用
+     */
+    private final AtomicInteger connections = new AtomicInteger();
+
+    /**
+     * 当前worker上待处理的字节数（已读取未处理完的半包和发送队列中未写出的字节），供最少待处理字节策略使用
+     */
+    private final AtomicLong pendingBytes = new AtomicLong();
+
+    /**
+     * 写出延迟合并窗口（纳秒），0表示入队后立即写出
+     */
+    private final long lingerNanos;
+
+    /**
+     * 单次写出最多合并的字节数
+     */
+    private final int maxFlushBytes;
+
+    /**
+     * 单个连接发送队列的高水位，小于等于0表示不限制
+     */
+    private final long highWaterMark;
+
+    /**
+     * 单个连接发送队列的低水位
+     */
+    private final long lowWaterMark;
+
+    /**
+     * 空闲检测时间轮，每个会话最多登记一次，到期时检查实际的读写时间再决定发ping、断开或者重新登记
+     * 读写时只更新时间戳，不操作时间轮，只由worker线程访问
+     */
+    private final TimingWheel<Session> idleTimer =
+            new TimingWheel<>(TimeUnit.MILLISECONDS.toNanos(IDLE_TICK_MILLIS), IDLE_TICKS, this::idleCheck);
+
+    /**
+     * 本轮事件循环开始的时间（纳秒），读写时间戳都用它，避免每次读写都调用System.nanoTime
+     */
+    private long clock = System.nanoTime();
+
+    /**
+     * gather写出复用的数组，长度即单次写出最多合并的帧数，只由worker线程使用
+     */
+    private final ByteBuffer[] gather;
+
+    /**
+     * 等待合并窗口到期的会话，窗口长度固定所以按入队顺序到期，只由worker线程访问
+     */
+    private final ArrayDeque<Session> lingering = new ArrayDeque<>();
+
+    /**
+     * 所有worker共用的会话处理器，协议状态机、空闲检测和高水位判断都在这里，和虚拟线程引擎共用
+     */
+    private final SessionHandler<Session> handler;
+
+    /**
+     * 运行指标
+     */
+    private final WorkerMetrics metrics = new WorkerMetrics();
+
+    /**
+     * 正在解码的会话，只在dealMsg期间不为null，供共用的帧处理器使用
+     */
+    private Session reading;
+
+    /**
+     * 本worker所有会话共用的帧处理器，解码前设置reading，避免每次读取都创建回调对象
+     */
+    private final FrameHandler frames = new FrameHandler() {
+        @Override
+        public void onFrame(ByteBuffer frame) {
+            handler.onFrame(reading, frame);
+        }
+
+        @Override
+        public void onControl(int type) {
+            handler.onControl(reading, type);
+        }
+
+        @Override
+        public void onCluster(ByteBuffer payload) {
+            handler.onCluster(reading, payload);
+        }
+    };
+
+    public Worker(String name, WorkerGroup group) {
+        this.name = name;
+        this.group = group;
+        WorkerOptions options = group.getOptions();
+        this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(options.getFlushLingerMicros());
+        this.maxFlushBytes = options.getMaxFlushBytes();
+        this.gather = new ByteBuffer[Math.max(1, options.getMaxFlushFrames())];
+        this.handler = group.getHandler();
+        this.highWaterMark = options.getHighWaterMark();
+        this.lowWaterMark = Math.min(options.getLowWaterMark(), highWaterMark);
+    }
+
+    /**
+     * 启动worker线程
+     *
+     * @throws IOException IO异常
+     */
+    public void start() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 获取当前连接数
+     *
+     * @return 连接数
+     */
+    public int getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * 获取当前待处理字节数
+     *
+     * @return 待处理字节数
+     */
+    public long getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    /**
+     * 获取运行指标
+     *
+     * @return 指标
+     */
+    WorkerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 注册读写事件
+     *
+     * @param sc SocketChannel
+     * @throws IOException IO异常
+     */
+    public void register(SocketChannel sc) throws IOException {
+        connections.incrementAndGet();
+        execute(() -> {
+            try {
+                // 每个连接对应一个会话，挂在key上，持有自己的解码器、接收缓冲区状态和发送队列
+                SelectionKey key = sc.register(selector, SelectionKey.OP_READ);
+                Session session = new Session(key, this);
+                key.attach(session);
+                session.lastReadNanos = clock;
+                session.lastWriteNanos = clock;
+                session.lastPingNanos = clock;
+                scheduleIdleCheck(session);
+            } catch (IOException e) {
+                log.error("=====信道注册到{}失败{}", name, e);
+                connections.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * 把任务交给worker线程执行，避免多个线程同时操作selector和容器
+     *
+     * @param task 任务
+     */
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        // 唤醒selector，上一次唤醒还没被消费时不重复唤醒
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * 执行其他线程投递的任务
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("=====执行{}的任务异常{}", name, e);
+            }
+        }
+    }
+
+    /**
+     * 给会话发送一个帧，可以在任意线程调用：只把帧放入会话的发送队列，由worker线程写出
+     * 配置了合并窗口时等窗口到期再和其他帧一起写出
+     *
+     * @param session 本worker上的会话
+     * @param frame   已编码好的帧，调用后所有权转移给发送队列
+     * @return 会话已关闭或者帧被溢出策略丢弃返回false
+     */
+    public boolean write(Session session, PooledBuffer frame) {
+        if (!session.key.isValid()) {
+            frame.release();
+            return false;
+        }
+        return write(session.key, frame, false);
+    }
+
+    /**
+     * 给会话发送一个帧并立即写出，不等合并窗口，适合对延迟敏感的调用方
+     *
+     * @param session 本worker上的会话
+     * @param frame   已编码好的帧，调用后所有权转移给发送队列
+     * @return 会话已关闭或者帧被溢出策略丢弃返回false
+     */
+    public boolean writeAndFlush(Session session, PooledBuffer frame) {
+        if (!session.key.isValid()) {
+            frame.release();
+            return false;
+        }
+        return write(session.key, frame, true);
+    }
+
+    /**
+     * 暂停或恢复读取会话，可以在任意线程调用，供把入站消息转到其他线程处理的监听器在积压时使用
+     * 暂停期间客户端发来的数据留在内核缓冲区，由TCP流控让客户端慢下来
+     *
+     * @param session   本worker上的会话
+     * @param suspended true暂停，false恢复
+     */
+    public void suspendRead(Session session, boolean suspended) {
+        execute(() -> {
+            if (session.key.isValid()) {
+                session.readSuspended = suspended;
+                updateInterestOps(session.key, session);
+            }
+        });
+    }
+
+    /**
+     * 把同一个帧发给本worker上所有已登录的客户端，可以在任意线程调用
+     * 在worker线程中遍历本worker的连接，每个连接拿到一个共享内容的只读副本，不重复编码
+     *
+     * @param frame 已编码好的帧，调用方为本次调用持有一次引用，发完后由worker释放
+     */
+    public void broadcast(PooledBuffer frame) {
+        execute(() -> {
+            try {
+                // 直接遍历selector上注册的key，不需要额外的容器
+                for (SelectionKey key : selector.keys()) {
+                    if (key.isValid() && ((Session) key.attachment()).isLoggedIn()) {
+                        write(key, frame.retainedDuplicate(), false);
+                    }
+                }
+            } finally {
+                frame.release();
+            }
+        });
+    }
+
+    /**
+     * 给会话发送文件，可以在任意线程调用：开始帧进入发送队列，文件内容在发送队列写空后由worker线程用transferTo写出
+     *
+     * @param session 本worker上的会话
+     * @param source  文件，调用方为本次调用持有一次引用，传输结束或放弃后由worker释放
+     */
+    public void sendFile(Session session, FileSource source) {
+        execute(() -> {
+            if (session.key.isValid()) {
+                startTransfer(session, source);
+            } else {
+                source.release();
+            }
+        });
+    }
+
+    /**
+     * 把同一个文件发给本worker上所有已登录的客户端，可以在任意线程调用，所有传输共用一个打开的文件
+     *
+     * @param source 文件，调用方为本次调用持有一次引用，发完后由worker释放
+     */
+    public void broadcastFile(FileSource source) {
+        execute(() -> {
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    Session session = (Session) key.attachment();
+                    if (key.isValid() && session.isLoggedIn()) {
+                        source.retain(1);
+                        startTransfer(session, source);
+                    }
+                }
+            } finally {
+                source.release();
+            }
+        });
+    }
+
+    /**
+     * 在worker线程中开始一个文件传输，传输持有文件的一次引用
+     *
+     * @param session 会话
+     * @param source  文件
+     */
+    private void startTransfer(Session session, FileSource source) {
+        FileTransfer transfer = new FileTransfer(source, session.clientId);
+        // 开始帧和聊天帧一样受高水位限制，被丢弃时放弃这次传输，接收方不会收到没有开始帧的数据
+        if (!write(session.key, transfer.begin(), true)) {
+            transfer.abort();
+            return;
+        }
+        session.addTransfer(transfer);
+        updateInterestOps(session.key, session);
+    }
+
+    /**
+     * 把帧放入连接的发送队列，需要时投递写出任务或登记合并窗口
+     * 发送队列超过高水位时按溢出策略处理，单个连接积压的字节数不会超过高水位加一个帧
+     *
+     * @param key      SelectionKey
+     * @param frame    已编码好的帧
+     * @param flushNow 是否立即写出
+     * @return 帧被溢出策略丢弃返回false
+     */
+    private boolean write(SelectionKey key, PooledBuffer frame, boolean flushNow) {
+        Session session = (Session) key.attachment();
+        int bytes = frame.buffer().remaining();
+        boolean overflow = handler.isOverHighWater(session, bytes);
+        if (overflow && !handler.isDropOldest()) {
+            // drop-newest直接丢弃；disconnect已经安排断开，断开前到达的帧也不再入队
+            metrics.framesDropped.increment();
+            frame.release();
+            return false;
+        }
+        pendingBytes.addAndGet(bytes);
+        metrics.outboundBytes.add(bytes);
+        session.enqueue(frame);
+        if (overflow) {
+            long dropped = session.dropOldest(highWaterMark, metrics);
+            pendingBytes.addAndGet(-dropped);
+            metrics.outboundBytes.add(-dropped);
+        }
+        if (flushNow || lingerNanos == 0) {
+            requestFlush(session);
+        } else {
+            requestLinger(session);
+        }
+        return true;
+    }
+
+    /**
+     * 请求立即写出，已经投递过写出任务则不再重复投递
+     *
+     * @param session 会话
+     */
+    private void requestFlush(Session session) {
+        int state;
+        do {
+            state = session.getFlushState();
+            if (state == Session.FLUSH_POSTED) {
+                return;
+            }
+        } while (!session.casFlushState(state, Session.FLUSH_POSTED));
+        if (Thread.currentThread() == thread) {
+            flush(session.key);
+        } else {
+            execute(() -> flush(session.key));
+        }
+    }
+
+    /**
+     * 请求在合并窗口到期后写出，窗口内后续入队的帧一起写出
+     *
+     * @param session 会话
+     */
+    private void requestLinger(Session session) {
+        if (!session.casFlushState(Session.FLUSH_IDLE, Session.FLUSH_LINGER)) {
+            return;
+        }
+        if (Thread.currentThread() == thread) {
+            addLingering(session);
+        } else {
+            execute(() -> addLingering(session));
+        }
+    }
+
+    private void addLingering(Session session) {
+        session.lingerDeadline = System.nanoTime() + lingerNanos;
+        lingering.offer(session);
+    }
+
+    /**
+     * 写出合并窗口已到期的会话
+     */
+    private void flushLingering() {
+        long now = System.nanoTime();
+        Session session;
+        while ((session = lingering.peek()) != null) {
+            boolean stillLingering = session.getFlushState() == Session.FLUSH_LINGER;
+            if (stillLingering && session.lingerDeadline - now > 0) {
+                break;
+            }
+            lingering.poll();
+            if (stillLingering) {
+                flush(session.key);
+            }
+        }
+    }
+
+    /**
+     * 计算select的超时时间，保证合并窗口按时到期、空闲检测时间轮按刻度推进
+     *
+     * @return 毫秒，-1表示一直阻塞，0表示立即返回
+     */
+    private long selectTimeout() {
+        long now = System.nanoTime();
+        long remaining = idleTimer.nanosToNextTick(now);
+        Session session = lingering.peek();
+        if (session != null) {
+            long linger = Math.max(0, session.lingerDeadline - now);
+            remaining = remaining < 0 ? linger : Math.min(remaining, linger);
+        }
+        if (remaining <= 0) {
+            return remaining;
+        }
+        // select的超时精度是毫秒，向上取整
+        return TimeUnit.NANOSECONDS.toMillis(remaining + 999_999);
+    }
+
+    /**
+     * 按会话最近的读写时间登记下一次空闲检查，三个超时都没有配置时不登记
+     *
+     * @param session 会话
+     */
+    private void scheduleIdleCheck(Session session) {
+        long deadline = handler.nextIdleCheck(session, clock);
+        if (deadline != Long.MAX_VALUE) {
+            idleTimer.schedule(session, deadline);
+        }
+    }
+
+    /**
+     * 空闲检查到期：由会话处理器检查读写空闲和发送ping，连接没有断开则按最新的读写时间重新登记
+     *
+     * @param session 会话
+     */
+    private void idleCheck(Session session) {
+        if (session.key.isValid() && handler.idleCheck(session, clock)) {
+            scheduleIdleCheck(session);
+        }
+    }
+
+    /**
+     * 在worker线程中写出连接的发送队列，没写完时关注OP_WRITE，写完后取消关注
+     *
+     * @param key SelectionKey
+     */
+    private void flush(SelectionKey key) {
+        Session session = (Session) key.attachment();
+        if (!key.isValid()) {
+            // 连接已关闭，归还关闭之后才入队的帧
+            long dropped = session.release();
+            pendingBytes.addAndGet(-dropped);
+            metrics.outboundBytes.add(-dropped);
+            return;
+        }
+        SocketChannel channel = (SocketChannel) key.channel();
+        try {
+            FileTransfer transfer = session.currentTransfer();
+            boolean inChunk = transfer != null && transfer.isInChunk();
+            boolean stalled = session.hasFlushing() || inChunk;
+            long written = 0;
+            long fileBytes = 0;
+            if (inChunk) {
+                // 数据帧写到一半，先写完这一帧，其他帧不能插在中间
+                fileBytes = transferFile(session, channel, maxFlushBytes);
+            }
+            if (!inChunk || !transfer.isInChunk()) {
+                written = session.flush(channel, gather, maxFlushBytes, metrics);
+                // 聊天帧优先，发送队列写空后才用剩余的预算写文件；每轮事件循环每个连接最多写出一次预算，
+                // 大文件分多轮写完，期间其他连接的读写照常处理
+                long budget = maxFlushBytes - written - fileBytes;
+                if (!session.hasQueuedFrames() && session.currentTransfer() != null && budget > 0) {
+                    fileBytes += transferFile(session, channel, budget);
+                }
+            }
+            if (written > 0 || fileBytes > 0 || !stalled) {
+                // 写空闲只计算上次没写完之后一直写不出去的时间
+                session.lastWriteNanos = clock;
+            }
+            pendingBytes.addAndGet(-written);
+            metrics.outboundBytes.add(-written);
+        } catch (IOException e) {
+            log.error("===========发送消息给客户端失败{}", e.getMessage());
+            handler.offLine(session);
+            return;
+        }
+        if (session.isUnwritable() && session.getOutboundBytes() <= lowWaterMark) {
+            session.markWritable();
+        }
+        updateInterestOps(key, session);
+    }
+
+    /**
+     * 用transferTo写出会话当前文件传输的数据帧，数据帧全部写出后放入结束帧
+     * 文件内容不经过发送队列，不计入待写出字节数和高水位
+     *
+     * @param session  会话
+     * @param channel  信道
+     * @param maxBytes 本次最多写出的字节数
+     * @return 本次写出的字节数
+     * @throws IOException IO异常，或者文件在发送过程中被截断
+     */
+    private long transferFile(Session session, SocketChannel channel, long maxBytes) throws IOException {
+        FileTransfer transfer = session.currentTransfer();
+        long written = transfer.writeTo(channel, maxBytes);
+        metrics.bytesOut.add(written);
+        metrics.fileBytesOut.add(written);
+        if (transfer.isDone()) {
+            session.removeTransfer();
+            // 结束帧不受高水位限制，接收方靠它确认文件完整
+            PooledBuffer end = transfer.end();
+            int bytes = end.buffer().remaining();
+            pendingBytes.addAndGet(bytes);
+            metrics.outboundBytes.add(bytes);
+            session.enqueue(end);
+            metrics.filesSent.increment();
+            transfer.complete();
+        }
+        return written;
+    }
+
+    /**
+     * 按会话状态更新关注的事件，只在worker线程调用
+     * 发送队列有数据时关注OP_WRITE：socket发送缓冲区满或者超出单次写出预算，等OP_WRITE再继续，期间其他连接也能得到写出机会
+     * 发送队列超过高水位或者被暂停读取时不关注OP_READ：不读取就不会处理该客户端的请求，也就不会继续产生回复
+     *
+     * @param key     SelectionKey
+     * @param session 会话
+     */
+    private void updateInterestOps(SelectionKey key, Session session) {
+        int ops = 0;
+        if (!session.readSuspended && !session.isUnwritable()) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (session.hasPendingWrites()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if (key.interestOps() != ops) {
+            key.interestOps(ops);
+        }
+    }
+
+    /**
+     * 取消key并关闭对应信道，同时更新连接数，只在worker线程调用
+     *
+     * @param key SelectionKey
+     */
+    void close(SelectionKey key) {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        key.cancel();
+        connections.decrementAndGet();
+        // 丢弃解码器里缓存的半包和发送队列中未写出的帧
+        Session session = (Session) key.attachment();
+        idleTimer.cancel(session);
+        int buffered = session.decoder.buffered();
+        long dropped = session.release();
+        pendingBytes.addAndGet(-buffered - dropped);
+        metrics.outboundBytes.add(-dropped);
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            log.error("=====关闭客户端信道异常{}", e);
+        }
+    }
+
+    /**
+     * 由重复登录触发，断开本worker上的旧会话，不显示下线信息，可以在任意线程调用
+     *
+     * @param session 旧会话
+     */
+    void kick(Session session) {
+        if (Thread.currentThread() != thread) {
+            // 旧会话在其他worker上，交由那个worker断开
+            execute(() -> kick(session));
+            return;
+        }
+        log.info("==========同一个客户端在{}登录断开之前客户端连接=======", name);
+        close(session.key);
+    }
+
+    /**
+     * 用会话上的帧解码器解析本次读到的数据，拆包粘包由解码器处理
+     *
+     * @param buffer  本次读到的数据
+     * @param session 会话
+     * @throws IOException IO异常或者非法帧
+     */
+    private void dealMsg(ByteBuffer buffer, Session session) throws IOException {
+        FrameDecoder decoder = session.decoder;
+        int before = decoder.buffered();
+        // 切换读模式
+        buffer.flip();
+        try {
+            reading = session;
+            decoder.decode(buffer, frames);
+        } finally {
+            reading = null;
+            pendingBytes.addAndGet(decoder.buffered() - before);
+        }
+    }
+
+    /**
+     * 处理一个就绪的连接：先写出发送队列，再读取并解析数据
+     *
+     * @param key SelectionKey
+     */
+    private void process(SelectionKey key) {
+        if (key.isWritable()) {
+            // socket发送缓冲区腾出了空间，继续写出发送队列
+            flush(key);
+            if (!key.isValid()) {
+                return;
+            }
+        }
+        if ((key.isReadable())) {
+            Session session = (Session) key.attachment();
+            // 从缓冲池取本次读取用的缓冲区，处理完立即归还
+            PooledBuffer buffer = session.allocateRecvBuffer();
+            try {
+                SocketChannel channel = (SocketChannel) key.channel();
+                // 如果客户端是正常断开的话，read方法的返回值是-1
+                int read = channel.read(buffer.buffer());
+                if (read == -1) {
+                    // 从client中移除下线的客户端
+                    handler.offLine(session);
+                } else {
+                    session.recordRead(read);
+                    session.lastReadNanos = clock;
+                    metrics.bytesIn.add(read);
+                    dealMsg(buffer.buffer(), session);
+                }
+            } catch (IOException e) {
+                log.error("===========客户端断开了连接~~");
+                // 如果客户端被强制关闭那么把key从selectedKey集合中移除
+                handler.offLine(session);
+            } finally {
+                buffer.release();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        // 读取和编码用的缓冲区先走本线程的缓存，不和其他worker争用缓冲池的锁
+        BufferPool.DEFAULT.bindThreadCache();
+        try {
+            while (true) {
+                // 先清除唤醒标记再检查任务，清除之后入队的任务会重新唤醒
+                wakeupPending.set(false);
+                long timeout = tasks.isEmpty() ? selectTimeout() : 0;
+                if (timeout < 0) {
+                    selector.select();
+                } else if (timeout == 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select(timeout);
+                }
+                long loopStart = System.nanoTime();
+                clock = loopStart;
+                runTasks();
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    iterator.remove();
+                    try {
+                        process(key);
+                    } catch (RuntimeException e) {
+                        // 单个连接的处理异常（包括监听器抛出的）只断开这一个连接，不影响worker上的其他连接
+                        Session session = (Session) key.attachment();
+                        log.error("=====处理客户端{}的数据异常，断开连接{}", session.clientId, e);
+                        try {
+                            handler.offLine(session);
+                        } catch (RuntimeException ex) {
+                            log.error("=====客户端{}下线处理异常{}", session.clientId, ex);
+                        }
+                    }
+                }
+                flushLingering();
+                clock = System.nanoTime();
+                idleTimer.advance(clock);
+                metrics.loopNanos.record(System.nanoTime() - loopStart);
+            }
+        } catch (IOException e) {
+            log.error("=====读取客户端消息时发生异常{}", e);
+        } finally {
+            BufferPool.DEFAULT.unbindThreadCache();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.demo.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author mark
+ * @date 2022/8/10 10:12
+ * @describe 连接分配策略：决定boss接入的连接交给哪一个worker
+ */
+interface WorkerChooser {
+
+    /**
+     * 轮询
+     */
+    String ROUND_ROBIN = "round-robin";
+
+    /**
+     * 最少连接数
+     */
+    String LEAST_CONNECTIONS = "least-connections";
+
+    /**
+     * 最少待处理字节数
+     */
+    String LEAST_PENDING_BYTES = "least-pending-bytes";
+
+    /**
+     * 选出下一个worker
+     *
+     * @return worker
+     */
+    Worker next();
+
+    /**
+     * 根据策略名称创建分配策略
+     *
+     * @param policy  策略名称
+     * @param workers 所有worker
+     * @return 分配策略
+     */
+    static WorkerChooser of(String policy, Worker[] workers) {
+        if (workers.length == 1) {
+            return () -> workers[0];
+        }
+        switch (policy) {
+            case ROUND_ROBIN:
+                return new RoundRobinChooser(workers);
+            case LEAST_CONNECTIONS:
+                return new LeastConnectionsChooser(workers);
+            case LEAST_PENDING_BYTES:
+                return new LeastPendingBytesChooser(workers);
+            default:
+                throw new IllegalArgumentException("未知的worker分配策略:" + policy);
+        }
+    }
+}
+
+/**
+ * 轮询分配
+ */
+class RoundRobinChooser implements WorkerChooser {
+
+    private final Worker[] workers;
+
+    private final AtomicInteger index = new AtomicInteger();
+
+    RoundRobinChooser(Worker[] workers) {
+        this.workers = workers;
+    }
+
+    @Override
+    public Worker next() {
+        return workers[Math.abs(index.getAndIncrement() % workers.length)];
+    }
+}
+
+/**
+ * 分配给当前连接数最少的worker
+ */
+class LeastConnectionsChooser implements WorkerChooser {
+
+    private final Worker[] workers;
+
+    LeastConnectionsChooser(Worker[] workers) {
+        this.workers = workers;
+    }
+
+    @Override
+    public Worker next() {
+        Worker selected = workers[0];
+        for (int i = 1; i < workers.length; i++) {
+            if (workers[i].getConnections() < selected.getConnections()) {
+                selected = workers[i];
+            }
+        }
+        return selected;
+    }
+}
+
+/**
+ * 分配给当前待处理字节数最少的worker，字节数相同时取连接数少的
+ */
+class LeastPendingBytesChooser implements WorkerChooser {
+
+    private final Worker[] workers;
+
+    LeastPendingBytesChooser(Worker[] workers) {
+        this.workers = workers;
+    }
+
+    @Override
+    public Worker next() {
+        Worker selected = workers[0];
+        for (int i = 1; i < workers.length; i++) {
+            Worker worker = workers[i];
+            long diff = worker.getPendingBytes() - selected.getPendingBytes();
+            if (diff < 0 || (diff == 0 && worker.getConnections() < selected.getConnections())) {
+                selected = worker;
+            }
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.demo.server;
+
+import com.example.demo.buffer.PooledBuffer;
+import com.example.demo.cluster.ClusterNode;
+import lombok.extern.slf4j.Slf4j;
+import java.io.IOException;
+
+/**
+ * @author mark
+ * @date 2022/8/10 10:12
+ * @describe worker组：持有固定数量的worker事件循环，boss接入连接后按分配策略交给其中一个worker
+ */
+@Slf4j
+class WorkerGroup {
+
+    /**
+     * 所有worker，每个worker拥有独立的selector、线程和客户端容器
+     */
+    private final Worker[] workers;
+
+    /**
+     * 连接分配策略
+     */
+    private final WorkerChooser chooser;
+
+    /**
+     * worker组配置
+     */
+    private final WorkerOptions options;
+
+    /**
+     * 所有worker共用的会话处理器，持有会话注册表，仅在登录和下线时修改，用于按客户端ID找到对应会话
+     */
+    private final SessionHandler<Session> handler;
+
+    /**
+     * 创建worker组
+     *
+     * @param options  worker组配置
+     * @param listener 入站事件监听器
+     * @param cluster  集群节点，没有开启集群时为null
+     */
+    WorkerGroup(WorkerOptions options, ServerListener listener, ClusterNode cluster) {
+        this.options = options;
+        this.handler = new SessionHandler<>(options, listener, cluster);
+        int workerCount = options.getWorkerCount();
+        if (workerCount <= 0) {
+            workerCount = Runtime.getRuntime().availableProcessors();
+        }
+        workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker("worker=" + i, this);
+        }
+        chooser = WorkerChooser.of(options.getWorkerChooser(), workers);
+        log.info("=====创建{}个worker，分配策略{}", workerCount, options.getWorkerChooser());
+    }
+
+    /**
+     * 启动所有worker线程
+     *
+     * @throws IOException IO异常
+     */
+    void start() throws IOException {
+        for (Worker worker : workers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * 按分配策略选出下一个worker
+     *
+     * @return worker
+     */
+    Worker next() {
+        return chooser.next();
+    }
+
+    /**
+     * 获取所有worker
+     *
+     * @return worker数组
+     */
+    Worker[] getWorkers() {
+        return workers;
+    }
+
+    /**
+     * 群发：帧只编码一次，按worker拆分接收方，由各个worker线程并行把只读副本放入各自连接的发送队列
+     *
+     * @param frame 已编码好的帧，调用后所有权转移给worker组
+     */
+    void broadcast(PooledBuffer frame) {
+        // 每个worker各持有一次引用，最后释放调用方自己的引用
+        frame.retain(workers.length);
+        try {
+            for (Worker worker : workers) {
+                worker.broadcast(frame);
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * 把同一个文件发给所有已登录的客户端，可以在任意线程调用
+     *
+     * @param source 文件，调用方为本次调用持有一次引用
+     */
+    void broadcastFile(FileSource source) {
+        // 每个worker各持有一次引用，最后释放调用方自己的引用
+        source.retain(workers.length);
+        try {
+            for (Worker worker : workers) {
+                worker.broadcastFile(source);
+            }
+        } finally {
+            source.release();
+        }
+    }
+
+    /**
+     * 获取worker组配置
+     *
+     * @return 配置
+     */
+    WorkerOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * 获取会话处理器
+     *
+     * @return 会话处理器
+     */
+    SessionHandler<Session> getHandler() {
+        return handler;
+    }
+
+    /**
+     * 获取会话注册表
+     *
+     * @return 会话注册表
+     */
+    SessionRegistry<Session> getSessions() {
+        return handler.getSessions();
+    }
+}
@@ -0,0 +1,164 @@
+package com.example.demo.server;
+
+import com.example.demo.metrics.LatencyHistogram;
+import com.example.demo.metrics.PrometheusWriter;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author mark
+ * @date 2022/9/9 10:00
+ * @describe 单个worker的运行指标：每个worker一份，计数器用LongAdder分段累加，
+ * 读写路径上的记录只是一次加法，不分配对象；抓取时由其他线程汇总读取
+ */
+class WorkerMetrics {
+
+    /**
+     * 读取的字节数
+     */
+    final LongAdder bytesIn = new LongAdder();
+
+    /**
+     * 写出的字节数
+     */
+    final LongAdder bytesOut = new LongAdder();
+
+    /**
+     * 解码出的帧数
+     */
+    final LongAdder framesDecoded = new LongAdder();
+
+    /**
+     * 完整写出的帧数
+     */
+    final LongAdder framesWritten = new LongAdder();
+
+    /**
+     * socket发送缓冲区满、只写出一部分的次数
+     */
+    final LongAdder partialWrites = new LongAdder();
+
+    /**
+     * 发送队列超过高水位的次数
+     */
+    final LongAdder highWaterMarks = new LongAdder();
+
+    /**
+     * 按溢出策略丢弃的帧数
+     */
+    final LongAdder framesDropped = new LongAdder();
+
+    /**
+     * 发送的ping数
+     */
+    final LongAdder pingsSent = new LongAdder();
+
+    /**
+     * 因读写空闲超时断开的连接数
+     */
+    final LongAdder idleEvictions = new LongAdder();
+
+    /**
+     * 登录次数
+     */
+    final LongAdder logins = new LongAdder();
+
+    /**
+     * 下线次数
+     */
+    final LongAdder disconnects = new LongAdder();
+
+    /**
+     * 用transferTo写出的文件字节数，包括数据帧的包头，同时计入bytesOut
+     */
+    final LongAdder fileBytesOut = new LongAdder();
+
+    /**
+     * 发送完成的文件数，发给多个客户端时每个客户端算一次
+     */
+    final LongAdder filesSent = new LongAdder();
+
+    /**
+     * 发送队列中尚未写出的字节数
+     */
+    final LongAdder outboundBytes = new LongAdder();
+
+    /**
+     * 每轮事件循环处理就绪事件和任务的耗时（纳秒），不含select阻塞时间
+     */
+    final LatencyHistogram loopNanos = new LatencyHistogram();
+
+    /**
+     * 按Prometheus文本格式输出一组worker的指标，同名指标的样本按worker标签排在一起
+     *
+     * @param writer      输出
+     * @param labels      每个worker的标签
+     * @param metrics     每个worker的指标
+     * @param connections 每个worker的当前连接数
+     */
+    static void write(PrometheusWriter writer, String[] labels, WorkerMetrics[] metrics, int[] connections) {
+        writer.type("socket_worker_bytes_in_total", "Bytes read from client sockets.", "counter");
+        for (int i = 0; i < labels.length; i++) {
+            writer.sample("socket_worker_bytes_in_total", labels[i], metrics[i].bytesIn.sum());
+        }
+        writer.type("socket_worker_bytes_out_total", "Bytes written to client sockets.", "counter");
+        for (int i = 0; i < labels.length; i++) {
+            writer.sample("socket_worker_bytes_out_total", labels[i], metrics[i].bytesOut.sum());
+        }
+        writer.type("socket_worker_frames_decoded_total", "Frames decoded from client sockets.", "counter");
+        for (int i = 0; i < labels.length; i++) {
+            writer.sample("socket_worker_frames_decoded_total", labels[i], metrics[i].framesDecoded.sum());
+        }
+        writer.type("socket_worker_frames_written_total", "Frames completely written to client sockets.", "counter");
+        for (int i = 0; i < labels.length; i++) {
+            writer.sample("socket_worker_frames_written_total", labels[i], metrics[i].framesWritten.sum());
+        }
+        writer.type("socket_worker_partial_writes_total", "Writes that left bytes pending because the socket send buffer was full.", "counter");
+        for (int i = 0; i < labels.length; i++) {
+            writer.sample("socket_worker_partial_writes_total", labels[i], metrics[i].partialWrites.sum());
+        }
+        writer.type("socket_worker_high_water_marks_total", "Times a connection's outbound queue crossed the high water mark.", "counter");
+        for (int i = 0; i < labels.length; i++) {
+            writer.sample("socket_worker_high_water_marks_total", labels[i], metrics[i].highWaterMarks.sum());
+        }
+        writer.type("socket_worker_frames_dropped_total", "Outbound frames dropped by the overflow policy.", "counter");
+        for (int i = 0; i < labels.length; i++) {
+            writer.sample("socket_worker_frames_dropped_total", labels[i], metrics[i].framesDropped.sum());
+        }
+        writer.type("socket_worker_pings_sent_total", "Heartbeat pings sent to idle connections.", "counter");
+        for (int i = 0; i < labels.length; i++) {
+            writer.sample("socket_worker_pings_sent_total", labels[i], metrics[i].pingsSent.sum());
+        }
+        writer.type("socket_worker_idle_evictions_total", "Connections closed by the read or write idle timeout.", "counter");
+        for (int i = 0; i < labels.length; i++) {
+            writer.sample("socket_worker_idle_evictions_total", labels[i], metrics[i].idleEvictions.sum());
+        }
+        writer.type("socket_worker_logins_total", "Client logins.", "counter");
+        for (int i = 0; i < labels.length; i++) {
+            writer.sample("socket_worker_logins_total", labels[i], metrics[i].logins.sum());
+        }
+        writer.type("socket_worker_disconnects_total", "Logged-in clients that went offline.", "counter");
+        for (int i = 0; i < labels.length; i++) {
+            writer.sample("socket_worker_disconnects_total", labels[i], metrics[i].disconnects.sum());
+        }
+        writer.type("socket_worker_file_bytes_out_total", "File bytes written to client sockets with transferTo.", "counter");
+        for (int i = 0; i < labels.length; i++) {
+            writer.sample("socket_worker_file_bytes_out_total", labels[i], metrics[i].fileBytesOut.sum());
+        }
+        writer.type("socket_worker_files_sent_total", "File transfers completed.", "counter");
+        for (int i = 0; i < labels.length; i++) {
+            writer.sample("socket_worker_files_sent_total", labels[i], metrics[i].filesSent.sum());
+        }
+        writer.type("socket_worker_connections", "Open connections.", "gauge");
+        for (int i = 0; i < labels.length; i++) {
+            writer.sample("socket_worker_connections", labels[i], connections[i]);
+        }
+        writer.type("socket_worker_outbound_bytes", "Bytes queued for writing but not yet written.", "gauge");
+        for (int i = 0; i < labels.length; i++) {
+            writer.sample("socket_worker_outbound_bytes", labels[i], metrics[i].outboundBytes.sum());
+        }
+        writer.type("socket_worker_loop_seconds", "Event loop iteration time excluding select.", "summary");
+        for (int i = 0; i < labels.length; i++) {
+            writer.summary("socket_worker_loop_seconds", labels[i], metrics[i].loopNanos);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.demo.server;
+
+import lombok.Data;
+
+/**
+ * @author mark
+ * @date 2022/8/22 16:30
+ * @describe worker组的配置，由Server根据配置文件组装
+ */
+@Data
+class WorkerOptions {
+
+    /**
+     * worker数量，小于等于0时取CPU核数
+     */
+    private int workerCount;
+
+    /**
+     * 连接分配策略 round-robin/least-connections/least-pending-bytes
+     */
+    private String workerChooser = WorkerChooser.ROUND_ROBIN;
+
+    /**
+     * 写出延迟合并窗口（微秒），0表示入队后立即写出；大于0时窗口内到达的帧合并成一次写出，适合吞吐优先的部署
+     */
+    private long flushLingerMicros;
+
+    /**
+     * 单次写出最多合并的字节数
+     */
+    private int maxFlushBytes = 256 * 1024;
+
+    /**
+     * 单次写出最多合并的帧数
+     */
+    private int maxFlushFrames = 64;
+
+    /**
+     * 单个连接发送队列的高水位（字节），超过后按溢出策略处理并暂停读取该连接，小于等于0表示不限制
+     */
+    private long highWaterMark = 1024 * 1024;
+
+    /**
+     * 单个连接发送队列的低水位（字节），超过高水位后写出到不高于低水位才恢复
+     */
+    private long lowWaterMark = 512 * 1024;
+
+    /**
+     * 超过高水位时的溢出策略 drop-newest/drop-oldest/disconnect
+     */
+    private String overflowPolicy = SessionHandler.DISCONNECT;
+
+    /**
+     * 连接多久没有收到数据就发送一次ping（秒），小于等于0表示不发送
+     */
+    private long pingIntervalSeconds = 30;
+
+    /**
+     * 连接多久没有收到任何数据（包括pong）就断开（秒），小于等于0表示不检测
+     */
+    private long readIdleTimeoutSeconds = 90;
+
+    /**
+     * 发送队列有数据但多久没有写出任何字节就断开（秒），小于等于0表示不检测
+     */
+    private long writeIdleTimeoutSeconds = 60;
+}
@@ -21,16 +21,17 @@ public class ChatClientUi {
     private JScrollPane jScrollPaneComponent;
 
     /**
-     * 文本域
+     * 渲染管线，负责把消息批量显示到界面上
      */
-    private JTextArea area;
+    private volatile ChatRenderer renderer;
 
     /**
      * 窗口
      */
     private JFrame frame;
 
-    public void init() {
+    public void init(RenderOptions options) {
+        renderer = new ChatRenderer(options);
         // 创建JFrame实例
         frame = new JFrame("client");
         // 设置frame的宽高
@@ -75,20 +76,22 @@ public class ChatClientUi {
         });
         panel.add(sendButton);
         // 用于返显服务端回馈的内容
-        area = new JTextArea();
-        // 设置文本域不可编辑
-        area.setEditable(false);
-        // 设置文本域自动换行
-        area.setLineWrap(true);
-        // 激活断行不断字功能
-        area.setWrapStyleWord(true);
-        jScrollPaneComponent = new JScrollPane(area);
+        jScrollPaneComponent = new JScrollPane(renderer.getView());
         jScrollPaneComponent.setBounds(30, 100, 422, 290);
         panel.add(jScrollPaneComponent);
     }
 
+    /**
+     * 服务端发来的信息进行返显
+     *
+     * @param msg 服务端发来的信息
+     */
     public void serverMsgToUi(String msg) {
-        this.area.append("server:" + msg + "\n");
+        // 只入队，由EDT批量渲染，不阻塞客户端selector线程
+        ChatRenderer current = renderer;
+        if (current != null) {
+            current.append("server:" + msg);
+        }
     }
 
     /**
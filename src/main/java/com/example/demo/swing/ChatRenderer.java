@@ -0,0 +1,196 @@
+package com.example.demo.swing;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author mark
+ * @date 2022/8/29 10:15
+ * @describe 聊天窗口渲染管线：IO线程只做无锁入队，EDT按帧率上限批量取出后一次性追加到界面
+ * 每帧最多向EDT投递一次任务，待渲染的行数超过回滚区容量时直接丢弃最早的行，界面再慢也不会拖住网络线程
+ */
+@Slf4j
+public class ChatRenderer {
+
+    /**
+     * 待渲染的行，任意线程入队，只在EDT出队
+     */
+    private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 待渲染的行数
+     */
+    private final AtomicInteger pendingCount = new AtomicInteger();
+
+    /**
+     * 已经向EDT投递了渲染任务，避免每条消息都投递一次
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /**
+     * 界面来不及渲染而丢弃的行数
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * 回滚区最多保留的行数
+     */
+    private final int maxLines;
+
+    /**
+     * 两次渲染的最小间隔（纳秒）
+     */
+    private final long frameIntervalNanos;
+
+    /**
+     * 距上次渲染不足一帧时用于延迟渲染的定时器，在EDT上触发
+     */
+    private final Timer timer;
+
+    /**
+     * 上次渲染的时间（纳秒），只在EDT访问
+     */
+    private long lastRenderNanos;
+
+    /**
+     * 文本域显示时使用
+     */
+    private JTextArea area;
+
+    /**
+     * 虚拟列表显示时使用
+     */
+    private JList<String> list;
+
+    private ScrollbackListModel model;
+
+    public ChatRenderer(RenderOptions options) {
+        this.maxLines = Math.max(1, options.getScrollbackLines());
+        this.frameIntervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, options.getMaxFps());
+        this.lastRenderNanos = System.nanoTime() - frameIntervalNanos;
+        this.timer = new Timer(0, e -> render());
+        this.timer.setRepeats(false);
+        if (RenderOptions.VIEW_LIST.equals(options.getView())) {
+            model = new ScrollbackListModel(maxLines);
+            list = new JList<>(model);
+            // 固定行高，JList不用逐行测量就能算出总高度，只渲染可见行
+            list.setPrototypeCellValue("W");
+        } else {
+            area = new JTextArea();
+            // 设置文本域不可编辑
+            area.setEditable(false);
+            // 设置文本域自动换行
+            area.setLineWrap(true);
+            // 激活断行不断字功能
+            area.setWrapStyleWord(true);
+        }
+    }
+
+    /**
+     * 显示用的组件，放到滚动面板里
+     *
+     * @return 组件
+     */
+    public JComponent getView() {
+        return area != null ? area : list;
+    }
+
+    /**
+     * 追加一行，可以在任意线程调用，不会阻塞
+     *
+     * @param line 一行消息
+     */
+    public void append(String line) {
+        pending.offer(line);
+        // 积压超过回滚区容量的行渲染出来也会马上被挤掉，直接丢弃最早的
+        if (pendingCount.incrementAndGet() > maxLines && pending.poll() != null) {
+            pendingCount.decrementAndGet();
+            dropped.incrementAndGet();
+        }
+        if (!scheduled.get() && scheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::scheduleRender);
+        }
+    }
+
+    /**
+     * 界面来不及渲染而丢弃的行数
+     *
+     * @return 行数
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * 在EDT上按帧率决定立即渲染还是等到下一帧
+     */
+    private void scheduleRender() {
+        long wait = lastRenderNanos + frameIntervalNanos - System.nanoTime();
+        if (wait <= 0) {
+            render();
+        } else {
+            timer.setInitialDelay((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+            timer.restart();
+        }
+    }
+
+    /**
+     * 在EDT上取出所有待渲染的行，一次性追加
+     */
+    private void render() {
+        lastRenderNanos = System.nanoTime();
+        // 先清除标记，之后入队的行会重新投递渲染任务
+        scheduled.set(false);
+        int count = pendingCount.get();
+        if (count == 0) {
+            return;
+        }
+        List<String> batch = new ArrayList<>(count);
+        String line;
+        // 只取本帧开始时已有的行，持续高速入队时也能按时结束这一帧
+        while (batch.size() < count && (line = pending.poll()) != null) {
+            batch.add(line);
+        }
+        pendingCount.addAndGet(-batch.size());
+        if (area != null) {
+            renderText(batch);
+        } else {
+            model.addAll(batch);
+            list.ensureIndexIsVisible(model.getSize() - 1);
+        }
+    }
+
+    /**
+     * 追加到文本域，超出回滚区的行从头部删除
+     */
+    private void renderText(List<String> batch) {
+        StringBuilder text = new StringBuilder();
+        for (String line : batch) {
+            text.append(line).append('\n');
+        }
+        area.append(text.toString());
+        Document document = area.getDocument();
+        Element root = document.getDefaultRootElement();
+        // 每行以换行结尾，最后一个元素是空行
+        int excess = root.getElementCount() - 1 - maxLines;
+        if (excess > 0) {
+            try {
+                document.remove(0, root.getElement(excess - 1).getEndOffset());
+            } catch (BadLocationException e) {
+                log.error("=====裁剪回滚区异常{}", e);
+            }
+        }
+        area.setCaretPosition(document.getLength());
+    }
+}
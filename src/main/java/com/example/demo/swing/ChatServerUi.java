@@ -1,6 +1,7 @@
 package com.example.demo.swing;
 
 import com.example.demo.utils.ContextUtils;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
 import javax.swing.*;
@@ -13,6 +14,7 @@ import java.awt.event.ActionListener;
  * @date 2022/7/29 15:58
  */
 @Component
+@ConditionalOnProperty(name = "socket.headless", havingValue = "false", matchIfMissing = true)
 public class ChatServerUi {
 
     /**
@@ -21,16 +23,17 @@ public class ChatServerUi {
     private JScrollPane jScrollPaneComponent;
 
     /**
-     * 文本域
+     * 渲染管线，负责把消息批量显示到界面上
      */
-    private JTextArea area;
+    private volatile ChatRenderer renderer;
 
     /**
      * 窗口
      */
     private JFrame frame;
 
-    public void init() {
+    public void init(RenderOptions options) {
+        renderer = new ChatRenderer(options);
         // 创建 JFrame 实例
         frame = new JFrame("server");
         // Setting the width and height of frame
@@ -76,14 +79,7 @@ public class ChatServerUi {
         });
         panel.add(sendButton);
         // 用于返显服务端回馈的内容
-        area = new JTextArea();
-        // 设置文本域不可编辑
-        area.setEditable(false);
-        // 设置文本域自动换行
-        area.setLineWrap(true);
-        // 激活断行不断字功能
-        area.setWrapStyleWord(true);
-        jScrollPaneComponent = new JScrollPane(area);
+        jScrollPaneComponent = new JScrollPane(renderer.getView());
         jScrollPaneComponent.setBounds(30, 100, 422, 290);
         panel.add(jScrollPaneComponent);
 
@@ -95,7 +91,11 @@ public class ChatServerUi {
      * @param msg 客户端返回给的信息
      */
     public void clientMsgToUi(String msg) {
-        area.append(msg + "\n");
+        // 只入队，由EDT批量渲染，不阻塞worker线程
+        ChatRenderer current = renderer;
+        if (current != null) {
+            current.append(msg);
+        }
     }
 
     /**
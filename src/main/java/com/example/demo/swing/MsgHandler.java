@@ -1,16 +1,22 @@
 package com.example.demo.swing;
 
 import com.example.demo.client.Client;
+import com.example.demo.executor.ExecutorOptions;
+import com.example.demo.executor.OrderedExecutor;
 import com.example.demo.server.Server;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.io.IOException;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * @author mark
@@ -19,6 +25,7 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 @Slf4j
 @Component
+@ConditionalOnProperty(name = "socket.headless", havingValue = "false", matchIfMissing = true)
 public class MsgHandler {
 
     @Resource
@@ -27,9 +34,48 @@ public class MsgHandler {
     @Resource
     private Server server;
 
-    @Resource
-    private ChatServerUi chatServerUi;
+    /**
+     * 服务端窗口下发的命令共用一个key，保证按输入顺序执行
+     */
+    private static final String SERVER_KEY = "server";
+
+    /**
+     * 群发文件命令
+     */
+    private static final String SEND_FILE_TO_ALL = "--send-file-to-all";
 
+    /**
+     * 私发文件命令，后面跟两位客户端ID
+     */
+    private static final String SEND_FILE = "--send-file";
+
+    /**
+     * 发布到主题命令，后面跟主题、空格和消息
+     */
+    private static final String PUBLISH = "--publish";
+
+    /**
+     * 执行命令的线程数，小于等于0时取CPU核数
+     */
+    @Value("${socket.executor.threads:0}")
+    private int executorThreads;
+
+    /**
+     * 单个客户端最多排队的命令数
+     */
+    @Value("${socket.executor.max-pending-per-client:1024}")
+    private int maxPendingPerClient;
+
+    /**
+     * 排队命令数超过上限时的拒绝策略 abort/discard/discard-oldest
+     */
+    @Value("${socket.executor.rejection-policy:abort}")
+    private String rejectionPolicy;
+
+    /**
+     * 按客户端有序执行命令，同一客户端的命令按顺序执行，不同客户端并行
+     */
+    private OrderedExecutor executor;
 
     /**
      * 用于对客户端UI进行信息返显
@@ -37,17 +83,40 @@ public class MsgHandler {
      */
     private final ConcurrentHashMap<String, ChatClientUi> chatUis = new ConcurrentHashMap<>();
 
+    @PostConstruct
+    public void init() {
+        ExecutorOptions options = new ExecutorOptions();
+        options.setName("msg-handler");
+        options.setThreads(executorThreads);
+        options.setMaxPendingPerKey(maxPendingPerClient);
+        options.setRejectionPolicy(rejectionPolicy);
+        executor = new OrderedExecutor(options);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdown();
+    }
+
     /**
      * 处理消息后把消息转发给服务端
      *
      * @param message 消息
      */
     public void dealMsg(String message) {
-        // 判断是不是给全员发消息 --send-text-to-all第十三个字符是t为判断标准
-        if (message.charAt(12) == 't') {
-            CompletableFuture.runAsync(() -> sendAllMsgToServer(message));
+        // 发文件 --send-file-to-all+文件路径 或 --send-file+两位客户端ID+文件路径，和发消息按同一个key排序
+        // 发布到主题 --publish+主题+空格+消息
+        if (message.startsWith(SEND_FILE_TO_ALL)) {
+            execute(SERVER_KEY, () -> server.sendFileToAll(message));
+        } else if (message.startsWith(SEND_FILE)) {
+            execute(SERVER_KEY, () -> server.sendFileToSingle(message));
+        } else if (message.startsWith(PUBLISH)) {
+            execute(SERVER_KEY, () -> server.publish(message));
+        } else if (message.charAt(12) == 't') {
+            // 判断是不是给全员发消息 --send-text-to-all第十三个字符是t为判断标准
+            execute(SERVER_KEY, () -> sendAllMsgToServer(message));
         } else {
-            CompletableFuture.runAsync(() -> sendSingleMsgToServer(message));
+            execute(SERVER_KEY, () -> sendSingleMsgToServer(message));
         }
     }
 
@@ -61,12 +130,26 @@ public class MsgHandler {
         if (message.charAt(2) == 'c') {
             String clientId = message.substring(29, 31);
             // 连接到服务端 发送消息格式为+2位包数据长度信息加实际要发送的消息--connect-server 127.0.0.1 9001 01其中01是客户端id
-            CompletableFuture.runAsync(() -> this.connectToServer(message, clientId)
-            );
             chatUis.put(clientId, ui);
+            execute(clientId, () -> this.connectToServer(message, clientId));
         } else {
-            // 发送消息给服务端 发送消息格式为命令+客户端id+消息内容
-            CompletableFuture.runAsync(() -> msgToServer(message));
+            // 发送消息给服务端 发送消息格式为命令+客户端id+消息内容，和连接命令按同一个客户端ID排序
+            String clientId = message.charAt(2) == 'd' ? message.substring(19, 21) : message.substring(21, 23);
+            execute(clientId, () -> msgToServer(message));
+        }
+    }
+
+    /**
+     * 把命令交给有序执行器，排队已满时只记录日志，不影响界面线程
+     *
+     * @param key  排序用的key
+     * @param task 命令
+     */
+    private void execute(String key, Runnable task) {
+        try {
+            executor.execute(key, task);
+        } catch (RejectedExecutionException e) {
+            log.warn("=====命令被拒绝，key{}，排队中{}：{}", key, executor.getPending(key), e.getMessage());
         }
     }
 
@@ -96,17 +179,8 @@ public class MsgHandler {
             } else {
                 // 普通消息
                 String clientId = message.substring(21, 23);
-                if (message.length() > 75) {
-                    // 如果消息超过50个字符分两次发送 发送消息格式为：消息长度+消息正文
-                    // 提取消息正文
-                    client.sendMsgToServer(clientId, message.substring(23, 74));
-                    // 提取消息正文
-                    client.sendMsgToServer(clientId, message.substring(73, message.length()));
-                } else {
-                    // 提取消息正文
-                    client.sendMsgToServer(clientId, message.substring(23, message.length()));
-                }
-
+                // 提取消息正文，超长消息由编解码层分片传输，这里不再拆分
+                client.sendMsgToServer(clientId, message.substring(23, message.length()));
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -140,17 +214,6 @@ public class MsgHandler {
     }
 
 
-    /**
-     * 客户端返回服务端信息进行返显
-     *
-     * @param msg 客户端返回给服务端信息
-     */
-    public void clientMsgToServerUi(StringBuilder msg) {
-        String s = msg.toString();
-        chatServerUi.clientMsgToUi(s);
-    }
-
-
     /**
      * 服务端返回客户端信息进行返显
      * 这里有两种情况一种是群发一种是私发给某个客户端所以得根据ID从channels里面查询看看是否是私发
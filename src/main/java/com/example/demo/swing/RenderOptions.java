@@ -0,0 +1,37 @@
+package com.example.demo.swing;
+
+import lombok.Data;
+
+/**
+ * @author mark
+ * @date 2022/8/29 10:15
+ * @describe 聊天窗口渲染配置，由StartEvent根据配置文件组装
+ */
+@Data
+public class RenderOptions {
+
+    /**
+     * 文本域显示
+     */
+    public static final String VIEW_TEXT = "text";
+
+    /**
+     * 虚拟列表显示，只渲染可见行，适合大回滚行数
+     */
+    public static final String VIEW_LIST = "list";
+
+    /**
+     * 回滚区最多保留的行数，超出后丢弃最早的行
+     */
+    private int scrollbackLines = 5000;
+
+    /**
+     * 每秒最多刷新界面的次数
+     */
+    private int maxFps = 30;
+
+    /**
+     * 显示方式 text/list
+     */
+    private String view = VIEW_TEXT;
+}
@@ -0,0 +1,64 @@
+package com.example.demo.swing;
+
+import javax.swing.AbstractListModel;
+import java.util.List;
+
+/**
+ * @author mark
+ * @date 2022/8/29 10:15
+ * @describe 有界回滚区列表模型：固定容量的环形数组，满了覆盖最早的行，只在EDT访问
+ * 配合JList使用时只有可见行会被渲染，行数再多也不会整体重新布局
+ */
+class ScrollbackListModel extends AbstractListModel<String> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String[] lines;
+
+    private int head;
+
+    private int size;
+
+    ScrollbackListModel(int capacity) {
+        this.lines = new String[capacity];
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return lines[(head + index) % lines.length];
+    }
+
+    /**
+     * 追加一批行，每批只触发一次删除事件和一次新增事件
+     *
+     * @param batch 新的行
+     */
+    void addAll(List<String> batch) {
+        int capacity = lines.length;
+        int from = Math.max(0, batch.size() - capacity);
+        int count = batch.size() - from;
+        if (count == 0) {
+            return;
+        }
+        int removed = Math.max(0, size + count - capacity);
+        if (removed > 0) {
+            for (int i = 0; i < removed; i++) {
+                lines[(head + i) % capacity] = null;
+            }
+            head = (head + removed) % capacity;
+            size -= removed;
+            fireIntervalRemoved(this, 0, removed - 1);
+        }
+        int start = size;
+        for (int i = from; i < batch.size(); i++) {
+            lines[(head + size) % capacity] = batch.get(i);
+            size++;
+        }
+        fireIntervalAdded(this, start, size - 1);
+    }
+}
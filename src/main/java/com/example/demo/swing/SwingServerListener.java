@@ -0,0 +1,37 @@
+package com.example.demo.swing;
+
+import com.example.demo.server.ServerListener;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+/**
+ * @author mark
+ * @describe 把服务端入站事件显示到服务端窗口，无界面模式下不创建
+ * @date 2022/8/30 14:10
+ */
+@Component
+@ConditionalOnProperty(name = "socket.headless", havingValue = "false", matchIfMissing = true)
+public class SwingServerListener implements ServerListener {
+
+    @Resource
+    private ChatServerUi chatServerUi;
+
+    @Override
+    public void onConnected(String clientId) {
+        // 服务端需显示客户端连接、断开信息，如：“client1 has connected”、“client1 has disconnected”
+        chatServerUi.clientMsgToUi("client" + clientId + " has connected");
+    }
+
+    @Override
+    public void onMessage(String clientId, String message) {
+        // 消息加上客户端ID进行返显
+        chatServerUi.clientMsgToUi(clientId + ":" + message);
+    }
+
+    @Override
+    public void onDisconnected(String clientId) {
+        chatServerUi.clientMsgToUi("client" + clientId + " has disconnected");
+    }
+}
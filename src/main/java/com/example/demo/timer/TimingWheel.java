@@ -0,0 +1,213 @@
+package com.example.demo.timer;
+
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+
+/**
+ * @author mark
+ * @date 2022/9/13 10:00
+ * @describe 哈希时间轮：按固定的刻度把定时任务散列到环形的槽里，登记和取消都是O(1)，
+ * 由事件循环线程在每轮循环里推进，不需要单独的定时线程，只能在同一个线程里使用
+ * 定时任务是侵入式的链表节点，由会话等对象直接继承，登记时不分配对象，百万连接也只有一个时间轮
+ */
+public class TimingWheel<T extends TimingWheel.Timeout> {
+
+    /**
+     * 每个刻度的纳秒数
+     */
+    private final long tickNanos;
+
+    /**
+     * 每个槽一个双向链表的表头
+     */
+    private final Timeout[] buckets;
+
+    private final int mask;
+
+    /**
+     * 时间轮的起点，所有刻度都相对它计算
+     */
+    private final long startNanos;
+
+    /**
+     * 到期回调
+     */
+    private final Consumer<T> expired;
+
+    /**
+     * 下一个要处理的刻度
+     */
+    private long nextTick;
+
+    /**
+     * 已登记的定时任务数
+     */
+    private int size;
+
+    /**
+     * 本刻度到期、等待回调的任务，先全部摘下再逐个回调，回调里取消或重新登记其他任务不会打乱槽里的链表
+     */
+    private final ArrayDeque<Timeout> expiring = new ArrayDeque<>();
+
+    /**
+     * 创建时间轮
+     *
+     * @param tickNanos 每个刻度的纳秒数，决定到期时间的精度
+     * @param ticks     槽数，向上取整为2的幂，超过一圈的任务按圈数留在槽里
+     * @param expired   到期回调，在推进时间轮的线程里执行，可以在回调里重新登记
+     */
+    public TimingWheel(long tickNanos, int ticks, Consumer<T> expired) {
+        int length = 1;
+        while (length < ticks) {
+            length <<= 1;
+        }
+        this.tickNanos = tickNanos;
+        this.buckets = new Timeout[length];
+        this.mask = length - 1;
+        this.startNanos = System.nanoTime();
+        this.expired = expired;
+    }
+
+    /**
+     * 登记定时任务，已经登记的先取消，到期时间已过的在下一次推进时回调
+     *
+     * @param task     定时任务
+     * @param deadline 到期时间（System.nanoTime）
+     */
+    public void schedule(T task, long deadline) {
+        cancel(task);
+        Timeout timeout = task;
+        // 向上取整，只会晚到期不会早到期
+        long tick = Math.max(nextTick, (deadline - startNanos + tickNanos - 1) / tickNanos);
+        timeout.tick = tick;
+        int index = (int) (tick & mask);
+        Timeout head = buckets[index];
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        buckets[index] = timeout;
+        timeout.state = Timeout.SCHEDULED;
+        size++;
+    }
+
+    /**
+     * 取消定时任务，已到期还没回调的不再回调，没有登记时什么也不做
+     *
+     * @param task 定时任务
+     */
+    public void cancel(T task) {
+        Timeout timeout = task;
+        if (timeout.state == Timeout.SCHEDULED) {
+            unlink(timeout);
+        }
+        timeout.state = Timeout.IDLE;
+    }
+
+    /**
+     * 推进到当前时间，回调所有已到期的定时任务
+     *
+     * @param now 当前时间（System.nanoTime）
+     */
+    @SuppressWarnings("unchecked")
+    public void advance(long now) {
+        long target = (now - startNanos) / tickNanos;
+        while (nextTick <= target) {
+            if (size == 0) {
+                // 没有任务时直接跳到当前刻度
+                nextTick = target + 1;
+                return;
+            }
+            // 先推进刻度，回调里重新登记的任务落在后面的槽里，不会在本轮重复处理
+            long tick = nextTick++;
+            Timeout timeout = buckets[(int) (tick & mask)];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.tick <= tick) {
+                    unlink(timeout);
+                    timeout.state = Timeout.EXPIRING;
+                    expiring.offer(timeout);
+                }
+                timeout = next;
+            }
+            while ((timeout = expiring.poll()) != null) {
+                if (timeout.state == Timeout.EXPIRING) {
+                    timeout.state = Timeout.IDLE;
+                    expired.accept((T) timeout);
+                }
+            }
+        }
+    }
+
+    /**
+     * 距离下一个刻度的纳秒数，供事件循环计算select的超时时间
+     *
+     * @param now 当前时间（System.nanoTime）
+     * @return 纳秒，没有定时任务时返回-1
+     */
+    public long nanosToNextTick(long now) {
+        if (size == 0) {
+            return -1;
+        }
+        return Math.max(0, startNanos + nextTick * tickNanos - now);
+    }
+
+    /**
+     * 已登记的定时任务数
+     *
+     * @return 任务数
+     */
+    public int size() {
+        return size;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[(int) (timeout.tick & mask)] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.state = Timeout.IDLE;
+        size--;
+    }
+
+    /**
+     * 定时任务：时间轮槽里的链表节点，需要定时的对象直接继承它
+     */
+    public static class Timeout {
+
+        private static final int IDLE = 0;
+
+        private static final int SCHEDULED = 1;
+
+        private static final int EXPIRING = 2;
+
+        /**
+         * 到期的刻度
+         */
+        private long tick;
+
+        private Timeout prev;
+
+        private Timeout next;
+
+        /**
+         * IDLE/SCHEDULED/EXPIRING
+         */
+        private int state;
+
+        /**
+         * 是否已登记在时间轮里且还没有回调
+         *
+         * @return 已登记返回true
+         */
+        public boolean isScheduled() {
+            return state != IDLE;
+        }
+    }
+}
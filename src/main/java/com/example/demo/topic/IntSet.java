@@ -0,0 +1,119 @@
+package com.example.demo.topic;
+
+import java.util.function.IntConsumer;
+
+/**
+ * @author mark
+ * @date 2022/9/20 10:00
+ * @describe 正整数集合：开放寻址线性探测，0表示空槽，删除时把后面的元素往回移，不留墓碑
+ * 每个元素只占一个int，没有装箱和节点对象，容量随元素数翻倍和减半
+ * 不是线程安全的，由TopicTrie的锁保护
+ */
+final class IntSet {
+
+    private static final int MIN_CAPACITY = 2;
+
+    private int[] table = new int[MIN_CAPACITY];
+
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * 添加元素
+     *
+     * @param value 大于0的整数
+     * @return 已经存在返回false
+     */
+    boolean add(int value) {
+        int mask = table.length - 1;
+        int i = index(value, mask);
+        while (table[i] != 0) {
+            if (table[i] == value) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        table[i] = value;
+        // 装载因子不超过3/4
+        if (++size * 4 > table.length * 3) {
+            resize(table.length * 2);
+        }
+        return true;
+    }
+
+    /**
+     * 删除元素
+     *
+     * @param value 大于0的整数
+     * @return 不存在返回false
+     */
+    boolean remove(int value) {
+        int mask = table.length - 1;
+        int i = index(value, mask);
+        while (table[i] != value) {
+            if (table[i] == 0) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        // 后面探测链上的元素如果原本应该落在i或者i之前，就移到i，直到遇到空槽
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (table[j] == 0) {
+                break;
+            }
+            int k = index(table[j], mask);
+            if (i <= j ? (k <= i || k > j) : (k <= i && k > j)) {
+                table[i] = table[j];
+                i = j;
+            }
+        }
+        table[i] = 0;
+        size--;
+        if (table.length > MIN_CAPACITY && size * 8 < table.length) {
+            resize(table.length / 2);
+        }
+        return true;
+    }
+
+    /**
+     * 遍历所有元素，顺序不固定
+     *
+     * @param action 回调
+     */
+    void forEach(IntConsumer action) {
+        for (int value : table) {
+            if (value != 0) {
+                action.accept(value);
+            }
+        }
+    }
+
+    private void resize(int capacity) {
+        int[] old = table;
+        table = new int[capacity];
+        int mask = capacity - 1;
+        for (int value : old) {
+            if (value != 0) {
+                int i = index(value, mask);
+                while (table[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                table[i] = value;
+            }
+        }
+    }
+
+    private static int index(int value, int mask) {
+        int hash = value * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,498 @@
+package com.example.demo.topic;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * @author mark
+ * @date 2022/9/20 10:00
+ * @describe 主题订阅索引：主题按/分成层级组织成前缀树，订阅的过滤器可以用+匹配任意一层，用#匹配剩余的所有层（只能是最后一层）
+ * 正向索引是树节点上订阅了这个过滤器的客户端集合，反向索引是每个客户端订阅的节点列表，客户端下线时按订阅数清理，不用遍历整棵树
+ * 客户端ID映射成连续的整数句柄，节点上的集合是开放寻址的int数组，每条订阅在正反两个方向各占几个字节
+ * 订阅和取消订阅在worker线程上执行，发布在任意线程，用读写锁保护，发布只持有读锁，匹配时不复制集合
+ */
+public class TopicTrie {
+
+    /**
+     * 层级分隔符
+     */
+    public static final char SEPARATOR = '/';
+
+    /**
+     * 匹配任意一层的通配符
+     */
+    public static final String SINGLE_LEVEL = "+";
+
+    /**
+     * 匹配剩余所有层的通配符，包括零层：a/#匹配a、a/b和a/b/c
+     */
+    public static final String MULTI_LEVEL = "#";
+
+    /**
+     * 主题和过滤器UTF-8编码后的最大字节数
+     */
+    public static final int MAX_TOPIC_BYTES = 255;
+
+    /**
+     * 单个客户端最多订阅的过滤器数，小于等于0表示不限制
+     */
+    private final int maxSubscriptionsPerClient;
+
+    private final Node root = new Node(null, null);
+
+    /**
+     * key是客户端ID，value是有订阅的客户端，没有订阅后移除并回收句柄
+     */
+    private final HashMap<String, Member> members = new HashMap<>();
+
+    /**
+     * 句柄到客户端的映射，下标0不用
+     */
+    private Member[] handles = new Member[16];
+
+    /**
+     * 回收的句柄，优先复用，句柄保持紧凑
+     */
+    private int[] freeHandles = new int[16];
+
+    private int freeCount;
+
+    private int nextHandle = 1;
+
+    /**
+     * 树节点数，不含根节点
+     */
+    private int nodes;
+
+    /**
+     * 有订阅的过滤器数
+     */
+    private int filters;
+
+    /**
+     * 订阅总数
+     */
+    private long subscriptions;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * @param maxSubscriptionsPerClient 单个客户端最多订阅的过滤器数，小于等于0表示不限制
+     */
+    public TopicTrie(int maxSubscriptionsPerClient) {
+        this.maxSubscriptionsPerClient = maxSubscriptionsPerClient;
+    }
+
+    /**
+     * 订阅
+     *
+     * @param clientId 客户端ID
+     * @param filter   过滤器，可以包含通配符
+     * @return 已经订阅过或者超过单个客户端的订阅上限返回false
+     * @throws IllegalArgumentException 过滤器不合法
+     */
+    public boolean subscribe(String clientId, String filter) {
+        String[] levels = parse(filter, true);
+        lock.writeLock().lock();
+        try {
+            Member member = members.get(clientId);
+            if (member != null && maxSubscriptionsPerClient > 0 && member.count >= maxSubscriptionsPerClient) {
+                return false;
+            }
+            Node node = root;
+            for (String level : levels) {
+                node = child(node, level);
+            }
+            if (member == null) {
+                member = newMember(clientId);
+            }
+            if (node.members == null) {
+                node.members = new IntSet();
+            }
+            if (!node.members.add(member.handle)) {
+                return false;
+            }
+            if (node.members.size() == 1) {
+                filters++;
+            }
+            member.add(node);
+            subscriptions++;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 取消订阅
+     *
+     * @param clientId 客户端ID
+     * @param filter   订阅时的过滤器
+     * @return 没有订阅过返回false
+     * @throws IllegalArgumentException 过滤器不合法
+     */
+    public boolean unsubscribe(String clientId, String filter) {
+        String[] levels = parse(filter, true);
+        lock.writeLock().lock();
+        try {
+            Member member = members.get(clientId);
+            if (member == null) {
+                return false;
+            }
+            Node node = root;
+            for (int i = 0; i < levels.length && node != null; i++) {
+                node = node.children == null ? null : node.children.get(levels[i]);
+            }
+            if (node == null || node.members == null || !node.members.remove(member.handle)) {
+                return false;
+            }
+            member.remove(node);
+            subscriptions--;
+            prune(node);
+            if (member.count == 0) {
+                releaseMember(member);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 取消客户端的所有订阅，耗时和这个客户端的订阅数成正比
+     *
+     * @param clientId 客户端ID
+     * @return 取消的订阅数
+     */
+    public int unsubscribeAll(String clientId) {
+        lock.writeLock().lock();
+        try {
+            Member member = members.get(clientId);
+            if (member == null) {
+                return 0;
+            }
+            int count = member.count;
+            for (int i = 0; i < count; i++) {
+                Node node = member.nodes[i];
+                node.members.remove(member.handle);
+                prune(node);
+            }
+            subscriptions -= count;
+            releaseMember(member);
+            return count;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 找出订阅了主题的所有客户端，同一个客户端的多个过滤器都匹配时只出现一次
+     *
+     * @param topic 发布的主题，不能包含通配符
+     * @return 客户端ID
+     * @throws IllegalArgumentException 主题不合法
+     */
+    public List<String> match(String topic) {
+        String[] levels = parse(topic, false);
+        lock.readLock().lock();
+        try {
+            List<Node> matched = new ArrayList<>();
+            collect(root, levels, 0, matched);
+            if (matched.isEmpty()) {
+                return Collections.emptyList();
+            }
+            if (matched.size() == 1) {
+                IntSet set = matched.get(0).members;
+                List<String> clientIds = new ArrayList<>(set.size());
+                set.forEach(handle -> clientIds.add(handles[handle].clientId));
+                return clientIds;
+            }
+            List<String> clientIds = new ArrayList<>();
+            IntSet seen = new IntSet();
+            for (Node node : matched) {
+                node.members.forEach(handle -> {
+                    if (seen.add(handle)) {
+                        clientIds.add(handles[handle].clientId);
+                    }
+                });
+            }
+            return clientIds;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 客户端订阅的所有过滤器
+     *
+     * @param clientId 客户端ID
+     * @return 过滤器
+     */
+    public List<String> subscriptions(String clientId) {
+        lock.readLock().lock();
+        try {
+            Member member = members.get(clientId);
+            if (member == null) {
+                return Collections.emptyList();
+            }
+            List<String> filters = new ArrayList<>(member.count);
+            for (int i = 0; i < member.count; i++) {
+                filters.add(member.nodes[i].filter());
+            }
+            return filters;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 树节点数
+     *
+     * @return 节点数
+     */
+    public int getNodes() {
+        lock.readLock().lock();
+        try {
+            return nodes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 有订阅的过滤器数
+     *
+     * @return 过滤器数
+     */
+    public int getFilters() {
+        lock.readLock().lock();
+        try {
+            return filters;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 订阅总数
+     *
+     * @return 订阅数
+     */
+    public long getSubscriptions() {
+        lock.readLock().lock();
+        try {
+            return subscriptions;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 有订阅的客户端数
+     *
+     * @return 客户端数
+     */
+    public int getSubscribers() {
+        lock.readLock().lock();
+        try {
+            return members.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 校验并拆分主题或过滤器
+     *
+     * @param topic  主题或过滤器
+     * @param filter 是否是过滤器，只有过滤器可以包含通配符
+     * @return 各层
+     */
+    static String[] parse(String topic, boolean filter) {
+        if (topic == null || topic.isEmpty() || topic.getBytes(StandardCharsets.UTF_8).length > MAX_TOPIC_BYTES) {
+            throw new IllegalArgumentException("主题为空或超过" + MAX_TOPIC_BYTES + "字节:" + topic);
+        }
+        for (int i = 0; i < topic.length(); i++) {
+            if (Character.isWhitespace(topic.charAt(i))) {
+                throw new IllegalArgumentException("主题不能包含空白字符:" + topic);
+            }
+        }
+        String[] levels = topic.split(String.valueOf(SEPARATOR), -1);
+        for (int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+            if (level.indexOf('+') < 0 && level.indexOf('#') < 0) {
+                continue;
+            }
+            if (!filter) {
+                throw new IllegalArgumentException("发布的主题不能包含通配符:" + topic);
+            }
+            if (!SINGLE_LEVEL.equals(level) && !(MULTI_LEVEL.equals(level) && i == levels.length - 1)) {
+                throw new IllegalArgumentException("通配符必须单独占一层，#只能在最后一层:" + topic);
+            }
+        }
+        return levels;
+    }
+
+    /**
+     * 收集匹配主题levels[index..]的节点
+     */
+    private static void collect(Node node, String[] levels, int index, List<Node> matched) {
+        if (node.children == null) {
+            if (index == levels.length && node.members != null) {
+                matched.add(node);
+            }
+            return;
+        }
+        Node multi = node.children.get(MULTI_LEVEL);
+        if (multi != null && multi.members != null) {
+            matched.add(multi);
+        }
+        if (index == levels.length) {
+            if (node.members != null) {
+                matched.add(node);
+            }
+            return;
+        }
+        Node exact = node.children.get(levels[index]);
+        if (exact != null) {
+            collect(exact, levels, index + 1, matched);
+        }
+        Node single = node.children.get(SINGLE_LEVEL);
+        if (single != null) {
+            collect(single, levels, index + 1, matched);
+        }
+    }
+
+    private Node child(Node parent, String level) {
+        if (parent.children == null) {
+            parent.children = new HashMap<>(4);
+        }
+        Node node = parent.children.get(level);
+        if (node == null) {
+            node = new Node(parent, level);
+            parent.children.put(level, node);
+            nodes++;
+        }
+        return node;
+    }
+
+    /**
+     * 节点没有订阅时释放集合，没有订阅也没有子节点时从树上摘除，并向上检查父节点
+     */
+    private void prune(Node node) {
+        if (node.members != null && node.members.isEmpty()) {
+            node.members = null;
+            filters--;
+        }
+        while (node != root && node.members == null && (node.children == null || node.children.isEmpty())) {
+            node.parent.children.remove(node.level);
+            if (node.parent.children.isEmpty()) {
+                node.parent.children = null;
+            }
+            nodes--;
+            node = node.parent;
+        }
+    }
+
+    private Member newMember(String clientId) {
+        int handle;
+        if (freeCount > 0) {
+            handle = freeHandles[--freeCount];
+        } else {
+            handle = nextHandle++;
+            if (handle == handles.length) {
+                handles = Arrays.copyOf(handles, handles.length * 2);
+            }
+        }
+        Member member = new Member(clientId, handle);
+        handles[handle] = member;
+        members.put(clientId, member);
+        return member;
+    }
+
+    private void releaseMember(Member member) {
+        members.remove(member.clientId);
+        handles[member.handle] = null;
+        if (freeCount == freeHandles.length) {
+            freeHandles = Arrays.copyOf(freeHandles, freeCount * 2);
+        }
+        freeHandles[freeCount++] = member.handle;
+    }
+
+    /**
+     * 树节点，对应过滤器的一层
+     */
+    private static final class Node {
+
+        final Node parent;
+
+        final String level;
+
+        /**
+         * 子节点，没有时为null
+         */
+        HashMap<String, Node> children;
+
+        /**
+         * 订阅了从根到这个节点的过滤器的客户端句柄，没有时为null
+         */
+        IntSet members;
+
+        Node(Node parent, String level) {
+            this.parent = parent;
+            this.level = level;
+        }
+
+        /**
+         * 从根到这个节点的过滤器
+         */
+        String filter() {
+            StringBuilder builder = new StringBuilder(level);
+            for (Node node = parent; node.parent != null; node = node.parent) {
+                builder.insert(0, SEPARATOR).insert(0, node.level);
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * 有订阅的客户端：反向索引，订阅的节点放在数组里
+     */
+    private static final class Member {
+
+        final String clientId;
+
+        final int handle;
+
+        Node[] nodes = new Node[2];
+
+        int count;
+
+        Member(String clientId, int handle) {
+            this.clientId = clientId;
+            this.handle = handle;
+        }
+
+        void add(Node node) {
+            if (count == nodes.length) {
+                nodes = Arrays.copyOf(nodes, count * 2);
+            }
+            nodes[count++] = node;
+        }
+
+        void remove(Node node) {
+            for (int i = 0; i < count; i++) {
+                if (nodes[i] == node) {
+                    nodes[i] = nodes[--count];
+                    nodes[count] = null;
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -19,7 +19,7 @@ public class ContextUtils implements ApplicationContextAware {
 
     @Override
     public void setApplicationContext(ApplicationContext applicationContext) throws BeansException {
-        this.applicationContext = applicationContext;
+        ContextUtils.applicationContext = applicationContext;
     }
 
     /**
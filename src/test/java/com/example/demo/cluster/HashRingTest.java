@@ -0,0 +1,127 @@
+package com.example.demo.cluster;
+
+import org.junit.jupiter.api.Test;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * @author mark
+ * @date 2022/9/22 16:00
+ * @describe 一致性哈希环测试：各处建出的环一致、分布均匀、成员变化时只移动最少的客户端
+ */
+class HashRingTest {
+
+    private static final int CLIENTS = 20_000;
+
+    private static final String N1 = "n1@127.0.0.1:9001";
+
+    private static final String N2 = "n2@127.0.0.1:9002";
+
+    private static final String N3 = "n3@127.0.0.1:9003";
+
+    private static final String N4 = "n4@127.0.0.1:9004";
+
+    @Test
+    void emptyRingHasNoOwner() {
+        HashRing ring = HashRing.of(Collections.emptyList());
+
+        assertThat(ring.isEmpty()).isTrue();
+        assertThat(ring.owner("aa")).isNull();
+    }
+
+    @Test
+    void memberOrderDoesNotChangeTheRing() {
+        HashRing a = HashRing.of(Arrays.asList(N1, N2, N3));
+        HashRing b = HashRing.of(Arrays.asList(N3, N1, N2));
+
+        assertThat(a).isEqualTo(b);
+        for (int i = 0; i < CLIENTS; i++) {
+            assertThat(a.owner("c" + i)).isEqualTo(b.owner("c" + i));
+        }
+    }
+
+    @Test
+    void addressChangeDoesNotMoveClients() {
+        HashRing before = HashRing.of(Arrays.asList(N1, N2, N3));
+        HashRing after = HashRing.of(Arrays.asList(N1, N2, "n3@10.0.0.3:9100"));
+
+        for (int i = 0; i < CLIENTS; i++) {
+            String clientId = "c" + i;
+            assertThat(HashRing.nodeId(after.owner(clientId))).isEqualTo(HashRing.nodeId(before.owner(clientId)));
+        }
+    }
+
+    @Test
+    void clientsAreSpreadEvenly() {
+        HashRing ring = HashRing.of(Arrays.asList(N1, N2, N3, N4));
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < CLIENTS; i++) {
+            counts.merge(ring.owner("c" + i), 1, Integer::sum);
+        }
+
+        assertThat(counts).hasSize(4);
+        // 理想值是1/4，160个虚拟节点时偏差在几个百分点以内
+        assertThat(counts.values()).allSatisfy(count -> assertThat(count).isBetween(CLIENTS * 18 / 100, CLIENTS * 32 / 100));
+    }
+
+    @Test
+    void joiningNodeOnlyTakesClientsFromOthers() {
+        HashRing before = HashRing.of(Arrays.asList(N1, N2, N3));
+        HashRing after = HashRing.of(Arrays.asList(N1, N2, N3, N4));
+        int moved = 0;
+        for (int i = 0; i < CLIENTS; i++) {
+            String clientId = "c" + i;
+            String owner = after.owner(clientId);
+            if (!owner.equals(before.owner(clientId))) {
+                // 换归属的客户端只能换到新节点
+                assertThat(owner).isEqualTo(N4);
+                moved++;
+            }
+        }
+
+        // 理想值是1/4
+        assertThat(moved).isBetween(CLIENTS * 18 / 100, CLIENTS * 32 / 100);
+    }
+
+    @Test
+    void leavingNodeOnlyMovesItsOwnClients() {
+        HashRing before = HashRing.of(Arrays.asList(N1, N2, N3, N4));
+        HashRing after = HashRing.of(Arrays.asList(N1, N3, N4));
+        for (int i = 0; i < CLIENTS; i++) {
+            String clientId = "c" + i;
+            String owner = before.owner(clientId);
+            if (!owner.equals(N2)) {
+                assertThat(after.owner(clientId)).isEqualTo(owner);
+            } else {
+                assertThat(after.owner(clientId)).isNotEqualTo(N2);
+            }
+        }
+    }
+
+    @Test
+    void twoCharacterClientIdsAreSpreadOverAllNodes() {
+        HashRing ring = HashRing.of(Arrays.asList(N1, N2, N3));
+        Map<String, Integer> counts = new HashMap<>();
+        for (char a = 'a'; a <= 'z'; a++) {
+            for (char b = 'a'; b <= 'z'; b++) {
+                counts.merge(ring.owner("" + a + b), 1, Integer::sum);
+            }
+        }
+
+        assertThat(counts).hasSize(3);
+        assertThat(counts.values()).allSatisfy(count -> assertThat(count).isGreaterThan(26 * 26 / 6));
+    }
+
+    @Test
+    void rejectsDuplicateNodeIdsAndMalformedMembers() {
+        assertThatThrownBy(() -> HashRing.of(Arrays.asList(N1, "n1@127.0.0.1:9100"))).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> HashRing.of(Collections.singletonList("127.0.0.1:9001"))).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> HashRing.of(Collections.singletonList("n1@127.0.0.1"))).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> HashRing.of(Collections.singletonList("n1@127.0.0.1:port"))).isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,207 @@
+package com.example.demo.codec;
+
+import com.example.demo.buffer.BufferPool;
+import com.example.demo.buffer.PooledBuffer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * @author mark
+ * @date 2022/8/12 16:30
+ * @describe 帧解码器测试：拆包、粘包、分片重组、控制帧和非法帧
+ */
+class FrameDecoderTest {
+
+    private final FrameDecoder decoder = new FrameDecoder();
+
+    /**
+     * 收到的消息和控制类型，控制帧记为"#类型"
+     */
+    private final List<String> received = new ArrayList<>();
+
+    private final FrameHandler handler = new FrameHandler() {
+        @Override
+        public void onFrame(ByteBuffer frame) {
+            received.add(FrameCodec.decodeToString(frame));
+        }
+
+        @Override
+        public void onControl(int type) {
+            received.add("#" + type);
+        }
+    };
+
+    @AfterEach
+    void release() {
+        decoder.release();
+    }
+
+    @Test
+    void decodesCoalescedFramesFromOneRead() throws FrameException {
+        String large = repeat("大消息", FrameCodec.MAX_FRAME_SIZE);
+        byte[] bytes = concat(encode("hello"), encodePing(), encode("世界"), encode(large));
+
+        decoder.decode(ByteBuffer.wrap(bytes), handler);
+
+        assertThat(received).containsExactly("hello", "#" + FrameCodec.PING, "世界", large);
+        assertThat(decoder.buffered()).isZero();
+    }
+
+    @Test
+    void decodesFramesSplitAtEveryByte() throws FrameException {
+        String large = repeat("x", FrameCodec.MAX_FRAME_SIZE * 2 + 17);
+        byte[] bytes = concat(encode("hello"), encode(large), encodePing(), encode("bye"));
+
+        for (byte b : bytes) {
+            decoder.decode(ByteBuffer.wrap(new byte[]{b}), handler);
+        }
+
+        assertThat(received).containsExactly("hello", large, "#" + FrameCodec.PING, "bye");
+        assertThat(decoder.buffered()).isZero();
+    }
+
+    @Test
+    void decodesFramesSplitAtRandomBoundaries() throws FrameException {
+        List<String> expected = new ArrayList<>();
+        List<byte[]> frames = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            String msg = repeat("消息" + i, 1 + random.nextInt(i % 20 == 0 ? 50_000 : 200));
+            expected.add(msg);
+            frames.add(encode(msg));
+        }
+        byte[] bytes = concat(frames.toArray(new byte[0][]));
+
+        int offset = 0;
+        while (offset < bytes.length) {
+            int n = Math.min(bytes.length - offset, 1 + random.nextInt(8192));
+            decoder.decode(ByteBuffer.wrap(bytes, offset, n), handler);
+            offset += n;
+        }
+
+        assertThat(received).isEqualTo(expected);
+        assertThat(decoder.buffered()).isZero();
+    }
+
+    @Test
+    void buffersIncompleteFrameUntilTheRestArrives() throws FrameException {
+        byte[] bytes = encode("hello world");
+
+        decoder.decode(ByteBuffer.wrap(bytes, 0, 2), handler);
+        assertThat(decoder.buffered()).isEqualTo(2);
+        decoder.decode(ByteBuffer.wrap(bytes, 2, 6), handler);
+        assertThat(received).isEmpty();
+        assertThat(decoder.buffered()).isEqualTo(4);
+
+        decoder.decode(ByteBuffer.wrap(bytes, 8, bytes.length - 8), handler);
+        assertThat(received).containsExactly("hello world");
+        assertThat(decoder.buffered()).isZero();
+    }
+
+    @Test
+    void deliversEmptyFrameWhenSplitHeaderEndsTheRead() throws FrameException {
+        byte[] bytes = concat(encode("hello"), new byte[FrameCodec.HEADER_LENGTH]);
+
+        decoder.decode(ByteBuffer.wrap(bytes, 0, bytes.length - 1), handler);
+        decoder.decode(ByteBuffer.wrap(bytes, bytes.length - 1, 1), handler);
+
+        assertThat(received).containsExactly("hello", "");
+        assertThat(decoder.buffered()).isZero();
+    }
+
+    @Test
+    void rejectsFrameLongerThanLimit() {
+        ByteBuffer in = ByteBuffer.allocate(FrameCodec.HEADER_LENGTH);
+        in.putInt(FrameCodec.MAX_FRAME_SIZE + 1).flip();
+
+        assertThatThrownBy(() -> decoder.decode(in, handler)).isInstanceOf(FrameException.class);
+        assertThat(received).isEmpty();
+    }
+
+    @Test
+    void rejectsChunkedMessageLongerThanLimit() {
+        FrameDecoder small = new FrameDecoder(FrameCodec.MAX_FRAME_SIZE, 1024, BufferPool.DEFAULT);
+        byte[] bytes = encode(repeat("x", FrameCodec.MAX_FRAME_SIZE + 1));
+        try {
+            assertThatThrownBy(() -> small.decode(ByteBuffer.wrap(bytes), handler)).isInstanceOf(FrameException.class);
+        } finally {
+            small.release();
+        }
+    }
+
+    @Test
+    void rejectsOutOfOrderChunk() {
+        ByteBuffer in = ByteBuffer.allocate(64);
+        in.putInt(FrameCodec.CHUNK_FLAG | (FrameCodec.CHUNK_HEADER_LENGTH + 1));
+        in.putInt(7).putInt(1).putInt(2).put((byte) 'x');
+        in.flip();
+
+        assertThatThrownBy(() -> decoder.decode(in, handler)).isInstanceOf(FrameException.class);
+    }
+
+    @Test
+    void rejectsHeaderWithBothChunkAndControlFlags() {
+        ByteBuffer in = ByteBuffer.allocate(FrameCodec.HEADER_LENGTH);
+        in.putInt(FrameCodec.CHUNK_FLAG | FrameCodec.CONTROL_FLAG | 1).flip();
+
+        assertThatThrownBy(() -> decoder.decode(in, handler)).isInstanceOf(FrameException.class);
+    }
+
+    @Test
+    void ignoresDataAfterRelease() throws FrameException {
+        decoder.release();
+
+        decoder.decode(ByteBuffer.wrap(encode("hello")), handler);
+
+        assertThat(received).isEmpty();
+    }
+
+    private static byte[] encode(String msg) {
+        return toBytes(FrameCodec.encode(msg, BufferPool.DEFAULT));
+    }
+
+    private static byte[] encodePing() {
+        return toBytes(FrameCodec.encodeControl(FrameCodec.PING, BufferPool.DEFAULT));
+    }
+
+    private static byte[] toBytes(PooledBuffer frame) {
+        try {
+            ByteBuffer buffer = frame.buffer();
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            return bytes;
+        } finally {
+            frame.release();
+        }
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] bytes = Arrays.copyOf(parts[0], length);
+        int offset = parts[0].length;
+        for (int i = 1; i < parts.length; i++) {
+            System.arraycopy(parts[i], 0, bytes, offset, parts[i].length);
+            offset += parts[i].length;
+        }
+        return bytes;
+    }
+
+    private static String repeat(String s, int count) {
+        StringBuilder sb = new StringBuilder(s.length() * count);
+        for (int i = 0; i < count; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,143 @@
+package com.example.demo.journal;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author mark
+ * @date 2022/9/18 16:00
+ * @describe 消息日志测试：写入后回放、滚动，以及崩溃后写了一半或损坏的记录在重启时被跳过
+ */
+class JournalTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void replaysAppendedRecordsInOrder() throws IOException {
+        try (Journal journal = open(64 * 1024)) {
+            journal.append(Journal.INBOUND, "aa", "hello");
+            journal.append(Journal.BROADCAST, null, "大家好");
+            journal.append(Journal.DIRECT, "bb", "hi bb");
+            journal.append(Journal.PUBLISH, "sport/football", "goal");
+        }
+
+        assertThat(replay()).containsExactly("1|aa|hello", "2||大家好", "3|bb|hi bb", "4|sport/football|goal");
+    }
+
+    @Test
+    void rollsToNewSegmentWhenFull() throws IOException {
+        List<String> expected = new ArrayList<>();
+        try (Journal journal = open(1024)) {
+            for (int i = 0; i < 100; i++) {
+                journal.append(Journal.INBOUND, "aa", "message-" + i);
+                expected.add("1|aa|message-" + i);
+            }
+        }
+
+        assertThat(JournalSegment.list(directory)).hasSizeGreaterThan(1);
+        assertThat(replay()).isEqualTo(expected);
+    }
+
+    @Test
+    void skipsTornRecordAfterCrash() throws IOException {
+        try (Journal journal = open(64 * 1024)) {
+            journal.append(Journal.INBOUND, "aa", "first");
+            journal.append(Journal.INBOUND, "aa", "second");
+        }
+        JournalSegment segment = JournalSegment.list(directory).get(0);
+        int end = validEnd(segment);
+        // 崩溃时只写出了长度和一部分记录头
+        ByteBuffer torn = ByteBuffer.allocate(12);
+        torn.putInt(64).putInt(0x12345678).putInt(42).flip();
+        write(segment, end, torn);
+
+        try (Journal journal = open(64 * 1024)) {
+            journal.append(Journal.INBOUND, "aa", "third");
+        }
+
+        assertThat(validEnd(segment)).isEqualTo(end);
+        assertThat(JournalSegment.list(directory)).extracting(s -> s.baseOffset).containsExactly(0L, (long) end);
+        assertThat(replay()).containsExactly("1|aa|first", "1|aa|second", "1|aa|third");
+    }
+
+    @Test
+    void skipsRecordWithBadChecksumAndEverythingAfterIt() throws IOException {
+        List<long[]> positions = new ArrayList<>();
+        try (Journal journal = open(64 * 1024)) {
+            journal.append(Journal.INBOUND, "aa", "first");
+            journal.append(Journal.INBOUND, "aa", "second");
+            journal.append(Journal.INBOUND, "aa", "third");
+        }
+        new JournalReader(directory).replay(0, Long.MAX_VALUE,
+                record -> positions.add(new long[]{record.getOffset(), record.getLength()}));
+        JournalSegment segment = JournalSegment.list(directory).get(0);
+        // 改掉第二条记录正文的最后一个字节，CRC校验不通过
+        long[] second = positions.get(1);
+        write(segment, (int) (second[0] + second[1] - 1), ByteBuffer.wrap(new byte[]{'X'}));
+
+        assertThat(validEnd(segment)).isEqualTo((int) second[0]);
+        try (Journal journal = open(64 * 1024)) {
+            journal.append(Journal.INBOUND, "aa", "fourth");
+        }
+
+        assertThat(replay()).containsExactly("1|aa|first", "1|aa|fourth");
+    }
+
+    @Test
+    void reusesEmptyLastSegmentOnRestart() throws IOException {
+        try (Journal journal = open(64 * 1024)) {
+            journal.append(Journal.INBOUND, "aa", "first");
+        }
+        int end = validEnd(JournalSegment.list(directory).get(0));
+        open(64 * 1024).close();
+        open(64 * 1024).close();
+
+        // 两次没有写入的重启只留下一个空日志段，起始偏移量都是上一个日志段的有效结尾
+        assertThat(JournalSegment.list(directory)).extracting(s -> s.baseOffset).containsExactly(0L, (long) end);
+        assertThat(replay()).containsExactly("1|aa|first");
+    }
+
+    @Test
+    void validEndOfEmptySegmentIsZero() {
+        assertThat(JournalSegment.validEnd(ByteBuffer.allocate(1024))).isZero();
+        assertThat(JournalSegment.validEnd(ByteBuffer.allocate(4))).isZero();
+    }
+
+    private Journal open(int segmentBytes) throws IOException {
+        JournalOptions options = new JournalOptions();
+        options.setDirectory(directory.toString());
+        options.setSegmentBytes(segmentBytes);
+        options.setRetentionBytes(0);
+        options.setRetentionHours(0);
+        return new Journal(options);
+    }
+
+    private List<String> replay() throws IOException {
+        List<String> records = new ArrayList<>();
+        new JournalReader(directory).replay(0, Long.MAX_VALUE, record -> records.add(record.getType() + "|"
+                + (record.getClientId() == null ? "" : record.getClientId()) + "|" + record.getMessage()));
+        return records;
+    }
+
+    private static int validEnd(JournalSegment segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+            return JournalSegment.validEnd(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    private static void write(JournalSegment segment, int position, ByteBuffer bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.WRITE)) {
+            channel.write(bytes, position);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.demo.topic;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * @author mark
+ * @date 2022/9/20 16:00
+ * @describe 主题订阅索引测试：通配符匹配、去重、订阅上限、取消订阅后的节点回收
+ */
+class TopicTrieTest {
+
+    private final TopicTrie trie = new TopicTrie(0);
+
+    @Test
+    void matchesExactTopic() {
+        trie.subscribe("aa", "sport/football");
+
+        assertThat(trie.match("sport/football")).containsExactly("aa");
+        assertThat(trie.match("sport")).isEmpty();
+        assertThat(trie.match("sport/football/score")).isEmpty();
+    }
+
+    @Test
+    void singleLevelWildcardMatchesExactlyOneLevel() {
+        trie.subscribe("aa", "sport/+/score");
+
+        assertThat(trie.match("sport/football/score")).containsExactly("aa");
+        assertThat(trie.match("sport/tennis/score")).containsExactly("aa");
+        assertThat(trie.match("sport/score")).isEmpty();
+        assertThat(trie.match("sport/football/live/score")).isEmpty();
+    }
+
+    @Test
+    void multiLevelWildcardMatchesParentAndAllDescendants() {
+        trie.subscribe("aa", "sport/#");
+
+        assertThat(trie.match("sport")).containsExactly("aa");
+        assertThat(trie.match("sport/football")).containsExactly("aa");
+        assertThat(trie.match("sport/football/score/live")).containsExactly("aa");
+        assertThat(trie.match("news")).isEmpty();
+    }
+
+    @Test
+    void rootMultiLevelWildcardMatchesEverything() {
+        trie.subscribe("aa", "#");
+
+        assertThat(trie.match("a")).containsExactly("aa");
+        assertThat(trie.match("a/b/c")).containsExactly("aa");
+    }
+
+    @Test
+    void clientMatchedByManyFiltersAppearsOnce() {
+        trie.subscribe("aa", "sport/football");
+        trie.subscribe("aa", "sport/+");
+        trie.subscribe("aa", "sport/#");
+        trie.subscribe("bb", "+/football");
+
+        assertThat(trie.match("sport/football")).containsExactlyInAnyOrder("aa", "bb");
+    }
+
+    @Test
+    void duplicateSubscriptionIsRejected() {
+        assertThat(trie.subscribe("aa", "a/b")).isTrue();
+        assertThat(trie.subscribe("aa", "a/b")).isFalse();
+        assertThat(trie.getSubscriptions()).isEqualTo(1);
+    }
+
+    @Test
+    void subscriptionLimitIsPerClient() {
+        TopicTrie limited = new TopicTrie(2);
+
+        assertThat(limited.subscribe("aa", "a")).isTrue();
+        assertThat(limited.subscribe("aa", "b")).isTrue();
+        assertThat(limited.subscribe("aa", "c")).isFalse();
+        assertThat(limited.subscribe("bb", "c")).isTrue();
+        assertThat(limited.subscriptions("aa")).containsExactlyInAnyOrder("a", "b");
+    }
+
+    @Test
+    void unsubscribePrunesEmptyNodes() {
+        trie.subscribe("aa", "a/b/c");
+        trie.subscribe("bb", "a/b");
+        assertThat(trie.getNodes()).isEqualTo(3);
+
+        assertThat(trie.unsubscribe("aa", "a/b/c")).isTrue();
+        assertThat(trie.getNodes()).isEqualTo(2);
+        assertThat(trie.match("a/b/c")).isEmpty();
+        assertThat(trie.match("a/b")).containsExactly("bb");
+
+        assertThat(trie.unsubscribe("bb", "a/b")).isTrue();
+        assertThat(trie.getNodes()).isZero();
+        assertThat(trie.getFilters()).isZero();
+        assertThat(trie.getSubscribers()).isZero();
+    }
+
+    @Test
+    void unsubscribeOfUnknownFilterDoesNothing() {
+        trie.subscribe("aa", "a/b");
+
+        assertThat(trie.unsubscribe("aa", "a/c")).isFalse();
+        assertThat(trie.unsubscribe("bb", "a/b")).isFalse();
+        assertThat(trie.getSubscriptions()).isEqualTo(1);
+    }
+
+    @Test
+    void unsubscribeAllRemovesEverySubscriptionAndPrunes() {
+        trie.subscribe("aa", "a/b");
+        trie.subscribe("aa", "a/+/c");
+        trie.subscribe("aa", "x/#");
+        trie.subscribe("bb", "a/b");
+
+        assertThat(trie.unsubscribeAll("aa")).isEqualTo(3);
+
+        assertThat(trie.subscriptions("aa")).isEmpty();
+        assertThat(trie.match("a/b")).containsExactly("bb");
+        assertThat(trie.match("x/y")).isEmpty();
+        assertThat(trie.getNodes()).isEqualTo(2);
+        assertThat(trie.getSubscriptions()).isEqualTo(1);
+        assertThat(trie.getSubscribers()).isEqualTo(1);
+    }
+
+    @Test
+    void reusesHandlesAfterClientsLeave() {
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 100; i++) {
+                trie.subscribe("c" + i, "t/" + (i % 10));
+            }
+            assertThat(trie.match("t/3")).hasSize(10);
+            for (int i = 0; i < 100; i++) {
+                trie.unsubscribeAll("c" + i);
+            }
+            assertThat(trie.getNodes()).isZero();
+            assertThat(trie.getSubscribers()).isZero();
+        }
+    }
+
+    @Test
+    void rejectsInvalidFiltersAndTopics() {
+        assertThatThrownBy(() -> trie.subscribe("aa", "a/#/b")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> trie.subscribe("aa", "a/b+")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> trie.subscribe("aa", "a b")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> trie.subscribe("aa", "")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> trie.match("a/+")).isInstanceOf(IllegalArgumentException.class);
+        assertThat(trie.getNodes()).isZero();
+    }
+}